@@ -31,10 +31,25 @@ public final class OptKeys {
     public static final String SIG_OUT_DIR               = "CeresDB.signal.out_dir";
     public static final String HTTP_READ_TIMEOUT_MS      = "CeresDB.http.read_timeout_ms";
     public static final String HTTP_WRITE_TIMEOUT_MS     = "CeresDB.http.write_timeout_ms";
+    public static final String HTTP_MAX_IDLE_CONNS       = "CeresDB.http.max_idle_connections";
+    public static final String HTTP_KEEP_ALIVE_MS        = "CeresDB.http.keep_alive_ms";
+    public static final String HTTP_MAX_REQUESTS         = "CeresDB.http.max_requests";
+    public static final String HTTP_MAX_REQS_PER_HOST    = "CeresDB.http.max_requests_per_host";
     public static final String GRPC_CONN_RESET_THRESHOLD = "CeresDB.grpc.conn.failures.reset_threshold";
     public static final String AVAILABLE_CPUS            = "CeresDB.available_cpus";
     public static final String NAME_VALIDATE             = "CeresDB.avro.name_validate";
     public static final String WRITE_LIMIT_PERCENT       = "CeresDB.rpc.write.limit_percent";
+    public static final String SERIES_REGISTRY_MAX_SIZE  = "CeresDB.client.write.series_registry_max_size";
+    public static final String METRIC_PARSER_CACHE_SIZE  = "CeresDB.client.read.metric_parser_cache_size";
+    public static final String METRICS_EXPORTER_PORT     = "CeresDB.metrics.exporter_port";
+    public static final String METRICS_PUSH_URL          = "CeresDB.metrics.push_url";
+    public static final String METRICS_PUSH_PERIOD_SEC   = "CeresDB.metrics.push_period_seconds";
+    public static final String TRACE_SAMPLE_RATE         = "CeresDB.trace.sample_rate";
+    public static final String TRACE_BUFFER_SIZE         = "CeresDB.trace.buffer_size";
+    public static final String FLIGHT_RECORDER_SIZE      = "CeresDB.trace.flight_recorder_size";
+    public static final String FLIGHT_RECORDER_WINDOW    = "CeresDB.trace.flight_recorder_window_seconds";
+    public static final String HDR_HISTOGRAM             = "CeresDB.metrics.hdr_histogram";
+    public static final String HDR_WINDOW_SECONDS        = "CeresDB.metrics.hdr_window_seconds";
 
     private OptKeys() {
     }
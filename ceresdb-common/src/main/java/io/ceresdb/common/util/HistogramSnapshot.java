@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.common.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of a {@link LatencyRecorder}.
+ *
+ * The snapshots can be merged ({@link #merge(HistogramSnapshot)}) and
+ * exported ({@link #toBytes()}, {@link #fromBytes(byte[])}), such as to
+ * compute the percentiles across all the endpoints or client JVMs.
+ *
+ * @author jiachun.fjc
+ */
+public final class HistogramSnapshot {
+
+    public static final HistogramSnapshot EMPTY = new HistogramSnapshot(new int[0], new long[0], 0);
+
+    private static final byte VERSION = 1;
+
+    // the indexes of the non-empty buckets, in ascending order
+    private final int[]  indexes;
+    private final long[] counts;
+    private final long   totalCount;
+    private final long   sum;
+
+    static HistogramSnapshot of(final int[] indexes, final long[] counts, final int n, final long sum) {
+        return new HistogramSnapshot(Arrays.copyOf(indexes, n), Arrays.copyOf(counts, n), sum);
+    }
+
+    private HistogramSnapshot(int[] indexes, long[] counts, long sum) {
+        this.indexes = indexes;
+        this.counts = counts;
+        long total = 0;
+        for (final long c : counts) {
+            total += c;
+        }
+        this.totalCount = total;
+        this.sum = sum;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public double getMean() {
+        return this.totalCount == 0 ? 0 : (double) this.sum / this.totalCount;
+    }
+
+    public long getMin() {
+        return this.indexes.length == 0 ? 0 : LatencyRecorder.lowerBound(this.indexes[0]);
+    }
+
+    public long getMax() {
+        return this.indexes.length == 0 ? 0 : LatencyRecorder.upperBound(this.indexes[this.indexes.length - 1]);
+    }
+
+    /**
+     * Returns the value at the given quantile, the middle of the bucket that
+     * the value falls in.
+     *
+     * @param quantile a quantile in [0, 1]
+     * @return the value
+     */
+    public long getValue(final double quantile) {
+        Requires.requireTrue(quantile >= 0 && quantile <= 1, "quantile must be in [0, 1]: %s", quantile);
+        if (this.totalCount == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(quantile * this.totalCount));
+        long seen = 0;
+        for (int i = 0; i < this.indexes.length; i++) {
+            seen += this.counts[i];
+            if (seen >= rank) {
+                return valueOf(this.indexes[i]);
+            }
+        }
+        return valueOf(this.indexes[this.indexes.length - 1]);
+    }
+
+    public double getStdDev() {
+        if (this.totalCount <= 1) {
+            return 0;
+        }
+        final double mean = getMean();
+        double variance = 0;
+        for (int i = 0; i < this.indexes.length; i++) {
+            final double diff = valueOf(this.indexes[i]) - mean;
+            variance += diff * diff * this.counts[i];
+        }
+        return Math.sqrt(variance / (this.totalCount - 1));
+    }
+
+    /**
+     * Returns the number of the non-empty buckets.
+     */
+    public int bucketCount() {
+        return this.indexes.length;
+    }
+
+    /**
+     * Returns the value that represents the i-th non-empty bucket.
+     */
+    public long bucketValue(final int i) {
+        return valueOf(this.indexes[i]);
+    }
+
+    public long bucketCount(final int i) {
+        return this.counts[i];
+    }
+
+    public HistogramSnapshot merge(final HistogramSnapshot other) {
+        return combine(other, 1);
+    }
+
+    /**
+     * Returns the values that are in this snapshot but not in the given
+     * earlier snapshot of the same recorder.
+     */
+    public HistogramSnapshot minus(final HistogramSnapshot earlier) {
+        return combine(earlier, -1);
+    }
+
+    private HistogramSnapshot combine(final HistogramSnapshot other, final int sign) {
+        final int[] idx = new int[this.indexes.length + other.indexes.length];
+        final long[] cnt = new long[idx.length];
+        int n = 0, i = 0, j = 0;
+        while (i < this.indexes.length || j < other.indexes.length) {
+            final int a = i < this.indexes.length ? this.indexes[i] : Integer.MAX_VALUE;
+            final int b = j < other.indexes.length ? other.indexes[j] : Integer.MAX_VALUE;
+            final long c;
+            final int index;
+            if (a == b) {
+                index = a;
+                c = this.counts[i++] + sign * other.counts[j++];
+            } else if (a < b) {
+                index = a;
+                c = this.counts[i++];
+            } else {
+                index = b;
+                c = sign * other.counts[j++];
+            }
+            if (c > 0) {
+                idx[n] = index;
+                cnt[n] = c;
+                n++;
+            }
+        }
+        return of(idx, cnt, n, this.sum + sign * other.sum);
+    }
+
+    /**
+     * Encodes the snapshot into a compact byte array.
+     */
+    public byte[] toBytes() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(16 + this.indexes.length * 4);
+        out.write(VERSION);
+        out.write(LatencyRecorder.SUB_BITS);
+        writeVarLong(out, this.sum);
+        writeVarLong(out, this.indexes.length);
+        int prev = 0;
+        for (int i = 0; i < this.indexes.length; i++) {
+            writeVarLong(out, this.indexes[i] - prev); // delta of the ascending indexes
+            writeVarLong(out, this.counts[i]);
+            prev = this.indexes[i];
+        }
+        return out.toByteArray();
+    }
+
+    public static HistogramSnapshot fromBytes(final byte[] bytes) {
+        final ByteBuffer buf = ByteBuffer.wrap(bytes);
+        final byte version = buf.get();
+        Requires.requireTrue(version == VERSION, "Unsupported version: %s", version);
+        final byte subBits = buf.get();
+        Requires.requireTrue(subBits == LatencyRecorder.SUB_BITS, "Unsupported sub bits: %s", subBits);
+        final long sum = readVarLong(buf);
+        final int n = (int) readVarLong(buf);
+        final int[] indexes = new int[n];
+        final long[] counts = new long[n];
+        int prev = 0;
+        for (int i = 0; i < n; i++) {
+            prev += (int) readVarLong(buf);
+            indexes[i] = prev;
+            counts[i] = readVarLong(buf);
+        }
+        return new HistogramSnapshot(indexes, counts, sum);
+    }
+
+    private static long valueOf(final int index) {
+        final long lower = LatencyRecorder.lowerBound(index);
+        return lower + (LatencyRecorder.upperBound(index) - lower) / 2;
+    }
+
+    private static void writeVarLong(final ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(final ByteBuffer buf) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = buf.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("Malformed var long");
+    }
+
+    @Override
+    public String toString() {
+        return "HistogramSnapshot{" + //
+               "totalCount=" + totalCount + //
+               ", mean=" + getMean() + //
+               ", p50=" + getValue(0.5) + //
+               ", p99=" + getValue(0.99) + //
+               ", p999=" + getValue(0.999) + //
+               ", max=" + getMax() + //
+               '}';
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.common.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free and allocation-free recorder of non-negative values, such as
+ * latencies in nanoseconds, in the style of HdrHistogram.
+ *
+ * The values are counted in log-linear buckets: the values less than 64 are
+ * exact, the others are split into 64 sub-buckets per power of two, so the
+ * relative error is less than 1/64 (about 1.6%) for any value of a long.
+ * The layout of the buckets is fixed, so the snapshots of different
+ * recorders, even of different JVMs, can be merged, and the percentiles of
+ * the merged snapshot are as accurate as the ones of a single recorder.
+ *
+ * @author jiachun.fjc
+ */
+public final class LatencyRecorder {
+
+    static final int SUB_BITS  = 6;
+    static final int SUB_COUNT = 1 << SUB_BITS;
+    static final int BUCKETS   = SUB_COUNT + (Long.SIZE - 1 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder       sum    = new LongAdder();
+
+    // the cumulative snapshot at the end of the last interval
+    private HistogramSnapshot lastInterval = HistogramSnapshot.EMPTY;
+
+    public void record(final long value) {
+        final long v = Math.max(0, value);
+        this.counts.incrementAndGet(index(v));
+        this.sum.add(v);
+    }
+
+    /**
+     * Returns all the values recorded so far.
+     */
+    public HistogramSnapshot snapshot() {
+        int n = 0;
+        final int[] indexes = new int[BUCKETS];
+        final long[] bucketCounts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            final long c = this.counts.get(i);
+            if (c > 0) {
+                indexes[n] = i;
+                bucketCounts[n] = c;
+                n++;
+            }
+        }
+        return HistogramSnapshot.of(indexes, bucketCounts, n, this.sum.sum());
+    }
+
+    /**
+     * Returns the values recorded since the last call, the recording is not
+     * blocked, a value recorded concurrently is counted by this interval or
+     * the next one, never lost.
+     */
+    public synchronized HistogramSnapshot intervalSnapshot() {
+        final HistogramSnapshot current = snapshot();
+        final HistogramSnapshot interval = current.minus(this.lastInterval);
+        this.lastInterval = current;
+        return interval;
+    }
+
+    static int index(final long v) {
+        if (v < SUB_COUNT) {
+            return (int) v;
+        }
+        final int msb = Long.SIZE - 1 - Long.numberOfLeadingZeros(v);
+        final int shift = msb - SUB_BITS;
+        final int sub = (int) (v >>> shift) - SUB_COUNT;
+        return SUB_COUNT + shift * SUB_COUNT + sub;
+    }
+
+    static long lowerBound(final int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        final int shift = (index - SUB_COUNT) / SUB_COUNT;
+        final int sub = (index - SUB_COUNT) % SUB_COUNT;
+        return ((long) (SUB_COUNT + sub)) << shift;
+    }
+
+    static long upperBound(final int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        final int shift = (index - SUB_COUNT) / SUB_COUNT;
+        return lowerBound(index) + (1L << shift) - 1;
+    }
+}
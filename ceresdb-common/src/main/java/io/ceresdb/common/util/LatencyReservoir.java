@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.common.util;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * A {@link Reservoir} backed by a {@link LatencyRecorder}, the percentiles
+ * are accurate at the tail, unlike the exponentially decaying reservoir.
+ *
+ * A snapshot covers the values recorded in the last one to two windows:
+ * the cumulative counts are checkpointed once per window, and a snapshot
+ * is the difference from the checkpoint before the last one.
+ *
+ * @author jiachun.fjc
+ */
+public final class LatencyReservoir implements Reservoir {
+
+    private final LatencyRecorder recorder;
+    private final long            windowNanos;
+
+    private HistogramSnapshot prevCheckpoint = HistogramSnapshot.EMPTY;
+    private HistogramSnapshot lastCheckpoint = HistogramSnapshot.EMPTY;
+    private long              lastCheckpointTick;
+
+    public LatencyReservoir(LatencyRecorder recorder, long windowNanos) {
+        this.recorder = Requires.requireNonNull(recorder, "Null.recorder");
+        this.windowNanos = windowNanos;
+        this.lastCheckpointTick = System.nanoTime();
+    }
+
+    public LatencyRecorder recorder() {
+        return recorder;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, getSnapshot0().getTotalCount());
+    }
+
+    @Override
+    public void update(final long value) {
+        this.recorder.record(value);
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        return new LatencySnapshot(getSnapshot0());
+    }
+
+    private synchronized HistogramSnapshot getSnapshot0() {
+        final HistogramSnapshot current = this.recorder.snapshot();
+        final long now = System.nanoTime();
+        if (now - this.lastCheckpointTick >= this.windowNanos) {
+            this.prevCheckpoint = this.lastCheckpoint;
+            this.lastCheckpoint = current;
+            this.lastCheckpointTick = now;
+        }
+        return current.minus(this.prevCheckpoint);
+    }
+
+    static final class LatencySnapshot extends Snapshot {
+
+        private final HistogramSnapshot snapshot;
+
+        LatencySnapshot(HistogramSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public double getValue(final double quantile) {
+            return this.snapshot.getValue(quantile);
+        }
+
+        /**
+         * Returns one value per non-empty bucket, not all the recorded values.
+         */
+        @Override
+        public long[] getValues() {
+            final long[] values = new long[this.snapshot.bucketCount()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = this.snapshot.bucketValue(i);
+            }
+            return values;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(Integer.MAX_VALUE, this.snapshot.getTotalCount());
+        }
+
+        @Override
+        public long getMax() {
+            return this.snapshot.getMax();
+        }
+
+        @Override
+        public double getMean() {
+            return this.snapshot.getMean();
+        }
+
+        @Override
+        public long getMin() {
+            return this.snapshot.getMin();
+        }
+
+        @Override
+        public double getStdDev() {
+            return this.snapshot.getStdDev();
+        }
+
+        @Override
+        public void dump(final OutputStream output) {
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+                for (int i = 0; i < this.snapshot.bucketCount(); i++) {
+                    out.printf("%d %d%n", this.snapshot.bucketValue(i), this.snapshot.bucketCount(i));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.common.util;
+
+import java.util.Arrays;
+
+/**
+ * A metric name with labels.
+ *
+ * The metrics are still registered by the flat names, such as
+ * `req_rt_${method}_${tenant}`, so the names in the reports are not
+ * changed, but the exporters can take the labels apart from the name
+ * instead of guessing them from the flat name.
+ *
+ * @author jiachun.fjc
+ */
+public final class MetricName {
+
+    private static final String[] EMPTY = new String[0];
+
+    private final String   name;
+    private final String[] labelNames;
+    private final String[] labelValues;
+    private final String   flatName;
+
+    /**
+     * Create a metric name.
+     *
+     * @param name     the base name
+     * @param labelKVs the label names and values, such as `k1, v1, k2, v2`
+     * @return the metric name
+     */
+    public static MetricName of(final String name, final String... labelKVs) {
+        Requires.requireNonNull(name, "Null.name");
+        Requires.requireTrue(labelKVs.length % 2 == 0, "Unpaired label names and values");
+
+        final int n = labelKVs.length / 2;
+        if (n == 0) {
+            return new MetricName(name, EMPTY, EMPTY);
+        }
+        final String[] names = new String[n];
+        final String[] values = new String[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = labelKVs[i << 1];
+            values[i] = labelKVs[(i << 1) + 1];
+        }
+        return new MetricName(name, names, values);
+    }
+
+    private MetricName(String name, String[] labelNames, String[] labelValues) {
+        this.name = name;
+        this.labelNames = labelNames;
+        this.labelValues = labelValues;
+        this.flatName = MetricsUtil.namedById(name, labelValues);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLabelCount() {
+        return this.labelNames.length;
+    }
+
+    public String getLabelName(final int i) {
+        return this.labelNames[i];
+    }
+
+    public String getLabelValue(final int i) {
+        return this.labelValues[i];
+    }
+
+    /**
+     * Returns the flat name that the metric is registered by.
+     *
+     * @return the flat name
+     */
+    public String getFlatName() {
+        return flatName;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final MetricName that = (MetricName) o;
+        return this.name.equals(that.name) && Arrays.equals(this.labelNames, that.labelNames)
+               && Arrays.equals(this.labelValues, that.labelValues);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = this.name.hashCode();
+        result = 31 * result + Arrays.hashCode(this.labelNames);
+        result = 31 * result + Arrays.hashCode(this.labelValues);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return this.flatName;
+    }
+}
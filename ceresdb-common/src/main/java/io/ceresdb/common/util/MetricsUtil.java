@@ -16,12 +16,18 @@
  */
 package io.ceresdb.common.util;
 
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.ceresdb.common.OptKeys;
+
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
@@ -43,6 +49,17 @@ public final class MetricsUtil {
     private static final MetricRegistry    METRIC_REGISTRY = new MetricRegistry();
     private static final ScheduledReporter SCHEDULED_REPORTER;
 
+    // flat name -> labeled name, for the exporters
+    private static final ConcurrentMap<String, MetricName> LABELED_NAMES = new ConcurrentHashMap<>();
+
+    // back the timers and histograms with the latency recorders instead of the
+    // exponentially decaying reservoirs
+    private static final boolean                                HDR_ENABLED      = SystemPropertyUtil
+            .getBool(OptKeys.HDR_HISTOGRAM, false);
+    private static final long                                   HDR_WINDOW_NANOS = TimeUnit.SECONDS
+            .toNanos(SystemPropertyUtil.getInt(OptKeys.HDR_WINDOW_SECONDS, 60));
+    private static final ConcurrentMap<String, LatencyRecorder> RECORDERS        = new ConcurrentHashMap<>();
+
     static {
         final ScheduledExecutorService scheduledPool = ThreadPoolUtil.newScheduledBuilder() //
                 .enableMetric(true) //
@@ -108,12 +125,20 @@ public final class MetricsUtil {
         return METRIC_REGISTRY.meter(named(names));
     }
 
+    /**
+     * Return the {@link Meter} registered under this labeled name; or create
+     * and register a new {@link Meter} if none is registered.
+     */
+    public static Meter meter(final MetricName name) {
+        return METRIC_REGISTRY.meter(named(name));
+    }
+
     /**
      * Return the {@link Timer} registered under this name; or create
      * and register a new {@link Timer} if none is registered.
      */
     public static Timer timer(final Object name) {
-        return METRIC_REGISTRY.timer(named(name));
+        return timer0(named(name));
     }
 
     /**
@@ -121,7 +146,15 @@ public final class MetricsUtil {
      * and register a new {@link Timer} if none is registered.
      */
     public static Timer timer(final Object... names) {
-        return METRIC_REGISTRY.timer(named(names));
+        return timer0(named(names));
+    }
+
+    /**
+     * Return the {@link Timer} registered under this labeled name; or create
+     * and register a new {@link Timer} if none is registered.
+     */
+    public static Timer timer(final MetricName name) {
+        return timer0(named(name));
     }
 
     /**
@@ -140,12 +173,20 @@ public final class MetricsUtil {
         return METRIC_REGISTRY.counter(named(names));
     }
 
+    /**
+     * Return the {@link Counter} registered under this labeled name; or create
+     * and register a new {@link Counter} if none is registered.
+     */
+    public static Counter counter(final MetricName name) {
+        return METRIC_REGISTRY.counter(named(name));
+    }
+
     /**
      * Return the {@link Histogram} registered under this name; or create
      * and register a new {@link Histogram} if none is registered.
      */
     public static Histogram histogram(final Object name) {
-        return METRIC_REGISTRY.histogram(named(name));
+        return histogram0(named(name));
     }
 
     /**
@@ -153,7 +194,77 @@ public final class MetricsUtil {
      * and register a new {@link Histogram} if none is registered.
      */
     public static Histogram histogram(final Object... names) {
-        return METRIC_REGISTRY.histogram(named(names));
+        return histogram0(named(names));
+    }
+
+    /**
+     * Return the {@link Histogram} registered under this labeled name; or create
+     * and register a new {@link Histogram} if none is registered.
+     */
+    public static Histogram histogram(final MetricName name) {
+        return histogram0(named(name));
+    }
+
+    private static Timer timer0(final String name) {
+        if (!HDR_ENABLED) {
+            return METRIC_REGISTRY.timer(name);
+        }
+        return METRIC_REGISTRY.timer(name, () -> new Timer(newReservoir(name)));
+    }
+
+    private static Histogram histogram0(final String name) {
+        if (!HDR_ENABLED) {
+            return METRIC_REGISTRY.histogram(name);
+        }
+        return METRIC_REGISTRY.histogram(name, () -> new Histogram(newReservoir(name)));
+    }
+
+    private static LatencyReservoir newReservoir(final String name) {
+        return new LatencyReservoir(RECORDERS.computeIfAbsent(name, k -> new LatencyRecorder()), HDR_WINDOW_NANOS);
+    }
+
+    /**
+     * Whether the timers and histograms are backed by {@link LatencyRecorder}s,
+     * see {@link OptKeys#HDR_HISTOGRAM}.
+     */
+    public static boolean isHdrEnabled() {
+        return HDR_ENABLED;
+    }
+
+    /**
+     * Return the {@link LatencyRecorder} of the timer or histogram registered
+     * under this name, null if there is none or {@link #isHdrEnabled()} is false.
+     */
+    public static LatencyRecorder latencyRecorder(final Object name) {
+        return RECORDERS.get(named(name));
+    }
+
+    /**
+     * Return the values recorded by all the {@link LatencyRecorder}s since
+     * the last call, by the names of the metrics.  The snapshots can be
+     * exported by {@link HistogramSnapshot#toBytes()} and merged with the
+     * ones of the other endpoints or clients.
+     */
+    public static Map<String, HistogramSnapshot> intervalSnapshots() {
+        final Map<String, HistogramSnapshot> snapshots = new TreeMap<>();
+        RECORDERS.forEach((name, r) -> snapshots.put(name, r.intervalSnapshot()));
+        return snapshots;
+    }
+
+    /**
+     * Return the labeled name of the metric registered under this flat name,
+     * null if it is not registered by a {@link MetricName}.
+     */
+    public static MetricName labeledName(final String flatName) {
+        return LABELED_NAMES.get(flatName);
+    }
+
+    public static String named(final MetricName name) {
+        final String flatName = name.getFlatName();
+        if (name.getLabelCount() > 0 && !LABELED_NAMES.containsKey(flatName)) {
+            LABELED_NAMES.putIfAbsent(flatName, name);
+        }
+        return flatName;
     }
 
     public static String named(final Object name) {
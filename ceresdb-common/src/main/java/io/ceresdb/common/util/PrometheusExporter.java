@@ -0,0 +1,491 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.common.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exports the metrics of a {@link MetricRegistry} in the Prometheus text
+ * format (version 0.0.4), which is also accepted by OpenMetrics scrapers.
+ *
+ * The metrics can be scraped from an embedded HTTP endpoint
+ * ({@link #startHttpServer(int)}), or pushed periodically by a
+ * {@link MetricsPusher} ({@link #startPushing(MetricsPusher, long, TimeUnit)}).
+ *
+ * The metrics registered by a {@link MetricName} are exported as labeled
+ * series of the base name, the others are exported by their flat names.
+ * The translated names are cached, a scrape only formats the values.
+ *
+ * Mapping:
+ * <ul>
+ *     <li>{@link Gauge} and {@link Counter}: gauge</li>
+ *     <li>{@link Meter}: counter, named with `_total`</li>
+ *     <li>{@link Histogram}: summary</li>
+ *     <li>{@link Timer}: summary in seconds, named with `_seconds`</li>
+ * </ul>
+ *
+ * @author jiachun.fjc
+ */
+public final class PrometheusExporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PrometheusExporter.class);
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    public static final String PATH         = "/metrics";
+
+    private static final String   DEFAULT_PREFIX = "ceresdb_";
+    private static final double[] QUANTILES      = { 0.5, 0.75, 0.95, 0.99, 0.999 };
+    private static final String[] QUANTILE_STRS  = { "0.5", "0.75", "0.95", "0.99", "0.999" };
+    private static final int      FLUSH_SIZE     = 8192;
+    private static final double   NANOS_PER_SEC  = TimeUnit.SECONDS.toNanos(1);
+
+    private final MetricRegistry                registry;
+    private final String                        prefix;
+    private final ConcurrentMap<String, Series> seriesCache = new ConcurrentHashMap<>();
+
+    private HttpServer               server;
+    private ExecutorService          serverExecutor;
+    private ScheduledExecutorService pushScheduler;
+
+    /**
+     * Returns the exporter of the global registry ({@link MetricsUtil#metricRegistry()}).
+     */
+    public static PrometheusExporter getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    public PrometheusExporter(MetricRegistry registry) {
+        this(registry, DEFAULT_PREFIX);
+    }
+
+    public PrometheusExporter(MetricRegistry registry, String prefix) {
+        this.registry = Requires.requireNonNull(registry, "Null.registry");
+        this.prefix = prefix == null ? "" : sanitize(prefix, true);
+    }
+
+    /**
+     * Start an HTTP server serving the metrics on `http://0.0.0.0:port/metrics`.
+     *
+     * @param port the port, 0 to use an ephemeral port
+     * @return the bound port
+     * @throws IOException if the server cannot be bound
+     */
+    public synchronized int startHttpServer(final int port) throws IOException {
+        Requires.requireTrue(this.server == null, "HTTP server has started");
+
+        final HttpServer s = HttpServer.create(new InetSocketAddress(port), 0);
+        this.serverExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("metrics.exporter", true));
+        s.setExecutor(this.serverExecutor);
+        s.createContext(PATH, this::handleScrape);
+        s.start();
+        this.server = s;
+
+        final int boundPort = s.getAddress().getPort();
+        LOG.info("Metrics exporter is serving on port: {}.", boundPort);
+        return boundPort;
+    }
+
+    /**
+     * Push the metrics periodically.
+     *
+     * @param pusher the pusher
+     * @param period the period between pushes
+     * @param unit   the unit of period
+     */
+    public synchronized void startPushing(final MetricsPusher pusher, final long period, final TimeUnit unit) {
+        Requires.requireNonNull(pusher, "Null.pusher");
+        Requires.requireTrue(period > 0, "period must > 0");
+        Requires.requireTrue(this.pushScheduler == null, "Pusher has started");
+
+        this.pushScheduler = ThreadPoolUtil.newScheduledBuilder() //
+                .enableMetric(false) //
+                .coreThreads(1) //
+                .poolName("metrics.pusher") //
+                .threadFactory(new NamedThreadFactory("metrics.pusher", true)) //
+                .build();
+        this.pushScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                pusher.push(CONTENT_TYPE, scrapeToBytes());
+            } catch (final Throwable t) {
+                LOG.warn("Fail to push metrics.", t);
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stop the HTTP server and the pusher.
+     */
+    public synchronized void stop() {
+        if (this.server != null) {
+            this.server.stop(0);
+            this.server = null;
+            ExecutorServiceHelper.shutdownAndAwaitTermination(this.serverExecutor);
+            this.serverExecutor = null;
+        }
+        if (this.pushScheduler != null) {
+            ExecutorServiceHelper.shutdownAndAwaitTermination(this.pushScheduler);
+            this.pushScheduler = null;
+        }
+    }
+
+    /**
+     * Write all the metrics to the given writer.
+     *
+     * @param out the writer
+     * @throws IOException if fail to write
+     */
+    public void scrape(final Writer out) throws IOException {
+        final Map<String, Metric> metrics = this.registry.getMetrics();
+        pruneSeriesCache(metrics.size());
+
+        // all the samples of a family must be written together
+        final Map<String, Family> families = new TreeMap<>();
+        for (final Map.Entry<String, Metric> e : metrics.entrySet()) {
+            final Metric metric = e.getValue();
+            final Type type = Type.of(metric);
+            if (type == null) {
+                continue;
+            }
+            final Series series = series(e.getKey());
+            String name = series.family + type.suffix;
+            Family family = families.get(name);
+            if (family != null && family.type != type) {
+                // different kinds of metrics with the same name
+                name = name + '_' + type.name().toLowerCase();
+                family = families.get(name);
+            }
+            if (family == null) {
+                family = new Family(name, type);
+                families.put(name, family);
+            }
+            family.series.add(series);
+            family.metrics.add(metric);
+        }
+
+        final StringBuilder buf = new StringBuilder(FLUSH_SIZE * 2);
+        for (final Family family : families.values()) {
+            buf.append("# TYPE ").append(family.name).append(' ').append(family.type.promType).append('\n');
+            for (int i = 0; i < family.metrics.size(); i++) {
+                writeSamples(buf, family, family.series.get(i), family.metrics.get(i));
+            }
+            if (buf.length() >= FLUSH_SIZE) {
+                out.write(buf.toString());
+                buf.setLength(0);
+            }
+        }
+        out.write(buf.toString());
+        out.flush();
+    }
+
+    public byte[] scrapeToBytes() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(FLUSH_SIZE);
+        scrape(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    private void handleScrape(final HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            final byte[] body = scrapeToBytes();
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (final Throwable t) {
+            LOG.warn("Fail to serve metrics scrape.", t);
+            throw t;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void writeSamples(final StringBuilder buf, final Family family, final Series series,
+                                     final Metric metric) {
+        switch (family.type) {
+            case GAUGE:
+                if (metric instanceof Counter) {
+                    writeSample(buf, family.name, "", series.labels, null, ((Counter) metric).getCount());
+                } else {
+                    writeSample(buf, family.name, "", series.labels, null, gaugeValue((Gauge<?>) metric));
+                }
+                break;
+            case METER:
+                writeSample(buf, family.name, "", series.labels, null, ((Meter) metric).getCount());
+                break;
+            case HISTOGRAM: {
+                final Histogram h = (Histogram) metric;
+                writeSummary(buf, family.name, series.labels, h.getSnapshot(), h.getCount(), 1);
+                break;
+            }
+            case TIMER: {
+                final Timer t = (Timer) metric;
+                writeSummary(buf, family.name, series.labels, t.getSnapshot(), t.getCount(), NANOS_PER_SEC);
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private static void writeSummary(final StringBuilder buf, final String name, final String labels,
+                                     final Snapshot snapshot, final long count, final double divisor) {
+        for (int i = 0; i < QUANTILES.length; i++) {
+            writeSample(buf, name, "", labels, QUANTILE_STRS[i], snapshot.getValue(QUANTILES[i]) / divisor);
+        }
+        writeSample(buf, name, "_count", labels, null, count);
+    }
+
+    private static void writeSample(final StringBuilder buf, final String name, final String suffix,
+                                    final String labels, final String quantile, final double value) {
+        buf.append(name).append(suffix);
+        if (!labels.isEmpty() || quantile != null) {
+            buf.append('{').append(labels);
+            if (quantile != null) {
+                if (!labels.isEmpty()) {
+                    buf.append(',');
+                }
+                buf.append("quantile=\"").append(quantile).append('"');
+            }
+            buf.append('}');
+        }
+        buf.append(' ');
+        if (Double.isNaN(value)) {
+            buf.append("NaN");
+        } else if (Double.isInfinite(value)) {
+            buf.append(value > 0 ? "+Inf" : "-Inf");
+        } else if (value == (long) value) {
+            buf.append((long) value);
+        } else {
+            buf.append(value);
+        }
+        buf.append('\n');
+    }
+
+    private static double gaugeValue(final Gauge<?> gauge) {
+        final Object v = gauge.getValue();
+        if (v instanceof Number) {
+            return ((Number) v).doubleValue();
+        }
+        if (v instanceof Boolean) {
+            return (Boolean) v ? 1 : 0;
+        }
+        return Double.NaN;
+    }
+
+    private Series series(final String flatName) {
+        final Series s = this.seriesCache.get(flatName);
+        if (s != null) {
+            return s;
+        }
+        return this.seriesCache.computeIfAbsent(flatName, this::newSeries);
+    }
+
+    private Series newSeries(final String flatName) {
+        final MetricName labeled = MetricsUtil.labeledName(flatName);
+        if (labeled == null) {
+            return new Series(this.prefix + sanitize(flatName, true), "");
+        }
+
+        final StringBuilder labels = new StringBuilder();
+        for (int i = 0; i < labeled.getLabelCount(); i++) {
+            if (i > 0) {
+                labels.append(',');
+            }
+            labels.append(sanitize(labeled.getLabelName(i), false)) //
+                    .append("=\"");
+            escape(labels, labeled.getLabelValue(i));
+            labels.append('"');
+        }
+        return new Series(this.prefix + sanitize(labeled.getName(), true), labels.toString());
+    }
+
+    private void pruneSeriesCache(final int metricCount) {
+        // the metrics are seldom removed, just keep the cache from growing forever
+        if (this.seriesCache.size() > (metricCount << 1) + 64) {
+            this.seriesCache.keySet().retainAll(this.registry.getNames());
+        }
+    }
+
+    static String sanitize(final String name, final boolean allowColon) {
+        final StringBuilder buf = new StringBuilder(name.length() + 1);
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            final boolean digit = c >= '0' && c <= '9';
+            final boolean letter = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
+            final boolean valid = letter || digit && i > 0 || c == ':' && allowColon;
+            if (!valid && digit) {
+                buf.append('_').append(c); // a leading digit
+            } else {
+                buf.append(valid ? c : '_');
+            }
+        }
+        return buf.toString();
+    }
+
+    private static void escape(final StringBuilder buf, final String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    buf.append("\\\\");
+                    break;
+                case '"':
+                    buf.append("\\\"");
+                    break;
+                case '\n':
+                    buf.append("\\n");
+                    break;
+                default:
+                    buf.append(c);
+            }
+        }
+    }
+
+    /**
+     * Pushes the metrics to somewhere, such as a Prometheus Pushgateway.
+     */
+    @FunctionalInterface
+    public interface MetricsPusher {
+
+        void push(final String contentType, final byte[] body) throws IOException;
+
+        /**
+         * Returns a pusher that PUTs the metrics to the given URL, such as
+         * `http://pushgateway:9091/metrics/job/ceresdb_client/instance/host1`.
+         *
+         * @param url the URL
+         * @return the pusher
+         */
+        static MetricsPusher httpPut(final String url) {
+            return (contentType, body) -> {
+                final HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+                try {
+                    conn.setRequestMethod("PUT");
+                    conn.setDoOutput(true);
+                    conn.setConnectTimeout(10_000);
+                    conn.setReadTimeout(10_000);
+                    conn.setRequestProperty("Content-Type", contentType);
+                    try (OutputStream out = conn.getOutputStream()) {
+                        out.write(body);
+                    }
+                    final int code = conn.getResponseCode();
+                    if (code >= 300) {
+                        throw new IOException("Fail to push metrics to " + url + ", code=" + code);
+                    }
+                } finally {
+                    conn.disconnect();
+                }
+            };
+        }
+    }
+
+    private enum Type {
+        GAUGE("", "gauge"), //
+        METER("_total", "counter"), //
+        HISTOGRAM("", "summary"), //
+        TIMER("_seconds", "summary");
+
+        final String suffix;
+        final String promType;
+
+        Type(String suffix, String promType) {
+            this.suffix = suffix;
+            this.promType = promType;
+        }
+
+        static Type of(final Metric metric) {
+            if (metric instanceof Gauge || metric instanceof Counter) {
+                return GAUGE;
+            }
+            if (metric instanceof Meter) {
+                return METER;
+            }
+            if (metric instanceof Histogram) {
+                return HISTOGRAM;
+            }
+            if (metric instanceof Timer) {
+                return TIMER;
+            }
+            return null;
+        }
+    }
+
+    private static final class Series {
+        final String family;
+        final String labels;
+
+        Series(String family, String labels) {
+            this.family = family;
+            this.labels = labels;
+        }
+    }
+
+    private static final class Family {
+        final String       name;
+        final Type         type;
+        final List<Series> series  = new ArrayList<>();
+        final List<Metric> metrics = new ArrayList<>();
+
+        Family(String name, Type type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    private static final class DefaultHolder {
+        static final PrometheusExporter INSTANCE = new PrometheusExporter(MetricsUtil.metricRegistry());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.common.util;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author jiachun.fjc
+ */
+public class LatencyRecorderTest {
+
+    @Test
+    public void bucketBoundsTest() {
+        final Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            final long v = random.nextLong() >>> (1 + random.nextInt(63));
+            final int idx = LatencyRecorder.index(v);
+            Assert.assertTrue(v >= LatencyRecorder.lowerBound(idx));
+            Assert.assertTrue(v <= LatencyRecorder.upperBound(idx));
+            final long width = LatencyRecorder.upperBound(idx) - LatencyRecorder.lowerBound(idx);
+            Assert.assertTrue(width <= Math.max(0, v / 64));
+        }
+        Assert.assertEquals(LatencyRecorder.BUCKETS - 1, LatencyRecorder.index(Long.MAX_VALUE));
+        Assert.assertEquals(Long.MAX_VALUE, LatencyRecorder.upperBound(LatencyRecorder.BUCKETS - 1));
+    }
+
+    @Test
+    public void percentileTest() {
+        final LatencyRecorder recorder = new LatencyRecorder();
+        final Random random = new Random(1);
+        final long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            // a long tail
+            values[i] = (long) (TimeUnit.MILLISECONDS.toNanos(1) * Math.exp(random.nextGaussian() * 2));
+            recorder.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        final HistogramSnapshot snapshot = recorder.snapshot();
+        Assert.assertEquals(values.length, snapshot.getTotalCount());
+        for (final double q : new double[] { 0.5, 0.9, 0.99, 0.999, 0.9999 }) {
+            final long exact = values[(int) Math.ceil(q * values.length) - 1];
+            final double v = snapshot.getValue(q);
+            Assert.assertEquals("p" + q, exact, v, exact / 32.0);
+        }
+        Assert.assertEquals(values[values.length - 1], snapshot.getMax(), values[values.length - 1] / 32.0);
+        Assert.assertEquals(values[0], snapshot.getMin(), values[0] / 32.0 + 1);
+    }
+
+    @Test
+    public void mergeTest() {
+        final LatencyRecorder r1 = new LatencyRecorder();
+        final LatencyRecorder r2 = new LatencyRecorder();
+        final LatencyRecorder all = new LatencyRecorder();
+        final Random random = new Random(2);
+        for (int i = 0; i < 10000; i++) {
+            final long v = random.nextInt(1000000);
+            (i % 3 == 0 ? r1 : r2).record(v);
+            all.record(v);
+        }
+        final HistogramSnapshot merged = r1.snapshot().merge(r2.snapshot());
+        Assert.assertEquals(all.snapshot().toString(), merged.toString());
+        Assert.assertEquals(all.snapshot().getValue(0.999), merged.getValue(0.999), 0);
+        Assert.assertEquals(r1.snapshot().toString(), merged.minus(r2.snapshot()).toString());
+    }
+
+    @Test
+    public void bytesTest() {
+        final LatencyRecorder recorder = new LatencyRecorder();
+        for (long v = 1; v > 0; v <<= 1) {
+            recorder.record(v);
+            recorder.record(v + 7);
+        }
+        recorder.record(0);
+        final HistogramSnapshot snapshot = recorder.snapshot();
+        final HistogramSnapshot copy = HistogramSnapshot.fromBytes(snapshot.toBytes());
+        Assert.assertEquals(snapshot.toString(), copy.toString());
+        Assert.assertEquals(snapshot.getSum(), copy.getSum());
+        Assert.assertEquals(snapshot.getValue(0.99), copy.getValue(0.99), 0);
+
+        Assert.assertEquals(0, HistogramSnapshot.fromBytes(HistogramSnapshot.EMPTY.toBytes()).getTotalCount());
+    }
+
+    @Test
+    public void intervalTest() {
+        final LatencyRecorder recorder = new LatencyRecorder();
+        recorder.record(100);
+        recorder.record(200);
+        Assert.assertEquals(2, recorder.intervalSnapshot().getTotalCount());
+        recorder.record(300);
+        final HistogramSnapshot interval = recorder.intervalSnapshot();
+        Assert.assertEquals(1, interval.getTotalCount());
+        Assert.assertEquals(300, interval.getSum());
+        Assert.assertEquals(0, recorder.intervalSnapshot().getTotalCount());
+        Assert.assertEquals(3, recorder.snapshot().getTotalCount());
+    }
+
+    @Test
+    public void reservoirTest() {
+        final LatencyReservoir reservoir = new LatencyReservoir(new LatencyRecorder(), TimeUnit.MINUTES.toNanos(1));
+        for (int i = 1; i <= 1000; i++) {
+            reservoir.update(i);
+        }
+        final com.codahale.metrics.Snapshot snapshot = reservoir.getSnapshot();
+        Assert.assertEquals(1000, snapshot.size());
+        Assert.assertEquals(990, snapshot.get99thPercentile(), 990 / 32.0);
+        Assert.assertEquals(500.5, snapshot.getMean(), 1);
+        Assert.assertEquals(1, snapshot.getMin());
+    }
+}
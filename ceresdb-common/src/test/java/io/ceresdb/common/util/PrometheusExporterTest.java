@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.common.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * @author jiachun.fjc
+ */
+public class PrometheusExporterTest {
+
+    @Test
+    public void labeledNameTest() {
+        final MetricName name = MetricName.of("req_rt", "method", "Write", "tenant", "t1", "address", "1.1.1.1:8831");
+        Assert.assertEquals("req_rt_Write_t1_1.1.1.1:8831", name.getFlatName());
+        Assert.assertEquals(MetricsUtil.named("req_rt", "Write", "t1", "1.1.1.1:8831"), MetricsUtil.named(name));
+        Assert.assertEquals(name, MetricsUtil.labeledName(name.getFlatName()));
+        Assert.assertNull(MetricsUtil.labeledName("req_rt_Write"));
+    }
+
+    @Test
+    public void scrapeTest() throws Exception {
+        final MetricRegistry registry = new MetricRegistry();
+        final PrometheusExporter exporter = new PrometheusExporter(registry);
+
+        registry.timer(MetricsUtil.named(MetricName.of("exp_rt", "method", "Write", "tenant", "t\"1"))) //
+                .update(2, TimeUnit.SECONDS);
+        registry.timer(MetricsUtil.named(MetricName.of("exp_rt", "method", "Query", "tenant", "t2"))) //
+                .update(1, TimeUnit.SECONDS);
+        registry.meter("exp.failed").mark(3);
+        registry.counter("9_conns").inc(2);
+        registry.histogram(MetricsUtil.named(MetricName.of("exp_bytes", "method", "Write"))).update(10);
+        registry.register("exp_gauge", (com.codahale.metrics.Gauge<Boolean>) () -> true);
+
+        final StringWriter out = new StringWriter();
+        exporter.scrape(out);
+        final String text = out.toString();
+
+        Assert.assertTrue(text, text.contains("# TYPE ceresdb_exp_rt_seconds summary\n"));
+        Assert.assertEquals(text, 1, count(text, "# TYPE ceresdb_exp_rt_seconds"));
+        Assert.assertTrue(text,
+                text.contains("ceresdb_exp_rt_seconds{method=\"Write\",tenant=\"t\\\"1\",quantile=\"0.99\"} 2\n"));
+        Assert.assertTrue(text, text.contains("ceresdb_exp_rt_seconds_count{method=\"Query\",tenant=\"t2\"} 1\n"));
+        Assert.assertTrue(text, text.contains("# TYPE ceresdb_exp_failed_total counter\nceresdb_exp_failed_total 3\n"));
+        Assert.assertTrue(text, text.contains("# TYPE ceresdb__9_conns gauge\nceresdb__9_conns 2\n"));
+        Assert.assertTrue(text, text.contains("ceresdb_exp_bytes{method=\"Write\",quantile=\"0.5\"} 10\n"));
+        Assert.assertTrue(text, text.contains("ceresdb_exp_gauge 1\n"));
+    }
+
+    @Test
+    public void httpServerTest() throws Exception {
+        final MetricRegistry registry = new MetricRegistry();
+        registry.meter("exp_http").mark();
+        final PrometheusExporter exporter = new PrometheusExporter(registry);
+        final int port = exporter.startHttpServer(0);
+        try {
+            final HttpURLConnection conn = (HttpURLConnection) new URL(
+                    "http://127.0.0.1:" + port + PrometheusExporter.PATH).openConnection();
+            Assert.assertEquals(200, conn.getResponseCode());
+            Assert.assertEquals(PrometheusExporter.CONTENT_TYPE, conn.getContentType());
+            final String body;
+            try (InputStream in = conn.getInputStream()) {
+                final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                final byte[] bytes = new byte[1024];
+                int n;
+                while ((n = in.read(bytes)) > 0) {
+                    buf.write(bytes, 0, n);
+                }
+                body = new String(buf.toByteArray(), StandardCharsets.UTF_8);
+            }
+            Assert.assertTrue(body, body.contains("ceresdb_exp_http_total 1\n"));
+        } finally {
+            exporter.stop();
+        }
+    }
+
+    private static int count(final String text, final String s) {
+        int n = 0;
+        for (int i = text.indexOf(s); i >= 0; i = text.indexOf(s, i + 1)) {
+            n++;
+        }
+        return n;
+    }
+}
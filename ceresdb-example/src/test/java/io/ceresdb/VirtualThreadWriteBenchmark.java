@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.models.Err;
+import io.ceresdb.models.FieldValue;
+import io.ceresdb.models.Result;
+import io.ceresdb.models.Series;
+import io.ceresdb.models.WriteOk;
+import io.ceresdb.options.CeresDBOptions;
+
+/**
+ * 100k concurrent writers on virtual threads, each one writes a row by
+ * {@link CeresDBSyncClient}.  It requires a CeresDB server on
+ * 127.0.0.1:8831, and Java 21+ for the virtual threads, on the older
+ * versions the writers run on a pool of 1000 platform threads instead.
+ *
+ * @author jiachun.fjc
+ */
+public class VirtualThreadWriteBenchmark {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadWriteBenchmark.class);
+
+    private static final int WRITERS = 100_000;
+
+    @Ignore
+    @Test
+    public void concurrentWritersTest() throws Exception {
+        final CeresDBOptions opts = CeresDBOptions.newBuilder("127.0.0.1", 8831, 5000) //
+                .tenant("public", "sub_test", "test_token") //
+                .build();
+        final CeresDBClient client = new CeresDBClient();
+        Assert.assertTrue(client.init(opts));
+
+        final CeresDBSyncClient sync = new CeresDBSyncClient(client, 30000);
+        final String metric = "vt_bench_" + System.currentTimeMillis();
+        final AtomicLong failed = new AtomicLong();
+        final long start = System.nanoTime();
+        final ExecutorService executor = newWriterExecutor();
+        try {
+            final List<Future<?>> fs = new ArrayList<>(WRITERS);
+            for (int i = 0; i < WRITERS; i++) {
+                final int writer = i;
+                fs.add(executor.submit(() -> {
+                    final Result<WriteOk, Err> ret = sync.write(Series.newBuilder(metric) //
+                            .tag("writer", String.valueOf(writer % 1000)) //
+                            .toRowsBuilder() //
+                            .field(System.currentTimeMillis(), "value", FieldValue.withInt64(writer)) //
+                            .build());
+                    if (!ret.isOk()) {
+                        failed.incrementAndGet();
+                    }
+                }));
+            }
+            for (final Future<?> f : fs) {
+                f.get();
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        final long costMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOG.info("{} writers finished in {} millis, {} writes/s, failed={}.", WRITERS, costMs,
+                WRITERS * 1000L / Math.max(1, costMs), failed.get());
+
+        MetricsUtil.reportImmediately();
+        client.shutdownGracefully();
+
+        Assert.assertEquals(0, failed.get());
+    }
+
+    private static ExecutorService newWriterExecutor() {
+        try {
+            final Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            LOG.warn("Virtual threads are not supported, fall back to platform threads.");
+            return Executors.newFixedThreadPool(1000);
+        }
+    }
+}
@@ -33,6 +33,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 import io.grpc.CallOptions;
@@ -44,7 +45,9 @@ import io.grpc.MethodDescriptor;
 import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
 import io.grpc.netty.shaded.io.netty.channel.ChannelOption;
 import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ClientCallStreamObserver;
 import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 
 import org.slf4j.Logger;
@@ -57,6 +60,7 @@ import io.ceresdb.common.util.AuthUtil;
 import io.ceresdb.common.util.Clock;
 import io.ceresdb.common.util.Cpus;
 import io.ceresdb.common.util.ExecutorServiceHelper;
+import io.ceresdb.common.util.MetricName;
 import io.ceresdb.common.util.MetricsUtil;
 import io.ceresdb.common.util.NamedThreadFactory;
 import io.ceresdb.common.util.ObjectPool;
@@ -111,6 +115,9 @@ public class GrpcClient implements RpcClient {
     private static final String EXECUTOR_NAME         = "grpc_executor";
     private static final String REQ_RT                = "req_rt";
     private static final String REQ_FAILED            = "req_failed";
+    private static final String METHOD                = "method";
+    private static final String TENANT                = "tenant";
+    private static final String ADDRESS               = "address";
     private static final String UNARY_CALL            = "unary-call";
     private static final String SERVER_STREAMING_CALL = "server-streaming-call";
     private static final String CLIENT_STREAMING_CALL = "client-streaming-call";
@@ -127,6 +134,7 @@ public class GrpcClient implements RpcClient {
     private RpcOptions      opts;
     private ExecutorService asyncPool;
     private boolean         useSharedAsyncPool;
+    private HealthTracker   healthTracker;
 
     public GrpcClient(MarshallerRegistry marshallerRegistry) {
         this.marshallerRegistry = marshallerRegistry;
@@ -150,6 +158,9 @@ public class GrpcClient implements RpcClient {
 
         initInterceptors();
 
+        this.healthTracker = new HealthTracker(this.opts.getHealthEjectErrorRate(), this.opts.getHealthEjectBaseMs(),
+                this.opts.getHealthEjectMaxMs());
+
         return true;
     }
 
@@ -186,6 +197,37 @@ public class GrpcClient implements RpcClient {
         closeChannel(endpoint);
     }
 
+    @Override
+    public CompletableFuture<Boolean> connect(final Endpoint endpoint) {
+        Requires.requireNonNull(endpoint, "endpoint");
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        final ManagedChannel ch = getChannel(endpoint, true);
+        // request the connection, the channel stays in IDLE until the first call otherwise
+        awaitReady(ch, ch.getState(true), future);
+        return future;
+    }
+
+    private void awaitReady(final ManagedChannel ch, final ConnectivityState state,
+                            final CompletableFuture<Boolean> future) {
+        switch (state) {
+            case READY:
+                future.complete(true);
+                break;
+            case TRANSIENT_FAILURE:
+            case SHUTDOWN:
+                future.complete(false);
+                break;
+            default:
+                ch.notifyWhenStateChanged(state, () -> awaitReady(ch, ch.getState(false), future));
+                break;
+        }
+    }
+
+    @Override
+    public HealthTracker getHealthTracker() {
+        return this.healthTracker;
+    }
+
     @Override
     public void registerConnectionObserver(final ConnectionObserver observer) {
         this.connectionObservers.add(observer);
@@ -234,16 +276,19 @@ public class GrpcClient implements RpcClient {
 
         final MethodDescriptor<Message, Message> method = getCallMethod(request, MethodDescriptor.MethodType.UNARY);
         final long timeout = calcTimeout(timeoutMs);
-        final CallOptions callOpts = CallOptions.DEFAULT //
+        final String childTenant = removeChildTenant(ctx);
+        final CallOptions callOpts = withCtx(CallOptions.DEFAULT, ctx, childTenant) //
                 .withDeadlineAfter(timeout, TimeUnit.MILLISECONDS) //
                 .withExecutor(getObserverExecutor(observer));
 
-        final String childTenant = addChildTenantIntoCtx(ctx);
         final String methodName = method.getFullMethodName();
         final String address = endpoint.toString();
         final long startCall = Clock.defaultClock().getTick();
+        final EndpointHealth health = this.healthTracker.get(endpoint);
+        health.onStart();
 
         final Channel ch = getCheckedChannel(endpoint, (err) -> {
+            health.onComplete(-1, true);
             attachErrMsg(err, UNARY_CALL, methodName, childTenant, address, startCall, -1, ctx);
             observer.onError(err);
         });
@@ -277,14 +322,16 @@ public class GrpcClient implements RpcClient {
 
             private long onReceived(final boolean onError) {
                 final long duration = Clock.defaultClock().duration(startCall);
-                final String mthAndTnt = MetricsUtil.named(methodName, tenant);
-
-                MetricsUtil.timer(REQ_RT, mthAndTnt).update(duration, TimeUnit.MILLISECONDS);
-                MetricsUtil.timer(REQ_RT, mthAndTnt, address).update(duration, TimeUnit.MILLISECONDS);
+                health.onComplete(duration, onError);
+                MetricsUtil.timer(MetricName.of(REQ_RT, METHOD, methodName, TENANT, tenant)) //
+                        .update(duration, TimeUnit.MILLISECONDS);
+                MetricsUtil.timer(MetricName.of(REQ_RT, METHOD, methodName, TENANT, tenant, ADDRESS, address)) //
+                        .update(duration, TimeUnit.MILLISECONDS);
 
                 if (onError) {
-                    MetricsUtil.meter(REQ_FAILED, mthAndTnt).mark();
-                    MetricsUtil.meter(REQ_FAILED, mthAndTnt, address).mark();
+                    MetricsUtil.meter(MetricName.of(REQ_FAILED, METHOD, methodName, TENANT, tenant)).mark();
+                    MetricsUtil.meter(MetricName.of(REQ_FAILED, METHOD, methodName, TENANT, tenant, ADDRESS, address))
+                            .mark();
                 }
 
                 return duration;
@@ -301,9 +348,10 @@ public class GrpcClient implements RpcClient {
 
         final MethodDescriptor<Message, Message> method = getCallMethod(request,
                 MethodDescriptor.MethodType.SERVER_STREAMING);
-        final CallOptions callOpts = CallOptions.DEFAULT.withExecutor(getObserverExecutor(observer));
+        final String childTenant = removeChildTenant(ctx);
+        final CallOptions callOpts = withCtx(CallOptions.DEFAULT, ctx, childTenant) //
+                .withExecutor(getObserverExecutor(observer));
 
-        final String childTenant = addChildTenantIntoCtx(ctx);
         final String methodName = method.getFullMethodName();
         final String address = endpoint.toString();
         final long startCall = Clock.defaultClock().getTick();
@@ -350,9 +398,10 @@ public class GrpcClient implements RpcClient {
 
         final MethodDescriptor<Message, Message> method = getCallMethod(defaultReqIns,
                 MethodDescriptor.MethodType.CLIENT_STREAMING);
-        final CallOptions callOpts = CallOptions.DEFAULT.withExecutor(getObserverExecutor(respObserver));
+        final String childTenant = removeChildTenant(ctx);
+        final CallOptions callOpts = withCtx(CallOptions.DEFAULT, ctx, childTenant) //
+                .withExecutor(getObserverExecutor(respObserver));
 
-        final String childTenant = addChildTenantIntoCtx(ctx);
         final String methodName = method.getFullMethodName();
         final String address = endpoint.toString();
         final long startCall = Clock.defaultClock().getTick();
@@ -370,8 +419,20 @@ public class GrpcClient implements RpcClient {
 
         final String target = target(ch, address);
 
+        // the handler can only be set before the call started, so set a delegate first
+        final AtomicReference<Runnable> onReadyHandler = new AtomicReference<>();
         final StreamObserver<Message> gRpcObs = ClientCalls.asyncClientStreamingCall(ch.newCall(method, callOpts),
-                new StreamObserver<Message>() {
+                new ClientResponseObserver<Message, Message>() {
+
+                    @Override
+                    public void beforeStart(final ClientCallStreamObserver<Message> requestStream) {
+                        requestStream.setOnReadyHandler(() -> {
+                            final Runnable handler = onReadyHandler.get();
+                            if (handler != null) {
+                                handler.run();
+                            }
+                        });
+                    }
 
                     @SuppressWarnings("unchecked")
                     @Override
@@ -391,7 +452,19 @@ public class GrpcClient implements RpcClient {
                     }
                 });
 
-        return new Observer<Req>() {
+        final ClientCallStreamObserver<Message> callObs = (ClientCallStreamObserver<Message>) gRpcObs;
+
+        return new FlowControlledObserver<Req>() {
+
+            @Override
+            public boolean isReady() {
+                return callObs.isReady();
+            }
+
+            @Override
+            public void setOnReadyHandler(final Runnable handler) {
+                onReadyHandler.set(handler);
+            }
 
             @Override
             public void onNext(final Req value) {
@@ -528,12 +601,19 @@ public class GrpcClient implements RpcClient {
         return observer.executor() != null ? observer.executor() : this.asyncPool;
     }
 
-    private String addChildTenantIntoCtx(final Context ctx) {
-        final String childTenant = ctx.remove(AuthUtil.HEAD_ACCESS_CHILD_TENANT);
-        // null value means clear previous
-        AuthHeadersInterceptor.setCurrentChildTenant(childTenant);
-        ContextToHeadersInterceptor.setCurrentCtx(ctx);
-        return childTenant;
+    private static String removeChildTenant(final Context ctx) {
+        return ctx.remove(AuthUtil.HEAD_ACCESS_CHILD_TENANT);
+    }
+
+    /**
+     * The context is passed to the interceptors by the call options rather
+     * than thread locals, the call may be started on another thread, and
+     * thread locals are expensive on virtual threads.
+     */
+    private static CallOptions withCtx(final CallOptions callOpts, final Context ctx, final String childTenant) {
+        return callOpts //
+                .withOption(ContextToHeadersInterceptor.CTX_KEY, ctx) //
+                .withOption(AuthHeadersInterceptor.CHILD_TENANT_KEY, childTenant);
     }
 
     private void closeAllChannels() {
@@ -734,7 +814,9 @@ public class GrpcClient implements RpcClient {
                 .print("managedChannelPool=") //
                 .println(this.managedChannelPool) //
                 .print("transientFailures=") //
-                .println(this.transientFailures);
+                .println(this.transientFailures) //
+                .print("healthTracker=") //
+                .println(this.healthTracker);
     }
 
     private static String target(final Channel ch, final Endpoint ep) {
@@ -38,7 +38,10 @@ import io.ceresdb.common.util.Strings;
  */
 public class AuthHeadersInterceptor implements ClientInterceptor {
 
-    private static final ThreadLocal<String> CURRENT_CHILD_TENANT = new ThreadLocal<>();
+    /**
+     * The child tenant of the call, see {@link CallOptions#withOption}.
+     */
+    public static final CallOptions.Key<String> CHILD_TENANT_KEY = CallOptions.Key.create("ceresdb.child_tenant");
 
     private final Tenant tenant;
 
@@ -46,36 +49,30 @@ public class AuthHeadersInterceptor implements ClientInterceptor {
         this.tenant = Requires.requireNonNull(tenant, "tenant");
     }
 
-    public static void setCurrentChildTenant(final String childTenant) {
-        CURRENT_CHILD_TENANT.set(childTenant);
-    }
-
-    public static String getCurrentChildTenant() {
-        return CURRENT_CHILD_TENANT.get();
-    }
-
     @Override
     public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(final MethodDescriptor<ReqT, RespT> method, //
                                                                final CallOptions callOpts, //
                                                                final Channel next) {
-        return new HeaderAttachingClientCall<>(next.newCall(method, callOpts));
+        return new HeaderAttachingClientCall<>(next.newCall(method, callOpts), callOpts.getOption(CHILD_TENANT_KEY));
     }
 
     private final class HeaderAttachingClientCall<ReqT, RespT>
             extends ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT> {
 
+        private final String childTenant;
+
         // Non private to avoid synthetic class
-        HeaderAttachingClientCall(ClientCall<ReqT, RespT> call) {
+        HeaderAttachingClientCall(ClientCall<ReqT, RespT> call, String childTenant) {
             super(call);
+            this.childTenant = childTenant;
         }
 
         @Override
         public void start(final Listener<RespT> respListener, final Metadata headers) {
             final Map<String, String> extraHeaders = AuthUtil.authHeaders(tenant);
 
-            final String childTenant = getCurrentChildTenant();
-            if (Strings.isNotBlank(childTenant)) {
-                AuthUtil.replaceChildTenant(extraHeaders, childTenant);
+            if (Strings.isNotBlank(this.childTenant)) {
+                AuthUtil.replaceChildTenant(extraHeaders, this.childTenant);
             }
 
             if (!extraHeaders.isEmpty()) {
@@ -16,6 +16,9 @@
  */
 package io.ceresdb.rpc.interceptors;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import io.grpc.CallOptions;
 import io.grpc.Channel;
 import io.grpc.ClientCall;
@@ -33,37 +36,56 @@ import io.ceresdb.rpc.Context;
  */
 public class ContextToHeadersInterceptor implements ClientInterceptor {
 
-    private static final ThreadLocal<Context> CURRENT_CTX = new ThreadLocal<>();
+    /**
+     * The context of the call, see {@link CallOptions#withOption}.
+     */
+    public static final CallOptions.Key<Context> CTX_KEY = CallOptions.Key.create("ceresdb.ctx");
+
+    // the user defined keys are cached too, up to the limit
+    private static final int                                         MAX_CACHED_KEYS = 1024;
+    private static final ConcurrentMap<String, Metadata.Key<String>> HEADER_KEYS     = new ConcurrentHashMap<>();
 
-    public static void setCurrentCtx(final Context ctx) {
-        CURRENT_CTX.set(ctx);
+    static {
+        headerKey(Context.KEY_CLIENT_ID);
+        headerKey(Context.KEY_CLIENT_VERSION);
+        headerKey(Context.KEY_RETRIES);
+    }
+
+    static Metadata.Key<String> headerKey(final String name) {
+        final Metadata.Key<String> key = HEADER_KEYS.get(name);
+        if (key != null) {
+            return key;
+        }
+        final Metadata.Key<String> newKey = Metadata.Key.of(name, Metadata.ASCII_STRING_MARSHALLER);
+        if (HEADER_KEYS.size() < MAX_CACHED_KEYS) {
+            HEADER_KEYS.putIfAbsent(name, newKey);
+        }
+        return newKey;
     }
 
     @Override
     public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(final MethodDescriptor<ReqT, RespT> method, //
                                                                final CallOptions callOpts, //
                                                                final Channel next) {
-        return new HeaderAttachingClientCall<>(next.newCall(method, callOpts));
+        return new HeaderAttachingClientCall<>(next.newCall(method, callOpts), callOpts.getOption(CTX_KEY));
     }
 
     private static final class HeaderAttachingClientCall<ReqT, RespT>
             extends ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT> {
 
+        private final Context ctx;
+
         // Non private to avoid synthetic class
-        HeaderAttachingClientCall(ClientCall<ReqT, RespT> delegate) {
+        HeaderAttachingClientCall(ClientCall<ReqT, RespT> delegate, Context ctx) {
             super(delegate);
+            this.ctx = ctx;
         }
 
         @Override
         public void start(final Listener<RespT> respListener, final Metadata headers) {
-            final Context ctx = CURRENT_CTX.get();
-            if (ctx != null) {
-                ctx.entrySet().forEach(e -> headers.put( //
-                        Metadata.Key.of(e.getKey(), Metadata.ASCII_STRING_MARSHALLER), //
-                        String.valueOf(e.getValue())) //
-                );
+            if (this.ctx != null) {
+                this.ctx.forEachHeader((k, v) -> headers.put(headerKey(k), v));
             }
-            CURRENT_CTX.remove();
             super.start(respListener, headers);
         }
     }
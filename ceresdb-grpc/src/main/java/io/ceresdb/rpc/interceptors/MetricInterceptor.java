@@ -25,6 +25,7 @@ import io.grpc.ForwardingClientCallListener;
 import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
 
+import io.ceresdb.common.util.MetricName;
 import io.ceresdb.common.util.MetricsUtil;
 import com.codahale.metrics.Counter;
 import com.google.protobuf.MessageLite;
@@ -43,6 +44,11 @@ public class MetricInterceptor implements ClientInterceptor {
     private static final String BYTES            = "bytes";
     private static final String SERIALIZED_BYTES = "serialized_bytes";
 
+    private static final String METHOD                = "method";
+    private static final String REQ_QPS               = MetricsUtil.named(REQ_TYPE, QPS);
+    private static final String REQ_SERIALIZED_BYTES  = MetricsUtil.named(REQ_TYPE, SERIALIZED_BYTES);
+    private static final String RESP_SERIALIZED_BYTES = MetricsUtil.named(RESP_TYPE, SERIALIZED_BYTES);
+
     private static final Counter REQ_BYTES  = MetricsUtil.counter(REQ_TYPE, BYTES);
     private static final Counter RESP_BYTES = MetricsUtil.counter(RESP_TYPE, BYTES);
 
@@ -51,7 +57,7 @@ public class MetricInterceptor implements ClientInterceptor {
                                                                final CallOptions callOpts, //
                                                                final Channel next) {
         final String methodName = method.getFullMethodName();
-        MetricsUtil.meter(REQ_TYPE, QPS, methodName).mark();
+        MetricsUtil.meter(MetricName.of(REQ_QPS, METHOD, methodName)).mark();
 
         return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, callOpts)) {
 
@@ -63,7 +69,8 @@ public class MetricInterceptor implements ClientInterceptor {
                     public void onMessage(final RespT msg) {
                         if (msg instanceof MessageLite) {
                             final int size = ((MessageLite) msg).getSerializedSize();
-                            MetricsUtil.histogram(RESP_TYPE, SERIALIZED_BYTES, methodName).update(size);
+                            MetricsUtil.histogram(MetricName.of(RESP_SERIALIZED_BYTES, METHOD, methodName))
+                                    .update(size);
                             RESP_BYTES.inc(size);
                         }
                         super.onMessage(msg);
@@ -75,7 +82,7 @@ public class MetricInterceptor implements ClientInterceptor {
             public void sendMessage(final ReqT msg) {
                 if (msg instanceof MessageLite) {
                     final int size = ((MessageLite) msg).getSerializedSize();
-                    MetricsUtil.histogram(REQ_TYPE, SERIALIZED_BYTES, methodName).update(size);
+                    MetricsUtil.histogram(MetricName.of(REQ_SERIALIZED_BYTES, METHOD, methodName)).update(size);
                     REQ_BYTES.inc(size);
                 }
                 super.sendMessage(msg);
@@ -16,11 +16,25 @@
  */
 package io.ceresdb.http;
 
-import java.util.Collection;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,8 +55,9 @@ import io.ceresdb.http.errors.ManagementException;
 import io.ceresdb.models.SqlResult;
 import io.ceresdb.options.ManagementOptions;
 import io.ceresdb.rpc.Context;
-import com.google.gson.Gson;
 
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
@@ -56,15 +71,13 @@ public class HttpManagementClient implements Management {
 
     private static final Logger LOG = LoggerFactory.getLogger(HttpManagementClient.class);
 
-    private static final String AFFECTED_ROWS = "affected_rows";
-    private static final String ROWS          = "rows";
-
     private final AtomicBoolean started = new AtomicBoolean(false);
 
     private ManagementOptions opts;
 
-    private Tenant       tenant;
-    private RouterClient routerClient;
+    private Tenant           tenant;
+    private RouterClient     routerClient;
+    private TableExistsCache tableCache;
 
     @Override
     public boolean init(final ManagementOptions opts) {
@@ -74,6 +87,8 @@ public class HttpManagementClient implements Management {
         this.opts = Requires.requireNonNull(opts, "Null.opts");
         this.tenant = Requires.requireNonNull(opts.getTenant(), "Null.Tenant");
         this.routerClient = Requires.requireNonNull(opts.getRouterClient(), "Null.RouterClient");
+        Requires.requireTrue(opts.getMaxBatchParallelism() > 0, "maxBatchParallelism must > 0");
+        this.tableCache = new TableExistsCache(opts.getTableExistsCacheTtlMs());
         return true;
     }
 
@@ -91,25 +106,166 @@ public class HttpManagementClient implements Management {
                 .print("started=") //
                 .println(this.started) //
                 .print("tenant=") //
-                .println(this.tenant.getTenant());
+                .println(this.tenant.getTenant()) //
+                .print("tableExistsCacheEnabled=") //
+                .println(this.tableCache.isEnabled());
     }
 
     @Override
     public SqlResult executeSql(final boolean autoRouting, final Context ctx, final String fmtSql,
                                 final Object... args) {
         final String sql = getSql(fmtSql, args);
-        final Endpoint managementAddress = this.opts.getManagementAddress();
+        final MetricParser parser = parseSql(autoRouting, sql);
+        final SqlResult cached = this.tableCache.lookup(sql, parser);
+        if (cached != null) {
+            return cached;
+        }
+        final Endpoint target;
+        try {
+            target = route(autoRouting, parser).get();
+        } catch (final Exception e) {
+            ThrowUtil.throwException(unwrap(e));
+            return null; // never got here
+        }
+        final SqlResult result = doExecuteSql(sql, target, ctx);
+        this.tableCache.onExecuted(parser, result);
+        return result;
+    }
 
-        if (!autoRouting && !this.opts.isCheckSql()) {
-            return doExecuteSql(sql, managementAddress, ctx);
+    @Override
+    public CompletableFuture<SqlResult> executeSqlAsync(final boolean autoRouting, final Context ctx,
+                                                        final String fmtSql, final Object... args) {
+        return streamExecuteSql(autoRouting, ctx, null, fmtSql, args);
+    }
+
+    @Override
+    public CompletableFuture<SqlResult> streamExecuteSql(final boolean autoRouting, final Context ctx,
+                                                         final Consumer<Map<String, Object>> rowHandler,
+                                                         final String fmtSql, final Object... args) {
+        final String sql;
+        final MetricParser parser;
+        final CompletableFuture<Endpoint> target;
+        try {
+            sql = getSql(fmtSql, args);
+            parser = parseSql(autoRouting, sql);
+            final SqlResult cached = this.tableCache.lookup(sql, parser);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+            target = route(autoRouting, parser);
+        } catch (final Throwable t) {
+            return failedFuture(t);
         }
+        return target.thenCompose(endpoint -> doExecuteSqlAsync(sql, endpoint, ctx, rowHandler)) //
+                .thenApply(result -> {
+                    this.tableCache.onExecuted(parser, result);
+                    return result;
+                });
+    }
 
-        final MetricParser parser = parseSql(sql);
+    @Override
+    public CompletableFuture<List<SqlResult>> executeBatchSql(final boolean autoRouting, final Context ctx,
+                                                              final List<String> sqls) {
+        Requires.requireNonNull(sqls, "Null.sqls");
 
+        final List<MetricParser> parsers = new ArrayList<>(sqls.size());
+        final Set<String> tables = new HashSet<>();
+        try {
+            for (final String sql : sqls) {
+                final MetricParser parser = parseSql(autoRouting, sql);
+                if (autoRouting) {
+                    tables.addAll(getTables(parser));
+                }
+                parsers.add(parser);
+            }
+        } catch (final Throwable t) {
+            return failedFuture(t);
+        }
+
+        // route all the tables of the batch at once
+        final CompletableFuture<Map<String, Route>> routesFuture = autoRouting ? this.routerClient.routeFor(tables) :
+                CompletableFuture.completedFuture(Collections.emptyMap());
+
+        return routesFuture.thenCompose(routes -> {
+            final BoundedRunner runner = new BoundedRunner(this.opts.getMaxBatchParallelism());
+            // the sqls on the same table of the same endpoint are executed in order
+            final Map<String, CompletableFuture<SqlResult>> lanes = new HashMap<>();
+            final List<CompletableFuture<SqlResult>> futures = new ArrayList<>(sqls.size());
+            // the last sql whose tables are unknown
+            CompletableFuture<SqlResult> barrier = CompletableFuture.completedFuture(null);
+            for (int i = 0; i < sqls.size(); i++) {
+                final String sql = sqls.get(i);
+                final MetricParser parser = parsers.get(i);
+                final List<String> names = parser == null ? Collections.emptyList() : parser.metricNames();
+                final Endpoint endpoint = getTargetEndpoint(names.stream() //
+                        .map(routes::get) //
+                        .filter(Objects::nonNull) //
+                        .collect(Collectors.toList()));
+                final String lane = names.isEmpty() ? null : endpoint + "/" + names.get(0);
+                final CompletableFuture<?> prev;
+                if (lane == null) {
+                    // the sql may be on any table, so it runs after all the previous
+                    // sqls and before all the following ones, a batch that is not
+                    // parsed at all is executed serially
+                    prev = CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+                } else {
+                    prev = lanes.getOrDefault(lane, barrier);
+                }
+                final CompletableFuture<SqlResult> f = prev //
+                        .handle((r, e) -> null) // runs even if the previous one failed
+                        .thenCompose(v -> {
+                            final SqlResult cached = this.tableCache.lookup(sql, parser);
+                            if (cached != null) {
+                                return CompletableFuture.completedFuture(cached);
+                            }
+                            return runner.submit(() -> doExecuteSqlAsync(sql, endpoint, ctx, null)) //
+                                    .thenApply(result -> {
+                                        this.tableCache.onExecuted(parser, result);
+                                        return result;
+                                    });
+                        });
+                if (lane == null) {
+                    barrier = f;
+                    lanes.clear();
+                } else {
+                    lanes.put(lane, f);
+                }
+                futures.add(f);
+            }
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])) //
+                    .handle((v, e) -> collectBatchResults(futures));
+        });
+    }
+
+    private static List<SqlResult> collectBatchResults(final List<CompletableFuture<SqlResult>> futures) {
+        final List<SqlResult> results = new ArrayList<>(futures.size());
+        final List<Throwable> errors = new ArrayList<>();
+        for (final CompletableFuture<SqlResult> f : futures) {
+            try {
+                results.add(f.join());
+            } catch (final Throwable t) {
+                errors.add(unwrap(t));
+            }
+        }
+        if (errors.isEmpty()) {
+            return results;
+        }
+        final ManagementException ex = new ManagementException(
+                String.format("Fail to execute %d of %d sqls in the batch", errors.size(), futures.size()));
+        errors.forEach(ex::addSuppressed);
+        throw ex;
+    }
+
+    private CompletableFuture<Endpoint> route(final boolean autoRouting, final MetricParser parser) {
         if (!autoRouting) {
-            return doExecuteSql(sql, managementAddress, ctx);
+            return CompletableFuture.completedFuture(this.opts.getManagementAddress());
         }
 
+        return this.routerClient.routeFor(getTables(parser)) //
+                .thenApply(routes -> getTargetEndpoint(routes.values()));
+    }
+
+    private static List<String> getTables(final MetricParser parser) {
         Requires.requireNonNull(parser, "Null.parser");
 
         final List<String> tables = parser.metricNames();
@@ -117,33 +273,16 @@ public class HttpManagementClient implements Management {
         Requires.requireNonNull(tables, "Null.tables");
         Requires.requireTrue(!tables.isEmpty(), "Empty.tables");
 
-        try {
-            final Map<String, Route> routes = this.routerClient.routeFor(tables).get();
-            final Endpoint target = getTargetEndpoint(routes.values());
-
-            return doExecuteSql(sql, target, ctx);
-        } catch (final Exception e) {
-            ThrowUtil.throwException(e);
-        }
-
-        return null;
+        return tables;
     }
 
     private SqlResult doExecuteSql(final String sql, final Endpoint endpoint, final Context ctx) {
-        final Request request = contextToHeaders(newBaseRequestBuilder(), ctx) //
-                .url(getUrl(endpoint)) //
-                .post(HttpUtil.requestBody(HttpUtil.params("query", sql))) //
-                .build();
+        final Request request = newSqlRequest(sql, endpoint, ctx);
 
         LOG.info("Executing sql: {}, to: {}.", sql, endpoint);
 
         try (Response resp = HttpUtil.httpClient().newCall(request).execute()) {
-            if (!resp.isSuccessful()) {
-                throw new ManagementException(
-                        String.format("Execute sql [%s] error from server %s, err_code=%d, err_msg=%s, detail_msg=%s", //
-                                sql, endpoint, resp.code(), resp.message(), getRespBody(resp)));
-            }
-            return toSqlResult(resp);
+            return toSqlResult(sql, endpoint, resp, null);
         } catch (final Throwable t) {
             LOG.error("Fail to execute sql: {}.", sql, t);
             ThrowUtil.throwException(t);
@@ -151,6 +290,44 @@ public class HttpManagementClient implements Management {
         return null; // never got here
     }
 
+    private CompletableFuture<SqlResult> doExecuteSqlAsync(final String sql, final Endpoint endpoint, final Context ctx,
+                                                           final Consumer<Map<String, Object>> rowHandler) {
+        final Request request = newSqlRequest(sql, endpoint, ctx);
+
+        LOG.info("Executing sql async: {}, to: {}.", sql, endpoint);
+
+        final CompletableFuture<SqlResult> future = new CompletableFuture<>();
+        HttpUtil.httpClient().newCall(request).enqueue(new Callback() {
+
+            @Override
+            public void onResponse(final Call call, final Response resp) {
+                try (Response r = resp) {
+                    future.complete(toSqlResult(sql, endpoint, r, rowHandler));
+                } catch (final Throwable t) {
+                    onFailure(t);
+                }
+            }
+
+            @Override
+            public void onFailure(final Call call, final IOException e) {
+                onFailure(e);
+            }
+
+            private void onFailure(final Throwable t) {
+                LOG.error("Fail to execute sql: {}.", sql, t);
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    private Request newSqlRequest(final String sql, final Endpoint endpoint, final Context ctx) {
+        return contextToHeaders(newBaseRequestBuilder(), ctx) //
+                .url(getUrl(endpoint)) //
+                .post(HttpUtil.requestBody(HttpUtil.params("query", sql))) //
+                .build();
+    }
+
     private Endpoint getTargetEndpoint(final Collection<Route> routes) {
         final Endpoint managementAddress = this.opts.getManagementAddress();
 
@@ -163,7 +340,12 @@ public class HttpManagementClient implements Management {
         return String.format(fmtSql, args);
     }
 
-    private MetricParser parseSql(final String sql) {
+    private MetricParser parseSql(final boolean autoRouting, final String sql) {
+        if (!autoRouting && !this.opts.isCheckSql()) {
+            // parse it for the table cache only, the failure is ignored
+            return this.tableCache.isEnabled() ? tryParseSql(sql) : null;
+        }
+
         final MetricParser sqlParser = getSqlParser(sql);
 
         if (sqlParser == null || !this.opts.isCheckSql()) {
@@ -173,12 +355,24 @@ public class HttpManagementClient implements Management {
         return checkStatementType(sqlParser);
     }
 
+    private static MetricParser tryParseSql(final String sql) {
+        try {
+            final MetricParser sqlParser = getSqlParser(sql);
+            // trigger the parsing
+            return sqlParser == null || sqlParser.statementType() == MetricParser.StatementType.Unknown ? null :
+                    sqlParser;
+        } catch (final Throwable t) {
+            LOG.debug("Fail to parse sql: {}.", sql, t);
+            return null;
+        }
+    }
+
     private Request.Builder contextToHeaders(final Request.Builder builder, final Context ctx) {
         if (ctx == null) {
             return builder;
         }
 
-        ctx.entrySet().forEach(e -> builder.addHeader(e.getKey(), String.valueOf(e.getValue())));
+        ctx.forEachHeader(builder::addHeader);
         return builder;
     }
 
@@ -197,17 +391,20 @@ public class HttpManagementClient implements Management {
         return String.format("%s://%s:%d/sql", HttpUtil.PROTOCOL, endpoint.getIp(), endpoint.getPort());
     }
 
-    @SuppressWarnings("unchecked")
-    private static SqlResult toSqlResult(final Response resp) throws IOException {
-        final String body = getRespBody(resp);
-        if (Strings.isBlank(body)) {
+    private static SqlResult toSqlResult(final String sql, final Endpoint endpoint, final Response resp,
+                                         final Consumer<Map<String, Object>> rowHandler)
+            throws IOException {
+        if (!resp.isSuccessful()) {
+            throw new ManagementException(
+                    String.format("Execute sql [%s] error from server %s, err_code=%d, err_msg=%s, detail_msg=%s", //
+                            sql, endpoint, resp.code(), resp.message(), getRespBody(resp)));
+        }
+        final ResponseBody body = resp.body();
+        if (body == null) {
             return SqlResult.EMPTY_RESULT;
         }
-
-        final Map<String, Object> mapResult = new Gson().fromJson(body, Map.class);
-        final Number affectedRows = (Number) mapResult.get(AFFECTED_ROWS);
-        final List<Map<String, Object>> rows = (List<Map<String, Object>>) mapResult.get(ROWS);
-        return new SqlResult(affectedRows == null ? 0L : affectedRows.longValue(), rows);
+        // decode the rows from the stream, never read the whole body into memory
+        return SqlResultDecoder.decode(body.charStream(), rowHandler);
     }
 
     private static String getRespBody(final Response resp) throws IOException {
@@ -215,6 +412,18 @@ public class HttpManagementClient implements Management {
         return body == null ? "" : body.string();
     }
 
+    private static <T> CompletableFuture<T> failedFuture(final Throwable t) {
+        final CompletableFuture<T> f = new CompletableFuture<>();
+        f.completeExceptionally(t);
+        return f;
+    }
+
+    private static Throwable unwrap(final Throwable t) {
+        return (t instanceof ExecutionException || t instanceof CompletionException) && t.getCause() != null ?
+                t.getCause() :
+                t;
+    }
+
     private static MetricParser getSqlParser(final String sql) {
         final MetricParserFactory factory = MetricParserFactoryProvider.getMetricParserFactory();
         if (MetricParserFactory.DEFAULT == factory) {
@@ -243,4 +452,61 @@ public class HttpManagementClient implements Management {
 
         return sqlParser;
     }
+
+    /**
+     * Runs the async tasks with a bounded parallelism, the tasks over the
+     * bound are queued and started once a running task completes.
+     */
+    private static final class BoundedRunner {
+
+        private final int             permits;
+        private final Queue<Runnable> pending = new ArrayDeque<>();
+        private int                   running;
+
+        BoundedRunner(int permits) {
+            this.permits = permits;
+        }
+
+        <T> CompletableFuture<T> submit(final Supplier<CompletableFuture<T>> task) {
+            final CompletableFuture<T> future = new CompletableFuture<>();
+            final Runnable r = () -> {
+                CompletableFuture<T> f;
+                try {
+                    f = task.get();
+                } catch (final Throwable t) {
+                    f = failedFuture(t);
+                }
+                f.whenComplete((v, e) -> {
+                    release();
+                    if (e == null) {
+                        future.complete(v);
+                    } else {
+                        future.completeExceptionally(e);
+                    }
+                });
+            };
+            synchronized (this) {
+                if (this.running >= this.permits) {
+                    this.pending.add(r);
+                    return future;
+                }
+                this.running++;
+            }
+            r.run();
+            return future;
+        }
+
+        private void release() {
+            final Runnable next;
+            synchronized (this) {
+                next = this.pending.poll();
+                if (next == null) {
+                    this.running--;
+                }
+            }
+            if (next != null) {
+                next.run();
+            }
+        }
+    }
 }
@@ -25,6 +25,8 @@ import io.ceresdb.common.OptKeys;
 import io.ceresdb.common.util.SystemPropertyUtil;
 import com.google.gson.Gson;
 
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.RequestBody;
@@ -38,11 +40,18 @@ public class HttpUtil {
 
     public static final String PROTOCOL = "http";
 
-    private static final long READ_TIMEOUT_MS  = SystemPropertyUtil.getLong(OptKeys.HTTP_READ_TIMEOUT_MS, 10000);
-    private static final long WRITE_TIMEOUT_MS = SystemPropertyUtil.getLong(OptKeys.HTTP_WRITE_TIMEOUT_MS, 10000);
+    private static final long READ_TIMEOUT_MS       = SystemPropertyUtil.getLong(OptKeys.HTTP_READ_TIMEOUT_MS, 10000);
+    private static final long WRITE_TIMEOUT_MS      = SystemPropertyUtil.getLong(OptKeys.HTTP_WRITE_TIMEOUT_MS, 10000);
+    private static final int  MAX_IDLE_CONNS        = SystemPropertyUtil.getInt(OptKeys.HTTP_MAX_IDLE_CONNS, 16);
+    private static final long KEEP_ALIVE_MS         = SystemPropertyUtil.getLong(OptKeys.HTTP_KEEP_ALIVE_MS,
+            5 * 60 * 1000);
+    private static final int  MAX_REQUESTS          = SystemPropertyUtil.getInt(OptKeys.HTTP_MAX_REQUESTS, 64);
+    private static final int  MAX_REQUESTS_PER_HOST = SystemPropertyUtil.getInt(OptKeys.HTTP_MAX_REQS_PER_HOST, 16);
 
     private static final MediaType JSON_MEDIA_TYPE = MediaType.parse("application/json; charset=utf-8");
 
+    private static final Gson GSON = new Gson();
+
     // The singleton HTTP client.
     //
     // Shutdown isn’t necessary, the threads and connections that
@@ -50,6 +59,8 @@ public class HttpUtil {
     private static final OkHttpClient OK_HTTP_CLIENT = new OkHttpClient.Builder() //
             .readTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS) //
             .writeTimeout(WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS) //
+            .connectionPool(new ConnectionPool(MAX_IDLE_CONNS, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS)) //
+            .dispatcher(newDispatcher()) //
             .build();
 
     public static OkHttpClient httpClient() {
@@ -68,6 +79,18 @@ public class HttpUtil {
     }
 
     public static RequestBody requestBody(final Map<String, String> params) {
-        return RequestBody.create(new Gson().toJson(params), JSON_MEDIA_TYPE);
+        return RequestBody.create(GSON.toJson(params), JSON_MEDIA_TYPE);
+    }
+
+    public static Gson gson() {
+        return GSON;
+    }
+
+    private static Dispatcher newDispatcher() {
+        // the limits of async calls
+        final Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+        return dispatcher;
     }
 }
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.http;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import io.ceresdb.models.SqlResult;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Decodes the SQL result from a JSON stream, the rows are decoded one by
+ * one, so the whole response body needs not to be held in memory.
+ *
+ * <p>The decoded values have the same types as {@link com.google.gson.Gson}
+ * decoding them to a {@link Map}: numbers are doubles, arrays are lists and
+ * objects are maps.
+ *
+ * @author jiachun.fjc
+ */
+public final class SqlResultDecoder {
+
+    private static final String AFFECTED_ROWS = "affected_rows";
+    private static final String ROWS          = "rows";
+
+    /**
+     * Decodes the SQL result, if the row handler is present, the rows are
+     * handed to it and not collected into the returned result.
+     *
+     * @param in         the JSON stream
+     * @param rowHandler the row handler, optional
+     * @return the SQL result
+     * @throws IOException if failed to read the stream
+     */
+    public static SqlResult decode(final Reader in, final Consumer<Map<String, Object>> rowHandler) throws IOException {
+        final PushbackReader pin = new PushbackReader(in);
+        int c;
+        do {
+            c = pin.read();
+        } while (c != -1 && Character.isWhitespace(c));
+        if (c == -1) { // blank body
+            return SqlResult.EMPTY_RESULT;
+        }
+        pin.unread(c);
+
+        final JsonReader reader = new JsonReader(pin);
+        reader.setLenient(true);
+
+        long affectedRows = 0L;
+        List<Map<String, Object>> rows = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if (AFFECTED_ROWS.equals(name) && reader.peek() == JsonToken.NUMBER) {
+                affectedRows = toLong(reader.nextString());
+            } else if (ROWS.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                rows = rowHandler == null ? new ArrayList<>() : null;
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    final Map<String, Object> row = readObject(reader);
+                    if (rowHandler == null) {
+                        rows.add(row);
+                    } else {
+                        rowHandler.accept(row);
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new SqlResult(affectedRows, rows);
+    }
+
+    private static long toLong(final String num) {
+        try {
+            return Long.parseLong(num);
+        } catch (final NumberFormatException e) {
+            // such as `1.0` or `1e3`, truncated like `Number#longValue()`
+            return (long) Double.parseDouble(num);
+        }
+    }
+
+    private static Object readValue(final JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                final List<Object> list = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    list.add(readValue(reader));
+                }
+                reader.endArray();
+                return list;
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                return reader.nextDouble();
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                throw new IllegalStateException("Unexpected token: " + reader.peek());
+        }
+    }
+
+    private static Map<String, Object> readObject(final JsonReader reader) throws IOException {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            map.put(reader.nextName(), readValue(reader));
+        }
+        reader.endObject();
+        return map;
+    }
+
+    private SqlResultDecoder() {
+    }
+}
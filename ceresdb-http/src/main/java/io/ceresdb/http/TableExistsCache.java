@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.http;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import io.ceresdb.MetricParser;
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.models.SqlResult;
+import com.codahale.metrics.Meter;
+
+/**
+ * A client side cache of the tables known to exist.
+ *
+ * <p>A table is cached after it is created successfully, a following
+ * `CREATE TABLE IF NOT EXISTS` on it is skipped, and the result of an
+ * `EXISTS TABLE` on it is reused. The tables are invalidated by DROP and
+ * ALTER, and all of them are invalidated by a statement that cannot be
+ * parsed, since we don't know what it has changed.
+ *
+ * <p>The tables may be dropped by other clients, so the entries expire
+ * after the given TTL.
+ *
+ * @author jiachun.fjc
+ */
+final class TableExistsCache {
+
+    private static final Meter SKIPPED = MetricsUtil.meter("management_table_cache_skipped");
+
+    static final SqlResult SKIPPED_RESULT = new SqlResult(0, null);
+
+    private static final Pattern CREATE_IF_NOT_EXISTS = Pattern
+            .compile("^\\s*CREATE\\s+TABLE\\s+IF\\s+NOT\\s+EXISTS\\s", Pattern.CASE_INSENSITIVE);
+
+    private final long                         ttlNanos;
+    private final ConcurrentMap<String, Entry> tables = new ConcurrentHashMap<>();
+
+    TableExistsCache(long ttlMs) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    }
+
+    boolean isEnabled() {
+        return this.ttlNanos > 0;
+    }
+
+    /**
+     * Returns the result of the statement if it can be skipped, otherwise
+     * returns null, and invalidates the tables the statement may change.
+     *
+     * @param sql    the sql
+     * @param parser the parser of the sql, null if it cannot be parsed
+     * @return the cached result or null
+     */
+    SqlResult lookup(final String sql, final MetricParser parser) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        if (parser == null) {
+            this.tables.clear();
+            return null;
+        }
+
+        final List<String> names = parser.metricNames();
+        switch (parser.statementType()) {
+            case Create:
+                if (CREATE_IF_NOT_EXISTS.matcher(sql).find() && allCreated(names)) {
+                    SKIPPED.mark();
+                    return SKIPPED_RESULT;
+                }
+                break;
+            case Exists:
+                if (names.size() == 1) {
+                    final Entry e = get(names.get(0));
+                    if (e != null && e.existsResult != null) {
+                        SKIPPED.mark();
+                        return e.existsResult;
+                    }
+                }
+                break;
+            case Drop:
+            case Alter:
+                invalidate(names);
+                break;
+            default:
+                break;
+        }
+        return null;
+    }
+
+    /**
+     * Updates the cache after the statement executed successfully.
+     *
+     * @param parser the parser of the sql, null if it cannot be parsed
+     * @param result the result of the sql
+     */
+    void onExecuted(final MetricParser parser, final SqlResult result) {
+        if (!isEnabled() || parser == null || result == SKIPPED_RESULT) {
+            return;
+        }
+
+        final List<String> names = parser.metricNames();
+        final long expireAt = System.nanoTime() + this.ttlNanos;
+        switch (parser.statementType()) {
+            case Create:
+                // the cached `EXISTS` results are stale now
+                names.forEach(t -> this.tables.put(t, new Entry(true, null, expireAt)));
+                break;
+            case Exists:
+                if (names.size() == 1) {
+                    this.tables.compute(names.get(0), (t, old) -> new Entry(old != null && old.isCreated(), //
+                            result, expireAt));
+                }
+                break;
+            case Drop:
+            case Alter:
+                // the statements may be executed concurrently, invalidate again
+                invalidate(names);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private boolean allCreated(final List<String> names) {
+        if (names == null || names.isEmpty()) {
+            return false;
+        }
+        for (final String t : names) {
+            final Entry e = get(t);
+            if (e == null || !e.created) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Entry get(final String table) {
+        final Entry e = this.tables.get(table);
+        if (e == null) {
+            return null;
+        }
+        if (e.isExpired()) {
+            this.tables.remove(table, e);
+            return null;
+        }
+        return e;
+    }
+
+    private void invalidate(final List<String> names) {
+        if (names != null) {
+            names.forEach(this.tables::remove);
+        }
+    }
+
+    private static final class Entry {
+        final boolean   created;
+        final SqlResult existsResult;
+        final long      expireAt;
+
+        Entry(boolean created, SqlResult existsResult, long expireAt) {
+            this.created = created;
+            this.existsResult = existsResult;
+            this.expireAt = expireAt;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - this.expireAt > 0;
+        }
+
+        boolean isCreated() {
+            return this.created && !isExpired();
+        }
+    }
+}
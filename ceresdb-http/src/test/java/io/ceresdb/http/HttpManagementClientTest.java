@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.http;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.ceresdb.http.errors.ManagementException;
+import io.ceresdb.models.SqlResult;
+import io.ceresdb.options.ManagementOptions;
+import io.ceresdb.rpc.Context;
+
+/**
+ * @author jiachun.fjc
+ */
+public class HttpManagementClientTest {
+
+    @Test
+    public void batchOrderInLaneTest() throws Exception {
+        try (TestSqlServer server = new TestSqlServer()) {
+            // the first one is the slowest
+            server.delays(sql -> sql.startsWith("CREATE TABLE t1") ? 300 : 0);
+            final HttpManagementClient client = newClient(server.newOptions());
+            final List<SqlResult> results = client.executeBatchSql(false, Context.newDefault(), Arrays.asList( //
+                    "CREATE TABLE t1 (ts timestamp)", //
+                    "ALTER TABLE t1 ADD COLUMN c string", //
+                    "DROP TABLE t1", //
+                    "CREATE TABLE t2 (ts timestamp)")) //
+                    .get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(4, results.size());
+
+            final List<String> executed = server.executed();
+            Assert.assertEquals(4, executed.size());
+            // t2 is not blocked by t1
+            Assert.assertEquals("CREATE TABLE t2 (ts timestamp)", executed.get(0));
+            Assert.assertEquals(Arrays.asList("CREATE TABLE t1 (ts timestamp)", "ALTER TABLE t1 ADD COLUMN c string",
+                    "DROP TABLE t1"), executed.subList(1, 4));
+            client.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void batchNotParsedTest() throws Exception {
+        try (TestSqlServer server = new TestSqlServer()) {
+            server.delays(sql -> sql.startsWith("CREATE") ? 200 : 0);
+            final ManagementOptions opts = server.newOptions();
+            // not parsed at all
+            opts.setCheckSql(false);
+            final HttpManagementClient client = newClient(opts);
+            final List<String> sqls = Arrays.asList("CREATE TABLE t (ts timestamp)", //
+                    "ALTER TABLE t ADD COLUMN c string", //
+                    "DROP TABLE t");
+            client.executeBatchSql(false, Context.newDefault(), sqls).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(sqls, server.executed());
+            Assert.assertEquals(1, server.maxRunning());
+            client.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void batchBarrierTest() throws Exception {
+        try (TestSqlServer server = new TestSqlServer()) {
+            server.delays(sql -> sql.startsWith("CREATE TABLE t1") ? 200 : 0);
+            final HttpManagementClient client = newClient(server.newOptions());
+            // `SHOW TABLES` has no table, it waits for the ones before it
+            client.executeBatchSql(false, Context.newDefault(), Arrays.asList( //
+                    "CREATE TABLE t1 (ts timestamp)", //
+                    "SHOW TABLES", //
+                    "CREATE TABLE t2 (ts timestamp)")) //
+                    .get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(
+                    Arrays.asList("CREATE TABLE t1 (ts timestamp)", "SHOW TABLES", "CREATE TABLE t2 (ts timestamp)"),
+                    server.executed());
+            client.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void batchBoundedParallelismTest() throws Exception {
+        try (TestSqlServer server = new TestSqlServer()) {
+            server.delays(sql -> 100);
+            final ManagementOptions opts = server.newOptions();
+            opts.setMaxBatchParallelism(2);
+            final HttpManagementClient client = newClient(opts);
+            final List<String> sqls = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                sqls.add("CREATE TABLE t" + i + " (ts timestamp)");
+            }
+            final List<SqlResult> results = client.executeBatchSql(false, Context.newDefault(), sqls) //
+                    .get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(8, results.size());
+            Assert.assertEquals(8, server.executed().size());
+            Assert.assertTrue(String.valueOf(server.maxRunning()), server.maxRunning() <= 2);
+            client.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void batchFailureTest() throws Exception {
+        try (TestSqlServer server = new TestSqlServer()) {
+            server.responder(sql -> {
+                if (sql.contains("bad")) {
+                    throw new IllegalStateException("test error");
+                }
+                return "{\"affected_rows\":0}";
+            });
+            final HttpManagementClient client = newClient(server.newOptions());
+            try {
+                client.executeBatchSql(false, Context.newDefault(), Arrays.asList( //
+                        "CREATE TABLE t1 (ts timestamp)", //
+                        "ALTER TABLE t1 ADD COLUMN bad string", //
+                        "DROP TABLE t1", //
+                        "ALTER TABLE t2 ADD COLUMN bad string")) //
+                        .get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (final ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof ManagementException);
+                Assert.assertEquals(2, e.getCause().getSuppressed().length);
+            }
+            // the following ones in the lane still run
+            final List<String> executed = server.executed();
+            Assert.assertEquals(4, executed.size());
+            Assert.assertTrue(
+                    executed.indexOf("ALTER TABLE t1 ADD COLUMN bad string") < executed.indexOf("DROP TABLE t1"));
+            client.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void tableCacheTest() throws Exception {
+        try (TestSqlServer server = new TestSqlServer()) {
+            server.responder(sql -> sql.startsWith("EXISTS") ? "{\"rows\":[{\"result\":1}]}" : "{\"affected_rows\":0}");
+            final ManagementOptions opts = server.newOptions();
+            opts.setCheckSql(false);
+            opts.setTableExistsCacheTtlMs(60_000);
+            final HttpManagementClient client = newClient(opts);
+            final Context ctx = Context.newDefault();
+
+            final String create = "CREATE TABLE IF NOT EXISTS t1 (ts timestamp)";
+            client.executeSql(false, ctx, create);
+            Assert.assertSame(TableExistsCache.SKIPPED_RESULT, client.executeSql(false, ctx, create));
+            Assert.assertSame(TableExistsCache.SKIPPED_RESULT,
+                    client.executeSqlAsync(false, ctx, create).get(10, TimeUnit.SECONDS));
+            Assert.assertEquals(1, server.executed().size());
+
+            final SqlResult exists = client.executeSql(false, ctx, "EXISTS TABLE t2");
+            Assert.assertSame(exists, client.executeSql(false, ctx, "EXISTS TABLE t2"));
+            Assert.assertEquals(2, server.executed().size());
+
+            // invalidated by DROP
+            client.executeSql(false, ctx, "DROP TABLE t1");
+            client.executeSql(false, ctx, create);
+            Assert.assertEquals(4, server.executed().size());
+            Assert.assertSame(TableExistsCache.SKIPPED_RESULT, client.executeSql(false, ctx, create));
+
+            // a sql that cannot be parsed invalidates all
+            client.executeSql(false, ctx, "SET something");
+            client.executeSql(false, ctx, create);
+            client.executeSql(false, ctx, "EXISTS TABLE t2");
+            Assert.assertEquals(7, server.executed().size());
+
+            // skipped in a batch too
+            client.executeBatchSql(false, ctx, Arrays.asList(create, "EXISTS TABLE t2")).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(7, server.executed().size());
+            client.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void tableCacheExpireTest() throws Exception {
+        try (TestSqlServer server = new TestSqlServer()) {
+            final ManagementOptions opts = server.newOptions();
+            opts.setTableExistsCacheTtlMs(50);
+            final HttpManagementClient client = newClient(opts);
+            final String create = "CREATE TABLE IF NOT EXISTS t1 (ts timestamp)";
+            client.executeSql(false, Context.newDefault(), create);
+            Thread.sleep(100);
+            client.executeSql(false, Context.newDefault(), create);
+            Assert.assertEquals(2, server.executed().size());
+            client.shutdownGracefully();
+        }
+    }
+
+    private static HttpManagementClient newClient(final ManagementOptions opts) {
+        final HttpManagementClient client = new HttpManagementClient();
+        client.init(opts);
+        return client;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.http;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.ceresdb.common.util.Strings;
+import io.ceresdb.http.errors.ManagementException;
+import io.ceresdb.models.SqlResult;
+import io.ceresdb.rpc.Context;
+import com.google.gson.Gson;
+
+/**
+ * @author jiachun.fjc
+ */
+public class SqlResultDecoderTest {
+
+    private static final String ROWS_BODY = "{\"rows\":[" //
+                                            + "{\"ts\":1660000000000,\"host\":\"h1\",\"v\":0.5,\"ok\":true,\"n\":null}," //
+                                            + "{\"ts\":-1,\"host\":\"h\\\"2\",\"v\":1e3,\"tags\":[1,\"a\",[]],"
+                                            + "\"obj\":{\"k\":{\"x\":2}}}" //
+                                            + "],\"extra\":{\"ignored\":[1,2]},\"affected_rows\":2}";
+
+    @Test
+    public void blankBodyTest() throws Exception {
+        Assert.assertSame(SqlResult.EMPTY_RESULT, decode(""));
+        Assert.assertSame(SqlResult.EMPTY_RESULT, decode(" \n\t"));
+    }
+
+    @Test
+    public void affectedRowsOnlyTest() throws Exception {
+        final SqlResult r = decode("{\"affected_rows\":10}");
+        Assert.assertEquals(10, r.getAffectedRows());
+        Assert.assertNull(r.getRows());
+
+        Assert.assertEquals(0, decode("{}").getAffectedRows());
+        Assert.assertEquals(3, decode("{\"affected_rows\":3.0}").getAffectedRows());
+        Assert.assertEquals(1000, decode("{\"affected_rows\":1e3}").getAffectedRows());
+        Assert.assertEquals(Long.MAX_VALUE, decode("{\"affected_rows\":9223372036854775807}").getAffectedRows());
+    }
+
+    @Test
+    public void valuesTest() throws Exception {
+        final SqlResult r = decode(ROWS_BODY);
+        Assert.assertEquals(2, r.getAffectedRows());
+        Assert.assertEquals(2, r.getRows().size());
+
+        final Map<String, Object> row0 = r.getRows().get(0);
+        Assert.assertEquals(Arrays.asList("ts", "host", "v", "ok", "n"), new ArrayList<>(row0.keySet()));
+        // numbers are doubles, as the Gson Map decoding
+        Assert.assertEquals(1660000000000d, row0.get("ts"));
+        Assert.assertEquals(0.5d, row0.get("v"));
+        Assert.assertEquals(Boolean.TRUE, row0.get("ok"));
+        Assert.assertTrue(row0.containsKey("n"));
+        Assert.assertNull(row0.get("n"));
+
+        final Map<String, Object> row1 = r.getRows().get(1);
+        Assert.assertEquals("h\"2", row1.get("host"));
+        Assert.assertEquals(1000d, row1.get("v"));
+        Assert.assertEquals(Arrays.asList(1d, "a", Collections.emptyList()), row1.get("tags"));
+        Assert.assertEquals(Collections.singletonMap("k", Collections.singletonMap("x", 2d)), row1.get("obj"));
+    }
+
+    @Test
+    public void gsonParityTest() throws Exception {
+        final String[] bodies = new String[] { "{}", //
+                                               "{\"affected_rows\":7}", //
+                                               "{\"rows\":[]}", //
+                                               ROWS_BODY, //
+                                               "{\"affected_rows\":1,\"rows\":[{\"a\":\"\\u4e2d\\n\",\"b\":-0.0,\"c\":12345678901234}]}" };
+        for (final String body : bodies) {
+            final SqlResult expected = gsonDecode(body);
+            final SqlResult actual = decode(body);
+            Assert.assertEquals(body, expected.getAffectedRows(), actual.getAffectedRows());
+            Assert.assertEquals(body, expected.getRows(), actual.getRows());
+        }
+    }
+
+    @Test
+    public void rowHandlerTest() throws Exception {
+        final List<Map<String, Object>> handled = new ArrayList<>();
+        final SqlResult r = SqlResultDecoder.decode(new StringReader(ROWS_BODY), handled::add);
+        Assert.assertEquals(2, r.getAffectedRows());
+        // the rows are handed to the handler only
+        Assert.assertNull(r.getRows());
+        Assert.assertEquals(decode(ROWS_BODY).getRows(), handled);
+    }
+
+    @Test(expected = Exception.class)
+    public void malformedTest() throws Exception {
+        decode("{\"rows\":[{\"a\":1}");
+    }
+
+    @Test
+    public void executeSqlAsyncTest() throws Exception {
+        try (TestSqlServer server = new TestSqlServer().responder(sql -> ROWS_BODY)) {
+            final HttpManagementClient client = newClient(server);
+            final SqlResult r = client.executeSqlAsync(false, Context.newDefault(), "SELECT * FROM %s", "t") //
+                    .get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(decode(ROWS_BODY).getRows(), r.getRows());
+            Assert.assertEquals(Collections.singletonList("SELECT * FROM t"), server.executed());
+
+            // the sync one shares the decoder
+            Assert.assertEquals(r.getRows(), client.executeSql(false, Context.newDefault(), "SELECT 1").getRows());
+
+            server.responder(sql -> "");
+            Assert.assertSame(SqlResult.EMPTY_RESULT, client.executeSqlAsync(false, Context.newDefault(), "SELECT 1") //
+                    .get(10, TimeUnit.SECONDS));
+            client.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void streamExecuteSqlTest() throws Exception {
+        try (TestSqlServer server = new TestSqlServer().responder(sql -> ROWS_BODY)) {
+            final HttpManagementClient client = newClient(server);
+            final List<Map<String, Object>> handled = Collections.synchronizedList(new ArrayList<>());
+            final SqlResult r = client.streamExecuteSql(false, Context.newDefault(), handled::add, "SELECT 1") //
+                    .get(10, TimeUnit.SECONDS);
+            Assert.assertNull(r.getRows());
+            Assert.assertEquals(2, r.getAffectedRows());
+            Assert.assertEquals(decode(ROWS_BODY).getRows(), handled);
+            client.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void executeSqlAsyncErrorTest() throws Exception {
+        try (TestSqlServer server = new TestSqlServer().responder(sql -> {
+            throw new IllegalStateException("test error");
+        })) {
+            final HttpManagementClient client = newClient(server);
+            try {
+                client.executeSqlAsync(false, Context.newDefault(), "SELECT 1").get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (final Exception e) {
+                Assert.assertTrue(e.getCause() instanceof ManagementException);
+                Assert.assertTrue(e.getCause().getMessage().contains("test error"));
+            }
+            client.shutdownGracefully();
+        }
+    }
+
+    private static HttpManagementClient newClient(final TestSqlServer server) {
+        final HttpManagementClient client = new HttpManagementClient();
+        client.init(server.newOptions());
+        return client;
+    }
+
+    private static SqlResult decode(final String body) throws Exception {
+        return SqlResultDecoder.decode(new StringReader(body), null);
+    }
+
+    // the decoding before the streaming decoder
+    @SuppressWarnings("unchecked")
+    private static SqlResult gsonDecode(final String body) {
+        if (Strings.isBlank(body)) {
+            return SqlResult.EMPTY_RESULT;
+        }
+        final Map<String, Object> mapResult = new Gson().fromJson(body, Map.class);
+        final Number affectedRows = (Number) mapResult.get("affected_rows");
+        final List<Map<String, Object>> rows = (List<Map<String, Object>>) mapResult.get("rows");
+        return new SqlResult(affectedRows == null ? 0L : affectedRows.longValue(), rows);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.http;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.ceresdb.MetricParser;
+import io.ceresdb.MetricParserFactory;
+
+/**
+ * A regex based parser for the tests, it knows the statement type by the
+ * first word and the table after `TABLE` or `FROM`.
+ *
+ * @author jiachun.fjc
+ */
+public class TestMetricParserFactory implements MetricParserFactory {
+
+    private static final Pattern TABLE = Pattern
+            .compile("(?i)(?:TABLE(?:\\s+IF(?:\\s+NOT)?\\s+EXISTS)?|FROM)\\s+(\\w+)");
+
+    @Override
+    public MetricParser getParser(final String ql) {
+        return new MetricParser() {
+
+            @Override
+            public StatementType statementType() {
+                final String first = ql.trim().split("\\s+")[0].toUpperCase(Locale.ROOT);
+                for (final StatementType t : StatementType.values()) {
+                    if (t.name().toUpperCase(Locale.ROOT).equals(first)) {
+                        return t;
+                    }
+                }
+                return StatementType.Unknown;
+            }
+
+            @Override
+            public List<String> metricNames() {
+                final Matcher m = TABLE.matcher(ql);
+                return m.find() ? Collections.singletonList(m.group(1)) : Collections.emptyList();
+            }
+
+            @Override
+            public List<Column> createColumns() {
+                return Collections.emptyList();
+            }
+        };
+    }
+}
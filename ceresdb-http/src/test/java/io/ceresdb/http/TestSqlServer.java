@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import org.mockito.Mockito;
+
+import io.ceresdb.RouterClient;
+import io.ceresdb.common.Endpoint;
+import io.ceresdb.common.Tenant;
+import io.ceresdb.options.ManagementOptions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local SQL server for the tests, it responds to the sqls by the given
+ * functions and records the executed ones.
+ *
+ * @author jiachun.fjc
+ */
+final class TestSqlServer implements AutoCloseable {
+
+    private final HttpServer      server;
+    private final ExecutorService executor   = Executors.newCachedThreadPool();
+    private final List<String>    executed   = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger   running    = new AtomicInteger();
+    private final AtomicInteger   maxRunning = new AtomicInteger();
+
+    private volatile Function<String, String> responder = sql -> "{\"affected_rows\":0}";
+    private volatile ToLongFunction<String>   delays    = sql -> 0;
+
+    TestSqlServer() throws Exception {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/sql", this::handle);
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    /**
+     * Sets the response body of the sqls, the sql fails with status 500 if
+     * the responder throws.
+     */
+    TestSqlServer responder(final Function<String, String> responder) {
+        this.responder = responder;
+        return this;
+    }
+
+    TestSqlServer delays(final ToLongFunction<String> delays) {
+        this.delays = delays;
+        return this;
+    }
+
+    /**
+     * Returns the sqls in the order they completed.
+     */
+    List<String> executed() {
+        synchronized (this.executed) {
+            return new ArrayList<>(this.executed);
+        }
+    }
+
+    int maxRunning() {
+        return this.maxRunning.get();
+    }
+
+    Endpoint endpoint() {
+        return Endpoint.of("127.0.0.1", this.server.getAddress().getPort());
+    }
+
+    ManagementOptions newOptions() {
+        final ManagementOptions opts = new ManagementOptions();
+        opts.setManagementAddress(endpoint());
+        opts.setRouterClient(Mockito.mock(RouterClient.class));
+        opts.setTenant(Tenant.of("test", "sub_test", "test_token"));
+        return opts;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handle(final HttpExchange exchange) {
+        final int n = this.running.incrementAndGet();
+        this.maxRunning.accumulateAndGet(n, Math::max);
+        try {
+            final Map<String, String> params = HttpUtil.gson().fromJson(readBody(exchange.getRequestBody()), Map.class);
+            final String sql = params.get("query");
+            Thread.sleep(this.delays.applyAsLong(sql));
+
+            int status = 200;
+            byte[] body;
+            try {
+                body = this.responder.apply(sql).getBytes(StandardCharsets.UTF_8);
+            } catch (final Throwable t) {
+                status = 500;
+                body = String.valueOf(t.getMessage()).getBytes(StandardCharsets.UTF_8);
+            }
+            this.executed.add(sql);
+            this.running.decrementAndGet();
+            exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (final Exception e) {
+            this.running.decrementAndGet();
+            throw new IllegalStateException(e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String readBody(final InputStream in) throws Exception {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        final byte[] bytes = new byte[1024];
+        int n;
+        while ((n = in.read(bytes)) > 0) {
+            buf.write(bytes, 0, n);
+        }
+        return new String(buf.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+}
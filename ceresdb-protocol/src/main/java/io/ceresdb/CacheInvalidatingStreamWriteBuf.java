@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.ceresdb.models.Rows;
+import io.ceresdb.models.WriteOk;
+
+/**
+ * A stream-write buffer invalidates the cached query results of the
+ * metrics written to it, after each flush and after the stream completed.
+ *
+ * @author jiachun.fjc
+ */
+class CacheInvalidatingStreamWriteBuf implements StreamWriteBuf<Rows, WriteOk> {
+
+    private final StreamWriteBuf<Rows, WriteOk> delegate;
+    private final QueryClient                   queryClient;
+    private final Set<String>                   metrics = ConcurrentHashMap.newKeySet();
+
+    CacheInvalidatingStreamWriteBuf(StreamWriteBuf<Rows, WriteOk> delegate, QueryClient queryClient) {
+        this.delegate = delegate;
+        this.queryClient = queryClient;
+    }
+
+    @Override
+    public StreamWriteBuf<Rows, WriteOk> write(final Rows val) {
+        this.metrics.add(val.getMetric());
+        this.delegate.write(val);
+        return this;
+    }
+
+    @Override
+    public StreamWriteBuf<Rows, WriteOk> write(final Collection<Rows> c) {
+        c.forEach(rs -> this.metrics.add(rs.getMetric()));
+        this.delegate.write(c);
+        return this;
+    }
+
+    @Override
+    public StreamWriteBuf<Rows, WriteOk> flush() {
+        try {
+            this.delegate.flush();
+        } finally {
+            // the flushed data may be visible even if it failed
+            this.queryClient.invalidateCache(this.metrics);
+        }
+        return this;
+    }
+
+    @Override
+    public StreamWriteBuf<Rows, WriteOk> writeAndFlush(final Collection<Rows> c) {
+        c.forEach(rs -> this.metrics.add(rs.getMetric()));
+        try {
+            this.delegate.writeAndFlush(c);
+        } finally {
+            this.queryClient.invalidateCache(this.metrics);
+        }
+        return this;
+    }
+
+    @Override
+    public boolean isReady() {
+        return this.delegate.isReady();
+    }
+
+    @Override
+    public CompletableFuture<Void> whenReady() {
+        return this.delegate.whenReady();
+    }
+
+    @Override
+    public CompletableFuture<WriteOk> completed() {
+        // the flushed data is written when the stream completed, invalidates
+        // again in case a query cached the results in between
+        return this.delegate.completed().whenComplete((r, e) -> this.queryClient.invalidateCache(this.metrics));
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import io.ceresdb.common.util.Clock;
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.common.util.Requires;
+import io.ceresdb.common.util.TopKSelector;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+
+/**
+ * A {@link MetricParserFactory} that avoids the full parsing of QL as far as
+ * possible. The metric of a simple select statement is extracted by a
+ * lexer-only scanner, the results of the other statements are cached by
+ * the QL with its literals stripped, so the parameterized QLs only need to
+ * be parsed once.
+ *
+ * When the number of cached QLs exceeds the limit, the ones that have not
+ * been used for a long time are evicted first.
+ *
+ * @author jiachun.fjc
+ */
+public class CachingMetricParserFactory implements MetricParserFactory {
+
+    private static final float EVICT_THRESHOLD = 0.1f;
+
+    private final MetricParserFactory             delegate;
+    private final int                             maxSize;
+    private final ConcurrentMap<String, Resolved> cache    = new ConcurrentHashMap<>();
+    private final AtomicBoolean                   evicting = new AtomicBoolean(false);
+
+    static final class InnerMetrics {
+        static final Meter FAST_PATH  = MetricsUtil.meter("metric_parser_fast_path");
+        static final Meter CACHE_HIT  = MetricsUtil.meter("metric_parser_cache_hit");
+        static final Meter CACHE_MISS = MetricsUtil.meter("metric_parser_cache_miss");
+        static final Timer PARSE_TIME = MetricsUtil.timer("metric_parser_parse_time");
+
+        static {
+            MetricsUtil.metricRegistry().gauge(MetricsUtil.named("metric_parser_cache_hit_ratio"),
+                    () -> new RatioGauge() {
+
+                        @Override
+                        protected Ratio getRatio() {
+                            final long hits = FAST_PATH.getCount() + CACHE_HIT.getCount();
+                            return Ratio.of(hits, hits + CACHE_MISS.getCount());
+                        }
+                    });
+        }
+
+        static Meter fastPath() {
+            return FAST_PATH;
+        }
+
+        static Meter cacheHit() {
+            return CACHE_HIT;
+        }
+
+        static Meter cacheMiss() {
+            return CACHE_MISS;
+        }
+
+        static Timer parseTime() {
+            return PARSE_TIME;
+        }
+    }
+
+    public CachingMetricParserFactory(MetricParserFactory delegate, int maxSize) {
+        Requires.requireNonNull(delegate, "Null.delegate");
+        Requires.requireTrue(maxSize > 0, "maxSize must be a positive number");
+        this.delegate = delegate;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public MetricParser getParser(final String ql) {
+        return new CachingParser(ql);
+    }
+
+    public int size() {
+        return this.cache.size();
+    }
+
+    public void clear() {
+        this.cache.clear();
+    }
+
+    private Resolved resolve(final String ql) {
+        final String metric = QlScanner.simpleSelectMetric(ql);
+        if (metric != null) {
+            InnerMetrics.fastPath().mark();
+            return new Resolved(MetricParser.StatementType.Select, Collections.singletonList(metric), null);
+        }
+
+        final String key = QlScanner.normalize(ql);
+        final Resolved hit = this.cache.get(key);
+        if (hit != null) {
+            InnerMetrics.cacheHit().mark();
+            hit.lastHit = Clock.defaultClock().getTick();
+            return hit;
+        }
+
+        InnerMetrics.cacheMiss().mark();
+        final MetricParser parser = this.delegate.getParser(ql);
+        final MetricParser.StatementType type;
+        final List<String> metricNames;
+        try (Timer.Context ignored = InnerMetrics.parseTime().time()) {
+            type = parser.statementType();
+            try {
+                metricNames = parser.metricNames();
+            } catch (final Throwable t) {
+                // do not cache the failure, let the parser report it again
+                return new Resolved(type, null, parser);
+            }
+        }
+
+        final Resolved resolved = new Resolved(type, Collections.unmodifiableList(metricNames), null);
+        if (this.cache.putIfAbsent(key, resolved) == null && this.cache.size() > this.maxSize) {
+            evict();
+        }
+        return resolved;
+    }
+
+    private void evict() {
+        if (!this.evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final int itemsToEvict = Math.max(1, (int) (this.cache.size() * EVICT_THRESHOLD));
+            final List<String> topK = TopKSelector.selectTopK( //
+                    this.cache.entrySet(), //
+                    itemsToEvict, //
+                    (o1, o2) -> -Long.compare(o1.getValue().lastHit, o2.getValue().lastHit) //
+            ) //
+                    .map(Map.Entry::getKey) //
+                    .collect(Collectors.toList());
+            topK.forEach(this.cache::remove);
+        } finally {
+            this.evicting.set(false);
+        }
+    }
+
+    private static final class Resolved {
+        final MetricParser.StatementType statementType;
+        final List<String>               metricNames;
+        // only set if the metric names are not resolved, never cached
+        final MetricParser parser;
+        volatile long      lastHit = Clock.defaultClock().getTick();
+
+        Resolved(MetricParser.StatementType statementType, List<String> metricNames, MetricParser parser) {
+            this.statementType = statementType;
+            this.metricNames = metricNames;
+            this.parser = parser;
+        }
+    }
+
+    private final class CachingParser implements MetricParser {
+
+        private final String ql;
+
+        private Resolved resolved;
+
+        CachingParser(String ql) {
+            this.ql = ql;
+        }
+
+        @Override
+        public StatementType statementType() {
+            return resolved().statementType;
+        }
+
+        @Override
+        public List<String> metricNames() {
+            final Resolved r = resolved();
+            return r.metricNames == null ? r.parser.metricNames() : r.metricNames;
+        }
+
+        @Override
+        public List<Column> createColumns() {
+            // rarely used, always parse it
+            return delegate.getParser(this.ql).createColumns();
+        }
+
+        private Resolved resolved() {
+            if (this.resolved == null) {
+                this.resolved = resolve(this.ql);
+            }
+            return this.resolved;
+        }
+    }
+}
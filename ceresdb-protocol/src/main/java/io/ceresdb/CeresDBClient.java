@@ -20,12 +20,16 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +39,7 @@ import io.ceresdb.common.Endpoint;
 import io.ceresdb.common.Lifecycle;
 import io.ceresdb.common.signal.SignalHandlersLoader;
 import io.ceresdb.common.util.MetricExecutor;
+import io.ceresdb.common.util.MetricName;
 import io.ceresdb.common.util.MetricsUtil;
 import io.ceresdb.models.Err;
 import io.ceresdb.models.QueryOk;
@@ -43,10 +48,13 @@ import io.ceresdb.models.Result;
 import io.ceresdb.models.Rows;
 import io.ceresdb.models.WriteOk;
 import io.ceresdb.options.CeresDBOptions;
+import io.ceresdb.options.DownsampleOptions;
 import io.ceresdb.options.ManagementOptions;
 import io.ceresdb.options.QueryOptions;
 import io.ceresdb.options.RouterOptions;
+import io.ceresdb.options.WarmupOptions;
 import io.ceresdb.options.WriteOptions;
+import io.ceresdb.options.WriteSubscriberOptions;
 import io.ceresdb.rpc.Context;
 import io.ceresdb.rpc.Observer;
 import io.ceresdb.rpc.RpcClient;
@@ -66,8 +74,8 @@ public class CeresDBClient implements Write, Query, Lifecycle<CeresDBOptions>, D
 
     private static final Map<Integer, CeresDBClient> INSTANCES   = new ConcurrentHashMap<>();
     private static final AtomicInteger               ID          = new AtomicInteger(0);
-    private static final String                      ID_KEY      = "client.id";
-    private static final String                      VERSION_KEY = "client.version";
+    private static final String                      ID_KEY      = Context.KEY_CLIENT_ID;
+    private static final String                      VERSION_KEY = Context.KEY_CLIENT_VERSION;
     private static final String                      VERSION     = loadVersion();
 
     private final int           id;
@@ -83,6 +91,8 @@ public class CeresDBClient implements Write, Query, Lifecycle<CeresDBOptions>, D
     // Note: We do not close it to free resources, as we view it as shared
     private Executor asyncWritePool;
     private Executor asyncReadPool;
+    // completed with true once the warmup is done, see `WarmupOptions`
+    private volatile CompletableFuture<Boolean> readyFuture;
 
     static {
         // load all signal handlers
@@ -92,6 +102,8 @@ public class CeresDBClient implements Write, Query, Lifecycle<CeresDBOptions>, D
         // start scheduled metric reporter
         MetricsUtil.startScheduledReporter(Utils.autoReportPeriodMin(), TimeUnit.MINUTES);
         Runtime.getRuntime().addShutdownHook(new Thread(MetricsUtil::stopScheduledReporterAndDestroy));
+        // start the metrics exporter, if configured
+        Utils.startMetricsExporterIfConfigured();
     }
 
     public CeresDBClient() {
@@ -113,6 +125,7 @@ public class CeresDBClient implements Write, Query, Lifecycle<CeresDBOptions>, D
         this.writeClient = initWriteClient(this.opts, this.routerClient, this.asyncWritePool);
         this.queryClient = initQueryClient(this.opts, this.routerClient, this.asyncReadPool);
         this.management = initManagementClient(this.opts, this.routerClient);
+        this.readyFuture = warmup(this.opts.getWarmupOptions());
 
         INSTANCES.put(this.id, this);
 
@@ -136,6 +149,7 @@ public class CeresDBClient implements Write, Query, Lifecycle<CeresDBOptions>, D
         }
 
         if (this.routerClient != null) {
+            Warmup.saveSnapshot(this.routerClient, this.opts.getWarmupOptions());
             this.routerClient.shutdownGracefully();
         }
 
@@ -157,13 +171,32 @@ public class CeresDBClient implements Write, Query, Lifecycle<CeresDBOptions>, D
     @Override
     public CompletableFuture<Result<WriteOk, Err>> write(final Collection<Rows> data, final Context ctx) {
         ensureInitialized();
-        return this.writeClient.write(data, attachCtx(ctx));
+        final CompletableFuture<Result<WriteOk, Err>> f = this.writeClient.write(data, attachCtx(ctx));
+        if (!this.queryClient.isCacheInvalidateOnWrite()) {
+            return f;
+        }
+        final Set<String> metrics = data.stream().map(Rows::getMetric).collect(Collectors.toSet());
+        // invalidates after the write is done, the data may be visible even if it failed
+        return f.whenComplete((r, e) -> this.queryClient.invalidateCache(metrics));
     }
 
     @Override
     public StreamWriteBuf<Rows, WriteOk> streamWrite(final String metric, final Context ctx) {
         ensureInitialized();
-        return this.writeClient.streamWrite(metric, attachCtx(ctx));
+        return invalidateCacheOnWrite(this.writeClient.streamWrite(metric, attachCtx(ctx)));
+    }
+
+    @Override
+    public StreamWriteBuf<Rows, WriteOk> streamWrite(final Context ctx) {
+        ensureInitialized();
+        return invalidateCacheOnWrite(this.writeClient.streamWrite(attachCtx(ctx)));
+    }
+
+    private StreamWriteBuf<Rows, WriteOk> invalidateCacheOnWrite(final StreamWriteBuf<Rows, WriteOk> buf) {
+        if (!this.queryClient.isCacheInvalidateOnWrite()) {
+            return buf;
+        }
+        return new CacheInvalidatingStreamWriteBuf(buf, this.queryClient);
     }
 
     @Override
@@ -178,6 +211,81 @@ public class CeresDBClient implements Write, Query, Lifecycle<CeresDBOptions>, D
         this.queryClient.streamQuery(req, attachCtx(ctx), observer);
     }
 
+    @Override
+    public CompletableFuture<Result<QueryOk, Err>> collectStreamQuery(final QueryRequest req, final Context ctx) {
+        ensureInitialized();
+        return this.queryClient.collectStreamQuery(req, attachCtx(ctx));
+    }
+
+    /**
+     * Creates a subscriber that writes the rows from an upstream publisher in
+     * batches, the upstream demand is driven by the write limiter.
+     *
+     * @param opts    the options of the subscriber
+     * @param ctx     the invoke context of the writes
+     * @param results receives the result of each batch
+     * @return the write subscriber
+     * @see WriteSubscriber
+     */
+    public WriteSubscriber writeSubscriber(final WriteSubscriberOptions opts, //
+                                           final Context ctx, //
+                                           final Observer<Result<WriteOk, Err>> results) {
+        ensureInitialized();
+        return new WriteSubscriber(this, this.writeClient::availableWritePermits, opts, ctx, results);
+    }
+
+    /**
+     * Creates a stage that rolls up the rows of each series to one row per
+     * time window before writing them.
+     *
+     * @param opts    the options of the downsampler
+     * @param ctx     the invoke context of the writes
+     * @param results receives the result of each flush, nullable
+     * @return the downsampler
+     * @see Downsampler
+     */
+    public Downsampler downsampler(final DownsampleOptions opts, //
+                                   final Context ctx, //
+                                   final Observer<Result<WriteOk, Err>> results) {
+        ensureInitialized();
+        return new Downsampler(this, opts, ctx, results);
+    }
+
+    /**
+     * Whether the warmup is done and all the routes are fetched and all the
+     * connections are ready, always true if there is no warmup.
+     */
+    public boolean isReady() {
+        final CompletableFuture<Boolean> f = this.readyFuture;
+        return f != null && f.getNow(false);
+    }
+
+    /**
+     * Returns a future completed when the warmup is done, with true if all
+     * the routes are fetched and all the connections are ready.
+     */
+    public CompletableFuture<Boolean> readyFuture() {
+        return this.readyFuture;
+    }
+
+    private CompletableFuture<Boolean> warmup(final WarmupOptions opts) {
+        if (opts == null) {
+            return Utils.completedCf(true);
+        }
+
+        final CompletableFuture<Boolean> f = Warmup.run(this.routerClient, opts);
+        if (opts.getWaitTimeoutMs() > 0) {
+            try {
+                f.get(opts.getWaitTimeoutMs(), TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (final ExecutionException | TimeoutException e) {
+                LOG.warn("The warmup is not done in {} ms, go on in background.", opts.getWaitTimeoutMs());
+            }
+        }
+        return f;
+    }
+
     public boolean hasManagement() {
         return this.management != null;
     }
@@ -237,7 +345,9 @@ public class CeresDBClient implements Write, Query, Lifecycle<CeresDBOptions>, D
                 .print("userAsyncWritePool=") //
                 .println(this.opts.getAsyncWritePool()) //
                 .print("userAsyncReadPool=") //
-                .println(this.opts.getAsyncReadPool());
+                .println(this.opts.getAsyncReadPool()) //
+                .print("ready=") //
+                .println(isReady());
 
         if (this.routerClient != null) {
             out.println("");
@@ -360,21 +470,25 @@ public class CeresDBClient implements Write, Query, Lifecycle<CeresDBOptions>, D
         @Override
         public void onReady(final Endpoint ep) {
             CONN_COUNTER.inc();
-            MetricsUtil.counter("connection_counter", ep).inc();
+            MetricsUtil.counter(connName("connection_counter", ep)).inc();
         }
 
         @Override
         public void onFailure(final Endpoint ep) {
             CONN_COUNTER.dec();
             CONN_FAILURES.mark();
-            MetricsUtil.counter("connection_counter", ep).dec();
-            MetricsUtil.meter("connection_failures", ep).mark();
+            MetricsUtil.counter(connName("connection_counter", ep)).dec();
+            MetricsUtil.meter(connName("connection_failures", ep)).mark();
         }
 
         @Override
         public void onShutdown(final Endpoint ep) {
             CONN_COUNTER.dec();
-            MetricsUtil.counter("connection_counter", ep).dec();
+            MetricsUtil.counter(connName("connection_counter", ep)).dec();
+        }
+
+        private static MetricName connName(final String name, final Endpoint ep) {
+            return MetricName.of(name, "address", String.valueOf(ep));
         }
     }
 
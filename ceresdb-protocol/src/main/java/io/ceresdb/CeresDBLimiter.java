@@ -71,6 +71,14 @@ public abstract class CeresDBLimiter<In, Out> {
         return Utils.completedCf(rejected(in, acquirePermits, maxPermits));
     }
 
+    /**
+     * Returns the available permits, {@link Integer#MAX_VALUE} if there is
+     * no limit.
+     */
+    public int availablePermits() {
+        return this.limiter == null || this.policy == null ? Integer.MAX_VALUE : this.limiter.availablePermits();
+    }
+
     public abstract int calculatePermits(final In in);
 
     public abstract Out rejected(final In in, final RejectedState state);
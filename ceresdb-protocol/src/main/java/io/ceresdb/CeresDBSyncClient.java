@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.ceresdb.common.util.Requires;
+import io.ceresdb.errors.SyncCallException;
+import io.ceresdb.models.Err;
+import io.ceresdb.models.QueryOk;
+import io.ceresdb.models.QueryRequest;
+import io.ceresdb.models.Record;
+import io.ceresdb.models.Result;
+import io.ceresdb.models.Rows;
+import io.ceresdb.models.WriteOk;
+import io.ceresdb.rpc.Context;
+
+/**
+ * A synchronous facade of {@link CeresDBClient}, each call blocks the
+ * calling thread until the result arrives or the timeout elapses.
+ *
+ * <p>It's designed for the callers running on virtual threads: the calls
+ * wait on {@link CompletableFuture#get(long, TimeUnit)} and the
+ * `java.util.concurrent` primitives only, which unmount a virtual thread
+ * instead of pinning its carrier, and the context of a call is passed to
+ * the transport by the call options rather than thread locals.  It's also
+ * fine on platform threads, and needs nothing newer than Java 8.
+ *
+ * <pre>{@code
+ * final CeresDBSyncClient sync = new CeresDBSyncClient(client, 5000);
+ * try (ExecutorService es = Executors.newVirtualThreadPerTaskExecutor()) {
+ *     es.submit(() -> sync.write(rows));
+ * }
+ * }</pre>
+ *
+ * @author jiachun.fjc
+ */
+public class CeresDBSyncClient {
+
+    private final CeresDBClient client;
+    private final long          timeoutMs;
+
+    /**
+     * @param client    the underlying client, should be initialized
+     * @param timeoutMs the max time to wait for a call
+     */
+    public CeresDBSyncClient(CeresDBClient client, long timeoutMs) {
+        Requires.requireNonNull(client, "Null.client");
+        Requires.requireTrue(timeoutMs > 0, "Invalid timeoutMs: %d", timeoutMs);
+        this.client = client;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @see #write(Collection, Context)
+     */
+    public Result<WriteOk, Err> write(final Rows data) {
+        return write(Collections.singletonList(data), Context.newDefault());
+    }
+
+    /**
+     * @see #write(Collection, Context)
+     */
+    public Result<WriteOk, Err> write(final Rows data, final Context ctx) {
+        return write(Collections.singletonList(data), ctx);
+    }
+
+    /**
+     * @see #write(Collection, Context)
+     */
+    public Result<WriteOk, Err> write(final Collection<Rows> data) {
+        return write(data, Context.newDefault());
+    }
+
+    /**
+     * Write the data to the database and wait for the result.
+     *
+     * @param data rows
+     * @param ctx  the invoke context
+     * @return write result
+     * @see CeresDBClient#write(Collection, Context)
+     */
+    public Result<WriteOk, Err> write(final Collection<Rows> data, final Context ctx) {
+        return await(this.client.write(data, ctx));
+    }
+
+    /**
+     * @see #streamWrite(String, Iterable, Context)
+     */
+    public WriteOk streamWrite(final String metric, final Iterable<Rows> data) {
+        return streamWrite(metric, data, Context.newDefault());
+    }
+
+    /**
+     * Stream-write the data of a metric and wait for the result, the calling
+     * thread is blocked while the stream is not ready for more data.
+     *
+     * @param metric the metric to write
+     * @param data   rows of the metric
+     * @param ctx    the invoke context
+     * @return write result
+     * @see CeresDBClient#streamWrite(String, Context)
+     */
+    public WriteOk streamWrite(final String metric, final Iterable<Rows> data, final Context ctx) {
+        final StreamWriteBuf<Rows, WriteOk> buf = this.client.streamWrite(metric, ctx);
+        for (final Rows rs : data) {
+            if (!buf.isReady()) {
+                await(buf.whenReady());
+            }
+            buf.write(rs);
+        }
+        return await(buf.flush().completed());
+    }
+
+    /**
+     * @see #query(QueryRequest, Context)
+     */
+    public Result<QueryOk, Err> query(final QueryRequest req) {
+        return query(req, Context.newDefault());
+    }
+
+    /**
+     * Query from the database and wait for the result.
+     *
+     * @param req the query request
+     * @param ctx the invoke context
+     * @return query result
+     * @see CeresDBClient#query(QueryRequest, Context)
+     */
+    public Result<QueryOk, Err> query(final QueryRequest req, final Context ctx) {
+        return await(this.client.query(req, ctx));
+    }
+
+    /**
+     * @see #streamQuery(QueryRequest, Context)
+     */
+    public Iterator<Record> streamQuery(final QueryRequest req) {
+        return streamQuery(req, Context.newDefault());
+    }
+
+    /**
+     * Stream-query from the database, `hasNext` of the returned iterator
+     * waits at most the timeout for the next batch.
+     *
+     * @param req the query request
+     * @param ctx the invoke context
+     * @return the records
+     * @see CeresDBClient#blockingStreamQuery(QueryRequest, long, TimeUnit, Context)
+     */
+    public Iterator<Record> streamQuery(final QueryRequest req, final Context ctx) {
+        return this.client.blockingStreamQuery(req, this.timeoutMs, TimeUnit.MILLISECONDS, ctx);
+    }
+
+    public CeresDBClient getClient() {
+        return client;
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    private <T> T await(final CompletableFuture<T> f) {
+        try {
+            return f.get(this.timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SyncCallException("Interrupted", e);
+        } catch (final TimeoutException e) {
+            throw new SyncCallException("Timeout after " + this.timeoutMs + " millis", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SyncCallException(cause);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CeresDBSyncClient{" + //
+               "client=" + client + //
+               ", timeoutMs=" + timeoutMs + //
+               '}';
+    }
+}
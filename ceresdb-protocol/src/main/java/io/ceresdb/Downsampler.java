@@ -0,0 +1,558 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.ceresdb.common.util.Clock;
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.common.util.Requires;
+import io.ceresdb.common.util.SharedScheduledPool;
+import io.ceresdb.models.Err;
+import io.ceresdb.models.FieldValue;
+import io.ceresdb.models.Result;
+import io.ceresdb.models.Rows;
+import io.ceresdb.models.Series;
+import io.ceresdb.models.Value;
+import io.ceresdb.models.WriteOk;
+import io.ceresdb.options.DownsampleOptions;
+import io.ceresdb.rpc.Context;
+import io.ceresdb.rpc.Observer;
+import com.codahale.metrics.Meter;
+
+/**
+ * A client side pre-aggregation stage, it rolls up the rows of each series
+ * (metric + tags) to one row per time window, and writes the windows after
+ * they are closed.
+ *
+ * <p>A window `[start, start + windowMs)` is closed after `start + windowMs
+ * + allowedLatenessMs`, or when all windows are flushed early because of
+ * too many series in the open windows, the later rows of it are dropped.
+ * The rolled up row of a window has the timestamp `start`, and each of its
+ * fields is aggregated by the {@link Aggregator} of the field name:
+ * <ul>
+ *     <li>the aggregated value keeps the type of the field</li>
+ *     <li>{@link Aggregator#Sum} may overflow the narrow integer types</li>
+ *     <li>the non-numeric fields are always aggregated by {@link Aggregator#Last}</li>
+ * </ul>
+ *
+ * <p>The aggregation states are kept in primitive arrays, a window maps the
+ * (series id, field id) pair as a long key to a slot by open addressing, so
+ * adding a value allocates nothing except for new series, fields and slots.
+ * A series id is released once no open window refers to it, and reused by
+ * the next new series.
+ *
+ * @author jiachun.fjc
+ */
+public class Downsampler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Downsampler.class);
+
+    private static final SharedScheduledPool FLUSHER_POOL = Utils.getSharedScheduledPool("downsample_flusher", 1);
+
+    public enum Aggregator {
+        Sum, Min, Max, Last, Count
+    }
+
+    static final class InnerMetrics {
+        static final Meter INPUT_ROWS   = MetricsUtil.meter("downsample_input_rows");
+        static final Meter OUTPUT_ROWS  = MetricsUtil.meter("downsample_output_rows");
+        static final Meter LATE_DROPPED = MetricsUtil.meter("downsample_late_dropped");
+
+        static Meter inputRows() {
+            return INPUT_ROWS;
+        }
+
+        static Meter outputRows() {
+            return OUTPUT_ROWS;
+        }
+
+        static Meter lateDropped() {
+            return LATE_DROPPED;
+        }
+    }
+
+    private final Write                          write;
+    private final DownsampleOptions              opts;
+    private final Context                        ctx;
+    private final Observer<Result<WriteOk, Err>> results;
+    private final ScheduledExecutorService       scheduler;
+    private final ScheduledFuture<?>             flushFuture;
+
+    // guarded by this
+    private final Map<Series, Integer> seriesIds = new HashMap<>();
+    private final List<Series>         series    = new ArrayList<>();
+    // series id -> the number of the open windows that refer to it
+    private int[] seriesRefs = new int[16];
+    // the released series ids to reuse
+    private int[] freeSeriesIds = new int[16];
+    private int   freeSeriesCount;
+    // field name -> field id by type ordinal
+    private final Map<String, int[]>    fieldIds   = new HashMap<>();
+    private final List<String>          fieldNames = new ArrayList<>();
+    private final List<Value.Type>      fieldTypes = new ArrayList<>();
+    private final List<Aggregator>      fieldAggs  = new ArrayList<>();
+    private final TreeMap<Long, Window> windows    = new TreeMap<>();
+    // the windows start before it have been flushed
+    private long    watermark = Long.MIN_VALUE;
+    private boolean closed;
+
+    Downsampler(Write write, DownsampleOptions opts, Context ctx, Observer<Result<WriteOk, Err>> results) {
+        Requires.requireTrue(opts.getWindowMs() > 0, "windowMs must > 0");
+        Requires.requireTrue(opts.getAllowedLatenessMs() >= 0, "allowedLatenessMs must >= 0");
+        Requires.requireTrue(opts.getMaxSeries() > 0, "maxSeries must > 0");
+        this.write = Requires.requireNonNull(write, "Null.write");
+        this.opts = opts.copy();
+        this.ctx = ctx == null ? Context.newDefault() : ctx;
+        this.results = results;
+        this.scheduler = FLUSHER_POOL.getObject();
+        final long period = Math.min(this.opts.getWindowMs(), 1000);
+        this.flushFuture = this.scheduler.scheduleWithFixedDelay(this::tick, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void add(final Collection<Rows> data) {
+        data.forEach(this::add);
+    }
+
+    public void add(final Rows rs) {
+        final boolean tooManySeries;
+        synchronized (this) {
+            if (this.closed) {
+                throw new IllegalStateException("Downsampler closed");
+            }
+            final long windowMs = this.opts.getWindowMs();
+            // the series is registered by its first row kept
+            int sid = -1;
+            for (final Map.Entry<Long, Map<String, FieldValue>> row : rs.getFields().entrySet()) {
+                final long ts = row.getKey();
+                final long start = ts - Math.floorMod(ts, windowMs);
+                if (start < this.watermark) {
+                    InnerMetrics.lateDropped().mark();
+                    continue;
+                }
+                InnerMetrics.inputRows().mark();
+                if (sid < 0) {
+                    sid = seriesId(rs.getSeries());
+                }
+                final Window w = this.windows.computeIfAbsent(start, Window::new);
+                if (!w.series.get(sid)) {
+                    w.series.set(sid);
+                    this.seriesRefs[sid]++;
+                }
+                for (final Map.Entry<String, FieldValue> f : row.getValue().entrySet()) {
+                    final FieldValue v = f.getValue();
+                    if (Value.isNull(v)) {
+                        continue;
+                    }
+                    final int fid = fieldId(f.getKey(), v.getType());
+                    w.add(((long) sid << 32) | fid, ts, v, this.fieldAggs.get(fid));
+                }
+            }
+            tooManySeries = this.seriesIds.size() > this.opts.getMaxSeries();
+        }
+        if (tooManySeries) {
+            // writes all the windows early to bound the memory, see flush(true)
+            flush(true);
+        }
+    }
+
+    /**
+     * Writes the closed windows, or all the windows if `all` is true.  The
+     * windows written by `all` are closed at once, their later rows are
+     * dropped as the late ones.
+     *
+     * @param all whether to write the windows that are not closed
+     * @return the write result
+     */
+    public CompletableFuture<Result<WriteOk, Err>> flush(final boolean all) {
+        final List<Rows> out;
+        synchronized (this) {
+            final long cutoff;
+            if (all) {
+                cutoff = Long.MAX_VALUE;
+                if (!this.windows.isEmpty()) {
+                    // the windows are written before they are closed, their later
+                    // rows are dropped, or they would overwrite the written rows
+                    // with the partial aggregates of the same series and timestamp
+                    this.watermark = Math.max(this.watermark, this.windows.lastKey() + this.opts.getWindowMs());
+                }
+            } else {
+                final long end = Clock.defaultClock().getTick() - this.opts.getAllowedLatenessMs();
+                cutoff = end - Math.floorMod(end, this.opts.getWindowMs());
+                this.watermark = Math.max(this.watermark, cutoff);
+            }
+            out = collect(cutoff);
+        }
+        if (out.isEmpty()) {
+            return Utils.completedCf(WriteOk.emptyOk().mapToResult());
+        }
+        InnerMetrics.outputRows().mark(out.size());
+        return this.write.write(out, this.ctx.copy()).whenComplete((r, e) -> {
+            if (e != null) {
+                LOG.error("Failed to write the downsampled rows.", e);
+            } else if (!r.isOk()) {
+                LOG.warn("Failed to write the downsampled rows, err={}.", r.getErr());
+            }
+            if (this.results != null) {
+                synchronized (this.results) {
+                    this.results.onNext(
+                            e == null ? r : Err.writeErr(Result.SHOULD_RETRY, e.getMessage(), null, out).mapToResult());
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes all the windows and stops the periodic flushing.
+     *
+     * @return the write result
+     */
+    public CompletableFuture<Result<WriteOk, Err>> close() {
+        synchronized (this) {
+            if (this.closed) {
+                return Utils.completedCf(WriteOk.emptyOk().mapToResult());
+            }
+            this.closed = true;
+        }
+        this.flushFuture.cancel(false);
+        FLUSHER_POOL.returnObject(this.scheduler);
+        return flush(true);
+    }
+
+    public synchronized int getWindowCount() {
+        return this.windows.size();
+    }
+
+    public synchronized int getSeriesCount() {
+        return this.seriesIds.size();
+    }
+
+    private void tick() {
+        try {
+            flush(false);
+        } catch (final Throwable t) {
+            LOG.error("Failed to flush the downsampled rows.", t);
+        }
+    }
+
+    // guarded by this
+    private List<Rows> collect(final long cutoff) {
+        final List<Rows> out = new ArrayList<>();
+        final Iterator<Window> it = this.windows.headMap(cutoff, false).values().iterator();
+        while (it.hasNext()) {
+            emit(it.next(), out);
+            it.remove();
+        }
+        return out;
+    }
+
+    // guarded by this
+    private void emit(final Window w, final List<Rows> out) {
+        final Map<Integer, Rows.Builder> builders = new LinkedHashMap<>();
+        for (int s = 0; s < w.size; s++) {
+            final long key = w.keys[s];
+            final int sid = (int) (key >>> 32);
+            final int fid = (int) key;
+            builders.computeIfAbsent(sid, id -> Rows.newBuilder(this.series.get(id))) //
+                    .field(w.start, this.fieldNames.get(fid),
+                            w.value(s, this.fieldTypes.get(fid), this.fieldAggs.get(fid)));
+        }
+        builders.values().forEach(b -> out.add(b.build()));
+        for (int sid = w.series.nextSetBit(0); sid >= 0; sid = w.series.nextSetBit(sid + 1)) {
+            releaseSeries(sid);
+        }
+    }
+
+    // guarded by this
+    private int seriesId(final Series ser) {
+        final Integer id = this.seriesIds.get(ser);
+        if (id != null) {
+            return id;
+        }
+        final int newId;
+        if (this.freeSeriesCount > 0) {
+            newId = this.freeSeriesIds[--this.freeSeriesCount];
+            this.series.set(newId, ser);
+        } else {
+            newId = this.series.size();
+            this.series.add(ser);
+            if (newId == this.seriesRefs.length) {
+                this.seriesRefs = Arrays.copyOf(this.seriesRefs, newId << 1);
+            }
+        }
+        this.seriesIds.put(ser, newId);
+        return newId;
+    }
+
+    // guarded by this
+    private void releaseSeries(final int sid) {
+        if (--this.seriesRefs[sid] > 0) {
+            return;
+        }
+        this.seriesIds.remove(this.series.set(sid, null));
+        if (this.freeSeriesCount == this.freeSeriesIds.length) {
+            this.freeSeriesIds = Arrays.copyOf(this.freeSeriesIds, this.freeSeriesCount << 1);
+        }
+        this.freeSeriesIds[this.freeSeriesCount++] = sid;
+    }
+
+    // guarded by this
+    private int fieldId(final String name, final Value.Type type) {
+        final int[] ids = this.fieldIds.computeIfAbsent(name, n -> newIds());
+        int id = ids[type.ordinal()];
+        if (id < 0) {
+            id = this.fieldNames.size();
+            ids[type.ordinal()] = id;
+            this.fieldNames.add(name);
+            this.fieldTypes.add(type);
+            final Aggregator agg = this.opts.getFieldAggregators().getOrDefault(name, this.opts.getDefaultAggregator());
+            this.fieldAggs.add(isNumeric(type) ? agg : Aggregator.Last);
+        }
+        return id;
+    }
+
+    private static int[] newIds() {
+        final int[] ids = new int[Value.Type.values().length];
+        Arrays.fill(ids, -1);
+        return ids;
+    }
+
+    static boolean isFloat(final Value.Type type) {
+        return type == Value.Type.Float64 || type == Value.Type.Float32;
+    }
+
+    static boolean isNumeric(final Value.Type type) {
+        switch (type) {
+            case String:
+            case Boolean:
+            case Varbinary:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * The aggregation states of a window, struct of arrays indexed by slot.
+     */
+    static final class Window {
+        final long start;
+        // the ids of the series in it
+        final BitSet series = new BitSet();
+
+        // open addressing table: key -> slot + 1
+        private long[] tableKeys  = new long[16];
+        private int[]  tableSlots = new int[16];
+
+        int      size;
+        long[]   keys   = new long[8];
+        long[]   acc    = new long[8]; // long or double bits
+        long[]   counts = new long[8];
+        long[]   lastTs = new long[8];
+        Object[] lastObjs;             // the non-numeric values
+
+        Window(long start) {
+            this.start = start;
+        }
+
+        void add(final long key, final long ts, final FieldValue v, final Aggregator agg) {
+            final int s = slotOf(key);
+            final boolean first = this.counts[s]++ == 0;
+            final Value.Type type = v.getType();
+            if (!isNumeric(type)) {
+                if (first || ts >= this.lastTs[s]) {
+                    this.lastTs[s] = ts;
+                    if (this.lastObjs == null) {
+                        this.lastObjs = new Object[this.keys.length];
+                    }
+                    this.lastObjs[s] = v;
+                }
+                return;
+            }
+            final long x = bitsOf(v);
+            switch (agg) {
+                case Last:
+                    if (first || ts >= this.lastTs[s]) {
+                        this.lastTs[s] = ts;
+                        this.acc[s] = x;
+                    }
+                    break;
+                case Sum:
+                    this.acc[s] = first ? x :
+                            isFloat(type) ? //
+                                    Double.doubleToRawLongBits(
+                                            Double.longBitsToDouble(this.acc[s]) + Double.longBitsToDouble(x)) : //
+                                    this.acc[s] + x;
+                    break;
+                case Min:
+                    if (first || compare(type, x, this.acc[s]) < 0) {
+                        this.acc[s] = x;
+                    }
+                    break;
+                case Max:
+                    if (first || compare(type, x, this.acc[s]) > 0) {
+                        this.acc[s] = x;
+                    }
+                    break;
+                case Count:
+                default:
+                    break;
+            }
+        }
+
+        FieldValue value(final int s, final Value.Type type, final Aggregator agg) {
+            if (!isNumeric(type)) {
+                return (FieldValue) this.lastObjs[s];
+            }
+            if (agg == Aggregator.Count) {
+                return toFieldValue(type, isFloat(type) ? Double.doubleToRawLongBits(this.counts[s]) : this.counts[s]);
+            }
+            return toFieldValue(type, this.acc[s]);
+        }
+
+        private int slotOf(final long key) {
+            if ((this.size + 1) * 4 > this.tableKeys.length * 3) {
+                rehash(this.tableKeys.length << 1);
+            }
+            final int mask = this.tableKeys.length - 1;
+            for (int i = mix(key) & mask;; i = (i + 1) & mask) {
+                final int s = this.tableSlots[i];
+                if (s == 0) {
+                    final int newSlot = newSlot(key);
+                    this.tableKeys[i] = key;
+                    this.tableSlots[i] = newSlot + 1;
+                    return newSlot;
+                }
+                if (this.tableKeys[i] == key) {
+                    return s - 1;
+                }
+            }
+        }
+
+        private int newSlot(final long key) {
+            if (this.size == this.keys.length) {
+                final int n = this.size << 1;
+                this.keys = Arrays.copyOf(this.keys, n);
+                this.acc = Arrays.copyOf(this.acc, n);
+                this.counts = Arrays.copyOf(this.counts, n);
+                this.lastTs = Arrays.copyOf(this.lastTs, n);
+                if (this.lastObjs != null) {
+                    this.lastObjs = Arrays.copyOf(this.lastObjs, n);
+                }
+            }
+            this.keys[this.size] = key;
+            return this.size++;
+        }
+
+        private void rehash(final int capacity) {
+            final long[] newKeys = new long[capacity];
+            final int[] newSlots = new int[capacity];
+            final int mask = capacity - 1;
+            for (int s = 0; s < this.size; s++) {
+                int i = mix(this.keys[s]) & mask;
+                while (newSlots[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                newKeys[i] = this.keys[s];
+                newSlots[i] = s + 1;
+            }
+            this.tableKeys = newKeys;
+            this.tableSlots = newSlots;
+        }
+
+        private static int mix(final long key) {
+            final long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    static long bitsOf(final FieldValue v) {
+        switch (v.getType()) {
+            case Float64:
+                return Double.doubleToRawLongBits((Double) v.getValue());
+            case Float32:
+                return Double.doubleToRawLongBits((Float) v.getValue());
+            case UInt32:
+                return Integer.toUnsignedLong((Integer) v.getValue());
+            default:
+                return ((Number) v.getValue()).longValue();
+        }
+    }
+
+    static int compare(final Value.Type type, final long x, final long y) {
+        if (isFloat(type)) {
+            return Double.compare(Double.longBitsToDouble(x), Double.longBitsToDouble(y));
+        }
+        return type == Value.Type.UInt64 ? Long.compareUnsigned(x, y) : Long.compare(x, y);
+    }
+
+    static FieldValue toFieldValue(final Value.Type type, final long bits) {
+        switch (type) {
+            case Float64:
+                return FieldValue.withFloat64(Double.longBitsToDouble(bits));
+            case Float32:
+                return FieldValue.withFloat32((float) Double.longBitsToDouble(bits));
+            case Int64:
+                return FieldValue.withInt64(bits);
+            case Int32:
+                return FieldValue.withInt32((int) bits);
+            case Int16:
+                return FieldValue.withInt16((int) bits);
+            case Int8:
+                return FieldValue.withInt8((int) bits);
+            case UInt64:
+                return FieldValue.withUInt64(bits);
+            case UInt32:
+                return FieldValue.withUInt32((int) bits);
+            case UInt16:
+                return FieldValue.withUInt16((int) bits);
+            case UInt8:
+                return FieldValue.withUInt8((int) bits);
+            case Timestamp:
+                return FieldValue.withTimestamp(bits);
+            default:
+                throw new IllegalArgumentException("Not a numeric type: " + type);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Downsampler{" + //
+               "opts=" + opts + //
+               ", windows=" + windows.size() + //
+               ", series=" + series.size() + //
+               ", watermark=" + watermark + //
+               ", closed=" + closed + //
+               '}';
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import io.ceresdb.proto.Storage;
+import io.ceresdb.rpc.FlowControlledObserver;
+import io.ceresdb.rpc.Observer;
+
+/**
+ * Sends the write requests to a stream only while it is ready, the others
+ * are kept in a pending queue and drained once the stream becomes ready
+ * again.
+ *
+ * <p>The requests are sent out of the lock, and by one thread at a time,
+ * so they are in order even if the stream becomes ready on another thread.
+ *
+ * @author jiachun.fjc
+ */
+final class FlowControlledSender {
+
+    private final Observer<Storage.WriteRequest> reqObserver;
+    private final Runnable                       onDrained;
+
+    // guarded by this
+    private final Queue<Storage.WriteRequest> pending = new ArrayDeque<>();
+    private long                              pendingBytes;
+    private boolean                           completing;
+    private boolean                           draining;
+    private boolean                           redrain;
+
+    /**
+     * @param reqObserver the request stream
+     * @param onDrained   called out of the lock after each drain
+     */
+    FlowControlledSender(Observer<Storage.WriteRequest> reqObserver, Runnable onDrained) {
+        this.reqObserver = reqObserver;
+        this.onDrained = onDrained;
+        if (reqObserver instanceof FlowControlledObserver) {
+            ((FlowControlledObserver<Storage.WriteRequest>) reqObserver).setOnReadyHandler(this::drain);
+        }
+    }
+
+    void send(final Storage.WriteRequest req) {
+        synchronized (this) {
+            this.pending.add(req);
+            this.pendingBytes += req.getSerializedSize();
+        }
+        drain();
+    }
+
+    /**
+     * Completes the stream after all the pending requests are sent.
+     */
+    void complete() {
+        synchronized (this) {
+            this.completing = true;
+        }
+        drain();
+    }
+
+    /**
+     * Drops the pending requests, the stream is terminated.
+     */
+    synchronized void clear() {
+        this.pending.clear();
+        this.pendingBytes = 0;
+        this.completing = false;
+    }
+
+    synchronized long pendingBytes() {
+        return this.pendingBytes;
+    }
+
+    void drain() {
+        synchronized (this) {
+            if (this.draining) {
+                // the draining thread will check again
+                this.redrain = true;
+                return;
+            }
+            this.draining = true;
+        }
+
+        boolean complete = false;
+        for (;;) {
+            final Storage.WriteRequest req;
+            synchronized (this) {
+                if (!this.pending.isEmpty() && isStreamReady()) {
+                    req = this.pending.poll();
+                    this.pendingBytes -= req.getSerializedSize();
+                } else if (this.redrain) {
+                    this.redrain = false;
+                    continue;
+                } else {
+                    this.draining = false;
+                    if (this.completing && this.pending.isEmpty()) {
+                        this.completing = false;
+                        complete = true;
+                    }
+                    break;
+                }
+            }
+            this.reqObserver.onNext(req);
+        }
+
+        if (complete) {
+            this.reqObserver.onCompleted();
+        }
+        this.onDrained.run();
+    }
+
+    private boolean isStreamReady() {
+        return !(this.reqObserver instanceof FlowControlledObserver)
+               || ((FlowControlledObserver<Storage.WriteRequest>) this.reqObserver).isReady();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.common.util.Spines;
+import io.ceresdb.errors.StreamException;
+import io.ceresdb.models.Rows;
+import io.ceresdb.models.WriteOk;
+import io.ceresdb.proto.Storage;
+import io.ceresdb.rpc.Observer;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+
+/**
+ * A stream-write buffer of a single metric that honors the flow control of
+ * the underlying stream.
+ *
+ * <p>The flushed requests are sent only when the stream is ready, otherwise
+ * they are kept in a pending queue, the queue is drained when the stream
+ * becomes ready again. If {@code maxOutboundBytes > 0}, the pending bytes
+ * are bounded by it, a flush exceeding it blocks the caller until the
+ * pending queue drained below it, or the stream terminated. The non-blocking
+ * callers should wait for {@link #whenReady()} before the next flush, and
+ * the flush must not be called on the thread which drives the stream.
+ *
+ * <p>If the thresholds are set, the buffer is flushed automatically once
+ * the buffered rows or the estimated bytes reach them.
+ *
+ * @author jiachun.fjc
+ */
+class FlowControlledStreamWriteBuf implements StreamWriteBuf<Rows, WriteOk> {
+
+    private static final Meter     AUTO_FLUSHED  = MetricsUtil.meter("stream_write_auto_flushed");
+    private static final Meter     NOT_READY     = MetricsUtil.meter("stream_write_not_ready");
+    private static final Histogram PENDING_BYTES = MetricsUtil.histogram("stream_write_pending_bytes");
+
+    // the initial guess of the encoded bytes per row, before any data encoded
+    private static final int INITIAL_BYTES_PER_ROW = 64;
+
+    private final String                     metric;
+    private final WriteClient                writeClient;
+    private final FlowControlledSender       sender;
+    private final CompletableFuture<WriteOk> respFuture;
+    private final long                       maxOutboundBytes;
+    private final int                        flushRows;
+    private final long                       flushBytes;
+
+    private CompletableFuture<Void> readyFuture;
+
+    private Collection<Rows> buf         = Spines.newBuf();
+    private int              bufRows;
+    private volatile double  bytesPerRow = INITIAL_BYTES_PER_ROW;
+
+    FlowControlledStreamWriteBuf(String metric, //
+                                 WriteClient writeClient, //
+                                 Observer<Storage.WriteRequest> reqObserver, //
+                                 CompletableFuture<WriteOk> respFuture, //
+                                 long maxOutboundBytes, //
+                                 int flushRows, //
+                                 long flushBytes) {
+        this.metric = metric;
+        this.writeClient = writeClient;
+        this.respFuture = respFuture;
+        this.maxOutboundBytes = maxOutboundBytes;
+        this.flushRows = flushRows;
+        this.flushBytes = flushBytes;
+        this.sender = new FlowControlledSender(reqObserver, this::drained);
+        // wake up the waiters if the stream terminated
+        respFuture.whenComplete((r, e) -> terminated(e));
+    }
+
+    @Override
+    public StreamWriteBuf<Rows, WriteOk> write(final Rows val) {
+        checkMetric(val);
+        this.buf.add(val);
+        this.bufRows += val.getRowCount();
+        return autoFlush();
+    }
+
+    @Override
+    public StreamWriteBuf<Rows, WriteOk> write(final Collection<Rows> c) {
+        c.forEach(this::checkMetric);
+        this.buf.addAll(c);
+        this.bufRows += c.stream().mapToInt(Rows::getRowCount).sum();
+        return autoFlush();
+    }
+
+    @Override
+    public StreamWriteBuf<Rows, WriteOk> flush() {
+        if (this.respFuture.isCompletedExceptionally()) {
+            this.respFuture.getNow(null); // throw the exception now
+        }
+        if (this.buf.isEmpty()) {
+            return this;
+        }
+        if (!isReady()) {
+            NOT_READY.mark();
+            awaitReady();
+        }
+
+        final Storage.WriteRequest req = this.writeClient.toWriteRequestObj(this.buf.stream());
+        this.bytesPerRow = (double) req.getSerializedSize() / Math.max(1, this.bufRows);
+        this.buf = Spines.newBuf();
+        this.bufRows = 0;
+
+        this.sender.send(req);
+        return this;
+    }
+
+    @Override
+    public CompletableFuture<WriteOk> completed() {
+        flush();
+        this.sender.complete();
+        return this.respFuture;
+    }
+
+    @Override
+    public boolean isReady() {
+        return this.maxOutboundBytes <= 0 || this.sender.pendingBytes() < this.maxOutboundBytes;
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> whenReady() {
+        if (this.respFuture.isDone() || isReady()) {
+            return Utils.completedCf(null);
+        }
+        if (this.readyFuture == null) {
+            this.readyFuture = new CompletableFuture<>();
+        }
+        return this.readyFuture;
+    }
+
+    private StreamWriteBuf<Rows, WriteOk> autoFlush() {
+        final boolean rowsReached = this.flushRows > 0 && this.bufRows >= this.flushRows;
+        final boolean bytesReached = this.flushBytes > 0 && this.bufRows * this.bytesPerRow >= this.flushBytes;
+        if (rowsReached || bytesReached) {
+            AUTO_FLUSHED.mark();
+            return flush();
+        }
+        return this;
+    }
+
+    private void awaitReady() {
+        try {
+            whenReady().get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StreamException(
+                    String.format("Interrupted while waiting for the stream of %s to be ready.", this.metric), e);
+        } catch (final ExecutionException e) {
+            throw new StreamException(
+                    String.format("Stream write of %s terminated while waiting to be ready.", this.metric),
+                    e.getCause());
+        }
+    }
+
+    private void drained() {
+        PENDING_BYTES.update(this.sender.pendingBytes());
+        final CompletableFuture<Void> toNotify;
+        synchronized (this) {
+            if (this.readyFuture == null || !isReady()) {
+                return;
+            }
+            toNotify = this.readyFuture;
+            this.readyFuture = null;
+        }
+        // complete it out of the lock, the callbacks may write again
+        toNotify.complete(null);
+    }
+
+    private void terminated(final Throwable err) {
+        final CompletableFuture<Void> toNotify;
+        this.sender.clear();
+        synchronized (this) {
+            toNotify = this.readyFuture;
+            this.readyFuture = null;
+        }
+        if (toNotify == null) {
+            return;
+        }
+        if (err != null) {
+            toNotify.completeExceptionally(err);
+        } else {
+            toNotify.complete(null);
+        }
+    }
+
+    private void checkMetric(final Rows rs) {
+        if (!this.metric.equals(rs.getMetric())) {
+            throw new StreamException(
+                    String.format("Invalid metric %s, only can write %s.", rs.getMetric(), this.metric));
+        }
+    }
+}
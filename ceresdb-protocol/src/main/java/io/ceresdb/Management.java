@@ -16,6 +16,11 @@
  */
 package io.ceresdb;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
 import io.ceresdb.common.Display;
 import io.ceresdb.common.Lifecycle;
 import io.ceresdb.models.SqlResult;
@@ -78,4 +83,69 @@ public interface Management extends Lifecycle<ManagementOptions>, Display {
      * @return the sql result.
      */
     SqlResult executeSql(final boolean autoRouting, final Context ctx, final String fmtSql, final Object... args);
+
+    /**
+     * @see #executeSqlAsync(boolean, Context, String, Object...)
+     */
+    default CompletableFuture<SqlResult> executeSqlAsync(final String fmtSql, final Object... args) {
+        return executeSqlAsync(true, Context.newDefault(), fmtSql, args);
+    }
+
+    /**
+     * Execute a SQL asynchronously, the caller thread will not be blocked.
+     *
+     * @param autoRouting automatic routing to server
+     * @param ctx         the invoke context, will automatically be placed in HTTP Headers
+     * @param fmtSql      format sql string
+     * @param args        arguments referenced by the format specifiers in the format
+     *                    sql string
+     * @return the future of sql result
+     * @see #executeSql(boolean, Context, String, Object...)
+     */
+    CompletableFuture<SqlResult> executeSqlAsync(final boolean autoRouting, final Context ctx, final String fmtSql,
+                                                 final Object... args);
+
+    /**
+     * Execute a SQL asynchronously, the result rows are decoded one by one and
+     * handed to the row handler as they arrive, without being collected, so the
+     * rows of the returned {@link SqlResult} are always null.
+     *
+     * @param autoRouting automatic routing to server
+     * @param ctx         the invoke context, will automatically be placed in HTTP Headers
+     * @param rowHandler  receives the result rows one by one
+     * @param fmtSql      format sql string
+     * @param args        arguments referenced by the format specifiers in the format
+     *                    sql string
+     * @return the future of sql result
+     */
+    CompletableFuture<SqlResult> streamExecuteSql(final boolean autoRouting, final Context ctx,
+                                                  final Consumer<Map<String, Object>> rowHandler, final String fmtSql,
+                                                  final Object... args);
+
+    /**
+     * @see #executeBatchSql(boolean, Context, List)
+     */
+    default CompletableFuture<List<SqlResult>> executeBatchSql(final List<String> sqls) {
+        return executeBatchSql(true, Context.newDefault(), sqls);
+    }
+
+    /**
+     * Execute a batch of SQLs asynchronously, such as the DDLs executed at
+     * startup.
+     *
+     * The SQLs are routed together and grouped by the target server, the
+     * SQLs on the same table are executed in order, the others are executed
+     * concurrently with a bounded parallelism
+     * ({@link ManagementOptions#getMaxBatchParallelism()}). A SQL whose
+     * tables are unknown (not parsed) is executed after all the SQLs before
+     * it and before all the SQLs after it.
+     *
+     * @param autoRouting automatic routing to server
+     * @param ctx         the invoke context, will automatically be placed in HTTP Headers
+     * @param sqls        the sqls to execute
+     * @return the future of the sql results in the same order as the sqls, it
+     *         fails if any of the sqls fails
+     */
+    CompletableFuture<List<SqlResult>> executeBatchSql(final boolean autoRouting, final Context ctx,
+                                                       final List<String> sqls);
 }
@@ -16,7 +16,9 @@
  */
 package io.ceresdb;
 
+import io.ceresdb.common.OptKeys;
 import io.ceresdb.common.util.ServiceLoader;
+import io.ceresdb.common.util.SystemPropertyUtil;
 
 /**
  *
@@ -24,11 +26,20 @@ import io.ceresdb.common.util.ServiceLoader;
  */
 public class MetricParserFactoryProvider {
 
-    private static final MetricParserFactory METRIC_PARSER_FACTORY = ServiceLoader //
+    private static final MetricParserFactory METRIC_PARSER_FACTORY = withCache(ServiceLoader //
             .load(MetricParserFactory.class) //
-            .firstOrDefault(() -> MetricParserFactory.DEFAULT);
+            .firstOrDefault(() -> MetricParserFactory.DEFAULT));
 
     public static MetricParserFactory getMetricParserFactory() {
         return METRIC_PARSER_FACTORY;
     }
+
+    private static MetricParserFactory withCache(final MetricParserFactory factory) {
+        final int cacheSize = SystemPropertyUtil.getInt(OptKeys.METRIC_PARSER_CACHE_SIZE, 10_000);
+        // nothing to cache for the default one, and it is used as a flag of `no parser`
+        if (factory == MetricParserFactory.DEFAULT || cacheSize <= 0) {
+            return factory;
+        }
+        return new CachingMetricParserFactory(factory, cacheSize);
+    }
 }
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.ceresdb.common.util.Requires;
+import io.ceresdb.common.util.StringBuilderHelper;
+import io.ceresdb.common.util.Strings;
+import io.ceresdb.models.QueryRequest;
+
+/**
+ * A query prepared from a QL template with {@code ?} placeholders.
+ *
+ * <p>The template is split and its metrics are extracted only once, each
+ * execution just substitutes the bound parameters, the metrics are shared
+ * by all the bound requests, so they will not be parsed again and their
+ * routes are resolved from the route cache directly.
+ *
+ * <pre>
+ * final PreparedQuery pq = client.prepare("SELECT * FROM t WHERE host = ? AND ts > ?");
+ * client.query(pq.bind("host_1", startTs));
+ * </pre>
+ *
+ * @author jiachun.fjc
+ */
+public final class PreparedQuery {
+
+    private final String       ql;
+    private final String[]     segments;
+    private final List<String> metrics;
+
+    /**
+     * Prepares a query, the metrics are extracted from the QL template by
+     * the {@link MetricParser} if not specified.
+     *
+     * @param ql      the QL template with {@code ?} placeholders
+     * @param metrics the metrics queried, optional
+     * @return the prepared query
+     */
+    public static PreparedQuery prepare(final String ql, final String... metrics) {
+        Requires.requireTrue(Strings.isNotBlank(ql), "Empty.ql");
+        final List<String> ms;
+        if (metrics != null && metrics.length > 0) {
+            ms = Arrays.asList(metrics.clone());
+        } else {
+            ms = MetricParserFactoryProvider.getMetricParserFactory().getParser(ql).metricNames();
+        }
+        return new PreparedQuery(ql, QlScanner.splitByPlaceholders(ql), ms);
+    }
+
+    private PreparedQuery(String ql, List<String> segments, List<String> metrics) {
+        this.ql = ql;
+        this.segments = segments.toArray(new String[0]);
+        this.metrics = Collections.unmodifiableList(metrics);
+    }
+
+    public String getQl() {
+        return ql;
+    }
+
+    public List<String> getMetrics() {
+        return metrics;
+    }
+
+    public int getParameterCount() {
+        return this.segments.length - 1;
+    }
+
+    /**
+     * Binds the parameters to the placeholders in order. The supported
+     * parameter types are {@code null}, {@link Number}, {@link Boolean}
+     * and {@link CharSequence}, the strings are quoted, and the quotes and
+     * backslashes in them are escaped by doubling.
+     *
+     * @param params the parameters
+     * @return the query request to execute
+     */
+    public QueryRequest bind(final Object... params) {
+        final int count = params == null ? 0 : params.length;
+        Requires.requireTrue(count == getParameterCount(), "Expected %d parameters, but got %d.", getParameterCount(),
+                count);
+
+        final String boundQl;
+        if (count == 0) {
+            boundQl = this.ql;
+        } else {
+            final StringBuilder buf = StringBuilderHelper.get();
+            buf.append(this.segments[0]);
+            for (int i = 0; i < count; i++) {
+                appendLiteral(buf, params[i]);
+                buf.append(this.segments[i + 1]);
+            }
+            boundQl = buf.toString();
+        }
+
+        final QueryRequest req = QueryRequest.newBuilder() //
+                .ql(boundQl) //
+                .build();
+        req.setMetrics(this.metrics);
+        return req;
+    }
+
+    private static void appendLiteral(final StringBuilder buf, final Object param) {
+        if (param == null) {
+            buf.append("NULL");
+        } else if (param instanceof Double || param instanceof Float) {
+            final double d = ((Number) param).doubleValue();
+            Requires.requireTrue(!Double.isNaN(d) && !Double.isInfinite(d), "Invalid parameter: %s", param);
+            buf.append(param);
+        } else if (param instanceof Number || param instanceof Boolean) {
+            buf.append(param);
+        } else if (param instanceof CharSequence) {
+            final CharSequence cs = (CharSequence) param;
+            buf.append('\'');
+            for (int i = 0; i < cs.length(); i++) {
+                final char c = cs.charAt(i);
+                // both the quote and the backslash are escapes to the scanner and the server
+                if (c == '\'' || c == '\\') {
+                    buf.append(c);
+                }
+                buf.append(c);
+            }
+            buf.append('\'');
+        } else {
+            throw new IllegalArgumentException("Unsupported parameter type: " + param.getClass());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PreparedQuery{" + //
+               "ql='" + ql + '\'' + //
+               ", metrics=" + metrics + //
+               '}';
+    }
+}
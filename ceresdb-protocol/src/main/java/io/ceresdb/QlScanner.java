@@ -0,0 +1,338 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.ceresdb.common.util.StringBuilderHelper;
+
+/**
+ * A lexer-only scanner of QL, it is much cheaper than a full parser but
+ * only knows the simplest shapes of statement.
+ *
+ * @author jiachun.fjc
+ */
+final class QlScanner {
+
+    private static final int EXPECT_SELECT = 0;
+    private static final int EXPECT_FROM   = 1;
+    private static final int EXPECT_TABLE  = 2;
+    private static final int AFTER_TABLE   = 3;
+    private static final int CONDITIONS    = 4;
+    private static final int TERMINATED    = 5;
+
+    /**
+     * Returns the only metric of a simple select statement like
+     * {@code SELECT ... FROM t [WHERE | GROUP BY | ORDER BY | LIMIT ...]},
+     * or null if the QL is not in such a shape, the caller should fall back
+     * to a full parser in that case.
+     *
+     * @param ql the QL
+     * @return the metric name or null
+     */
+    static String simpleSelectMetric(final String ql) {
+        final int len = ql.length();
+        int state = EXPECT_SELECT;
+        int depth = 0;
+        String metric = null;
+        int i = 0;
+        while (i < len) {
+            final char c = ql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+
+            if (isIdentStart(c)) {
+                int j = i + 1;
+                while (j < len && isIdentPart(ql.charAt(j))) {
+                    j++;
+                }
+                switch (state) {
+                    case EXPECT_SELECT:
+                        if (!isWord(ql, i, j, "SELECT")) {
+                            return null;
+                        }
+                        state = EXPECT_FROM;
+                        break;
+                    case EXPECT_FROM:
+                    case CONDITIONS:
+                        if (isComplexWord(ql, i, j)) {
+                            return null;
+                        }
+                        if (state == EXPECT_FROM && depth == 0 && isWord(ql, i, j, "FROM")) {
+                            state = EXPECT_TABLE;
+                        }
+                        break;
+                    case EXPECT_TABLE:
+                        metric = ql.substring(i, j);
+                        state = AFTER_TABLE;
+                        break;
+                    case AFTER_TABLE:
+                        // an alias or a join is not simple
+                        if (!isConditionWord(ql, i, j)) {
+                            return null;
+                        }
+                        state = CONDITIONS;
+                        break;
+                    default:
+                        return null;
+                }
+                i = j;
+                continue;
+            }
+
+            switch (c) {
+                case '\'':
+                    i = skipQuoted(ql, i, '\'');
+                    if (i < 0) {
+                        return null;
+                    }
+                    break;
+                case '"':
+                case '`':
+                    // a quoted table name needs to be unescaped by the parser
+                    if (state == EXPECT_TABLE) {
+                        return null;
+                    }
+                    i = skipQuoted(ql, i, c);
+                    if (i < 0) {
+                        return null;
+                    }
+                    break;
+                case '-':
+                case '/':
+                    // comments
+                    if (i + 1 < len && ql.charAt(i + 1) == (c == '-' ? '-' : '*')) {
+                        return null;
+                    }
+                    i++;
+                    break;
+                case '(':
+                    depth++;
+                    i++;
+                    break;
+                case ')':
+                    depth--;
+                    i++;
+                    break;
+                default:
+                    i++;
+            }
+
+            if (state == EXPECT_SELECT || state == EXPECT_TABLE || state == TERMINATED) {
+                return null;
+            }
+            if (state == AFTER_TABLE) {
+                // `t;` is fine, but `db.t` or `t1, t2` is not simple
+                if (c != ';') {
+                    return null;
+                }
+                state = TERMINATED;
+            }
+        }
+
+        return state == AFTER_TABLE || state == CONDITIONS || state == TERMINATED ? metric : null;
+    }
+
+    /**
+     * Normalizes the QL by replacing the string and number literals with
+     * {@code ?} and collapsing the whitespaces, so the QLs that differ only
+     * in the literals have the same normalized form.
+     *
+     * @param ql the QL
+     * @return the normalized QL
+     */
+    static String normalize(final String ql) {
+        final StringBuilder buf = StringBuilderHelper.get();
+        final int len = ql.length();
+        int i = 0;
+        while (i < len) {
+            final char c = ql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                while (i < len && Character.isWhitespace(ql.charAt(i))) {
+                    i++;
+                }
+                buf.append(' ');
+            } else if (Character.isJavaIdentifierStart(c)) {
+                // the whole identifier, including the non-ASCII ones and the digits in them
+                final int start = i;
+                while (i < len && Character.isJavaIdentifierPart(ql.charAt(i))) {
+                    i++;
+                }
+                buf.append(ql, start, i);
+            } else if (c >= '0' && c <= '9') {
+                // a number, it always starts at a token boundary since the identifiers are consumed above
+                while (i < len && (Character.isLetterOrDigit(ql.charAt(i)) || ql.charAt(i) == '.')) {
+                    i++;
+                }
+                buf.append('?');
+            } else if (c == '\'') {
+                final int end = skipQuoted(ql, i, c);
+                i = end < 0 ? len : end;
+                buf.append('?');
+            } else if (c == '"' || c == '`') {
+                // maybe a quoted identifier, keep it
+                final int start = i;
+                final int end = skipQuoted(ql, i, c);
+                i = end < 0 ? len : end;
+                buf.append(ql, start, i);
+            } else {
+                buf.append(c);
+                i++;
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Compacts the QL by collapsing the whitespaces out of the quotes and
+     * comments, dropping the line comments and the trailing semicolons, the
+     * literals are kept, so only the QLs of the same meaning have the same
+     * compacted form.
+     *
+     * @param ql the QL
+     * @return the compacted QL
+     */
+    static String compact(final String ql) {
+        final StringBuilder buf = StringBuilderHelper.get();
+        final int len = ql.length();
+        boolean space = false;
+        int i = 0;
+        while (i < len) {
+            final char c = ql.charAt(i);
+            final int start = i;
+            if (Character.isWhitespace(c)) {
+                space = true;
+                i++;
+                continue;
+            }
+            if (c == '-' && i + 1 < len && ql.charAt(i + 1) == '-') {
+                // a line comment is just a separator
+                final int end = ql.indexOf('\n', i);
+                i = end < 0 ? len : end;
+                space = true;
+                continue;
+            }
+            if (c == '\'' || c == '"' || c == '`') {
+                final int end = skipQuoted(ql, i, c);
+                i = end < 0 ? len : end;
+            } else if (c == '/' && i + 1 < len && ql.charAt(i + 1) == '*') {
+                final int end = ql.indexOf("*/", i + 2);
+                i = end < 0 ? len : end + 2;
+            } else {
+                i++;
+            }
+            if (space && buf.length() > 0) {
+                buf.append(' ');
+            }
+            space = false;
+            buf.append(ql, start, i);
+        }
+        int end = buf.length();
+        while (end > 0 && (buf.charAt(end - 1) == ';' || buf.charAt(end - 1) == ' ')) {
+            end--;
+        }
+        return buf.substring(0, end);
+    }
+
+    /**
+     * Splits the QL by the {@code ?} placeholders out of the quotes and
+     * comments, returns {@code n + 1} segments for {@code n} placeholders.
+     *
+     * @param ql the QL
+     * @return the segments between the placeholders
+     */
+    static List<String> splitByPlaceholders(final String ql) {
+        final List<String> segments = new ArrayList<>();
+        final int len = ql.length();
+        int start = 0;
+        int i = 0;
+        while (i < len) {
+            final char c = ql.charAt(i);
+            if (c == '\'' || c == '"' || c == '`') {
+                final int end = skipQuoted(ql, i, c);
+                i = end < 0 ? len : end;
+            } else if (c == '-' && i + 1 < len && ql.charAt(i + 1) == '-') {
+                final int end = ql.indexOf('\n', i);
+                i = end < 0 ? len : end;
+            } else if (c == '/' && i + 1 < len && ql.charAt(i + 1) == '*') {
+                final int end = ql.indexOf("*/", i + 2);
+                i = end < 0 ? len : end + 2;
+            } else if (c == '?') {
+                segments.add(ql.substring(start, i));
+                start = ++i;
+            } else {
+                i++;
+            }
+        }
+        segments.add(ql.substring(start));
+        return segments;
+    }
+
+    private static int skipQuoted(final String ql, final int start, final char quote) {
+        final int len = ql.length();
+        int i = start + 1;
+        while (i < len) {
+            if (ql.charAt(i) == quote) {
+                // a doubled quote is an escaped one
+                if (i + 1 < len && ql.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            if (ql.charAt(i) == '\\') {
+                i++;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    private static boolean isComplexWord(final String ql, final int start, final int end) {
+        return isWord(ql, start, end, "SELECT") //
+               || isWord(ql, start, end, "JOIN") //
+               || isWord(ql, start, end, "UNION") //
+               || isWord(ql, start, end, "INTERSECT") //
+               || isWord(ql, start, end, "EXCEPT") //
+               || isWord(ql, start, end, "WITH");
+    }
+
+    private static boolean isConditionWord(final String ql, final int start, final int end) {
+        return isWord(ql, start, end, "WHERE") //
+               || isWord(ql, start, end, "GROUP") //
+               || isWord(ql, start, end, "ORDER") //
+               || isWord(ql, start, end, "LIMIT");
+    }
+
+    private static boolean isWord(final String ql, final int start, final int end, final String word) {
+        return end - start == word.length() && ql.regionMatches(true, start, word, 0, word.length());
+    }
+
+    private static boolean isIdentStart(final char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
+    }
+
+    private static boolean isIdentPart(final char c) {
+        return isIdentStart(c) || c >= '0' && c <= '9';
+    }
+
+    private QlScanner() {
+    }
+}
@@ -51,6 +51,18 @@ public interface Query {
      */
     CompletableFuture<Result<QueryOk, Err>> query(final QueryRequest req, final Context ctx);
 
+    /**
+     * Prepares a query from the given QL template with {@code ?} placeholders,
+     * the returned handle can be bound with parameters and executed many times.
+     *
+     * @param ql      the QL template
+     * @param metrics the metrics queried, extracted from the QL if absent
+     * @return the prepared query
+     */
+    default PreparedQuery prepare(final String ql, final String... metrics) {
+        return PreparedQuery.prepare(ql, metrics);
+    }
+
     /**
      * @see #streamQuery(QueryRequest, Context, Observer)
      */
@@ -67,6 +79,28 @@ public interface Query {
      */
     void streamQuery(final QueryRequest req, final Context ctx, final Observer<QueryOk> observer);
 
+    /**
+     * @see #collectStreamQuery(QueryRequest, Context)
+     */
+    default CompletableFuture<Result<QueryOk, Err>> collectStreamQuery(final QueryRequest req) {
+        return collectStreamQuery(req, Context.newDefault());
+    }
+
+    /**
+     * Executes a stream-query-call and collects all the streamed results into
+     * one, the rows of a large result may be spilled to disk as they arrive,
+     * see {@link io.ceresdb.options.QueryOptions#setSpillThresholdBytes(long)}.
+     *
+     * @param req the query request
+     * @param ctx the invoke context
+     * @return query result
+     */
+    default CompletableFuture<Result<QueryOk, Err>> collectStreamQuery(final QueryRequest req, final Context ctx) {
+        final QueryResultSpill.Collector collector = new QueryResultSpill.Collector(0, null, 0);
+        streamQuery(req, ctx, collector);
+        return collector.future();
+    }
+
     /**
      * @see #blockingStreamQuery(QueryRequest, long, TimeUnit, Context)
      */
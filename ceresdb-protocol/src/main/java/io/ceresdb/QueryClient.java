@@ -16,6 +16,11 @@
  */
 package io.ceresdb;
 
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
@@ -40,7 +45,10 @@ import io.ceresdb.models.Result;
 import io.ceresdb.options.QueryOptions;
 import io.ceresdb.proto.Storage;
 import io.ceresdb.rpc.Context;
+import io.ceresdb.rpc.HealthTracker;
 import io.ceresdb.rpc.Observer;
+import io.ceresdb.rpc.trace.Span;
+import io.ceresdb.rpc.trace.Tracer;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 
@@ -53,10 +61,12 @@ public class QueryClient implements Query, Lifecycle<QueryOptions>, Display {
 
     private static final Logger LOG = LoggerFactory.getLogger(QueryClient.class);
 
-    private QueryOptions opts;
-    private RouterClient routerClient;
-    private Executor     asyncPool;
-    private QueryLimiter queryLimiter;
+    private QueryOptions     opts;
+    private RouterClient     routerClient;
+    private Executor         asyncPool;
+    private QueryLimiter     queryLimiter;
+    private File             spillDir;
+    private QueryResultCache cache;
 
     static final class InnerMetrics {
         static final Histogram READ_ROW_COUNT = MetricsUtil.histogram("read_row_count");
@@ -89,6 +99,17 @@ public class QueryClient implements Query, Lifecycle<QueryOptions>, Display {
         this.asyncPool = pool != null ? pool : new SerializingExecutor("query_client");
         this.queryLimiter = new DefaultQueryLimiter(this.opts.getMaxInFlightQueryRequests(),
                 this.opts.getLimitedPolicy());
+        if (this.opts.getCacheTtlMs() > 0) {
+            this.cache = new QueryResultCache(this.opts.getCacheTtlMs(), this.opts.getCacheMaxBytes());
+        }
+        if (this.opts.getSpillThresholdBytes() > 0) {
+            final String dir = this.opts.getSpillDir();
+            this.spillDir = new File(dir != null ? dir : System.getProperty("java.io.tmpdir"));
+            if (!this.spillDir.isDirectory() && !this.spillDir.mkdirs()) {
+                LOG.error("Fail to create the query spill dir: {}.", this.spillDir);
+                return false;
+            }
+        }
         return true;
     }
 
@@ -100,23 +121,68 @@ public class QueryClient implements Query, Lifecycle<QueryOptions>, Display {
     @Override
     public CompletableFuture<Result<QueryOk, Err>> query(final QueryRequest req, final Context ctx) {
         Requires.requireNonNull(req, "Null.request");
-        final long startCall = Clock.defaultClock().getTick();
+        if (this.cache == null) {
+            return traceQuery(req, ctx);
+        }
         setMetricsIfAbsent(req);
-        return this.queryLimiter.acquireAndDo(req, () -> query0(req, ctx, 0).whenCompleteAsync((r, e) -> {
-            InnerMetrics.readQps().mark();
+        return this.cache.query(req, () -> traceQuery(req, ctx));
+    }
+
+    /**
+     * Invalidates the cached results of the metrics.
+     *
+     * @param metrics the metrics written
+     */
+    public void invalidateCache(final Collection<String> metrics) {
+        if (this.cache != null) {
+            this.cache.invalidate(metrics);
+        }
+    }
+
+    /**
+     * Whether the cached results should be invalidated by the writes.
+     */
+    public boolean isCacheInvalidateOnWrite() {
+        return this.cache != null && this.opts.isCacheInvalidateOnWrite();
+    }
+
+    private CompletableFuture<Result<QueryOk, Err>> traceQuery(final QueryRequest req, final Context ctx) {
+        final Span span = Tracer.startSpan("query");
+        if (span == null) {
+            return limitAndQuery(req, ctx);
+        }
+        // the caller may reuse the context, do not attach the span to it
+        return limitAndQuery(req, ctx.copy().withSpan(span)).whenComplete((r, e) -> {
             if (r != null) {
-                final int rowCount = r.mapOr(0, QueryOk::getRowCount);
-                InnerMetrics.readRowCount().update(rowCount);
-                if (Utils.isRwLogging()) {
-                    LOG.info("Read from {}, duration={} ms, rowCount={}.", Utils.DB_NAME,
-                            Clock.defaultClock().duration(startCall), rowCount);
-                }
-                if (r.isOk()) {
-                    return;
-                }
+                span.setRows(r.mapOr(0, QueryOk::getRowCount));
             }
-            InnerMetrics.readFailed().mark();
-        }, this.asyncPool));
+            span.end(e != null ? e.toString() : r.isOk() ? Span.OK : r.getErr().toString());
+        });
+    }
+
+    private CompletableFuture<Result<QueryOk, Err>> limitAndQuery(final QueryRequest req, final Context ctx) {
+        final long startCall = Clock.defaultClock().getTick();
+        final Span span = ctx.getSpan();
+        setMetricsIfAbsent(req);
+        final long limitStart = Span.tick(span);
+        return this.queryLimiter.acquireAndDo(req, () -> {
+            Span.record(span, Span.Phase.Limit, limitStart);
+            return query0(req, ctx, 0).whenCompleteAsync((r, e) -> {
+                InnerMetrics.readQps().mark();
+                if (r != null) {
+                    final int rowCount = r.mapOr(0, QueryOk::getRowCount);
+                    InnerMetrics.readRowCount().update(rowCount);
+                    if (Utils.isRwLogging()) {
+                        LOG.info("Read from {}, duration={} ms, rowCount={}.", Utils.DB_NAME,
+                                Clock.defaultClock().duration(startCall), rowCount);
+                    }
+                    if (r.isOk()) {
+                        return;
+                    }
+                }
+                InnerMetrics.readFailed().mark();
+            }, this.asyncPool);
+        });
     }
 
     @Override
@@ -126,21 +192,31 @@ public class QueryClient implements Query, Lifecycle<QueryOptions>, Display {
 
         setMetricsIfAbsent(req);
 
-        this.routerClient.routeFor(req.getMetrics())
-                .thenApply(routes -> routes.values().stream().findAny().orElse(this.routerClient.clusterRoute()))
+        this.routerClient.routeFor(req.getMetrics()).thenApply(this::selectRoute) //
                 .thenAccept(route -> streamQueryFrom(route.getEndpoint(), req, ctx, observer));
     }
 
+    @Override
+    public CompletableFuture<Result<QueryOk, Err>> collectStreamQuery(final QueryRequest req, final Context ctx) {
+        final QueryResultSpill.Collector collector = new QueryResultSpill.Collector(this.opts.getSpillThresholdBytes(),
+                this.spillDir, this.opts.getSpillSegmentSize());
+        streamQuery(req, ctx, collector);
+        return collector.future();
+    }
+
     private CompletableFuture<Result<QueryOk, Err>> query0(final QueryRequest req, //
                                                            final Context ctx, //
                                                            final int retries) {
         InnerMetrics.readByRetries(retries).mark();
 
-        return this.routerClient.routeFor(req.getMetrics()) //
-                .thenApplyAsync(routes -> routes.values() //
-                        .stream() //
-                        .findAny() // everyone is OK
-                        .orElse(this.routerClient.clusterRoute()), this.asyncPool) //
+        final Span span = ctx.getSpan();
+        if (span != null) {
+            span.retried(retries);
+            span.setMetrics(req.getMetrics().size());
+        }
+
+        return Span.traced(span, Span.Phase.Route, this.routerClient.routeFor(req.getMetrics())) //
+                .thenApplyAsync(this::selectRoute, this.asyncPool) //
                 .thenComposeAsync(route -> queryFrom(route.getEndpoint(), req, ctx, retries), this.asyncPool)
                 .thenComposeAsync(r -> {
                     if (r.isOk()) {
@@ -193,6 +269,26 @@ public class QueryClient implements Query, Lifecycle<QueryOptions>, Display {
         }
     }
 
+    /**
+     * Every route can serve the query, select the one with the healthiest
+     * endpoint, or the cluster route if there is no route.
+     */
+    private Route selectRoute(final Map<String, Route> routes) {
+        if (routes.isEmpty()) {
+            return this.routerClient.clusterRoute();
+        }
+        final Iterator<Route> it = routes.values().iterator();
+        final Route first = it.next();
+        final HealthTracker tracker = this.routerClient.healthTracker();
+        if (!it.hasNext() || tracker == null) {
+            return first;
+        }
+        final Map<Endpoint, Route> byEndpoint = new HashMap<>();
+        routes.values().forEach(r -> byEndpoint.putIfAbsent(r.getEndpoint(), r));
+        final Endpoint selected = byEndpoint.size() == 1 ? null : tracker.select(byEndpoint.keySet());
+        return selected == null ? first : byEndpoint.get(selected);
+    }
+
     private CompletableFuture<Result<QueryOk, Err>> queryFrom(final Endpoint endpoint, //
                                                               final QueryRequest req, //
                                                               final Context ctx, //
@@ -202,16 +298,36 @@ public class QueryClient implements Query, Lifecycle<QueryOptions>, Display {
                 .setQl(req.getQl()) //
                 .build();
 
+        final Span span = ctx.getSpan();
+        if (span != null) {
+            span.rpc(endpoint, request.getSerializedSize());
+        }
+
         final CompletableFuture<Storage.QueryResponse> qrf = this.routerClient.invoke(endpoint, //
                 request, //
-                ctx.with("retries", retries) // server can use this in metrics
+                ctx.with(Context.KEY_RETRIES, retries) // server can use this in metrics
         );
 
-        return qrf.thenApplyAsync(
-                resp -> Utils.toResult(resp, req.getQl(), endpoint, req.getMetrics(), new ErrHandler(req)),
+        return Span.tracedApplyAsync(span, Span.Phase.Rpc, qrf, Span.Phase.Decode,
+                resp -> spillIfLarge(Utils.toResult(resp, req.getQl(), endpoint, req.getMetrics(), new ErrHandler(req)),
+                        resp.getSerializedSize()),
                 this.asyncPool);
     }
 
+    /**
+     * The response has arrived as a whole, spills its rows so it can be
+     * released before the rows are consumed.
+     */
+    private Result<QueryOk, Err> spillIfLarge(final Result<QueryOk, Err> r, final long bytes) {
+        final long threshold = this.opts.getSpillThresholdBytes();
+        if (threshold <= 0 || bytes <= threshold || !r.isOk()) {
+            return r;
+        }
+        return QueryResultSpill
+                .spillIfLarge(r.getOk(), bytes, threshold, this.spillDir, this.opts.getSpillSegmentSize())
+                .mapToResult();
+    }
+
     private void streamQueryFrom(final Endpoint endpoint, //
                                  final QueryRequest req, //
                                  final Context ctx, //
@@ -256,6 +372,8 @@ public class QueryClient implements Query, Lifecycle<QueryOptions>, Display {
         out.println("--- QueryClient ---") //
                 .print("maxRetries=") //
                 .println(this.opts.getMaxRetries()) //
+                .print("cache=") //
+                .println(this.cache) //
                 .print("asyncPool=") //
                 .println(this.asyncPool);
     }
@@ -0,0 +1,322 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.common.util.Requires;
+import io.ceresdb.models.Err;
+import io.ceresdb.models.QueryOk;
+import io.ceresdb.models.QueryRequest;
+import io.ceresdb.models.Result;
+import io.ceresdb.models.Schema;
+import com.codahale.metrics.Meter;
+
+/**
+ * A client side cache of the query results, for the dashboards that refresh
+ * the same QL frequently.
+ *
+ * <p>The results are keyed by the compacted QL and the metrics, and hold
+ * the raw row bytes and the schema, so each hit gets a new {@link QueryOk}.
+ * The entries expire after the TTL, and the least recently used ones are
+ * evicted when the total bytes exceed the limit, a result larger than 1/8
+ * of the limit is not cached.
+ *
+ * <p>The concurrent misses of the same key share one query, unless any of
+ * its metrics has been written since that query started.  The row bytes
+ * are shared by the hits too, so they must not be modified.
+ *
+ * <p>Each metric has a version that is increased by {@link #invalidate},
+ * an entry records the versions of its metrics when its query started, and
+ * it's treated as a miss if any of them has changed since, so a write
+ * during a query also invalidates its result.
+ *
+ * @author jiachun.fjc
+ */
+final class QueryResultCache {
+
+    private static final Meter HIT     = MetricsUtil.meter("query_cache_hit");
+    private static final Meter MISS    = MetricsUtil.meter("query_cache_miss");
+    private static final Meter SHARED  = MetricsUtil.meter("query_cache_shared");
+    private static final Meter EVICTED = MetricsUtil.meter("query_cache_evicted");
+
+    // the result is too large to be cached or shared
+    private static final Object UNCACHEABLE = new Object();
+
+    private static final int ROW_OVERHEAD = 16;
+
+    private final long ttlNanos;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    // guarded by itself
+    private final LinkedHashMap<String, Entry>                     entries  = new LinkedHashMap<>(16, 0.75f, true);
+    private long                                                   bytes;
+    private final ConcurrentMap<String, CompletableFuture<Object>> inflight = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong>                versions = new ConcurrentHashMap<>();
+
+    QueryResultCache(long ttlMs, long maxBytes) {
+        Requires.requireTrue(ttlMs > 0, "ttlMs must > 0");
+        Requires.requireTrue(maxBytes > 0, "maxBytes must > 0");
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.max(1, maxBytes >> 3);
+    }
+
+    /**
+     * Returns the cached result, or the result of the query shared with the
+     * concurrent ones.
+     *
+     * @param req    the query request, with the metrics
+     * @param loader executes the query
+     * @return the query result
+     */
+    CompletableFuture<Result<QueryOk, Err>> query(final QueryRequest req,
+                                                  final Supplier<CompletableFuture<Result<QueryOk, Err>>> loader) {
+        final String key = key(req);
+        final Entry hit = get(key);
+        if (hit != null) {
+            HIT.mark();
+            return Utils.completedCf(hit.toOk().mapToResult());
+        }
+
+        // the in-flight query is shared only if no metric has been written
+        // since it started, otherwise a new one is needed to see the write
+        final List<String> metrics = new ArrayList<>(req.getMetrics());
+        metrics.sort(null);
+        final long[] vers = versions(metrics);
+        final String inflightKey = key + '\0' + Arrays.toString(vers);
+        final CompletableFuture<Object> f = new CompletableFuture<>();
+        final CompletableFuture<Object> existing = this.inflight.putIfAbsent(inflightKey, f);
+        if (existing != null) {
+            SHARED.mark();
+            return existing.thenCompose(v -> {
+                if (v == UNCACHEABLE) {
+                    return loader.get();
+                }
+                return Utils.completedCf(toResult(v));
+            });
+        }
+
+        MISS.mark();
+        final CompletableFuture<Result<QueryOk, Err>> ret = new CompletableFuture<>();
+        loader.get().whenComplete((r, e) -> {
+            this.inflight.remove(inflightKey, f);
+            if (e != null) {
+                f.completeExceptionally(e);
+                ret.completeExceptionally(e);
+                return;
+            }
+            if (!r.isOk()) {
+                f.complete(r);
+                ret.complete(r);
+                return;
+            }
+            try {
+                final Object v = load(key, metrics, vers, r.getOk(), ret);
+                f.complete(v);
+                if (v != UNCACHEABLE) {
+                    ret.complete(toResult(v));
+                }
+            } catch (final Throwable t) {
+                f.completeExceptionally(t);
+                ret.completeExceptionally(t);
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Invalidates the cached results of the metrics.
+     *
+     * @param metrics the metrics written
+     */
+    void invalidate(final Collection<String> metrics) {
+        for (final String m : metrics) {
+            final AtomicLong v = this.versions.get(m);
+            if (v != null) {
+                v.incrementAndGet();
+            }
+        }
+    }
+
+    int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    long bytes() {
+        synchronized (this.entries) {
+            return this.bytes;
+        }
+    }
+
+    void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+            this.bytes = 0;
+        }
+    }
+
+    private Entry get(final String key) {
+        synchronized (this.entries) {
+            final Entry e = this.entries.get(key);
+            if (e == null) {
+                return null;
+            }
+            if (e.isExpired() || !isCurrent(e.metrics, e.versions)) {
+                remove(key);
+                return null;
+            }
+            return e;
+        }
+    }
+
+    /**
+     * Reads the rows of the result, caches them if they are not too large,
+     * otherwise completes `ret` with the rows read and the rest ones.
+     */
+    private Object load(final String key, final List<String> metrics, final long[] vers, final QueryOk ok,
+                        final CompletableFuture<Result<QueryOk, Err>> ret) {
+        final Iterator<byte[]> it = ok.getRowCount() == 0 ? null : ok.stream().iterator();
+        final List<byte[]> rows = new ArrayList<>(Math.max(0, ok.getRowCount()));
+        long size = key.length() * 2L;
+        while (it != null && it.hasNext()) {
+            final byte[] row = it.next();
+            rows.add(row);
+            size += row.length + ROW_OVERHEAD;
+            if (size > this.maxEntryBytes) {
+                final Stream<byte[]> rest = StreamSupport
+                        .stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED), false);
+                ret.complete(
+                        QueryOk.ok(ok.getQl(), ok.getSchema(), ok.getRowCount(), Stream.concat(rows.stream(), rest))
+                                .mapToResult());
+                return UNCACHEABLE;
+            }
+        }
+
+        final Entry e = new Entry(ok.getQl(), ok.getSchema(), rows.toArray(new byte[0][]), size, metrics, vers,
+                System.nanoTime() + this.ttlNanos);
+        synchronized (this.entries) {
+            final Entry old = this.entries.put(key, e);
+            if (old != null) {
+                this.bytes -= old.size;
+            }
+            this.bytes += size;
+            final Iterator<Entry> eldest = this.entries.values().iterator();
+            while (this.bytes > this.maxBytes && eldest.hasNext()) {
+                this.bytes -= eldest.next().size;
+                eldest.remove();
+                EVICTED.mark();
+            }
+        }
+        return e;
+    }
+
+    // guarded by entries
+    private void remove(final String key) {
+        final Entry e = this.entries.remove(key);
+        if (e != null) {
+            this.bytes -= e.size;
+        }
+    }
+
+    private long[] versions(final List<String> metrics) {
+        final long[] vers = new long[metrics.size()];
+        for (int i = 0; i < vers.length; i++) {
+            vers[i] = this.versions.computeIfAbsent(metrics.get(i), m -> new AtomicLong()).get();
+        }
+        return vers;
+    }
+
+    private boolean isCurrent(final List<String> metrics, final long[] vers) {
+        for (int i = 0; i < vers.length; i++) {
+            final AtomicLong v = this.versions.get(metrics.get(i));
+            if (v == null || v.get() != vers[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Result<QueryOk, Err> toResult(final Object v) {
+        return v instanceof Entry ? ((Entry) v).toOk().mapToResult() : (Result<QueryOk, Err>) v;
+    }
+
+    static String key(final QueryRequest req) {
+        final List<String> metrics = new ArrayList<>(req.getMetrics());
+        metrics.sort(null);
+        return QlScanner.compact(req.getQl()) + '\0' + String.join(",", metrics);
+    }
+
+    private static final class Entry {
+        final String       ql;
+        final Schema       schema;
+        final byte[][]     rows;
+        final long         size;
+        final List<String> metrics;
+        final long[]       versions;
+        final long         expireAt;
+
+        Entry(String ql, Schema schema, byte[][] rows, long size, List<String> metrics, long[] versions,
+              long expireAt) {
+            this.ql = ql;
+            this.schema = schema;
+            this.rows = rows;
+            this.size = size;
+            this.metrics = metrics;
+            this.versions = versions;
+            this.expireAt = expireAt;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - this.expireAt > 0;
+        }
+
+        QueryOk toOk() {
+            return QueryOk.ok(this.ql, this.schema, this.rows.length, Arrays.stream(this.rows));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "QueryResultCache{" + //
+               "ttlNanos=" + ttlNanos + //
+               ", maxBytes=" + maxBytes + //
+               ", entries=" + size() + //
+               ", bytes=" + bytes() + //
+               ", inflight=" + inflight.size() + //
+               '}';
+    }
+}
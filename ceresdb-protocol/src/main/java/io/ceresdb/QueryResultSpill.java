@@ -0,0 +1,278 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.common.util.Requires;
+import io.ceresdb.models.Err;
+import io.ceresdb.models.QueryOk;
+import io.ceresdb.models.Result;
+import io.ceresdb.models.Schema;
+import io.ceresdb.rpc.Observer;
+import com.codahale.metrics.Meter;
+
+/**
+ * The rows of a large query result spilled to memory-mapped temp files, so
+ * they are not held in heap.
+ *
+ * <p>The rows are appended to the mapped segments as they arrive, and read
+ * lazily by {@link #rows()}.  A segment file is deleted once it's mapped, its
+ * disk space is released after the mapping is garbage collected, so nothing
+ * is left even if the process crashes.
+ *
+ * @author jiachun.fjc
+ */
+final class QueryResultSpill {
+
+    private static final Meter SPILLED_ROWS  = MetricsUtil.meter("query_spilled_rows");
+    private static final Meter SPILLED_BYTES = MetricsUtil.meter("query_spilled_bytes");
+
+    private static final int HEADER_SIZE = 4; // length
+
+    private final File          dir;
+    private final int           segmentSize;
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment             tail;
+    private int                 rowCount;
+
+    QueryResultSpill(File dir, int segmentSize) {
+        Requires.requireTrue(segmentSize > HEADER_SIZE, "segmentSize too small");
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    void append(final byte[] row) {
+        final int size = HEADER_SIZE + row.length;
+        if (this.tail == null || this.tail.remaining() < size) {
+            // a row larger than the segment size takes a segment of its own
+            this.tail = Segment.create(this.dir, Math.max(this.segmentSize, size));
+            this.segments.add(this.tail);
+        }
+        this.tail.append(row);
+        this.rowCount++;
+        SPILLED_ROWS.mark();
+        SPILLED_BYTES.mark(size);
+    }
+
+    int getRowCount() {
+        return rowCount;
+    }
+
+    int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * Reads the spilled rows lazily, each call returns a new stream from the
+     * first row.
+     */
+    Stream<byte[]> rows() {
+        final List<Segment> segs = new ArrayList<>(this.segments);
+        final Iterator<byte[]> it = new Iterator<byte[]>() {
+
+            private int        segIndex = -1;
+            private ByteBuffer buf;
+            private int        left;
+
+            @Override
+            public boolean hasNext() {
+                while (this.left == 0) {
+                    if (++this.segIndex >= segs.size()) {
+                        return false;
+                    }
+                    final Segment seg = segs.get(this.segIndex);
+                    this.buf = seg.buf.duplicate();
+                    this.buf.position(0);
+                    this.left = seg.rows;
+                }
+                return true;
+            }
+
+            @Override
+            public byte[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final byte[] row = new byte[this.buf.getInt()];
+                this.buf.get(row);
+                this.left--;
+                return row;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliterator(it, this.rowCount,
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.SIZED), false);
+    }
+
+    /**
+     * Spills the rows of the result if it's larger than the threshold.
+     *
+     * @param ok        the query result
+     * @param bytes     the estimated bytes of the result
+     * @param threshold the spill threshold, disabled if <= 0
+     * @param dir       the directory of the temp files
+     * @param segSize   the size of each temp file
+     * @return the spilled result or the given one
+     */
+    static QueryOk spillIfLarge(final QueryOk ok, final long bytes, final long threshold, final File dir,
+                                final int segSize) {
+        if (threshold <= 0 || bytes <= threshold || ok.getRowCount() == 0) {
+            return ok;
+        }
+        final QueryResultSpill spill = new QueryResultSpill(dir, segSize);
+        ok.stream().forEach(spill::append);
+        return QueryOk.ok(ok.getQl(), ok.getSchema(), spill.getRowCount(), spill.rows());
+    }
+
+    /**
+     * Collects the results of a stream query into one, the rows are kept in
+     * heap until their bytes exceed the threshold, and all of them are
+     * spilled since then.
+     */
+    static final class Collector implements Observer<QueryOk> {
+
+        private final long                                    threshold;
+        private final File                                    dir;
+        private final int                                     segSize;
+        private final CompletableFuture<Result<QueryOk, Err>> future = new CompletableFuture<>();
+
+        private String           ql;
+        private Schema           schema;
+        private List<byte[]>     heapRows = new ArrayList<>();
+        private long             heapBytes;
+        private QueryResultSpill spill;
+
+        Collector(long threshold, File dir, int segSize) {
+            this.threshold = threshold;
+            this.dir = dir;
+            this.segSize = segSize;
+        }
+
+        CompletableFuture<Result<QueryOk, Err>> future() {
+            return this.future;
+        }
+
+        @Override
+        public void onNext(final QueryOk value) {
+            if (this.future.isDone()) {
+                return;
+            }
+            if (this.ql == null) {
+                this.ql = value.getQl();
+            }
+            if (this.schema == null) {
+                this.schema = value.getSchema();
+            }
+            if (value.getRowCount() == 0) {
+                return;
+            }
+            try {
+                value.stream().forEach(this::add);
+            } catch (final UncheckedIOException e) {
+                onError(e);
+            }
+        }
+
+        @Override
+        public void onError(final Throwable err) {
+            this.heapRows = null;
+            this.spill = null;
+            this.future.completeExceptionally(err);
+        }
+
+        @Override
+        public void onCompleted() {
+            if (this.future.isDone()) {
+                return;
+            }
+            final QueryOk ok;
+            if (this.spill != null) {
+                ok = QueryOk.ok(this.ql, this.schema, this.spill.getRowCount(), this.spill.rows());
+            } else {
+                ok = QueryOk.ok(this.ql, this.schema, this.heapRows.size(), this.heapRows.stream());
+            }
+            this.heapRows = null;
+            this.spill = null;
+            this.future.complete(ok.mapToResult());
+        }
+
+        private void add(final byte[] row) {
+            if (this.spill != null) {
+                this.spill.append(row);
+                return;
+            }
+            this.heapRows.add(row);
+            this.heapBytes += row.length;
+            if (this.threshold > 0 && this.heapBytes > this.threshold) {
+                this.spill = new QueryResultSpill(this.dir, this.segSize);
+                this.heapRows.forEach(this.spill::append);
+                this.heapRows = null;
+            }
+        }
+    }
+
+    private static final class Segment {
+        final MappedByteBuffer buf;
+        int                    rows;
+
+        private Segment(MappedByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        static Segment create(final File dir, final int size) {
+            try {
+                final File f = File.createTempFile("ceresdb_query_", ".spill", dir);
+                try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    return new Segment(fc.map(FileChannel.MapMode.READ_WRITE, 0, size));
+                } finally {
+                    // the mapping is still valid after the file is deleted
+                    if (!f.delete()) {
+                        f.deleteOnExit();
+                    }
+                }
+            } catch (final IOException e) {
+                throw new UncheckedIOException("Fail to create the query spill segment in " + dir, e);
+            }
+        }
+
+        int remaining() {
+            return this.buf.remaining();
+        }
+
+        void append(final byte[] row) {
+            this.buf.putInt(row.length);
+            this.buf.put(row);
+            this.rows++;
+        }
+    }
+}
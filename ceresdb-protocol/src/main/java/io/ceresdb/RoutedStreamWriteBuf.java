@@ -0,0 +1,278 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.ceresdb.common.Endpoint;
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.common.util.Spines;
+import io.ceresdb.errors.StreamWriteException;
+import io.ceresdb.models.Err;
+import io.ceresdb.models.Result;
+import io.ceresdb.models.Rows;
+import io.ceresdb.models.WriteOk;
+import io.ceresdb.proto.Storage;
+import io.ceresdb.rpc.Context;
+import io.ceresdb.rpc.Observer;
+import com.codahale.metrics.Meter;
+
+/**
+ * A stream-write buffer accepts rows of any metric. Each flush routes the
+ * buffered rows by {@link RouterClient} and writes them to one
+ * client-streaming call per endpoint, the call is opened lazily on the
+ * first write to the endpoint.
+ *
+ * <p>If a stream fails or the server returns INVALID_ROUTE, the routes of
+ * the metrics written to it are refreshed, and a new stream is opened by
+ * the next flush to the endpoint. The requests written to a stream are
+ * kept until it completes, and attached to the {@link Err} if it failed,
+ * so they can be retried or spooled by the caller, a long-lived buffer
+ * should be completed periodically to release them.
+ *
+ * <p>The requests are sent only while the stream is ready, see
+ * {@link FlowControlledSender}.
+ *
+ * <p>If a flush failed (such as failed to route), the next call of
+ * {@link #flush()} throws a {@link StreamWriteException} with the rows of
+ * the failed flushes, and the buffer can be used again. The failures not
+ * thrown yet fail the {@link #completed()} future.
+ *
+ * <p>All operations are non-blocking, the flushes are executed in order.
+ * Like the other {@link StreamWriteBuf}s, it is not thread-safe.
+ *
+ * @author jiachun.fjc
+ */
+class RoutedStreamWriteBuf implements StreamWriteBuf<Rows, WriteOk> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RoutedStreamWriteBuf.class);
+
+    private static final Meter STREAMS_OPENED = MetricsUtil.meter("routed_stream_write_opened");
+    private static final Meter STREAMS_BROKEN = MetricsUtil.meter("routed_stream_write_broken");
+
+    private final WriteClient  writeClient;
+    private final RouterClient routerClient;
+    private final Context      ctx;
+    private final Executor     asyncPool;
+
+    private final Map<Endpoint, EndpointStream>                 streams = new ConcurrentHashMap<>();
+    private final List<CompletableFuture<Result<WriteOk, Err>>> results = new CopyOnWriteArrayList<>();
+    // the failed flushes not thrown yet
+    private final List<Err> failures = new CopyOnWriteArrayList<>();
+
+    private Collection<Rows>        buf  = Spines.newBuf();
+    private CompletableFuture<Void> tail = Utils.completedCf(null);
+
+    RoutedStreamWriteBuf(WriteClient writeClient, RouterClient routerClient, Context ctx, Executor asyncPool) {
+        this.writeClient = writeClient;
+        this.routerClient = routerClient;
+        this.ctx = ctx;
+        this.asyncPool = asyncPool;
+    }
+
+    @Override
+    public StreamWriteBuf<Rows, WriteOk> write(final Rows val) {
+        this.buf.add(val);
+        return this;
+    }
+
+    @Override
+    public StreamWriteBuf<Rows, WriteOk> write(final Collection<Rows> c) {
+        this.buf.addAll(c);
+        return this;
+    }
+
+    @Override
+    public StreamWriteBuf<Rows, WriteOk> flush() {
+        final Err failed = takeFailures();
+        if (failed != null) {
+            // keep the buffered rows, they can be flushed again
+            throw new StreamWriteException("Failed to flush the stream write: " + failed, failed);
+        }
+        if (!this.buf.isEmpty()) {
+            final Collection<Rows> batch = this.buf;
+            // cannot reuse the buf, it will be referenced until the batch is routed
+            this.buf = Spines.newBuf();
+            this.tail = this.tail.thenComposeAsync(v -> flush0(batch), this.asyncPool) //
+                    .exceptionally(t -> {
+                        LOG.warn("Failed to flush the stream write.", t);
+                        this.failures
+                                .add(Err.writeErr(Result.SHOULD_RETRY, String.valueOf(t.getMessage()), null, batch));
+                        return null;
+                    });
+        }
+        return this;
+    }
+
+    @Override
+    public CompletableFuture<WriteOk> completed() {
+        flush();
+        return this.tail.thenComposeAsync(v -> {
+            this.streams.values().forEach(s -> s.sender.complete());
+            this.streams.clear();
+            return CompletableFuture.allOf(this.results.toArray(new CompletableFuture[0]));
+        }, this.asyncPool).thenApply(v -> {
+            Result<WriteOk, Err> ret = this.results.stream() //
+                    .map(CompletableFuture::join) //
+                    .reduce(Utils::combineResult) //
+                    .orElse(WriteOk.emptyOk().mapToResult());
+            final Err failed = takeFailures();
+            if (failed != null) {
+                ret = Utils.combineResult(ret, failed.mapToResult());
+            }
+            if (ret.isOk()) {
+                return ret.getOk();
+            }
+            throw new StreamWriteException("Failed to do stream write: " + ret.getErr(), ret.getErr());
+        });
+    }
+
+    private Err takeFailures() {
+        if (this.failures.isEmpty()) {
+            return null;
+        }
+        final List<Err> errs = new ArrayList<>(this.failures);
+        this.failures.removeAll(errs);
+        final Err first = errs.get(0);
+        for (int i = 1; i < errs.size(); i++) {
+            first.combine(errs.get(i));
+        }
+        return first;
+    }
+
+    private CompletableFuture<Void> flush0(final Collection<Rows> batch) {
+        final Set<String> metrics = batch.stream() //
+                .map(Rows::getMetric) //
+                .collect(Collectors.toSet());
+
+        return this.routerClient.routeFor(metrics).thenAcceptAsync(routes -> {
+            final Map<Endpoint, Collection<Rows>> splits = new HashMap<>();
+            batch.forEach(rs -> {
+                final Route route = routes.get(rs.getMetric());
+                final Endpoint ep = route == null ? this.routerClient.clusterRoute().getEndpoint() :
+                        route.getEndpoint();
+                splits.computeIfAbsent(ep, k -> Spines.newBuf()).add(rs);
+            });
+            splits.forEach((ep, rows) -> {
+                final EndpointStream existing = this.streams.get(ep);
+                final EndpointStream stream = existing == null ? openStream(ep) : existing;
+                rows.forEach(rs -> stream.metrics.add(rs.getMetric()));
+                final Storage.WriteRequest req = this.writeClient.toWriteRequestObj(rows.stream());
+                if (stream.add(req)) {
+                    stream.sender.send(req);
+                } else {
+                    // the stream failed just now, its error does not contain the request
+                    this.failures.add(Err.encodedWriteErr(Result.SHOULD_RETRY, "Stream write failed", ep, req));
+                }
+            });
+        }, this.asyncPool);
+    }
+
+    private EndpointStream openStream(final Endpoint endpoint) {
+        STREAMS_OPENED.mark();
+        final CompletableFuture<Result<WriteOk, Err>> respFuture = new CompletableFuture<>();
+        final EndpointStream stream = new EndpointStream();
+        // put it first, the stream may be broken immediately
+        this.streams.put(endpoint, stream);
+        final Observer<Storage.WriteRequest> reqObserver = this.routerClient.invokeClientStreaming(endpoint, //
+                Storage.WriteRequest.getDefaultInstance(), //
+                this.ctx.copy(), //
+                new Observer<Storage.WriteResponse>() {
+
+                    @Override
+                    public void onNext(final Storage.WriteResponse value) {
+                        final Result<WriteOk, Err> ret = Utils.toResult(value, endpoint,
+                                value.getHeader().getCode() == Result.SUCCESS ? null : stream.fail());
+                        if (!ret.isOk() && Utils.shouldRefreshRouteTable(ret.getErr())) {
+                            broken(endpoint, stream);
+                        }
+                        respFuture.complete(ret);
+                    }
+
+                    @Override
+                    public void onError(final Throwable err) {
+                        LOG.warn("Stream write to {} failed.", endpoint, err);
+                        broken(endpoint, stream);
+                        respFuture.complete(
+                                Err.encodedWriteErr(Result.SHOULD_RETRY, err.getMessage(), endpoint, stream.fail())
+                                        .mapToResult());
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        respFuture.complete(WriteOk.emptyOk().mapToResult());
+                    }
+                });
+        stream.sender = new FlowControlledSender(reqObserver, () -> {
+        });
+        this.results.add(respFuture);
+        return stream;
+    }
+
+    private void broken(final Endpoint endpoint, final EndpointStream stream) {
+        if (this.streams.remove(endpoint, stream)) {
+            STREAMS_BROKEN.mark();
+            this.routerClient.routeRefreshFor(stream.metrics);
+        }
+    }
+
+    private static final class EndpointStream {
+        final Set<String> metrics = ConcurrentHashMap.newKeySet();
+        // the requests written, they are the data of wrote failed if the stream failed
+        final List<Storage.WriteRequest> written = new ArrayList<>();
+        boolean                          failed;
+        volatile FlowControlledSender    sender;
+
+        synchronized boolean add(final Storage.WriteRequest req) {
+            if (this.failed) {
+                return false;
+            }
+            this.written.add(req);
+            return true;
+        }
+
+        /**
+         * Marks the stream failed, and returns all the requests written.
+         */
+        synchronized Storage.WriteRequest fail() {
+            this.failed = true;
+            final Storage.WriteRequest ret;
+            if (this.written.size() == 1) {
+                ret = this.written.get(0);
+            } else {
+                final Storage.WriteRequest.Builder wrBui = Storage.WriteRequest.newBuilder();
+                this.written.forEach(req -> wrBui.addAllMetrics(req.getMetricsList()));
+                ret = wrBui.build();
+            }
+            this.written.clear();
+            return ret;
+        }
+    }
+}
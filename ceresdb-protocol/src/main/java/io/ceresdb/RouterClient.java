@@ -16,6 +16,11 @@
  */
 package io.ceresdb;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -49,6 +54,7 @@ import io.ceresdb.errors.RouteTableException;
 import io.ceresdb.options.RouterOptions;
 import io.ceresdb.proto.Storage;
 import io.ceresdb.rpc.Context;
+import io.ceresdb.rpc.HealthTracker;
 import io.ceresdb.rpc.Observer;
 import io.ceresdb.rpc.RpcClient;
 import io.ceresdb.rpc.errors.RemotingException;
@@ -185,6 +191,13 @@ public class RouterClient implements Lifecycle<RouterOptions>, Display, Iterable
         return Route.of(this.opts.getClusterAddress());
     }
 
+    /**
+     * Returns the health of the endpoints, null if it's not tracked by the rpc client.
+     */
+    public HealthTracker healthTracker() {
+        return this.rpcClient == null ? null : this.rpcClient.getHealthTracker();
+    }
+
     public CompletableFuture<Map<String, Route>> routeFor(final Collection<String> metrics) {
         if (metrics == null || metrics.isEmpty()) {
             return Utils.completedCf(Collections.emptyMap());
@@ -241,6 +254,63 @@ public class RouterClient implements Lifecycle<RouterOptions>, Display, Iterable
         });
     }
 
+    /**
+     * Fetches the routes of the metrics in batches, used to warm up the
+     * route cache before the first writes.
+     *
+     * @param metrics the metrics
+     * @return the routes fetched, the failed batches are skipped
+     */
+    public CompletableFuture<Map<String, Route>> prefetch(final Collection<String> metrics) {
+        final List<CompletableFuture<Map<String, Route>>> futures = new ArrayList<>();
+        final List<String> batch = new ArrayList<>(ITEM_COUNT_EACH_REFRESH);
+        for (final String metric : metrics) {
+            batch.add(metric);
+            if (batch.size() >= ITEM_COUNT_EACH_REFRESH) {
+                futures.add(routeRefreshFor(new ArrayList<>(batch)));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            futures.add(routeRefreshFor(batch));
+        }
+
+        return CompletableFuture.allOf(futures.stream() //
+                .map(f -> f.exceptionally(err -> Collections.emptyMap())) //
+                .toArray(CompletableFuture[]::new)) //
+                .thenApply(ignored -> {
+                    final Map<String, Route> routes = new HashMap<>();
+                    futures.forEach(f -> routes.putAll(f.getNow(Collections.emptyMap())));
+                    return routes;
+                });
+    }
+
+    /**
+     * Opens the connection to the endpoint without waiting for the first call.
+     *
+     * @param endpoint the endpoint
+     * @return a future completed with true once the connection is ready
+     */
+    public CompletableFuture<Boolean> connect(final Endpoint endpoint) {
+        return this.rpcClient.connect(endpoint);
+    }
+
+    /**
+     * Saves the metrics of the cached routes to the file, one per line, so
+     * the routes can be prefetched by the next client with them.
+     *
+     * @param file the snapshot file
+     * @return the number of the metrics saved
+     * @throws IOException if it fails to write the file
+     */
+    public int saveSnapshot(final Path file) throws IOException {
+        final List<String> metrics = new ArrayList<>(this.routeCache.keySet());
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, metrics, StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return metrics.size();
+    }
+
     private void blockingRouteRefreshFor(final Collection<String> metrics) {
         try {
             routeRefreshFor(metrics).get(BLOCKING_ROUTE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
@@ -384,7 +454,11 @@ public class RouterClient implements Lifecycle<RouterOptions>, Display, Iterable
     }
 
     private Collection<Endpoint> reserveAddresses() {
-        return this.routeCache.values().stream().map(Route::getEndpoint).collect(Collectors.toSet());
+        final Collection<Endpoint> reserves = this.routeCache.values().stream().map(Route::getEndpoint)
+                .collect(Collectors.toSet());
+        final HealthTracker tracker = healthTracker();
+        // try the healthiest first
+        return tracker == null ? reserves : tracker.sort(reserves);
     }
 
     private boolean checkConn(final Endpoint endpoint, final boolean create) {
@@ -451,7 +525,7 @@ public class RouterClient implements Lifecycle<RouterOptions>, Display, Iterable
             LOG.warn("Fail to connect to the cluster address: {}.", this.endpoint);
 
             final Collection<Endpoint> reserves = reserveAddresses();
-            // RR
+            // from the healthiest to the sickest
             int i = 0;
             for (final Endpoint ep : reserves) {
                 LOG.warn("Try to invoke to the {}th server {}.", ++i, ep);
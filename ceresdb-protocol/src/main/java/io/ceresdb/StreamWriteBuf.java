@@ -27,7 +27,8 @@ import java.util.concurrent.CompletableFuture;
 public interface StreamWriteBuf<V, R> {
 
     /**
-     * Write data to buffer, but not flush to server.
+     * Write data to buffer, but not flush to server. Some implementations
+     * may flush the buffer automatically once it reached a threshold.
      *
      * @param val data value
      * @return this
@@ -61,6 +62,27 @@ public interface StreamWriteBuf<V, R> {
         return write(c).flush();
     }
 
+    /**
+     * Returns {@code true} if the stream can accept more data without
+     * excessive buffering, the default implementation is always ready.
+     *
+     * @return true if ready to flush more data
+     */
+    default boolean isReady() {
+        return true;
+    }
+
+    /**
+     * Returns a future that will be completed when the stream is ready
+     * to accept more data, a fast producer should wait for it before
+     * the next flush.
+     *
+     * @return the future completes when ready
+     */
+    default CompletableFuture<Void> whenReady() {
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * Tell server that the stream-write has completed.
      *
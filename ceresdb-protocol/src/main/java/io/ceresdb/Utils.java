@@ -17,8 +17,11 @@
 package io.ceresdb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -31,6 +34,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import io.ceresdb.common.Display;
 import io.ceresdb.common.Endpoint;
 import io.ceresdb.common.OptKeys;
@@ -38,9 +44,11 @@ import io.ceresdb.common.util.ExecutorServiceHelper;
 import io.ceresdb.common.util.MetricsUtil;
 import io.ceresdb.common.util.NamedThreadFactory;
 import io.ceresdb.common.util.ObjectPool;
+import io.ceresdb.common.util.PrometheusExporter;
 import io.ceresdb.common.util.Requires;
 import io.ceresdb.common.util.SharedScheduledPool;
 import io.ceresdb.common.util.Spines;
+import io.ceresdb.common.util.Strings;
 import io.ceresdb.common.util.SystemPropertyUtil;
 import io.ceresdb.common.util.ThreadPoolUtil;
 import io.ceresdb.models.Err;
@@ -50,6 +58,7 @@ import io.ceresdb.models.QueryOk;
 import io.ceresdb.models.Result;
 import io.ceresdb.models.Rows;
 import io.ceresdb.models.Schema;
+import io.ceresdb.models.Series;
 import io.ceresdb.models.TagValue;
 import io.ceresdb.models.Value;
 import io.ceresdb.models.WriteOk;
@@ -65,6 +74,8 @@ import com.google.protobuf.ByteStringHelper;
  */
 public final class Utils {
 
+    private static final Logger LOG = LoggerFactory.getLogger(Utils.class);
+
     public static final String DB_NAME = "CeresDB";
 
     private static final AtomicBoolean RW_LOGGING;
@@ -115,6 +126,33 @@ public final class Utils {
         return REPORT_PERIOD_MIN;
     }
 
+    /**
+     * Start the Prometheus metrics exporter if it is configured by
+     * {@link OptKeys#METRICS_EXPORTER_PORT} or {@link OptKeys#METRICS_PUSH_URL}.
+     */
+    public static void startMetricsExporterIfConfigured() {
+        final int port = SystemPropertyUtil.getInt(OptKeys.METRICS_EXPORTER_PORT, -1);
+        final String pushUrl = SystemPropertyUtil.get(OptKeys.METRICS_PUSH_URL);
+        if (port < 0 && Strings.isNullOrEmpty(pushUrl)) {
+            return;
+        }
+
+        final PrometheusExporter exporter = PrometheusExporter.getDefault();
+        try {
+            if (port >= 0) {
+                exporter.startHttpServer(port);
+            }
+            if (!Strings.isNullOrEmpty(pushUrl)) {
+                final int period = SystemPropertyUtil.getInt(OptKeys.METRICS_PUSH_PERIOD_SEC, 15);
+                exporter.startPushing(PrometheusExporter.MetricsPusher.httpPut(pushUrl), period, TimeUnit.SECONDS);
+            }
+        } catch (final Throwable t) {
+            LOG.warn("Fail to start the metrics exporter.", t);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(exporter::stop));
+    }
+
     /**
      * Only used to schedule to display the self of client.
      *
@@ -183,12 +221,13 @@ public final class Utils {
      *
      * @param resp response of the write RPC
      * @param to   the server address wrote to
-     * @param rows wrote date in this write
+     * @param req  the encoded request of this write, kept in the {@link Err}
+     *             to retry if failed
      * @return a {@link Result}
      */
     public static Result<WriteOk, Err> toResult(final Storage.WriteResponse resp, //
                                                 final Endpoint to, //
-                                                final Collection<Rows> rows) {
+                                                final Storage.WriteRequest req) {
         final Common.ResponseHeader header = resp.getHeader();
         final int code = header.getCode();
         final String msg = header.getError();
@@ -196,15 +235,41 @@ public final class Utils {
         final int failed = resp.getFailed();
 
         if (code == Result.SUCCESS) {
-            final Set<String> metrics = rows != null && WriteOk.isCollectWroteDetail() ?
-                    rows.stream().map(Rows::getMetric).collect(Collectors.toSet()) :
+            final Set<String> metrics = req != null && WriteOk.isCollectWroteDetail() ?
+                    req.getMetricsList().stream().map(Storage.WriteMetric::getMetric).collect(Collectors.toSet()) :
                     null;
             return WriteOk.ok(success, failed, metrics).mapToResult();
         } else {
-            return Err.writeErr(code, msg, to, rows).mapToResult();
+            return Err.encodedWriteErr(code, msg, to, req).mapToResult();
         }
     }
 
+    /**
+     * Converts the given {@link Storage.WriteResponse} to {@link Result} that
+     * upper-level readable.
+     *
+     * @param resp response of the write RPC
+     * @param to   the server address wrote to
+     * @param rows wrote date in this write
+     * @return a {@link Result}
+     * @deprecated the failed data is kept as the encoded request now, use
+     *             {@link #toResult(Storage.WriteResponse, Endpoint, Storage.WriteRequest)}
+     */
+    @Deprecated
+    public static Result<WriteOk, Err> toResult(final Storage.WriteResponse resp, //
+                                                final Endpoint to, //
+                                                final Collection<Rows> rows) {
+        final Result<WriteOk, Err> ret = toResult(resp, to, (Storage.WriteRequest) null);
+        if (ret.isOk()) {
+            if (rows != null && WriteOk.isCollectWroteDetail()) {
+                ret.getOk().setMetrics(rows.stream().map(Rows::getMetric).collect(Collectors.toSet()));
+            }
+            return ret;
+        }
+        final Err err = ret.getErr();
+        return Err.writeErr(err.getCode(), err.getError(), to, rows).mapToResult();
+    }
+
     /**
      * Converts the given {@link Storage.QueryResponse} to {@link Result} that
      * upper-level readable.
@@ -320,6 +385,170 @@ public final class Utils {
         return splits;
     }
 
+    /**
+     * Like {@link #splitDataByRoute(Collection, Map)}, splits the encoded
+     * metrics by the endpoints of their routes.
+     */
+    public static Map<Endpoint, List<Storage.WriteMetric>> splitMetricsByRoute(final Collection<Storage.WriteMetric> wms, //
+                                                                               final Map<String /* metric */, Route> routes) {
+        final Map<Endpoint, List<Storage.WriteMetric>> splits = new HashMap<>();
+        for (final Storage.WriteMetric wm : wms) {
+            final Route route = routes.get(wm.getMetric());
+            Requires.requireNonNull(route, "Null.route for " + wm.getMetric());
+            splits.computeIfAbsent(route.getEndpoint(), ep -> new ArrayList<>()).add(wm);
+        }
+
+        MetricsUtil.histogram("split_num_per_write").update(splits.size());
+
+        return splits;
+    }
+
+    /**
+     * Returns the number of the rows in the encoded metric.
+     */
+    public static int rowCount(final Storage.WriteMetric wm) {
+        int n = 0;
+        for (final Storage.WriteEntry entry : wm.getEntriesList()) {
+            n += entry.getFieldGroupsCount();
+        }
+        return n;
+    }
+
+    /**
+     * Estimates the encoded bytes of the rows, the names of the tags and the
+     * fields are shared in a metric, so they are not counted.
+     */
+    public static long estimateBytes(final Rows rs) {
+        long n = 4;
+        for (final TagValue tagV : rs.getSeries().getTags().values()) {
+            n += 6 + estimateBytes(tagV);
+        }
+        for (final Map<String, FieldValue> fields : rs.getFields().values()) {
+            n += 12;
+            for (final FieldValue field : fields.values()) {
+                n += 6 + estimateBytes(field);
+            }
+        }
+        return n;
+    }
+
+    private static long estimateBytes(final Value v) {
+        final Object o = v.getValue();
+        if (o == null) {
+            return 0;
+        }
+        switch (v.getType()) {
+            case String:
+                // mostly ASCII
+                return ((String) o).length() + 2;
+            case Varbinary:
+                return ((byte[]) o).length + 2;
+            case Boolean:
+                return 2;
+            case Float32:
+            case Int32:
+            case Int16:
+            case Int8:
+            case UInt32:
+            case UInt16:
+            case UInt8:
+                return 6;
+            default:
+                return 10;
+        }
+    }
+
+    /**
+     * Decodes the rows from the encoded request, a {@link Rows} for each
+     * entry, the reverse of {@link WriteClient#toWriteRequestObj(Stream)}.
+     */
+    public static List<Rows> toRows(final Storage.WriteRequest req) {
+        final List<Rows> rows = new ArrayList<>();
+        for (final Storage.WriteMetric wm : req.getMetricsList()) {
+            for (final Storage.WriteEntry entry : wm.getEntriesList()) {
+                final Series.Builder serBui = Series.newBuilder(wm.getMetric());
+                for (final Storage.Tag tag : entry.getTagsList()) {
+                    serBui.tag(wm.getTagNames(tag.getNameIndex()), toTagValue(tag.getValue()));
+                }
+                final Rows.Builder rsBui = serBui.toRowsBuilder();
+                for (final Storage.FieldGroup fg : entry.getFieldGroupsList()) {
+                    for (final Storage.Field field : fg.getFieldsList()) {
+                        rsBui.field(fg.getTimestamp(), wm.getFieldNames(field.getNameIndex()),
+                                toFieldValue(field.getValue()));
+                    }
+                }
+                rows.add(rsBui.build());
+            }
+        }
+        return rows;
+    }
+
+    public static FieldValue toFieldValue(final Storage.Value v) {
+        switch (v.getValueCase()) {
+            case FLOAT64_VALUE:
+                return FieldValue.withFloat64(v.getFloat64Value());
+            case STRING_VALUE:
+                return FieldValue.withString(v.getStringValue());
+            case INT64_VALUE:
+                return FieldValue.withInt64(v.getInt64Value());
+            case FLOAT32_VALUE:
+                return FieldValue.withFloat32(v.getFloat32Value());
+            case INT32_VALUE:
+                return FieldValue.withInt32(v.getInt32Value());
+            case INT16_VALUE:
+                return FieldValue.withInt16(v.getInt16Value());
+            case INT8_VALUE:
+                return FieldValue.withInt8(v.getInt8Value());
+            case BOOL_VALUE:
+                return FieldValue.withBoolean(v.getBoolValue());
+            case UINT64_VALUE:
+                return FieldValue.withUInt64(v.getUint64Value());
+            case UINT32_VALUE:
+                return FieldValue.withUInt32(v.getUint32Value());
+            case UINT16_VALUE:
+                return FieldValue.withUInt16(v.getUint16Value());
+            case UINT8_VALUE:
+                return FieldValue.withUInt8(v.getUint8Value());
+            case TIMESTAMP_VALUE:
+                return FieldValue.withTimestamp(v.getTimestampValue());
+            case VARBINARY_VALUE:
+                return FieldValue.withVarbinary(v.getVarbinaryValue().toByteArray());
+            default:
+                throw new IllegalArgumentException("Invalid value: " + v);
+        }
+    }
+
+    public static TagValue toTagValue(final Storage.Value v) {
+        switch (v.getValueCase()) {
+            case STRING_VALUE:
+                return TagValue.withString(v.getStringValue());
+            case INT64_VALUE:
+                return TagValue.withInt64(v.getInt64Value());
+            case INT32_VALUE:
+                return TagValue.withInt32(v.getInt32Value());
+            case INT16_VALUE:
+                return TagValue.withInt16(v.getInt16Value());
+            case INT8_VALUE:
+                return TagValue.withInt8(v.getInt8Value());
+            case BOOL_VALUE:
+                return TagValue.withBoolean(v.getBoolValue());
+            case UINT64_VALUE:
+                return TagValue.withUInt64(v.getUint64Value());
+            case UINT32_VALUE:
+                return TagValue.withUInt32(v.getUint32Value());
+            case UINT16_VALUE:
+                return TagValue.withUInt16(v.getUint16Value());
+            case UINT8_VALUE:
+                return TagValue.withUInt8(v.getUint8Value());
+            case TIMESTAMP_VALUE:
+                return TagValue.withTimestamp(v.getTimestampValue());
+            case VARBINARY_VALUE:
+                return TagValue.withVarbinary(v.getVarbinaryValue().toByteArray());
+            default:
+                throw new IllegalArgumentException("Invalid tag value: " + v);
+        }
+    }
+
     public static boolean shouldNotRetry(final Err err) {
         return !shouldRetry(err);
     }
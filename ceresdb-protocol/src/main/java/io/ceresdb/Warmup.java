@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.ceresdb.common.Endpoint;
+import io.ceresdb.common.util.Clock;
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.options.WarmupOptions;
+
+/**
+ * Warms up the client before the first requests: prefetches the routes
+ * of the given metrics, then opens the connections to the cluster address
+ * and to all the endpoints of the routes.
+ *
+ * @author jiachun.fjc
+ */
+final class Warmup {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Warmup.class);
+
+    /**
+     * Runs the warmup.
+     *
+     * @return a future completed with true if all the routes are fetched and
+     *         all the connections are ready, it never completes exceptionally
+     */
+    static CompletableFuture<Boolean> run(final RouterClient routerClient, final WarmupOptions opts) {
+        final long startCall = Clock.defaultClock().getTick();
+        final Set<String> metrics = loadMetrics(opts);
+
+        return routerClient.prefetch(metrics) //
+                .thenCompose(routes -> {
+                    final Set<Endpoint> endpoints = new LinkedHashSet<>();
+                    endpoints.add(routerClient.clusterRoute().getEndpoint());
+                    routes.values().forEach(r -> endpoints.add(r.getEndpoint()));
+
+                    final List<CompletableFuture<Boolean>> futures = new ArrayList<>(endpoints.size());
+                    endpoints.forEach(ep -> futures.add(routerClient.connect(ep).exceptionally(err -> {
+                        LOG.warn("Fail to connect to {} on warmup.", ep, err);
+                        return false;
+                    })));
+
+                    return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+                        final long connected = futures.stream().filter(CompletableFuture::join).count();
+                        final long duration = Clock.defaultClock().duration(startCall);
+                        MetricsUtil.timer("client_warmup_time").update(duration, TimeUnit.MILLISECONDS);
+                        LOG.info("Warmup finished in {} ms, routes: {}/{}, connections: {}/{}.", duration,
+                                routes.size(), metrics.size(), connected, endpoints.size());
+                        return routes.size() == metrics.size() && connected == endpoints.size();
+                    });
+                }) //
+                .exceptionally(err -> {
+                    LOG.warn("Warmup failed.", err);
+                    return false;
+                });
+    }
+
+    static Set<String> loadMetrics(final WarmupOptions opts) {
+        final Set<String> metrics = new LinkedHashSet<>();
+        if (opts.getMetrics() != null) {
+            metrics.addAll(opts.getMetrics());
+        }
+        final String snapshotFile = opts.getSnapshotFile();
+        if (snapshotFile != null) {
+            final Path path = Paths.get(snapshotFile);
+            if (Files.exists(path)) {
+                try {
+                    Files.readAllLines(path, StandardCharsets.UTF_8).stream() //
+                            .map(String::trim) //
+                            .filter(line -> !line.isEmpty()) //
+                            .forEach(metrics::add);
+                } catch (final IOException e) {
+                    LOG.warn("Fail to read the warmup snapshot: {}.", snapshotFile, e);
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Saves the metrics of the cached routes to the snapshot file, if set.
+     */
+    static void saveSnapshot(final RouterClient routerClient, final WarmupOptions opts) {
+        if (opts == null || opts.getSnapshotFile() == null) {
+            return;
+        }
+        try {
+            final int n = routerClient.saveSnapshot(Paths.get(opts.getSnapshotFile()));
+            LOG.info("Saved {} metrics to the warmup snapshot: {}.", n, opts.getSnapshotFile());
+        } catch (final IOException e) {
+            LOG.warn("Fail to save the warmup snapshot: {}.", opts.getSnapshotFile(), e);
+        }
+    }
+
+    private Warmup() {
+    }
+}
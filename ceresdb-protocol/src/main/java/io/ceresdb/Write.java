@@ -83,4 +83,21 @@ public interface Write {
      * @return a write request observer for streaming-write
      */
     StreamWriteBuf<Rows, WriteOk> streamWrite(final String metric, final Context ctx);
+
+    /**
+     * @see #streamWrite(Context)
+     */
+    default StreamWriteBuf<Rows, WriteOk> streamWrite() {
+        return streamWrite(Context.newDefault());
+    }
+
+    /**
+     * Returns a stream-write buffer that accepts rows of any metric, the rows
+     * are routed to their endpoints on each flush, and one streaming-write call
+     * is kept per endpoint.
+     *
+     * @param ctx the invoke context
+     * @return a stream-write buffer for streaming-write of any metric
+     */
+    StreamWriteBuf<Rows, WriteOk> streamWrite(final Context ctx);
 }
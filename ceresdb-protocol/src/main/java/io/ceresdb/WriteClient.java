@@ -16,16 +16,22 @@
  */
 package io.ceresdb;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -37,21 +43,30 @@ import io.ceresdb.common.Endpoint;
 import io.ceresdb.common.Lifecycle;
 import io.ceresdb.common.VisibleForTest;
 import io.ceresdb.common.util.Clock;
+import io.ceresdb.common.util.Cpus;
+import io.ceresdb.common.util.ExecutorServiceHelper;
 import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.common.util.NamedThreadFactory;
+import io.ceresdb.common.util.ObjectPool;
 import io.ceresdb.common.util.Requires;
 import io.ceresdb.common.util.SerializingExecutor;
+import io.ceresdb.common.util.SharedThreadPool;
 import io.ceresdb.common.util.Spines;
 import io.ceresdb.common.util.Strings;
+import io.ceresdb.common.util.ThreadPoolUtil;
 import io.ceresdb.errors.StreamException;
 import io.ceresdb.models.Err;
 import io.ceresdb.models.Result;
 import io.ceresdb.models.Rows;
+import io.ceresdb.models.Series;
 import io.ceresdb.models.Value;
 import io.ceresdb.models.WriteOk;
 import io.ceresdb.options.WriteOptions;
 import io.ceresdb.proto.Storage;
 import io.ceresdb.rpc.Context;
 import io.ceresdb.rpc.Observer;
+import io.ceresdb.rpc.trace.Span;
+import io.ceresdb.rpc.trace.Tracer;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 
@@ -64,10 +79,39 @@ public class WriteClient implements Write, Lifecycle<WriteOptions>, Display {
 
     private static final Logger LOG = LoggerFactory.getLogger(WriteClient.class);
 
-    private WriteOptions opts;
-    private RouterClient routerClient;
-    private Executor     asyncPool;
-    private WriteLimiter writeLimiter;
+    private static final SharedThreadPool ENCODER_POOL = new SharedThreadPool(
+            new ObjectPool.Resource<ExecutorService>() {
+
+                @Override
+                public ExecutorService create() {
+                    final String name = "write_request_encoder";
+                    return ThreadPoolUtil.newBuilder() //
+                            .poolName(name) //
+                            .enableMetric(true) //
+                            .coreThreads(Cpus.cpus()) //
+                            .maximumThreads(Cpus.cpus()) //
+                            .keepAliveSeconds(60L) //
+                            .workQueue(new ArrayBlockingQueue<>(1024)) //
+                            .threadFactory(new NamedThreadFactory(name, true)) //
+                            // encode on the caller thread if the encoders are too busy
+                            .rejectedHandler(new ThreadPoolExecutor.CallerRunsPolicy()) //
+                            .build();
+                }
+
+                @Override
+                public void close(final ExecutorService ins) {
+                    ExecutorServiceHelper.shutdownAndAwaitTermination(ins);
+                }
+            });
+
+    private WriteOptions        opts;
+    private RouterClient        routerClient;
+    private Executor            asyncPool;
+    private ExecutorService     encodePool;
+    private WriteLimiter        writeLimiter;
+    private WriteSpool          spool;
+    private WriteDedup          dedup;
+    private WriteSizeController sizeController;
 
     static final class InnerMetrics {
         static final Histogram WRITE_ROWS_SUCCESS    = MetricsUtil.histogram("write_rows_success_num");
@@ -75,6 +119,10 @@ public class WriteClient implements Write, Lifecycle<WriteOptions>, Display {
         static final Histogram METRICS_NUM_PER_WRITE = MetricsUtil.histogram("metrics_num_per_write");
         static final Meter     WRITE_FAILED          = MetricsUtil.meter("write_failed");
         static final Meter     WRITE_QPS             = MetricsUtil.meter("write_qps");
+        static final Meter     PARALLEL_ENCODED      = MetricsUtil.meter("write_parallel_encoded_parts");
+        static final Meter     RETRY_REUSED          = MetricsUtil.meter("write_retry_reused_requests");
+        static final Meter     RETRY_SPLICED         = MetricsUtil.meter("write_retry_spliced_metrics");
+        static final Histogram REQUEST_BYTES         = MetricsUtil.histogram("write_request_bytes");
 
         static Histogram writeRowsSuccess() {
             return WRITE_ROWS_SUCCESS;
@@ -96,6 +144,22 @@ public class WriteClient implements Write, Lifecycle<WriteOptions>, Display {
             return WRITE_QPS;
         }
 
+        static Meter parallelEncoded() {
+            return PARALLEL_ENCODED;
+        }
+
+        static Meter retryReused() {
+            return RETRY_REUSED;
+        }
+
+        static Meter retrySpliced() {
+            return RETRY_SPLICED;
+        }
+
+        static Histogram requestBytes() {
+            return REQUEST_BYTES;
+        }
+
         static Meter writeByRetries(final int retries) {
             // more than 3 retries are classified as the same metric
             return MetricsUtil.meter("write_by_retries", Math.min(3, retries));
@@ -109,34 +173,284 @@ public class WriteClient implements Write, Lifecycle<WriteOptions>, Display {
         final Executor pool = this.opts.getAsyncPool();
         this.asyncPool = pool != null ? pool : new SerializingExecutor("write_client");
         this.writeLimiter = new DefaultWriteLimiter(this.opts.getMaxInFlightWriteRows(), this.opts.getLimitedPolicy());
+        if (this.opts.getParallelEncodeThreshold() > 0) {
+            this.encodePool = ENCODER_POOL.getObject();
+        }
+        if (this.opts.getMaxWriteBytes() > 0) {
+            this.sizeController = new WriteSizeController(this.opts.getMaxWriteBytes(), this.opts.getMinWriteBytes(),
+                    this.opts.getWriteLatencyTargetMs());
+        }
+        if (this.opts.getDedupMaxPoints() > 0) {
+            this.dedup = new WriteDedup(this.opts.getDedupMaxPoints());
+        }
+        if (this.opts.getSpoolDir() != null) {
+            final WriteSpool spool = new WriteSpool(this::replay);
+            if (!spool.init(this.opts)) {
+                return false;
+            }
+            this.spool = spool;
+        }
         return true;
     }
 
     @Override
     public void shutdownGracefully() {
-        // NO-OP
+        if (this.spool != null) {
+            this.spool.shutdownGracefully();
+        }
+        if (this.encodePool != null) {
+            ENCODER_POOL.returnObject(this.encodePool);
+            this.encodePool = null;
+        }
     }
 
     @Override
     public CompletableFuture<Result<WriteOk, Err>> write(final Collection<Rows> data, final Context ctx) {
         Requires.requireNonNull(data, "Null.data");
+        if (this.dedup == null) {
+            return doWrite(data, ctx);
+        }
+        final WriteDedup.Deduped deduped = this.dedup.dedup(data);
+        final CompletableFuture<Result<WriteOk, Err>> f;
+        if (deduped.getRows().isEmpty()) {
+            this.dedup.written(deduped);
+            f = Utils.completedCf(WriteOk.emptyOk().mapToResult());
+        } else {
+            f = doWrite(deduped.getRows(), ctx).whenComplete((r, e) -> {
+                if (e == null && r.isOk()) {
+                    this.dedup.written(deduped);
+                } else {
+                    // forget the points, so they can be written again
+                    this.dedup.release(deduped);
+                }
+            });
+        }
+        final int dropped = deduped.getDropped();
+        if (dropped == 0) {
+            return f;
+        }
+        // the dropped points are written by the former writes, or written here
+        // again if the former writes in flight failed
+        final CompletableFuture<Result<WriteOk, Err>> dups = deduped.awaitOriginals().thenComposeAsync(ok -> {
+            if (ok) {
+                return Utils.completedCf(WriteOk.ok(dropped, 0, null).mapToResult());
+            }
+            final int waiting = deduped.getWaitingRows().stream().mapToInt(Rows::getRowCount).sum();
+            return doWrite(deduped.getWaitingRows(), ctx)
+                    .thenApply(r -> Utils.combineResult(r, WriteOk.ok(dropped - waiting, 0, null).mapToResult()));
+        }, this.asyncPool);
+        return f.thenCombine(dups, Utils::combineResult);
+    }
+
+    private CompletableFuture<Result<WriteOk, Err>> doWrite(final Collection<Rows> data, final Context ctx) {
+        final Span span = Tracer.startSpan("write");
+        final CompletableFuture<Result<WriteOk, Err>> f = span == null ? limitAndWrite(data, ctx) :
+                traceWrite(span, data, ctx);
+        if (this.spool == null) {
+            return f;
+        }
+        return f.handleAsync((r, e) -> {
+            final Result<WriteOk, Err> spooled = spoolFailed(data, r, e);
+            if (spooled != null) {
+                return spooled;
+            }
+            if (e != null) {
+                throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+            }
+            return r;
+        }, this.asyncPool);
+    }
+
+    private CompletableFuture<Result<WriteOk, Err>> traceWrite(final Span span, final Collection<Rows> data,
+                                                               final Context ctx) {
+        span.setRows(data.stream().mapToInt(Rows::getRowCount).sum());
+        // the caller may reuse the context, do not attach the span to it
+        return limitAndWrite(data, ctx.copy().withSpan(span)).whenComplete(
+                (r, e) -> span.end(e != null ? e.toString() : r.isOk() ? Span.OK : r.getErr().toString()));
+    }
+
+    private CompletableFuture<Result<WriteOk, Err>> limitAndWrite(final Collection<Rows> data, final Context ctx) {
         final long startCall = Clock.defaultClock().getTick();
-        return this.writeLimiter.acquireAndDo(data, () -> write0(data, ctx, 0).whenCompleteAsync((r, e) -> {
-            InnerMetrics.writeQps().mark();
-            if (r != null) {
-                if (Utils.isRwLogging()) {
-                    LOG.info("Write to {}, duration={} ms, result={}.", Utils.DB_NAME,
-                            Clock.defaultClock().duration(startCall), r);
+        final Span span = ctx.getSpan();
+        final long limitStart = Span.tick(span);
+        return this.writeLimiter.acquireAndDo(data, () -> {
+            Span.record(span, Span.Phase.Limit, limitStart);
+            return write0(data, ctx, 0).whenCompleteAsync((r, e) -> {
+                InnerMetrics.writeQps().mark();
+                if (r != null) {
+                    if (Utils.isRwLogging()) {
+                        LOG.info("Write to {}, duration={} ms, result={}.", Utils.DB_NAME,
+                                Clock.defaultClock().duration(startCall), r);
+                    }
+                    if (r.isOk()) {
+                        final WriteOk ok = r.getOk();
+                        InnerMetrics.writeRowsSuccess().update(ok.getSuccess());
+                        InnerMetrics.writeRowsFailed().update(ok.getFailed());
+                        return;
+                    }
+                }
+                InnerMetrics.writeFailed().mark();
+            }, this.asyncPool);
+        });
+    }
+
+    /**
+     * Spools the failed part of a write, all or nothing, so the caller never
+     * retries the rows that will be replayed by the spool.
+     *
+     * @return the result reports the failed rows as spooled, or null if they
+     *         can not be spooled
+     */
+    private Result<WriteOk, Err> spoolFailed(final Collection<Rows> data, final Result<WriteOk, Err> r,
+                                             final Throwable e) {
+        if (e == null && r.isOk()) {
+            return null;
+        }
+
+        final List<Storage.WriteRequest> reqs = new ArrayList<>();
+        final Collection<Rows> failed = new ArrayList<>();
+        final WriteOk ok = WriteOk.emptyOk();
+        if (e != null) {
+            failed.addAll(data);
+        } else {
+            for (final Err err : r.getErr().stream().collect(Collectors.toList())) {
+                if (err.getSubOk() != null) {
+                    ok.combine(err.getSubOk());
+                }
+                if (!isSpoolable(err.getCode())) {
+                    return null;
                 }
-                if (r.isOk()) {
-                    final WriteOk ok = r.getOk();
-                    InnerMetrics.writeRowsSuccess().update(ok.getSuccess());
-                    InnerMetrics.writeRowsFailed().update(ok.getFailed());
-                    return;
+                if (err.getFailedRequest() != null) {
+                    // already encoded and split by maxWriteSize
+                    reqs.add(err.getFailedRequest());
+                } else if (err.getFailedWrites() != null) {
+                    failed.addAll(err.getFailedWrites());
                 }
             }
-            InnerMetrics.writeFailed().mark();
-        }, this.asyncPool));
+        }
+
+        final PartBuf partBuf = new PartBuf();
+        for (final Rows rs : failed) {
+            if (partBuf.isNotEmpty() && partBuf.preAdd(rs.getRowCount()) > this.opts.getMaxWriteSize()) {
+                reqs.add(toWriteRequestObj(partBuf.collectAndReset().stream()));
+            }
+            partBuf.add(rs);
+        }
+        if (partBuf.isNotEmpty()) {
+            reqs.add(toWriteRequestObj(partBuf.collectAndReset().stream()));
+        }
+
+        if (!this.spool.append(reqs)) {
+            return null;
+        }
+        ok.setSpooled(ok.getSpooled() + reqs.stream().mapToInt(WriteSpool::rowCount).sum());
+        return ok.mapToResult();
+    }
+
+    private long targetBytes(final Endpoint endpoint) {
+        final WriteSizeController sc = this.sizeController;
+        return sc == null ? Long.MAX_VALUE : sc.targetBytes(endpoint);
+    }
+
+    /**
+     * Whether the failure may be caused by a too large request, the route
+     * errors are not.
+     */
+    private static boolean isOverloaded(final int code) {
+        return code != Result.SUCCESS && code != Result.INVALID_ROUTE;
+    }
+
+    /**
+     * Whether the failed write can be spooled, {@link Result#FLOW_CONTROL} is
+     * not, since the writes rejected by the local flow limiter are reported
+     * with it too, and spooling them would bypass the limiter.
+     */
+    private static boolean isSpoolable(final int code) {
+        return code == Result.INVALID_ROUTE || code == Result.SHOULD_RETRY;
+    }
+
+    /**
+     * Replays the spooled request, returns the part that still needs to be
+     * replayed, or the given request itself if nothing was written.
+     */
+    private CompletableFuture<Storage.WriteRequest> replay(final Storage.WriteRequest req) {
+        final Set<String> metrics = req.getMetricsList().stream() //
+                .map(Storage.WriteMetric::getMetric) //
+                .collect(Collectors.toSet());
+
+        return this.routerClient.routeFor(metrics).thenComposeAsync(routes -> {
+            final Map<Endpoint, Storage.WriteRequest.Builder> splits = new HashMap<>();
+            req.getMetricsList().forEach(wm -> {
+                final Route route = routes.get(wm.getMetric());
+                final Endpoint ep = route == null ? this.routerClient.clusterRoute().getEndpoint() :
+                        route.getEndpoint();
+                splits.computeIfAbsent(ep, k -> Storage.WriteRequest.newBuilder()).addMetrics(wm);
+            });
+
+            if (splits.size() == 1) { // fast path, no need to split
+                final Endpoint ep = splits.keySet().iterator().next();
+                return replayTo(ep, req);
+            }
+
+            final List<CompletableFuture<Storage.WriteRequest>> fs = splits.entrySet().stream() //
+                    .map(e -> replayTo(e.getKey(), e.getValue().build())) //
+                    .collect(Collectors.toList());
+
+            return CompletableFuture.allOf(fs.toArray(new CompletableFuture[0])).thenApply(v -> {
+                final List<Storage.WriteRequest> rest = fs.stream() //
+                        .map(CompletableFuture::join) //
+                        .filter(Objects::nonNull) //
+                        .collect(Collectors.toList());
+                if (rest.isEmpty()) {
+                    return null;
+                }
+                if (rest.size() == fs.size()) {
+                    return req;
+                }
+                final Storage.WriteRequest.Builder wrBui = Storage.WriteRequest.newBuilder();
+                rest.forEach(part -> wrBui.addAllMetrics(part.getMetricsList()));
+                return wrBui.build();
+            });
+        }, this.asyncPool);
+    }
+
+    private CompletableFuture<Storage.WriteRequest> replayTo(final Endpoint endpoint, final Storage.WriteRequest req) {
+        final CompletableFuture<Storage.WriteResponse> wrf = this.routerClient.invoke(endpoint, //
+                req, //
+                Context.of("spool_replay", true) //
+        );
+
+        return wrf.handleAsync((resp, err) -> {
+            if (err != null) {
+                return req;
+            }
+            final int code = resp.getHeader().getCode();
+            if (code == Result.SUCCESS) {
+                return null;
+            }
+            if (!isSpoolable(code) && code != Result.FLOW_CONTROL) {
+                LOG.error("Discard the spooled write to {}, err={}.", endpoint, resp.getHeader());
+                return null;
+            }
+            if (code == Result.INVALID_ROUTE) {
+                this.routerClient.routeRefreshFor(req.getMetricsList().stream() //
+                        .map(Storage.WriteMetric::getMetric) //
+                        .collect(Collectors.toSet()));
+            }
+            return req;
+        }, this.asyncPool);
+    }
+
+    /**
+     * Returns the number of rows that can be written without being limited,
+     * see {@link WriteOptions#getMaxInFlightWriteRows()}.
+     */
+    public int availableWritePermits() {
+        return this.writeLimiter.availablePermits();
+    }
+
+    public WriteSpool spool() {
+        return this.spool;
     }
 
     @Override
@@ -148,48 +462,15 @@ public class WriteClient implements Write, Lifecycle<WriteOptions>, Display {
         return this.routerClient.routeFor(Collections.singleton(metric))
                 .thenApply(routes -> routes.values().stream().findFirst().orElseGet(() -> Route.invalid(metric)))
                 .thenApply(route -> streamWriteTo(route, ctx, Utils.toUnaryObserver(respFuture)))
-                .thenApply(reqObserver -> new StreamWriteBuf<Rows, WriteOk>() {
-
-                    private final Collection<Rows> buf = Spines.newBuf();
-
-                    @Override
-                    public StreamWriteBuf<Rows, WriteOk> write(final Rows val) {
-                        this.buf.add(val);
-                        return this;
-                    }
-
-                    @Override
-                    public StreamWriteBuf<Rows, WriteOk> write(final Collection<Rows> c) {
-                        this.buf.addAll(c);
-                        return this;
-                    }
-
-                    @Override
-                    public StreamWriteBuf<Rows, WriteOk> flush() {
-                        if (respFuture.isCompletedExceptionally()) {
-                            respFuture.getNow(null); // throw the exception now
-                        }
-                        if (!this.buf.isEmpty()) {
-                            reqObserver.onNext(this.buf.stream());
-                            this.buf.clear();
-                        }
-                        return this;
-                    }
-
-                    @Override
-                    public StreamWriteBuf<Rows, WriteOk> writeAndFlush(final Collection<Rows> c) {
-                        flush(); // flush the previous write
-                        reqObserver.onNext(c.stream());
-                        return this;
-                    }
+                .thenApply(reqObserver -> new FlowControlledStreamWriteBuf(metric, this, reqObserver, respFuture,
+                        this.opts.getStreamWriteMaxOutboundBytes(), this.opts.getStreamWriteFlushRows(),
+                        this.opts.getStreamWriteFlushBytes())) //
+                .join();
+    }
 
-                    @Override
-                    public CompletableFuture<WriteOk> completed() {
-                        flush();
-                        reqObserver.onCompleted();
-                        return respFuture;
-                    }
-                }).join();
+    @Override
+    public StreamWriteBuf<Rows, WriteOk> streamWrite(final Context ctx) {
+        return new RoutedStreamWriteBuf(this, this.routerClient, ctx, this.asyncPool);
     }
 
     private CompletableFuture<Result<WriteOk, Err>> write0(final Collection<Rows> data, //
@@ -203,8 +484,16 @@ public class WriteClient implements Write, Lifecycle<WriteOptions>, Display {
 
         InnerMetrics.metricsNumPerWrite().update(metrics.size());
 
+        final Span span = ctx.getSpan();
+        if (span != null) {
+            span.retried(retries);
+            if (retries == 0) {
+                span.setMetrics(metrics.size());
+            }
+        }
+
         // 1. Get routes
-        return this.routerClient.routeFor(metrics)
+        return Span.traced(span, Span.Phase.Route, this.routerClient.routeFor(metrics))
                 // 2. Split data by route info and write to DB
                 .thenComposeAsync(routes -> Utils.splitDataByRoute(data, routes).entrySet().stream()
                         // Write to database
@@ -213,50 +502,169 @@ public class WriteClient implements Write, Lifecycle<WriteOptions>, Display {
                         .reduce((f1, f2) -> f1.thenCombineAsync(f2, Utils::combineResult, this.asyncPool))
                         .orElse(Utils.completedCf(WriteOk.emptyOk().mapToResult())), this.asyncPool)
                 // 3. If failed, refresh route info and retry on INVALID_ROUTE
-                .thenComposeAsync(r -> {
-                    if (r.isOk()) {
-                        LOG.debug("Success to write to {}, ok={}.", Utils.DB_NAME, r.getOk());
-                        return Utils.completedCf(r);
-                    }
+                .thenComposeAsync(r -> retryIfFailed(r, ctx, retries), this.asyncPool);
+    }
 
-                    final Err err = r.getErr();
-                    LOG.warn("Failed to write to {}, retries={}, err={}.", Utils.DB_NAME, retries, err);
-                    if (retries + 1 > this.opts.getMaxRetries()) {
-                        LOG.error("Retried {} times still failed.", retries);
-                        return Utils.completedCf(r);
-                    }
+    private CompletableFuture<Result<WriteOk, Err>> retryIfFailed(final Result<WriteOk, Err> r, //
+                                                                  final Context ctx, //
+                                                                  final int retries) {
+        if (r.isOk()) {
+            LOG.debug("Success to write to {}, ok={}.", Utils.DB_NAME, r.getOk());
+            return Utils.completedCf(r);
+        }
+
+        final Err err = r.getErr();
+        LOG.warn("Failed to write to {}, retries={}, err={}.", Utils.DB_NAME, retries, err);
+        if (retries + 1 > this.opts.getMaxRetries()) {
+            LOG.error("Retried {} times still failed.", retries);
+            return Utils.completedCf(r);
+        }
+
+        // Should refresh route table
+        final Set<String> toRefresh = err.stream() //
+                .filter(Utils::shouldRefreshRouteTable) //
+                .flatMap(e -> e.getFailedWriteMetrics().stream()) //
+                .collect(Collectors.toSet());
+
+        // Should retries, the failed requests are resent as they were encoded
+        final List<Storage.WriteRequest> toRetry = err.stream() //
+                .filter(Utils::shouldRetry) //
+                .map(this::failedRequest) //
+                .filter(req -> req.getMetricsCount() > 0) //
+                .collect(Collectors.toList());
+
+        // Should not retries
+        final Optional<Err> noRetryErr = err.stream() //
+                .filter(Utils::shouldNotRetry) //
+                .reduce(Err::combine);
+
+        // Async refresh route info
+        final CompletableFuture<Result<WriteOk, Err>> rwf = this.routerClient.routeRefreshFor(toRefresh)
+                // Even for some data that does not require a refresh of the routing table,
+                // we still wait until the routing table is flushed successfully before
+                // retrying it, in order to give the server a break.
+                .thenComposeAsync(routes -> rewrite0(toRetry, ctx, retries + 1), this.asyncPool);
+
+        return noRetryErr.isPresent() ?
+                rwf.thenApplyAsync(ret -> Utils.combineResult(noRetryErr.get().mapToResult(), ret), this.asyncPool) :
+                rwf.thenApplyAsync(ret -> Utils.combineResult(subOk(err).mapToResult(), ret), this.asyncPool);
+    }
 
-                    // Should refresh route table
-                    final Set<String> toRefresh = err.stream() //
-                            .filter(Utils::shouldRefreshRouteTable) //
-                            .flatMap(e -> e.getFailedWrites().stream()) //
-                            .map(Rows::getMetric) //
-                            .collect(Collectors.toSet());
-
-                    // Should retries
-                    final List<Rows> rowsToRetry = err.stream() //
-                            .filter(Utils::shouldRetry) //
-                            .flatMap(e -> e.getFailedWrites().stream()) //
-                            .collect(Collectors.toList());
-
-                    // Should not retries
-                    final Optional<Err> noRetryErr = err.stream() //
-                            .filter(Utils::shouldNotRetry) //
-                            .reduce(Err::combine);
-
-                    // Async refresh route info
-                    final CompletableFuture<Result<WriteOk, Err>> rwf = this.routerClient.routeRefreshFor(toRefresh)
-                            // Even for some data that does not require a refresh of the routing table,
-                            // we still wait until the routing table is flushed successfully before
-                            // retrying it, in order to give the server a break.
-                            .thenComposeAsync(routes -> write0(rowsToRetry, ctx, retries + 1), this.asyncPool);
-
-                    return noRetryErr.isPresent() ?
-                            rwf.thenApplyAsync(ret -> Utils.combineResult(noRetryErr.get().mapToResult(), ret),
-                                    this.asyncPool) :
-                            rwf.thenApplyAsync(ret -> Utils.combineResult(err.getSubOk().mapToResult(), ret),
-                                    this.asyncPool);
-                }, this.asyncPool);
+    private static WriteOk subOk(final Err err) {
+        // null if all the parts are failed
+        return err.getSubOk() == null ? WriteOk.emptyOk() : err.getSubOk();
+    }
+
+    private Storage.WriteRequest failedRequest(final Err err) {
+        if (err.getFailedRequest() != null) {
+            return err.getFailedRequest();
+        }
+        final Collection<Rows> rows = err.getFailedWrites();
+        if (rows == null || rows.isEmpty()) {
+            return Storage.WriteRequest.getDefaultInstance();
+        }
+        return toWriteRequestObj(rows.stream());
+    }
+
+    /**
+     * Retries the encoded requests.  A request whose metrics are all routed
+     * to the same endpoint is resent as it is, only the metrics of the
+     * requests that span several endpoints are spliced into new requests,
+     * nothing is encoded again.
+     */
+    private CompletableFuture<Result<WriteOk, Err>> rewrite0(final List<Storage.WriteRequest> reqs, //
+                                                             final Context ctx, //
+                                                             final int retries) {
+        InnerMetrics.writeByRetries(retries).mark();
+
+        final Set<String> metrics = reqs.stream() //
+                .flatMap(req -> req.getMetricsList().stream()) //
+                .map(Storage.WriteMetric::getMetric) //
+                .collect(Collectors.toSet());
+
+        final Span span = ctx.getSpan();
+        if (span != null) {
+            span.retried(retries);
+        }
+
+        return Span.traced(span, Span.Phase.Route, this.routerClient.routeFor(metrics))
+                .thenComposeAsync(routes -> regroupByRoute(reqs, routes).entrySet().stream() //
+                        .flatMap(e -> e.getValue().stream().map(req -> writeTo0(e.getKey(), req, ctx.copy(), retries))) //
+                        .reduce((f1, f2) -> f1.thenCombineAsync(f2, Utils::combineResult, this.asyncPool)) //
+                        .orElse(Utils.completedCf(WriteOk.emptyOk().mapToResult())), this.asyncPool)
+                .thenComposeAsync(r -> retryIfFailed(r, ctx, retries), this.asyncPool);
+    }
+
+    private Map<Endpoint, List<Storage.WriteRequest>> regroupByRoute(final List<Storage.WriteRequest> reqs, //
+                                                                     final Map<String, Route> routes) {
+        final Map<Endpoint, List<Storage.WriteRequest>> regrouped = new HashMap<>();
+        final List<Storage.WriteMetric> toSplice = new ArrayList<>();
+        for (final Storage.WriteRequest req : reqs) {
+            final Endpoint endpoint = singleEndpoint(req, routes);
+            if (endpoint != null) {
+                InnerMetrics.retryReused().mark();
+                regrouped.computeIfAbsent(endpoint, ep -> new ArrayList<>()).add(req);
+            } else {
+                toSplice.addAll(req.getMetricsList());
+            }
+        }
+
+        if (!toSplice.isEmpty()) {
+            InnerMetrics.retrySpliced().mark(toSplice.size());
+            Utils.splitMetricsByRoute(toSplice, routes).forEach((endpoint, wms) -> toWriteRequests(endpoint, wms) //
+                    .forEach(regrouped.computeIfAbsent(endpoint, ep -> new ArrayList<>())::add));
+        }
+        return regrouped;
+    }
+
+    /**
+     * Returns the endpoint if all the metrics of the request are routed to
+     * it, otherwise returns null.
+     */
+    private static Endpoint singleEndpoint(final Storage.WriteRequest req, final Map<String, Route> routes) {
+        Endpoint endpoint = null;
+        for (final Storage.WriteMetric wm : req.getMetricsList()) {
+            final Route route = routes.get(wm.getMetric());
+            if (route == null) {
+                return null;
+            }
+            if (endpoint == null) {
+                endpoint = route.getEndpoint();
+            } else if (!endpoint.equals(route.getEndpoint())) {
+                return null;
+            }
+        }
+        return endpoint;
+    }
+
+    /**
+     * Splices the encoded metrics into requests of at most `maxWriteSize`
+     * rows and the target bytes of the endpoint, a metric is never split.
+     */
+    private Stream<Storage.WriteRequest> toWriteRequests(final Endpoint endpoint, final List<Storage.WriteMetric> wms) {
+        final int maxWriteSize = this.opts.getMaxWriteSize();
+        final long maxBytes = targetBytes(endpoint);
+        final Stream.Builder<Storage.WriteRequest> reqs = Stream.builder();
+        Storage.WriteRequest.Builder wrBui = Storage.WriteRequest.newBuilder();
+        int count = 0;
+        long bytes = 0;
+        for (final Storage.WriteMetric wm : wms) {
+            final int rc = Utils.rowCount(wm);
+            final long b = wm.getSerializedSize();
+            if (count > 0 && (count + rc > maxWriteSize || bytes + b > maxBytes)) {
+                reqs.add(wrBui.build());
+                wrBui = Storage.WriteRequest.newBuilder();
+                count = 0;
+                bytes = 0;
+            }
+            wrBui.addMetrics(wm);
+            count += rc;
+            bytes += b;
+        }
+        if (count > 0 || wrBui.getMetricsCount() > 0) {
+            reqs.add(wrBui.build());
+        }
+        return reqs.build();
     }
 
     private CompletableFuture<Result<WriteOk, Err>> writeTo(final Endpoint endpoint, //
@@ -264,25 +672,40 @@ public class WriteClient implements Write, Lifecycle<WriteOptions>, Display {
                                                             final Context ctx, //
                                                             final int retries) {
         // The cost is worth it
-        final int rowCount = data.stream() //
-                .map(Rows::getRowCount) //
-                .reduce(0, Integer::sum);
         final int maxWriteSize = this.opts.getMaxWriteSize();
-        if (rowCount <= maxWriteSize) {
+        final long maxBytes = targetBytes(endpoint);
+        final boolean bySize = maxBytes < Long.MAX_VALUE;
+        final long[] estimated = bySize ? new long[data.size()] : null;
+        int rowCount = 0;
+        long bytes = 0;
+        int i = 0;
+        for (final Rows rs : data) {
+            rowCount += rs.getRowCount();
+            if (bySize) {
+                bytes += estimated[i++] = Utils.estimateBytes(rs);
+            }
+        }
+        if (rowCount <= maxWriteSize && bytes <= maxBytes) {
             return writeTo0(endpoint, data, ctx, retries);
         }
 
+        // Encode the parts in parallel for a large write, each part is sent as soon as it is encoded
+        final int threshold = this.opts.getParallelEncodeThreshold();
+        final boolean parallel = this.encodePool != null && threshold > 0 && rowCount >= threshold;
+
         final Stream.Builder<CompletableFuture<Result<WriteOk, Err>>> fs = Stream.builder();
         final PartBuf partBuf = new PartBuf();
+        i = 0;
         for (final Rows rs : data) {
             final int rc = rs.getRowCount();
-            if (partBuf.isNotEmpty() && partBuf.preAdd(rc) > maxWriteSize) {
-                fs.add(writeTo0(endpoint, partBuf.collectAndReset(), ctx.copy(), retries));
+            final long b = bySize ? estimated[i++] : 0;
+            if (partBuf.isNotEmpty() && (partBuf.preAdd(rc) > maxWriteSize || partBuf.preAddBytes(b) > maxBytes)) {
+                fs.add(writePartTo(endpoint, partBuf.collectAndReset(), ctx.copy(), retries, parallel));
             }
-            partBuf.add(rs);
+            partBuf.add(rs, b);
         }
         if (partBuf.isNotEmpty()) {
-            fs.add(writeTo0(endpoint, partBuf.collectAndReset(), ctx.copy(), retries));
+            fs.add(writePartTo(endpoint, partBuf.collectAndReset(), ctx.copy(), retries, parallel));
         }
 
         return fs.build() //
@@ -293,19 +716,29 @@ public class WriteClient implements Write, Lifecycle<WriteOptions>, Display {
     private static class PartBuf {
         private Collection<Rows> buf;
         private int              count;
+        private long             bytes;
 
         public void add(final Rows rs) {
+            add(rs, 0);
+        }
+
+        public void add(final Rows rs, final long estimatedBytes) {
             if (this.buf == null) {
                 this.buf = Spines.newBuf();
             }
             this.buf.add(rs);
             this.count += rs.getRowCount();
+            this.bytes += estimatedBytes;
         }
 
         public int preAdd(final int c) {
             return this.count + c;
         }
 
+        public long preAddBytes(final long b) {
+            return this.bytes + b;
+        }
+
         public boolean isNotEmpty() {
             return this.count > 0;
         }
@@ -315,33 +748,80 @@ public class WriteClient implements Write, Lifecycle<WriteOptions>, Display {
             // Cannot reuse the buf, outside will reference it until the response arrives.
             this.buf = null;
             this.count = 0;
+            this.bytes = 0;
             return ret;
         }
     }
 
+    private CompletableFuture<Result<WriteOk, Err>> writePartTo(final Endpoint endpoint, //
+                                                                final Collection<Rows> data, //
+                                                                final Context ctx, //
+                                                                final int retries, //
+                                                                final boolean parallel) {
+        if (!parallel) {
+            return writeTo0(endpoint, data, ctx, retries);
+        }
+        InnerMetrics.parallelEncoded().mark();
+        final Span span = ctx.getSpan();
+        return CompletableFuture.supplyAsync(() -> {
+            final long encodeStart = Span.tick(span);
+            final Storage.WriteRequest req = toWriteRequestObj(data.stream());
+            Span.record(span, Span.Phase.Encode, encodeStart);
+            return req;
+        }, this.encodePool) //
+                .thenCompose(req -> writeTo0(endpoint, req, ctx, retries));
+    }
+
     private CompletableFuture<Result<WriteOk, Err>> writeTo0(final Endpoint endpoint, //
                                                              final Collection<Rows> data, //
                                                              final Context ctx, //
                                                              final int retries) {
-        final CompletableFuture<Storage.WriteResponse> wrf = this.routerClient.invoke(endpoint, //
-                toWriteRequestObj(data.stream()), //
-                ctx.with("retries", retries) // server can use this in metrics
+        final Span span = ctx.getSpan();
+        final long encodeStart = Span.tick(span);
+        final Storage.WriteRequest req = toWriteRequestObj(data.stream());
+        Span.record(span, Span.Phase.Encode, encodeStart);
+        return writeTo0(endpoint, req, ctx, retries);
+    }
+
+    private CompletableFuture<Result<WriteOk, Err>> writeTo0(final Endpoint endpoint, //
+                                                             final Storage.WriteRequest req, //
+                                                             final Context ctx, //
+                                                             final int retries) {
+        final Span span = ctx.getSpan();
+        // the size is memoized, it's not computed again on marshalling
+        final int bytes = req.getSerializedSize();
+        InnerMetrics.requestBytes().update(bytes);
+        if (span != null) {
+            span.rpc(endpoint, bytes);
+        }
+
+        final long startNanos = System.nanoTime();
+        CompletableFuture<Storage.WriteResponse> wrf = this.routerClient.invoke(endpoint, //
+                req, //
+                ctx.with(Context.KEY_RETRIES, retries) // server can use this in metrics
         );
+        final WriteSizeController sc = this.sizeController;
+        if (sc != null && sc.isAdaptive()) {
+            wrf = wrf.whenComplete((resp, err) -> sc.onResult(endpoint, bytes, System.nanoTime() - startNanos,
+                    err != null || isOverloaded(resp.getHeader().getCode())));
+        }
 
-        return wrf.thenApplyAsync(resp -> Utils.toResult(resp, endpoint, data), this.asyncPool);
+        return Span.tracedApplyAsync(span, Span.Phase.Rpc, wrf, Span.Phase.Decode,
+                resp -> Utils.toResult(resp, endpoint, req), this.asyncPool);
     }
 
-    private Observer<Stream<Rows>> streamWriteTo(final Route route, //
-                                                 final Context ctx, //
-                                                 final Observer<WriteOk> respObserver) {
-        final Observer<Storage.WriteRequest> rpcObs = this.routerClient.invokeClientStreaming(route.getEndpoint(), //
+    private Observer<Storage.WriteRequest> streamWriteTo(final Route route, //
+                                                         final Context ctx, //
+                                                         final Observer<WriteOk> respObserver) {
+        return this.routerClient.invokeClientStreaming(route.getEndpoint(), //
                 Storage.WriteRequest.getDefaultInstance(), //
                 ctx, //
                 new Observer<Storage.WriteResponse>() {
 
                     @Override
                     public void onNext(final Storage.WriteResponse value) {
-                        final Result<WriteOk, Err> ret = Utils.toResult(value, route.getEndpoint(), null);
+                        final Result<WriteOk, Err> ret = Utils.toResult(value, route.getEndpoint(),
+                                (Storage.WriteRequest) null);
                         if (ret.isOk()) {
                             respObserver.onNext(ret.getOk());
                         } else {
@@ -359,34 +839,6 @@ public class WriteClient implements Write, Lifecycle<WriteOptions>, Display {
                         respObserver.onCompleted();
                     }
                 });
-
-        return new Observer<Stream<Rows>>() {
-
-            private final String metric = route.getMetric();
-
-            @Override
-            public void onNext(final Stream<Rows> value) {
-                final Stream<Rows> data = value.filter(rs -> {
-                    if (this.metric.equals(rs.getMetric())) {
-                        return true;
-                    }
-                    throw new StreamException(
-                            String.format("Invalid metric %s, only can write %s.", rs.getMetric(), this.metric));
-                });
-
-                rpcObs.onNext(toWriteRequestObj(data));
-            }
-
-            @Override
-            public void onError(final Throwable err) {
-                rpcObs.onError(err);
-            }
-
-            @Override
-            public void onCompleted() {
-                rpcObs.onCompleted();
-            }
-        };
     }
 
     private static class NameDict {
@@ -460,14 +912,24 @@ public class WriteClient implements Write, Lifecycle<WriteOptions>, Display {
             final Storage.WriteEntry.Builder weyBui = Storage.WriteEntry.newBuilder();
 
             final NameDict tagDict = tp3.getTagDict();
-            rs.getSeries().getTags().forEach((tagK, tagV) -> {
-                if (Value.isNull(tagV)) {
-                    return;
+            final Series.EncodedTags encodedTags = rs.getSeries().getEncodedTags();
+            if (encodedTags != null) {
+                // fast path, the series was interned and its tags have been encoded
+                for (int i = 0; i < encodedTags.size(); i++) {
+                    final Storage.Tag.Builder tBui = Storage.Tag.newBuilder()
+                            .setNameIndex(tagDict.insert(encodedTags.nameAt(i))).setValue(encodedTags.valueAt(i));
+                    weyBui.addTags(tBui.build());
                 }
-                final Storage.Tag.Builder tBui = Storage.Tag.newBuilder().setNameIndex(tagDict.insert(tagK))
-                        .setValue(Utils.toProtoValue(tagV));
-                weyBui.addTags(tBui.build());
-            });
+            } else {
+                rs.getSeries().getTags().forEach((tagK, tagV) -> {
+                    if (Value.isNull(tagV)) {
+                        return;
+                    }
+                    final Storage.Tag.Builder tBui = Storage.Tag.newBuilder().setNameIndex(tagDict.insert(tagK))
+                            .setValue(Utils.toProtoValue(tagV));
+                    weyBui.addTags(tBui.build());
+                });
+            }
 
             final NameDict fieldDict = tp3.getFieldDict();
             rs.getFields().forEach((ts, fields) -> {
@@ -498,8 +960,17 @@ public class WriteClient implements Write, Lifecycle<WriteOptions>, Display {
                 .println(this.opts.getMaxRetries()) //
                 .print("maxWriteSize=") //
                 .println(this.opts.getMaxWriteSize()) //
+                .print("writeSizeController=") //
+                .println(this.sizeController) //
+                .print("parallelEncodeThreshold=") //
+                .println(this.opts.getParallelEncodeThreshold()) //
                 .print("asyncPool=") //
                 .println(this.asyncPool);
+
+        if (this.spool != null) {
+            out.println("");
+            this.spool.display(out);
+        }
     }
 
     @Override
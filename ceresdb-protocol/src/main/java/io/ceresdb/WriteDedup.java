@@ -0,0 +1,408 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.common.util.Requires;
+import io.ceresdb.models.FieldValue;
+import io.ceresdb.models.Rows;
+import io.ceresdb.models.Series;
+import io.ceresdb.models.TagValue;
+import io.ceresdb.models.Value;
+import com.codahale.metrics.Meter;
+
+/**
+ * Drops the duplicate points of the writes before encoding.
+ *
+ * <p>The points of a write with the same series and timestamp are merged
+ * into one, the fields of the later one win.  Then a point is dropped if
+ * the same point (the series, the timestamp and all the fields are equal)
+ * has been written recently, such as the retries of an at-least-once
+ * upstream.
+ *
+ * <p>The recent points are remembered by the 64 bits hash of the series,
+ * the timestamp and the 64 bits fingerprint of the fields, in a fixed size
+ * open addressing table, the oldest point of the probed slots is evicted
+ * when they are all taken.  A point is remembered once it is going to be
+ * written, and forgotten if the write failed, so it can be written again.
+ * A duplicate of a point still in flight is dropped too, but its write
+ * waits for the original one, see {@link Deduped#awaitOriginals()}, and
+ * writes it again if the original one failed.
+ *
+ * @author jiachun.fjc
+ */
+final class WriteDedup {
+
+    private static final Meter DROPPED = MetricsUtil.meter("write_dedup_dropped_points");
+    private static final Meter MERGED  = MetricsUtil.meter("write_dedup_merged_points");
+
+    private static final int PROBES = 8;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME  = 0x100000001b3L;
+
+    private final int mask;
+    // guarded by this, seq == 0 means the slot is empty
+    private final long[] seriesHashes;
+    private final long[] timestamps;
+    private final long[] fingerprints;
+    private final long[] seqs;
+    // the write in flight of the point, null once it has been written
+    private final Object[] writes;
+    private long           seq;
+
+    WriteDedup(int maxPoints) {
+        Requires.requireTrue(maxPoints > 0, "maxPoints must > 0");
+        final int capacity = Integer.highestOneBit(Math.max(maxPoints, PROBES) - 1) << 1;
+        this.mask = capacity - 1;
+        this.seriesHashes = new long[capacity];
+        this.timestamps = new long[capacity];
+        this.fingerprints = new long[capacity];
+        this.seqs = new long[capacity];
+        this.writes = new Object[capacity];
+    }
+
+    /**
+     * Merges the points of the same series and timestamp, and drops the
+     * points written recently.
+     *
+     * @param data the rows to write
+     * @return the rows to write after dedup
+     */
+    Deduped dedup(final Collection<Rows> data) {
+        final Collection<Rows> merged = merge(data);
+
+        int points = 0;
+        for (final Rows rs : merged) {
+            points += rs.getRowCount();
+        }
+        final long[] keys = new long[points * 3];
+        int n = 0;
+        for (final Rows rs : merged) {
+            final long sh = seriesHash(rs.getSeries());
+            for (final Map.Entry<Long, Map<String, FieldValue>> e : rs.getFields().entrySet()) {
+                keys[n++] = sh;
+                keys[n++] = e.getKey();
+                keys[n++] = fingerprint(e.getValue());
+            }
+        }
+
+        final CompletableFuture<Boolean> written = new CompletableFuture<>();
+        // the duplicates written or in flight
+        final boolean[] dups = new boolean[points];
+        final boolean[] waits = new boolean[points];
+        final Set<CompletableFuture<Boolean>> originals = new HashSet<>();
+        int dropped = 0;
+        int waiting = 0;
+        synchronized (this) {
+            for (int i = 0; i < points; i++) {
+                final int slot = remember(keys[i * 3], keys[i * 3 + 1], keys[i * 3 + 2], written);
+                if (slot < 0) {
+                    continue;
+                }
+                dups[i] = true;
+                dropped++;
+                @SuppressWarnings("unchecked")
+                final CompletableFuture<Boolean> original = (CompletableFuture<Boolean>) this.writes[slot];
+                if (original != null) {
+                    waits[i] = true;
+                    waiting++;
+                    originals.add(original);
+                }
+            }
+        }
+        if (dropped == 0) {
+            return new Deduped(merged, keys, 0, written, Collections.emptyList(), Collections.emptyList());
+        }
+
+        DROPPED.mark(dropped);
+        final List<Rows> rows = new ArrayList<>(merged.size());
+        final List<Rows> waitingRows = new ArrayList<>(waiting == 0 ? 0 : merged.size());
+        final long[] kept = new long[(points - dropped) * 3];
+        int i = 0;
+        int k = 0;
+        for (final Rows rs : merged) {
+            Rows.Builder builder = null;
+            Rows.Builder waitingBuilder = null;
+            for (final Map.Entry<Long, Map<String, FieldValue>> e : rs.getFields().entrySet()) {
+                if (!dups[i]) {
+                    if (builder == null) {
+                        builder = Rows.newBuilder(rs.getSeries());
+                    }
+                    builder.fields(e.getKey(), e.getValue());
+                    System.arraycopy(keys, i * 3, kept, k, 3);
+                    k += 3;
+                } else if (waits[i]) {
+                    if (waitingBuilder == null) {
+                        waitingBuilder = Rows.newBuilder(rs.getSeries());
+                    }
+                    waitingBuilder.fields(e.getKey(), e.getValue());
+                }
+                i++;
+            }
+            if (builder != null) {
+                rows.add(builder.build());
+            }
+            if (waitingBuilder != null) {
+                waitingRows.add(waitingBuilder.build());
+            }
+        }
+        return new Deduped(rows, kept, dropped, written, originals, waitingRows);
+    }
+
+    /**
+     * Confirms the points of a succeeded write, so their duplicates are
+     * dropped without waiting.
+     *
+     * @param deduped the result of {@link #dedup(Collection)}
+     */
+    void written(final Deduped deduped) {
+        synchronized (this) {
+            final long[] keys = deduped.keys;
+            for (int i = 0; i < keys.length; i += 3) {
+                final int slot = find(keys[i], keys[i + 1]);
+                if (slot >= 0 && this.writes[slot] == deduped.written) {
+                    this.writes[slot] = null;
+                }
+            }
+        }
+        deduped.written.complete(true);
+    }
+
+    /**
+     * Forgets the points of a failed write, unless they have been
+     * remembered again by another write.
+     *
+     * @param deduped the result of {@link #dedup(Collection)}
+     */
+    void release(final Deduped deduped) {
+        synchronized (this) {
+            final long[] keys = deduped.keys;
+            for (int i = 0; i < keys.length; i += 3) {
+                final int slot = find(keys[i], keys[i + 1]);
+                if (slot >= 0 && this.writes[slot] == deduped.written) {
+                    this.seqs[slot] = 0;
+                    this.writes[slot] = null;
+                }
+            }
+        }
+        deduped.written.complete(false);
+    }
+
+    /**
+     * Returns -1 if the point is remembered, or the slot of the same point
+     * remembered already.
+     */
+    private int remember(final long sh, final long ts, final long fp, final CompletableFuture<Boolean> written) {
+        final int start = index(sh, ts);
+        int victim = -1;
+        for (int p = 0; p < PROBES; p++) {
+            final int slot = (start + p) & this.mask;
+            final long s = this.seqs[slot];
+            if (s != 0 && this.seriesHashes[slot] == sh && this.timestamps[slot] == ts) {
+                if (this.fingerprints[slot] == fp) {
+                    return slot;
+                }
+                // the last writer wins
+                victim = slot;
+                break;
+            }
+            if (victim < 0 || s < this.seqs[victim]) {
+                victim = slot;
+            }
+        }
+        this.seriesHashes[victim] = sh;
+        this.timestamps[victim] = ts;
+        this.fingerprints[victim] = fp;
+        this.seqs[victim] = ++this.seq;
+        this.writes[victim] = written;
+        return -1;
+    }
+
+    private int find(final long sh, final long ts) {
+        final int start = index(sh, ts);
+        for (int p = 0; p < PROBES; p++) {
+            final int slot = (start + p) & this.mask;
+            if (this.seqs[slot] != 0 && this.seriesHashes[slot] == sh && this.timestamps[slot] == ts) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int index(final long sh, final long ts) {
+        return (int) mix(sh ^ mix(ts)) & this.mask;
+    }
+
+    private static Collection<Rows> merge(final Collection<Rows> data) {
+        final Set<Series> series = new HashSet<>();
+        for (final Rows rs : data) {
+            if (!series.add(rs.getSeries())) {
+                return merge0(data);
+            }
+        }
+        return data; // fast path, all the series are distinct
+    }
+
+    private static Collection<Rows> merge0(final Collection<Rows> data) {
+        final Map<Series, Rows.Builder> builders = new LinkedHashMap<>();
+        int points = 0;
+        for (final Rows rs : data) {
+            points += rs.getRowCount();
+            final Rows.Builder builder = builders.computeIfAbsent(rs.getSeries(), Rows::newBuilder);
+            // copy the maps, the fields of the given rows must not be changed
+            rs.getFields().forEach((ts, fields) -> builder.fields(ts, new LinkedHashMap<>(fields)));
+        }
+        final List<Rows> rows = new ArrayList<>(builders.size());
+        int merged = points;
+        for (final Rows.Builder builder : builders.values()) {
+            final Rows rs = builder.build();
+            merged -= rs.getRowCount();
+            rows.add(rs);
+        }
+        if (merged > 0) {
+            MERGED.mark(merged);
+        }
+        return rows;
+    }
+
+    static long seriesHash(final Series series) {
+        long h = hash(FNV_OFFSET, series.getMetric());
+        for (final Map.Entry<String, TagValue> e : series.getTags().entrySet()) {
+            h = hash(h, e.getKey());
+            h = hashValue(h, e.getValue());
+        }
+        return h;
+    }
+
+    /**
+     * Order independent, the field maps may be in any order.
+     */
+    static long fingerprint(final Map<String, FieldValue> fields) {
+        long fp = fields.size();
+        for (final Map.Entry<String, FieldValue> e : fields.entrySet()) {
+            fp += mix(hashValue(hash(FNV_OFFSET, e.getKey()), e.getValue()));
+        }
+        return fp;
+    }
+
+    private static long hashValue(long h, final Value v) {
+        h = (h ^ v.getType().ordinal()) * FNV_PRIME;
+        final Object o = v.getValue();
+        if (o == null) {
+            return h * FNV_PRIME;
+        }
+        if (o instanceof String) {
+            return hash(h, (String) o);
+        }
+        if (o instanceof byte[]) {
+            for (final byte b : (byte[]) o) {
+                h = (h ^ (b & 0xff)) * FNV_PRIME;
+            }
+            return (h ^ 0xff) * FNV_PRIME;
+        }
+        final long bits;
+        if (o instanceof Double) {
+            bits = Double.doubleToLongBits((Double) o);
+        } else if (o instanceof Float) {
+            bits = Float.floatToIntBits((Float) o);
+        } else if (o instanceof Boolean) {
+            bits = (Boolean) o ? 1 : 0;
+        } else {
+            bits = ((Number) o).longValue();
+        }
+        return (h ^ mix(bits)) * FNV_PRIME;
+    }
+
+    private static long hash(long h, final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * FNV_PRIME;
+        }
+        // terminates the string, so ("ab", "c") differs from ("a", "bc")
+        return (h ^ 0xffff) * FNV_PRIME;
+    }
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+        x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return x ^ (x >>> 33);
+    }
+
+    static final class Deduped {
+        private final Collection<Rows> rows;
+        // series hash, timestamp and fingerprint of the points to write
+        private final long[] keys;
+        private final int    dropped;
+        // completed with whether the rows have been written
+        private final CompletableFuture<Boolean> written;
+        // the writes in flight of the dropped points, and those points
+        private final Collection<CompletableFuture<Boolean>> originals;
+        private final Collection<Rows>                       waitingRows;
+
+        Deduped(Collection<Rows> rows, long[] keys, int dropped, CompletableFuture<Boolean> written,
+                Collection<CompletableFuture<Boolean>> originals, Collection<Rows> waitingRows) {
+            this.rows = rows;
+            this.keys = keys;
+            this.dropped = dropped;
+            this.written = written;
+            this.originals = originals;
+            this.waitingRows = waitingRows;
+        }
+
+        Collection<Rows> getRows() {
+            return rows;
+        }
+
+        /**
+         * Returns the number of the dropped points, including the ones whose
+         * original writes are still in flight.
+         */
+        int getDropped() {
+            return dropped;
+        }
+
+        /**
+         * Returns the dropped points whose original writes were in flight,
+         * they need to be written again if {@link #awaitOriginals()} is false.
+         */
+        Collection<Rows> getWaitingRows() {
+            return waitingRows;
+        }
+
+        /**
+         * Completes with true if all the original writes of the dropped
+         * points have succeeded.
+         */
+        CompletableFuture<Boolean> awaitOriginals() {
+            if (this.originals.isEmpty()) {
+                return Utils.completedCf(true);
+            }
+            return CompletableFuture.allOf(this.originals.toArray(new CompletableFuture[0]))
+                    .thenApply(v -> this.originals.stream().allMatch(CompletableFuture::join));
+        }
+    }
+}
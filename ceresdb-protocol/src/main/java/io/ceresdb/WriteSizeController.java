@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.ceresdb.common.Endpoint;
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.common.util.Requires;
+import com.codahale.metrics.Meter;
+
+/**
+ * Adjusts the target bytes of the write requests to each endpoint by AIMD.
+ *
+ * <p>A write is split into requests of at most the target bytes.  The
+ * target starts at `maxBytes`, it's halved (not lower than `minBytes`) if a
+ * request failed or took longer than the latency target, and grows by
+ * `minBytes` (not higher than `maxBytes`) if a request that used at least
+ * half of the target was fast, so the small requests can not grow it.
+ *
+ * <p>The target is fixed at `maxBytes` if the latency target is not set.
+ *
+ * @author jiachun.fjc
+ */
+final class WriteSizeController {
+
+    private static final Meter DECREASED = MetricsUtil.meter("write_size_target_decreased");
+
+    private final long                                maxBytes;
+    private final long                                minBytes;
+    private final long                                latencyTargetNanos;
+    private final ConcurrentMap<Endpoint, AtomicLong> targets = new ConcurrentHashMap<>();
+
+    WriteSizeController(long maxBytes, long minBytes, long latencyTargetMs) {
+        Requires.requireTrue(maxBytes > 0, "maxBytes must > 0");
+        this.maxBytes = maxBytes;
+        this.minBytes = Math.max(1, Math.min(minBytes, maxBytes));
+        this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMs);
+    }
+
+    boolean isAdaptive() {
+        return this.latencyTargetNanos > 0;
+    }
+
+    long targetBytes(final Endpoint endpoint) {
+        if (!isAdaptive()) {
+            return this.maxBytes;
+        }
+        final AtomicLong target = this.targets.get(endpoint);
+        return target == null ? this.maxBytes : target.get();
+    }
+
+    /**
+     * Adjusts the target of the endpoint by the observed request.
+     *
+     * @param endpoint     the endpoint of the request
+     * @param bytes        the encoded bytes of the request
+     * @param latencyNanos the latency of the request
+     * @param failed       whether the request failed
+     */
+    void onResult(final Endpoint endpoint, final long bytes, final long latencyNanos, final boolean failed) {
+        if (!isAdaptive()) {
+            return;
+        }
+        final AtomicLong target = this.targets.computeIfAbsent(endpoint, ep -> new AtomicLong(this.maxBytes));
+        if (failed || latencyNanos > this.latencyTargetNanos) {
+            if (target.getAndUpdate(t -> Math.max(this.minBytes, t >> 1)) > this.minBytes) {
+                DECREASED.mark();
+            }
+        } else {
+            target.updateAndGet(t -> bytes << 1 >= t ? Math.min(this.maxBytes, t + this.minBytes) : t);
+        }
+    }
+
+    Map<Endpoint, AtomicLong> targets() {
+        return this.targets;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteSizeController{" + //
+               "maxBytes=" + maxBytes + //
+               ", minBytes=" + minBytes + //
+               ", latencyTargetNanos=" + latencyTargetNanos + //
+               ", targets=" + targets + //
+               '}';
+    }
+}
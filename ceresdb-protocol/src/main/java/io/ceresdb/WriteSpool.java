@@ -0,0 +1,763 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.ceresdb.common.Display;
+import io.ceresdb.common.Lifecycle;
+import io.ceresdb.common.util.Clock;
+import io.ceresdb.common.util.Files;
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.common.util.Requires;
+import io.ceresdb.common.util.SharedScheduledPool;
+import io.ceresdb.options.WriteOptions;
+import io.ceresdb.proto.Storage;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * A durable local write-ahead spool, the failed or throttled writes are
+ * appended to memory-mapped and segment-rotated files as encoded
+ * {@link Storage.WriteRequest}s, and replayed in background with rate
+ * limiting once the server recovers.
+ *
+ * <p>Each record is laid out as:
+ * <pre>
+ * | length(4B) | timestamp(8B) | rows(4B) | crc32(4B) | encoded WriteRequest(length B) |
+ * </pre>
+ * A replayed record is marked as consumed by negating its length in place,
+ * a segment file is deleted once all of its records have been consumed.
+ * A zero length or a corrupted record marks the end of a segment.
+ *
+ * <p>The replay is at-least-once, a record may be replayed again if the
+ * process crashed before its consumed mark reached the storage device.
+ *
+ * @author jiachun.fjc
+ */
+public class WriteSpool implements Lifecycle<WriteOptions>, Display {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteSpool.class);
+
+    private static final String SEGMENT_PREFIX   = "spool_";
+    private static final String SEGMENT_SUFFIX   = ".seg";
+    private static final int    HEADER_SIZE      = 4 + 8 + 4 + 4;
+    private static final long   REPLAY_PERIOD_MS = 100;
+    private static final long   FSYNC_PERIOD_MS  = 1000;
+
+    private static final SharedScheduledPool  REPLAYER_POOL = Utils.getSharedScheduledPool("write_spool_replayer", 1);
+    private static final Consumer<ByteBuffer> UNMAPPER      = newUnmapper();
+
+    /**
+     * When to force the spooled data to the storage device.
+     */
+    public enum FsyncPolicy {
+        Never, // leave it to the operating system
+        EveryAppend, // after every append, the safest and the slowest
+        Periodic // every second
+    }
+
+    private final Function<Storage.WriteRequest, CompletableFuture<Storage.WriteRequest>> replayer;
+
+    private final Deque<Segment> segments  = new ArrayDeque<>();
+    private final AtomicBoolean  replaying = new AtomicBoolean(false);
+
+    private WriteOptions             opts;
+    private File                     dir;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?>       replayFuture;
+    private long                     nextSeq;
+    private long                     pendingBytes;
+    private long                     pendingRows;
+    private double                   replayTokens;
+    private long                     lastRefill;
+    private long                     lastFsync;
+    private boolean                  dirty;
+    private boolean                  shutdown;
+
+    static final class InnerMetrics {
+        static final Meter     APPENDED_ROWS    = MetricsUtil.meter("spool_appended_rows");
+        static final Meter     REJECTED_ROWS    = MetricsUtil.meter("spool_rejected_rows");
+        static final Meter     REPLAYED_ROWS    = MetricsUtil.meter("spool_replayed_rows");
+        static final Meter     REPLAY_FAILED    = MetricsUtil.meter("spool_replay_failed");
+        static final Histogram REPLAY_LAG_MS    = MetricsUtil.histogram("spool_replay_lag_ms");
+        static final Counter   PENDING_BYTES    = MetricsUtil.counter("spool_pending_bytes");
+        static final Counter   PENDING_SEGMENTS = MetricsUtil.counter("spool_pending_segments");
+
+        static Meter appendedRows() {
+            return APPENDED_ROWS;
+        }
+
+        static Meter rejectedRows() {
+            return REJECTED_ROWS;
+        }
+
+        static Meter replayedRows() {
+            return REPLAYED_ROWS;
+        }
+
+        static Meter replayFailed() {
+            return REPLAY_FAILED;
+        }
+
+        static Histogram replayLagMs() {
+            return REPLAY_LAG_MS;
+        }
+
+        static Counter pendingBytes() {
+            return PENDING_BYTES;
+        }
+
+        static Counter pendingSegments() {
+            return PENDING_SEGMENTS;
+        }
+    }
+
+    /**
+     * Creates a spool.
+     *
+     * @param replayer writes the given request to server, returns the part
+     *                 of the request that still needs to be replayed, or
+     *                 null if all has been written
+     */
+    public WriteSpool(Function<Storage.WriteRequest, CompletableFuture<Storage.WriteRequest>> replayer) {
+        this.replayer = Requires.requireNonNull(replayer, "Null.replayer");
+    }
+
+    @Override
+    public boolean init(final WriteOptions opts) {
+        this.opts = Requires.requireNonNull(opts, "WriteSpool.opts");
+        Requires.requireNonNull(opts.getSpoolDir(), "Null.spoolDir");
+        Requires.requireTrue(opts.getSpoolSegmentSize() > HEADER_SIZE, "Too small spoolSegmentSize");
+        Requires.requireTrue(opts.getSpoolMaxSize() >= opts.getSpoolSegmentSize(),
+                "spoolMaxSize must not be less than spoolSegmentSize");
+        try {
+            Files.mkdirIfNotExists(opts.getSpoolDir());
+            this.dir = new File(opts.getSpoolDir()).getAbsoluteFile();
+            recover();
+        } catch (final IOException e) {
+            LOG.error("Fail to open write spool in {}.", opts.getSpoolDir(), e);
+            return false;
+        }
+
+        this.lastRefill = Clock.defaultClock().getTick();
+        this.lastFsync = this.lastRefill;
+        this.scheduler = REPLAYER_POOL.getObject();
+        this.replayFuture = this.scheduler.scheduleWithFixedDelay(this::tick, REPLAY_PERIOD_MS, REPLAY_PERIOD_MS,
+                TimeUnit.MILLISECONDS);
+
+        LOG.info("Write spool has been started in {}, pending rows: {}.", this.dir, this.pendingRows);
+
+        return true;
+    }
+
+    @Override
+    public void shutdownGracefully() {
+        if (this.replayFuture != null) {
+            this.replayFuture.cancel(false);
+            this.replayFuture = null;
+        }
+        if (this.scheduler != null) {
+            REPLAYER_POOL.returnObject(this.scheduler);
+            this.scheduler = null;
+        }
+        synchronized (this) {
+            this.shutdown = true;
+            this.segments.forEach(seg -> {
+                seg.force();
+                seg.release();
+            });
+            this.segments.clear();
+        }
+    }
+
+    /**
+     * Appends the given request to spool.
+     *
+     * @param req the encoded request to spool
+     * @return false if the spool is full
+     */
+    public boolean append(final Storage.WriteRequest req) {
+        return append(Collections.singletonList(req));
+    }
+
+    /**
+     * Appends the given requests to spool, all or nothing.
+     *
+     * @param reqs the encoded requests to spool
+     * @return false if the spool is full, none of the requests is appended
+     */
+    public boolean append(final List<Storage.WriteRequest> reqs) {
+        final List<byte[]> records = new ArrayList<>(reqs.size());
+        int rows = 0;
+        long bytes = 0;
+        for (final Storage.WriteRequest req : reqs) {
+            final byte[] record = req.toByteArray();
+            records.add(record);
+            rows += rowCount(req);
+            bytes += HEADER_SIZE + record.length;
+        }
+
+        synchronized (this) {
+            if (this.shutdown) {
+                LOG.warn("Write spool has been shut down, rejected {} rows.", rows);
+                InnerMetrics.rejectedRows().mark(rows);
+                return false;
+            }
+            if (this.pendingBytes + bytes > this.opts.getSpoolMaxSize()) {
+                LOG.warn("Write spool is full, pendingBytes={}, rejected {} rows.", this.pendingBytes, rows);
+                InnerMetrics.rejectedRows().mark(rows);
+                return false;
+            }
+
+            // opens all the new segments needed before writing anything, so a
+            // failure leaves nothing half appended
+            final Segment last = this.segments.peekLast();
+            int remaining = last == null ? 0 : last.remaining();
+            int newSegments = 0;
+            for (final byte[] record : records) {
+                final int recordSize = HEADER_SIZE + record.length;
+                if (recordSize > this.opts.getSpoolSegmentSize()) {
+                    LOG.warn("Too large spool record: {} bytes, rejected {} rows.", recordSize, rows);
+                    InnerMetrics.rejectedRows().mark(rows);
+                    return false;
+                }
+                if (remaining < recordSize) {
+                    newSegments++;
+                    remaining = this.opts.getSpoolSegmentSize();
+                }
+                remaining -= recordSize;
+            }
+            final Deque<Segment> opened = new ArrayDeque<>(newSegments);
+            try {
+                for (int i = 0; i < newSegments; i++) {
+                    opened.add(openSegment());
+                }
+            } catch (final IOException e) {
+                LOG.error("Fail to create spool segment in {}, rejected {} rows.", this.dir, rows, e);
+                InnerMetrics.rejectedRows().mark(rows);
+                opened.forEach(Segment::release);
+                return false;
+            }
+
+            final List<Segment> touched = new ArrayList<>(newSegments + 1);
+            Segment tail = last;
+            final long now = Clock.defaultClock().getTick();
+            for (int i = 0; i < records.size(); i++) {
+                final byte[] record = records.get(i);
+                if (tail == null || tail.remaining() < HEADER_SIZE + record.length) {
+                    tail = opened.poll();
+                    addSegment(tail);
+                }
+                if (touched.isEmpty() || touched.get(touched.size() - 1) != tail) {
+                    touched.add(tail);
+                }
+                tail.append(record, rowCount(reqs.get(i)), now);
+            }
+            this.pendingBytes += bytes;
+            this.pendingRows += rows;
+            this.dirty = true;
+
+            if (this.opts.getSpoolFsyncPolicy() == FsyncPolicy.EveryAppend) {
+                touched.forEach(Segment::force);
+                this.dirty = false;
+            }
+        }
+
+        InnerMetrics.appendedRows().mark(rows);
+        InnerMetrics.pendingBytes().inc(bytes);
+        return true;
+    }
+
+    public synchronized long pendingRows() {
+        return this.pendingRows;
+    }
+
+    public synchronized long pendingBytes() {
+        return this.pendingBytes;
+    }
+
+    private void tick() {
+        try {
+            periodicFsync();
+            replay();
+        } catch (final Throwable t) {
+            LOG.error("Fail to replay write spool.", t);
+        }
+    }
+
+    private synchronized void periodicFsync() {
+        if (!this.dirty || this.opts.getSpoolFsyncPolicy() != FsyncPolicy.Periodic) {
+            return;
+        }
+        final long now = Clock.defaultClock().getTick();
+        if (now - this.lastFsync < FSYNC_PERIOD_MS) {
+            return;
+        }
+        this.segments.forEach(Segment::force);
+        this.lastFsync = now;
+        this.dirty = false;
+    }
+
+    private void replay() {
+        if (!this.replaying.compareAndSet(false, true)) {
+            return;
+        }
+
+        final Record rec;
+        synchronized (this) {
+            rec = nextRecord();
+            if (rec == null || !tryAcquireTokens(rec.rows)) {
+                this.replaying.set(false);
+                return;
+            }
+        }
+
+        final Storage.WriteRequest req;
+        try {
+            req = Storage.WriteRequest.parseFrom(rec.bytes);
+        } catch (final InvalidProtocolBufferException e) {
+            LOG.error("Discard the corrupted spool record in {}.", rec.segment.file, e);
+            consumed(rec);
+            this.replaying.set(false);
+            return;
+        }
+
+        CompletableFuture<Storage.WriteRequest> f;
+        try {
+            f = this.replayer.apply(req);
+        } catch (final Throwable t) {
+            f = Utils.errorCf(t);
+        }
+
+        f.whenComplete((remaining, err) -> {
+            final boolean done;
+            try {
+                done = err == null && remaining != req && replayed(rec, remaining);
+            } finally {
+                this.replaying.set(false);
+            }
+            if (!done) {
+                if (err != null) {
+                    LOG.warn("Fail to replay spooled write, will try again later.", err);
+                }
+                InnerMetrics.replayFailed().mark();
+                return;
+            }
+            // go on with the next one if there are enough tokens
+            final ScheduledExecutorService s = this.scheduler;
+            if (s != null) {
+                s.execute(this::replay);
+            }
+        });
+    }
+
+    /**
+     * Marks the record as consumed once it has been replayed, the failed part
+     * of it is spooled again.
+     *
+     * @return false if the failed part cannot be spooled, the record is kept
+     *         and retried in the next replay pass
+     */
+    private boolean replayed(final Record rec, final Storage.WriteRequest remaining) {
+        int remainingRows = 0;
+        if (remaining != null && remaining.getMetricsCount() > 0) {
+            // partial success, spools the rest part
+            if (!append(remaining)) {
+                LOG.warn("Fail to spool the rest part of the replayed write, will try again later.");
+                return false;
+            }
+            remainingRows = rowCount(remaining);
+        }
+        InnerMetrics.replayedRows().mark(rec.rows - remainingRows);
+        InnerMetrics.replayLagMs().update(Clock.defaultClock().getTick() - rec.timestamp);
+        consumed(rec);
+        return true;
+    }
+
+    private boolean tryAcquireTokens(final int rows) {
+        final int rate = this.opts.getSpoolReplayRowsPerSecond();
+        if (rate <= 0) {
+            return true;
+        }
+        final long now = Clock.defaultClock().getTick();
+        this.replayTokens = Math.min(rate, this.replayTokens + (now - this.lastRefill) * rate / 1000.0);
+        this.lastRefill = now;
+        // a record larger than the bucket is allowed when the bucket is full
+        if (this.replayTokens >= rows || this.replayTokens >= rate) {
+            this.replayTokens -= rows;
+            return true;
+        }
+        return false;
+    }
+
+    private Record nextRecord() {
+        for (final Segment seg : this.segments) {
+            final Record rec = seg.nextPending();
+            if (rec != null) {
+                return rec;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void consumed(final Record rec) {
+        final Segment seg = rec.segment;
+        if (seg.released) {
+            // the spool has been shut down
+            return;
+        }
+        seg.markConsumed(rec);
+        this.pendingBytes -= rec.size();
+        this.pendingRows -= rec.rows;
+        InnerMetrics.pendingBytes().dec(rec.size());
+
+        if (seg.pending == 0 && seg != this.segments.peekLast()) {
+            this.segments.remove(seg);
+            InnerMetrics.pendingSegments().dec();
+            seg.delete();
+        }
+    }
+
+    private void recover() throws IOException {
+        final File[] files = this.dir
+                .listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, (f1, f2) -> Long.compare(parseSeq(f1), parseSeq(f2)));
+
+        for (final File f : files) {
+            final long seq = parseSeq(f);
+            if (seq < 0) {
+                continue;
+            }
+            final Segment seg = Segment.open(f, this.opts.getSpoolSegmentSize());
+            seg.recover();
+            this.nextSeq = seq + 1;
+            if (seg.pending == 0) {
+                seg.delete();
+                continue;
+            }
+            this.segments.add(seg);
+            this.pendingBytes += seg.pendingBytes;
+            this.pendingRows += seg.pendingRows;
+            InnerMetrics.pendingSegments().inc();
+            InnerMetrics.pendingBytes().inc(seg.pendingBytes);
+        }
+    }
+
+    private Segment openSegment() throws IOException {
+        final long seq = this.nextSeq++;
+        final File f = new File(this.dir, String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+        return Segment.open(f, this.opts.getSpoolSegmentSize());
+    }
+
+    private void addSegment(final Segment seg) {
+        final Segment prev = this.segments.peekLast();
+        this.segments.add(seg);
+        InnerMetrics.pendingSegments().inc();
+        if (prev != null && prev.pending == 0) {
+            // the previous tail has been replayed completely
+            this.segments.remove(prev);
+            InnerMetrics.pendingSegments().dec();
+            prev.delete();
+        }
+    }
+
+    private static long parseSeq(final File f) {
+        final String name = f.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Each {@link Storage.FieldGroup} is a row.
+     */
+    static int rowCount(final Storage.WriteRequest req) {
+        int rows = 0;
+        for (final Storage.WriteMetric wm : req.getMetricsList()) {
+            for (final Storage.WriteEntry we : wm.getEntriesList()) {
+                rows += we.getFieldGroupsCount();
+            }
+        }
+        return rows;
+    }
+
+    private static int crc32(final byte[] bytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private static void unmap(final MappedByteBuffer buf) {
+        if (UNMAPPER == null) {
+            return;
+        }
+        try {
+            UNMAPPER.accept(buf);
+        } catch (final Throwable t) {
+            LOG.warn("Fail to unmap the spool segment, leave it to GC.", t);
+        }
+    }
+
+    /**
+     * Unmaps a {@link MappedByteBuffer} by {@code Unsafe#invokeCleaner} since
+     * java 9, or by its cleaner on java 8, null if neither is accessible.
+     */
+    private static Consumer<ByteBuffer> newUnmapper() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            return buf -> {
+                try {
+                    invokeCleaner.invoke(unsafe, buf);
+                } catch (final ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        } catch (final ReflectiveOperationException | RuntimeException ignored) {
+            // try the java 8 way
+        }
+        try {
+            final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buf -> {
+                try {
+                    final Object c = cleaner.invoke(buf);
+                    if (c != null) {
+                        clean.invoke(c);
+                    }
+                } catch (final ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            LOG.warn("Unmapping is not supported, the spool segments are left to GC.", e);
+            return null;
+        }
+    }
+
+    private static final class Record {
+        final Segment segment;
+        final int     pos;
+        final byte[]  bytes;
+        final int     rows;
+        final long    timestamp;
+
+        Record(Segment segment, int pos, byte[] bytes, int rows, long timestamp) {
+            this.segment = segment;
+            this.pos = pos;
+            this.bytes = bytes;
+            this.rows = rows;
+            this.timestamp = timestamp;
+        }
+
+        int size() {
+            return HEADER_SIZE + this.bytes.length;
+        }
+    }
+
+    private static final class Segment {
+        final File             file;
+        final MappedByteBuffer buf;
+        int                    writePos;
+        int                    readPos;
+        int                    pending;
+        long                   pendingBytes;
+        long                   pendingRows;
+        boolean                released;
+
+        private Segment(File file, MappedByteBuffer buf) {
+            this.file = file;
+            this.buf = buf;
+        }
+
+        static Segment open(final File f, final int size) throws IOException {
+            try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                return new Segment(f, fc.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+
+        int remaining() {
+            return this.buf.capacity() - this.writePos;
+        }
+
+        void recover() {
+            int pos = 0;
+            boolean foundPending = false;
+            while (pos + HEADER_SIZE <= this.buf.capacity()) {
+                final int len = this.buf.getInt(pos);
+                if (len == 0) {
+                    break;
+                }
+                final int absLen = Math.abs(len);
+                if (pos + HEADER_SIZE + absLen > this.buf.capacity()) {
+                    LOG.warn("Truncated spool record at {} in {}.", pos, this.file);
+                    break;
+                }
+                if (len > 0) {
+                    final byte[] bytes = read(pos, absLen);
+                    if (crc32(bytes) != this.buf.getInt(pos + 16)) {
+                        LOG.warn("Corrupted spool record at {} in {}.", pos, this.file);
+                        break;
+                    }
+                    if (!foundPending) {
+                        this.readPos = pos;
+                        foundPending = true;
+                    }
+                    this.pending++;
+                    this.pendingBytes += HEADER_SIZE + absLen;
+                    this.pendingRows += this.buf.getInt(pos + 12);
+                }
+                pos += HEADER_SIZE + absLen;
+            }
+            this.writePos = pos;
+            if (!foundPending) {
+                this.readPos = pos;
+            }
+            // clears the garbage after the last valid record
+            if (pos + 4 <= this.buf.capacity()) {
+                this.buf.putInt(pos, 0);
+            }
+        }
+
+        void append(final byte[] bytes, final int rows, final long timestamp) {
+            final int pos = this.writePos;
+            // writes the body first, and the length at last, so a torn write is
+            // always recognized as the end of segment
+            this.buf.putLong(pos + 4, timestamp);
+            this.buf.putInt(pos + 12, rows);
+            this.buf.putInt(pos + 16, crc32(bytes));
+            final ByteBuffer dup = this.buf.duplicate();
+            dup.position(pos + HEADER_SIZE);
+            dup.put(bytes);
+            final int next = pos + HEADER_SIZE + bytes.length;
+            if (next + 4 <= this.buf.capacity()) {
+                this.buf.putInt(next, 0);
+            }
+            this.buf.putInt(pos, bytes.length);
+            this.writePos = next;
+            this.pending++;
+        }
+
+        Record nextPending() {
+            int pos = this.readPos;
+            while (pos < this.writePos) {
+                final int len = this.buf.getInt(pos);
+                if (len > 0) {
+                    this.readPos = pos;
+                    return new Record(this, pos, read(pos, len), this.buf.getInt(pos + 12), this.buf.getLong(pos + 4));
+                }
+                pos += HEADER_SIZE - len;
+            }
+            this.readPos = pos;
+            return null;
+        }
+
+        void markConsumed(final Record rec) {
+            this.buf.putInt(rec.pos, -rec.bytes.length);
+            this.pending--;
+        }
+
+        void force() {
+            this.buf.force();
+        }
+
+        /**
+         * Unmaps the segment file instead of leaving it to GC, the segment must
+         * not be accessed anymore.
+         */
+        void release() {
+            if (this.released) {
+                return;
+            }
+            this.released = true;
+            unmap(this.buf);
+        }
+
+        void delete() {
+            release();
+            if (!this.file.delete()) {
+                LOG.warn("Fail to delete the replayed spool segment {}.", this.file);
+            }
+        }
+
+        private byte[] read(final int pos, final int len) {
+            final byte[] bytes = new byte[len];
+            final ByteBuffer dup = this.buf.duplicate();
+            dup.position(pos + HEADER_SIZE);
+            dup.get(bytes);
+            return bytes;
+        }
+    }
+
+    @Override
+    public synchronized void display(final Printer out) {
+        out.println("--- WriteSpool ---") //
+                .print("dir=") //
+                .println(this.dir) //
+                .print("segments=") //
+                .println(this.segments.size()) //
+                .print("pendingRows=") //
+                .println(this.pendingRows) //
+                .print("pendingBytes=") //
+                .println(this.pendingBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "WriteSpool{" + //
+               "dir=" + dir + //
+               ", pendingRows=" + pendingRows + //
+               ", pendingBytes=" + pendingBytes + //
+               '}';
+    }
+}
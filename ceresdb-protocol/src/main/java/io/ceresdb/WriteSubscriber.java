@@ -0,0 +1,335 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.Collection;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.LongConsumer;
+
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.common.util.Requires;
+import io.ceresdb.common.util.SharedScheduledPool;
+import io.ceresdb.common.util.Spines;
+import io.ceresdb.models.Err;
+import io.ceresdb.models.Result;
+import io.ceresdb.models.Rows;
+import io.ceresdb.models.WriteOk;
+import io.ceresdb.options.WriteSubscriberOptions;
+import io.ceresdb.rpc.Context;
+import io.ceresdb.rpc.Observer;
+import com.codahale.metrics.Meter;
+
+/**
+ * A demand-driven subscriber that writes the rows from an upstream
+ * publisher in batches.
+ *
+ * <p>It has the shape of a Reactive Streams subscriber, without depending
+ * on any of the libraries, a `Flow.Subscriber`, a reactive-streams or a
+ * Reactor subscriber can delegate to it:
+ *
+ * <pre>{@code
+ * final WriteSubscriber ws = client.writeSubscriber(opts, ctx, resultObserver);
+ * publisher.subscribe(new Flow.Subscriber<Rows>() {
+ *     public void onSubscribe(Flow.Subscription s) { ws.onSubscribe(s::request, s::cancel); }
+ *     public void onNext(Rows rs)                  { ws.onNext(rs); }
+ *     public void onError(Throwable t)             { ws.onError(t); }
+ *     public void onComplete()                     { ws.onComplete(); }
+ * });
+ * }</pre>
+ *
+ * <p>The rows are batched by {@link WriteSubscriberOptions#getMaxBatchRows()}
+ * or {@link WriteSubscriberOptions#getLingerMs()}, and each batch is written
+ * by {@link Write#write(Collection, Context)}, which routes it per endpoint
+ * and retries it.  The result of each batch is passed to the result
+ * observer, then it's completed after all the batches are done.
+ *
+ * <p>The upstream is requested only as many rows as can be written without
+ * waiting: no more than `maxInFlightBatches` batches are in-flight or
+ * buffered, and no more than the available permits of the write limiter, so
+ * the backpressure of the limiter goes to the upstream instead of blocking
+ * the threads.  The demand is counted in {@link Rows}, assuming one row each.
+ *
+ * @author jiachun.fjc
+ */
+public class WriteSubscriber {
+
+    private static final SharedScheduledPool LINGER_POOL = Utils.getSharedScheduledPool("write_subscriber_linger", 1);
+
+    private static final Meter BATCHES        = MetricsUtil.meter("write_subscriber_batches");
+    private static final Meter LINGER_FLUSHED = MetricsUtil.meter("write_subscriber_linger_flushed");
+
+    private final Write                          write;
+    private final IntSupplier                    availablePermits;
+    private final WriteSubscriberOptions         opts;
+    private final Context                        ctx;
+    private final Observer<Result<WriteOk, Err>> results;
+
+    // guarded by this
+    private LongConsumer             request;
+    private Runnable                 cancel;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?>       lingerFuture;
+    private Collection<Rows>         buf = Spines.newBuf();
+    private int                      bufRows;
+    private long                     outstanding;          // requested but not received
+    private int                      inFlightBatches;
+    private long                     inFlightRows;
+    private boolean                  done;
+    private Throwable                error;
+    private boolean                  terminated;
+
+    WriteSubscriber(Write write, IntSupplier availablePermits, WriteSubscriberOptions opts, Context ctx,
+                    Observer<Result<WriteOk, Err>> results) {
+        Requires.requireTrue(opts.getMaxBatchRows() > 0, "maxBatchRows must > 0");
+        Requires.requireTrue(opts.getMaxInFlightBatches() > 0, "maxInFlightBatches must > 0");
+        this.write = Requires.requireNonNull(write, "Null.write");
+        this.availablePermits = availablePermits;
+        this.opts = opts.copy();
+        this.ctx = ctx == null ? Context.newDefault() : ctx;
+        this.results = Requires.requireNonNull(results, "Null.results");
+    }
+
+    /**
+     * Starts the subscription.
+     *
+     * @param request requests more elements from the upstream
+     * @param cancel  cancels the upstream
+     */
+    public void onSubscribe(final LongConsumer request, final Runnable cancel) {
+        Requires.requireNonNull(request, "Null.request");
+        Requires.requireNonNull(cancel, "Null.cancel");
+        synchronized (this) {
+            if (this.request != null || this.done) {
+                // subscribed twice, or cancelled before subscribed
+                cancel.run();
+                return;
+            }
+            this.request = request;
+            this.cancel = cancel;
+            this.scheduler = LINGER_POOL.getObject();
+        }
+        requestMore();
+    }
+
+    public void onNext(final Rows rs) {
+        Requires.requireNonNull(rs, "Null.rows");
+        Collection<Rows> batch = null;
+        synchronized (this) {
+            if (this.done) {
+                return;
+            }
+            if (this.outstanding > 0) {
+                this.outstanding--;
+            }
+            this.buf.add(rs);
+            this.bufRows += rs.getRowCount();
+            if (this.bufRows >= this.opts.getMaxBatchRows()) {
+                batch = takeBatch();
+            } else if (this.lingerFuture == null && this.scheduler != null) {
+                this.lingerFuture = this.scheduler.schedule(this::linger, this.opts.getLingerMs(),
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+        writeBatch(batch);
+        requestMore();
+    }
+
+    /**
+     * The upstream failed, the buffered rows are still written, then the
+     * result observer fails with the error.
+     */
+    public void onError(final Throwable err) {
+        final Collection<Rows> batch;
+        synchronized (this) {
+            if (this.done) {
+                return;
+            }
+            this.done = true;
+            this.error = err;
+            batch = takeBatch();
+        }
+        writeBatch(batch);
+        tryTerminate();
+    }
+
+    /**
+     * The upstream completed, the buffered rows are written, then the result
+     * observer completes.
+     */
+    public void onComplete() {
+        final Collection<Rows> batch;
+        synchronized (this) {
+            if (this.done) {
+                return;
+            }
+            this.done = true;
+            batch = takeBatch();
+        }
+        writeBatch(batch);
+        tryTerminate();
+    }
+
+    /**
+     * Cancels the upstream and drops the buffered rows, the result observer
+     * completes after the in-flight batches are done.
+     */
+    public void cancel() {
+        final Runnable c;
+        synchronized (this) {
+            if (this.done) {
+                return;
+            }
+            this.done = true;
+            cancelLinger();
+            this.buf = Spines.newBuf();
+            this.bufRows = 0;
+            c = this.cancel;
+        }
+        if (c != null) {
+            c.run();
+        }
+        tryTerminate();
+    }
+
+    public synchronized int getInFlightBatches() {
+        return this.inFlightBatches;
+    }
+
+    public synchronized long getOutstanding() {
+        return this.outstanding;
+    }
+
+    private void linger() {
+        final Collection<Rows> batch;
+        synchronized (this) {
+            this.lingerFuture = null;
+            batch = takeBatch();
+        }
+        if (batch != null) {
+            LINGER_FLUSHED.mark();
+            writeBatch(batch);
+        }
+    }
+
+    // guarded by this
+    private Collection<Rows> takeBatch() {
+        cancelLinger();
+        if (this.buf.isEmpty()) {
+            return null;
+        }
+        final Collection<Rows> batch = this.buf;
+        // cannot reuse the buf, it will be referenced until the batch is written
+        this.buf = Spines.newBuf();
+        this.inFlightBatches++;
+        this.inFlightRows += this.bufRows;
+        this.bufRows = 0;
+        return batch;
+    }
+
+    // guarded by this
+    private void cancelLinger() {
+        if (this.lingerFuture != null) {
+            this.lingerFuture.cancel(false);
+            this.lingerFuture = null;
+        }
+    }
+
+    private void writeBatch(final Collection<Rows> batch) {
+        if (batch == null) {
+            return;
+        }
+        BATCHES.mark();
+        final int rows = batch.stream().mapToInt(Rows::getRowCount).sum();
+        this.write.write(batch, this.ctx.copy()).whenComplete((r, e) -> {
+            synchronized (this) {
+                this.inFlightBatches--;
+                this.inFlightRows -= rows;
+            }
+            final Result<WriteOk, Err> ret = e == null ? r :
+                    Err.writeErr(Result.SHOULD_RETRY, e.getMessage(), null, batch).mapToResult();
+            synchronized (this.results) {
+                this.results.onNext(ret);
+            }
+            requestMore();
+            tryTerminate();
+        });
+    }
+
+    private void requestMore() {
+        final LongConsumer req;
+        final long n;
+        synchronized (this) {
+            if (this.done || this.request == null) {
+                return;
+            }
+            final long maxBatchRows = this.opts.getMaxBatchRows();
+            final long pending = this.outstanding + this.bufRows + this.inFlightRows;
+            long want = maxBatchRows * this.opts.getMaxInFlightBatches() - pending;
+            // the in-flight rows have acquired their permits already
+            want = Math.min(want, (long) this.availablePermits.getAsInt() - this.outstanding - this.bufRows);
+            if (pending == 0) {
+                // never stall, the permits may be taken by the other writers, and
+                // no completion of ours would request again
+                want = Math.max(want, 1);
+            }
+            if (want <= 0) {
+                return;
+            }
+            this.outstanding += want;
+            n = want;
+            req = this.request;
+        }
+        req.accept(n);
+    }
+
+    private void tryTerminate() {
+        final Throwable err;
+        synchronized (this) {
+            if (this.terminated || !this.done || this.inFlightBatches > 0) {
+                return;
+            }
+            this.terminated = true;
+            err = this.error;
+            if (this.scheduler != null) {
+                LINGER_POOL.returnObject(this.scheduler);
+                this.scheduler = null;
+            }
+        }
+        synchronized (this.results) {
+            if (err == null) {
+                this.results.onCompleted();
+            } else {
+                this.results.onError(err);
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WriteSubscriber{" + //
+               "opts=" + opts + //
+               ", bufRows=" + bufRows + //
+               ", outstanding=" + outstanding + //
+               ", inFlightBatches=" + inFlightBatches + //
+               ", inFlightRows=" + inFlightRows + //
+               ", done=" + done + //
+               '}';
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.errors;
+
+import io.ceresdb.models.Err;
+
+/**
+ * Error about stream-write, with the data of wrote failed in the
+ * {@link Err}, so it can be retried or spooled.
+ *
+ * @author jiachun.fjc
+ */
+public class StreamWriteException extends StreamException {
+
+    private static final long serialVersionUID = -6139546209128352458L;
+
+    private final transient Err err;
+
+    public StreamWriteException(String message, Err err) {
+        super(message);
+        this.err = err;
+    }
+
+    public StreamWriteException(String message, Err err, Throwable cause) {
+        super(message, cause);
+        this.err = err;
+    }
+
+    /**
+     * Returns the error, {@link Err#getFailedWrites()} are the data of
+     * wrote failed.
+     *
+     * @return the error
+     */
+    public Err getErr() {
+        return err;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.errors;
+
+/**
+ * The error of a call on {@link io.ceresdb.CeresDBSyncClient}, thrown if
+ * the call timed out, was interrupted or failed with a checked exception.
+ *
+ * @author jiachun.fjc
+ */
+public class SyncCallException extends RuntimeException {
+
+    private static final long serialVersionUID = -3476529915384722615L;
+
+    public SyncCallException() {
+    }
+
+    public SyncCallException(String message) {
+        super(message);
+    }
+
+    public SyncCallException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public SyncCallException(Throwable cause) {
+        super(cause);
+    }
+
+    public SyncCallException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+        super(message, cause, enableSuppression, writableStackTrace);
+    }
+}
@@ -23,8 +23,10 @@ import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import io.ceresdb.Utils;
 import io.ceresdb.common.Endpoint;
 import io.ceresdb.common.Streamable;
+import io.ceresdb.proto.Storage;
 
 /**
  * Contains the write or query error value.
@@ -40,6 +42,11 @@ public class Err implements Streamable<Err> {
     private Endpoint errTo;
     // the data of wrote failed, can be used to retry
     private Collection<Rows> failedWrites;
+    // the encoded request of wrote failed, it's kept instead of the data to
+    // release the rows as soon as they are encoded, and to retry without encoding
+    private Storage.WriteRequest failedRequest;
+    // the failed data decoded from the failed request, on demand
+    private volatile Collection<Rows> decodedWrites;
     // other successful server results are merged here
     private WriteOk subOk;
     // the QL failed to query
@@ -61,10 +68,50 @@ public class Err implements Streamable<Err> {
         return errTo;
     }
 
+    /**
+     * Returns the data of wrote failed.  If the failed data is kept as the
+     * encoded request, it is decoded on the first call, use
+     * {@link #getFailedRequest()} to avoid the cost.
+     *
+     * @return the data of wrote failed
+     */
     public Collection<Rows> getFailedWrites() {
+        if (this.failedWrites == null && this.failedRequest != null) {
+            Collection<Rows> decoded = this.decodedWrites;
+            if (decoded == null) {
+                decoded = Utils.toRows(this.failedRequest);
+                this.decodedWrites = decoded;
+            }
+            return decoded;
+        }
         return failedWrites;
     }
 
+    /**
+     * Returns the encoded request of wrote failed, null if the failed data
+     * is kept as {@link Rows}, see {@link #getFailedWrites()}.
+     *
+     * @return the encoded request of wrote failed
+     */
+    public Storage.WriteRequest getFailedRequest() {
+        return failedRequest;
+    }
+
+    /**
+     * Returns the metrics of wrote failed.
+     *
+     * @return the metrics of wrote failed, may contain duplicates
+     */
+    public List<String> getFailedWriteMetrics() {
+        if (this.failedRequest != null) {
+            return this.failedRequest.getMetricsList().stream() //
+                    .map(Storage.WriteMetric::getMetric) //
+                    .collect(Collectors.toList());
+        }
+        return this.failedWrites == null ? Collections.emptyList() //
+                : this.failedWrites.stream().map(Rows::getMetric).collect(Collectors.toList());
+    }
+
     public WriteOk getSubOk() {
         return subOk;
     }
@@ -109,14 +156,14 @@ public class Err implements Streamable<Err> {
     }
 
     private int failedWriteRowsNum() {
+        if (this.failedRequest != null) {
+            return this.failedRequest.getMetricsList().stream() //
+                    .mapToInt(Storage.WriteMetric::getEntriesCount) //
+                    .sum();
+        }
         return this.failedWrites == null ? 0 : this.failedWrites.size();
     }
 
-    private List<String> failedWriteMetrics() {
-        return this.failedWrites == null ? Collections.emptyList() //
-                : this.failedWrites.stream().map(Rows::getMetric).collect(Collectors.toList());
-    }
-
     @Override
     public String toString() {
         return "Err{" + //
@@ -124,7 +171,7 @@ public class Err implements Streamable<Err> {
                ", error='" + error + '\'' + //
                ", errTo=" + errTo + //
                ", failedWriteRowsNum=" + failedWriteRowsNum() + //
-               ", failedWriteMetrics=" + failedWriteMetrics() + //
+               ", failedWriteMetrics=" + getFailedWriteMetrics() + //
                ", subOk=" + subOk + //
                ", failedQl=" + failedQl + //
                ", failedMetrics=" + failedMetrics + //
@@ -144,6 +191,22 @@ public class Err implements Streamable<Err> {
         return err;
     }
 
+    /**
+     * Like {@link #writeErr(int, String, Endpoint, Collection)}, the data of
+     * wrote failed is kept as the encoded request.
+     */
+    public static Err encodedWriteErr(final int code, //
+                                      final String error, //
+                                      final Endpoint errTo, //
+                                      final Storage.WriteRequest failedRequest) {
+        final Err err = new Err();
+        err.code = code;
+        err.error = error;
+        err.errTo = errTo;
+        err.failedRequest = failedRequest;
+        return err;
+    }
+
     public static Err queryErr(final int code, //
                                final String error, //
                                final Endpoint errTo, //
@@ -24,6 +24,7 @@ import java.util.TreeMap;
 import io.ceresdb.Utils;
 import io.ceresdb.common.util.Requires;
 import io.ceresdb.common.util.Strings;
+import io.ceresdb.proto.Storage;
 
 /**
  * Series in a metric.
@@ -34,6 +35,10 @@ public class Series {
 
     private String                      metric;
     private SortedMap<String, TagValue> tags;
+    // Series is immutable, so the hash code can be cached
+    private int hash;
+    // Pre-encoded tags, only present on the series interned by SeriesRegistry
+    private volatile EncodedTags encodedTags;
 
     public String getMetric() {
         return metric;
@@ -43,6 +48,20 @@ public class Series {
         return tags;
     }
 
+    /**
+     * Returns the pre-encoded tags if this series was interned by
+     * {@link SeriesRegistry}, otherwise returns null.
+     *
+     * @return the pre-encoded tags or null
+     */
+    public EncodedTags getEncodedTags() {
+        return encodedTags;
+    }
+
+    void setEncodedTags(EncodedTags encodedTags) {
+        this.encodedTags = encodedTags;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -57,7 +76,11 @@ public class Series {
 
     @Override
     public int hashCode() {
-        return Objects.hash(metric, tags);
+        int h = this.hash;
+        if (h == 0) {
+            h = this.hash = Objects.hash(metric, tags);
+        }
+        return h;
     }
 
     @Override
@@ -75,6 +98,32 @@ public class Series {
         return ser;
     }
 
+    /**
+     * Tags encoded to the protocol values, the names are ordered and null
+     * tag values are excluded.
+     */
+    public static final class EncodedTags {
+        private final String[]        names;
+        private final Storage.Value[] values;
+
+        EncodedTags(String[] names, Storage.Value[] values) {
+            this.names = names;
+            this.values = values;
+        }
+
+        public int size() {
+            return this.names.length;
+        }
+
+        public String nameAt(final int i) {
+            return this.names[i];
+        }
+
+        public Storage.Value valueAt(final int i) {
+            return this.values[i];
+        }
+    }
+
     public static Builder newBuilder(final String metric) {
         return new Builder(metric);
     }
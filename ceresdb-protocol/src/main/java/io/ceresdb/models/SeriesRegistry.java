@@ -0,0 +1,249 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.models;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import io.ceresdb.Utils;
+import io.ceresdb.common.OptKeys;
+import io.ceresdb.common.util.Clock;
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.common.util.Requires;
+import io.ceresdb.common.util.SystemPropertyUtil;
+import io.ceresdb.common.util.TopKSelector;
+import io.ceresdb.proto.Storage;
+import com.codahale.metrics.Meter;
+
+/**
+ * A bounded series interner. The interned {@link Series} has been validated
+ * and carries its pre-encoded tags, so repeated writes of a known series skip
+ * the tags sorting, the keywords checking and the tags encoding.
+ *
+ * When the number of interned series exceeds the limit, the ones that have
+ * not been used for a long time are evicted first.
+ *
+ * @author jiachun.fjc
+ */
+public final class SeriesRegistry {
+
+    private static final float EVICT_THRESHOLD = 0.1f;
+
+    private static final SeriesRegistry DEFAULT = new SeriesRegistry(
+            SystemPropertyUtil.getInt(OptKeys.SERIES_REGISTRY_MAX_SIZE, 100_000));
+
+    private final int                          maxSize;
+    private final ConcurrentMap<Key, Interned> registry = new ConcurrentHashMap<>();
+    private final AtomicBoolean                evicting = new AtomicBoolean(false);
+
+    static final class InnerMetrics {
+        static final Meter HIT     = MetricsUtil.meter("series_registry_hit");
+        static final Meter MISS    = MetricsUtil.meter("series_registry_miss");
+        static final Meter EVICTED = MetricsUtil.meter("series_registry_evicted");
+
+        static Meter hit() {
+            return HIT;
+        }
+
+        static Meter miss() {
+            return MISS;
+        }
+
+        static Meter evicted() {
+            return EVICTED;
+        }
+    }
+
+    /**
+     * The default registry, its max size can be set by system property
+     * {@link OptKeys#SERIES_REGISTRY_MAX_SIZE}.
+     *
+     * @return the default registry
+     */
+    public static SeriesRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public SeriesRegistry(int maxSize) {
+        Requires.requireTrue(maxSize > 0, "maxSize must be a positive number");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the interned series of the given metric and tags, the tags
+     * do not need to be sorted.
+     *
+     * @param metric the metric
+     * @param tags   the tags of series
+     * @return the interned series
+     */
+    public Series intern(final String metric, final Map<String, TagValue> tags) {
+        Requires.requireNonNull(tags, "Null.tags");
+        final Interned hit = this.registry.get(new Key(metric, tags));
+        if (hit != null) {
+            return touch(hit);
+        }
+
+        final Series.Builder builder = Series.newBuilder(metric);
+        tags.forEach(builder::tag);
+        return register(builder.build());
+    }
+
+    /**
+     * Returns the interned series which equals to the given series.
+     *
+     * @param series the series
+     * @return the interned series
+     */
+    public Series intern(final Series series) {
+        Requires.requireNonNull(series, "Null.series");
+        if (series.getEncodedTags() != null) {
+            return series;
+        }
+        final Interned hit = this.registry.get(new Key(series.getMetric(), series.getTags()));
+        if (hit != null) {
+            return touch(hit);
+        }
+        return register(series);
+    }
+
+    public int size() {
+        return this.registry.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void clear() {
+        this.registry.clear();
+    }
+
+    private Series touch(final Interned hit) {
+        InnerMetrics.hit().mark();
+        hit.lastHit = Clock.defaultClock().getTick();
+        return hit.series;
+    }
+
+    private Series register(final Series series) {
+        InnerMetrics.miss().mark();
+        // The series has been checked by Series.Builder, only needs to attach the encoded tags
+        series.setEncodedTags(encode(series));
+        final Interned prev = this.registry.putIfAbsent(new Key(series.getMetric(), series.getTags()),
+                new Interned(series, Clock.defaultClock().getTick()));
+        if (prev != null) {
+            return touch(prev);
+        }
+        if (this.registry.size() > this.maxSize) {
+            evict();
+        }
+        return series;
+    }
+
+    private void evict() {
+        if (!this.evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final int itemsToEvict = Math.max(1, (int) (this.registry.size() * EVICT_THRESHOLD));
+            final List<Key> topK = TopKSelector.selectTopK( //
+                    this.registry.entrySet(), //
+                    itemsToEvict, //
+                    (o1, o2) -> -Long.compare(o1.getValue().lastHit, o2.getValue().lastHit) //
+            ) //
+                    .map(Map.Entry::getKey) //
+                    .collect(Collectors.toList());
+            topK.forEach(this.registry::remove);
+            InnerMetrics.evicted().mark(topK.size());
+        } finally {
+            this.evicting.set(false);
+        }
+    }
+
+    private static Series.EncodedTags encode(final Series series) {
+        final Map<String, TagValue> tags = series.getTags();
+        final int size = (int) tags.values().stream().filter(v -> !Value.isNull(v)).count();
+        final String[] names = new String[size];
+        final Storage.Value[] values = new Storage.Value[size];
+        int i = 0;
+        for (final Map.Entry<String, TagValue> e : tags.entrySet()) {
+            if (Value.isNull(e.getValue())) {
+                continue;
+            }
+            names[i] = e.getKey();
+            values[i] = Utils.toProtoValue(e.getValue());
+            i++;
+        }
+        return new Series.EncodedTags(names, values);
+    }
+
+    /**
+     * Has the same hash code and equality as {@link Series}, but the tags can
+     * be any map.
+     */
+    private static final class Key {
+        private final String                metric;
+        private final Map<String, TagValue> tags;
+        private final int                   hash;
+
+        Key(String metric, Map<String, TagValue> tags) {
+            this.metric = metric;
+            this.tags = tags;
+            this.hash = Objects.hash(metric, tags);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Objects.equals(metric, key.metric) && Objects.equals(tags, key.tags);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    private static final class Interned {
+        final Series  series;
+        volatile long lastHit;
+
+        Interned(Series series, long lastHit) {
+            this.series = series;
+            this.lastHit = lastHit;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SeriesRegistry{" + //
+               "maxSize=" + maxSize + //
+               ", size=" + registry.size() + //
+               '}';
+    }
+}
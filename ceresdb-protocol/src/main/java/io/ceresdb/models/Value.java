@@ -78,7 +78,7 @@ public class Value {
             return false;
         }
         Value value1 = (Value) o;
-        return type == value1.type && value.equals(value1.value);
+        return type == value1.type && Objects.equals(value, value1.value);
     }
 
     @Override
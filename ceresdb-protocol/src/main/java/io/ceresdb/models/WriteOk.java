@@ -36,6 +36,9 @@ public class WriteOk {
 
     private int success;
     private int failed;
+    // accepted by the local spool and will be written later, see
+    // WriteOptions#getSpoolDir(), they should not be retried by the caller
+    private int spooled;
 
     /**
      * Empty if {@link #COLLECT_WROTE_DETAIL == false}.
@@ -58,6 +61,14 @@ public class WriteOk {
         this.failed = failed;
     }
 
+    public int getSpooled() {
+        return spooled;
+    }
+
+    public void setSpooled(int spooled) {
+        this.spooled = spooled;
+    }
+
     public Collection<String> getMetrics() {
         return metrics;
     }
@@ -69,6 +80,7 @@ public class WriteOk {
     public WriteOk combine(final WriteOk other) {
         this.success += other.success;
         this.failed += other.failed;
+        this.spooled += other.spooled;
         if (this.metrics == null) {
             this.metrics = other.metrics;
         } else if (other.metrics != null) {
@@ -86,6 +98,7 @@ public class WriteOk {
         return "WriteOk{" + //
                "success=" + success + //
                ", failed=" + failed + //
+               ", spooled=" + spooled + //
                ", metrics=" + metrics + //
                '}';
     }
@@ -16,6 +16,8 @@
  */
 package io.ceresdb.options;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.concurrent.Executor;
 
 import io.ceresdb.LimitedPolicy;
@@ -40,6 +42,7 @@ public class CeresDBOptions implements Copiable<CeresDBOptions> {
     private WriteOptions      writeOptions;
     private QueryOptions      queryOptions;
     private ManagementOptions managementOptions;
+    private WarmupOptions     warmupOptions;
 
     public Endpoint getClusterAddress() {
         return clusterAddress;
@@ -113,6 +116,14 @@ public class CeresDBOptions implements Copiable<CeresDBOptions> {
         this.managementOptions = managementOptions;
     }
 
+    public WarmupOptions getWarmupOptions() {
+        return warmupOptions;
+    }
+
+    public void setWarmupOptions(WarmupOptions warmupOptions) {
+        this.warmupOptions = warmupOptions;
+    }
+
     @Override
     public CeresDBOptions copy() {
         final CeresDBOptions copy = new CeresDBOptions();
@@ -137,6 +148,9 @@ public class CeresDBOptions implements Copiable<CeresDBOptions> {
         if (this.managementOptions != null) {
             copy.managementOptions = this.managementOptions.copy();
         }
+        if (this.warmupOptions != null) {
+            copy.warmupOptions = this.warmupOptions.copy();
+        }
         return copy;
     }
 
@@ -152,6 +166,7 @@ public class CeresDBOptions implements Copiable<CeresDBOptions> {
                ", writeOptions=" + writeOptions + //
                ", queryOptions=" + queryOptions + //
                ", managementOptions=" + managementOptions + //
+               ", warmupOptions=" + warmupOptions + //
                '}';
     }
 
@@ -221,6 +236,8 @@ public class CeresDBOptions implements Copiable<CeresDBOptions> {
         private int maxInFlightWriteRows = 8192;
         // Write flow control: limited policy
         private LimitedPolicy writeLimitedPolicy = LimitedPolicy.defaultWriteLimitedPolicy();
+        // The directory of local spool for failed or throttled writes, the spool is disabled if not set.
+        private String writeSpoolDir;
         // Query options
         // In the case of routing table failure, a retry of the read is attempted.
         private int readMaxRetries = 1;
@@ -228,6 +245,14 @@ public class CeresDBOptions implements Copiable<CeresDBOptions> {
         private int maxInFlightQueryRequests = 8;
         // Query flow control: limited policy
         private LimitedPolicy queryLimitedPolicy = LimitedPolicy.defaultQueryLimitedPolicy();
+        // The rows of a query result larger than it are spilled to memory-mapped temp files, disabled if <= 0.
+        private long querySpillThresholdBytes = 0;
+        // The directory of the query spill files, the default temp directory if not set.
+        private String querySpillDir;
+        // The query results are cached for this long on the client, disabled if <= 0.
+        private long queryCacheTtlMs = 0;
+        // Whether the cached query results of a metric are invalidated by the writes to it through this client.
+        private boolean queryCacheInvalidateOnWrite = false;
         // Specifies the maximum number of routing table caches. When the number reaches the limit, the ones that
         // have not been used for a long time are cleared first
         private int routeTableMaxCachedSize = 10_000;
@@ -237,6 +262,11 @@ public class CeresDBOptions implements Copiable<CeresDBOptions> {
         // all route tables are refreshed every 30 seconds.
         private long routeTableRefreshPeriodSeconds = 30;
 
+        // Warmup options
+        private Collection<String> warmupMetrics;
+        private String             warmupSnapshotFile;
+        private long               warmupWaitTimeoutMs = 5000;
+
         public Builder(Endpoint clusterAddress) {
             this.clusterAddress = clusterAddress;
         }
@@ -363,6 +393,20 @@ public class CeresDBOptions implements Copiable<CeresDBOptions> {
             return this;
         }
 
+        /**
+         * The directory of local spool for failed or throttled writes, the failed
+         * data will be spooled to disk and replayed in background once the server
+         * recovers. The spool is disabled if not set, other spool options can be
+         * adjusted by {@link WriteOptions}.
+         *
+         * @param writeSpoolDir the spool directory
+         * @return this builder
+         */
+        public Builder writeSpoolDir(final String writeSpoolDir) {
+            this.writeSpoolDir = writeSpoolDir;
+            return this;
+        }
+
         /**
          * In the case of routing table failure, a retry of the rpc is attempted.
          *
@@ -396,6 +440,57 @@ public class CeresDBOptions implements Copiable<CeresDBOptions> {
             return this;
         }
 
+        /**
+         * The rows of a query result larger than the threshold are spilled to
+         * memory-mapped temp files and read lazily, instead of being held in
+         * heap. Disabled if <= 0.
+         *
+         * @param querySpillThresholdBytes the spill threshold in bytes
+         * @return this builder
+         */
+        public Builder querySpillThresholdBytes(final long querySpillThresholdBytes) {
+            this.querySpillThresholdBytes = querySpillThresholdBytes;
+            return this;
+        }
+
+        /**
+         * The directory of the query spill files, the default temp directory
+         * if not set.
+         *
+         * @param querySpillDir the spill directory
+         * @return this builder
+         */
+        public Builder querySpillDir(final String querySpillDir) {
+            this.querySpillDir = querySpillDir;
+            return this;
+        }
+
+        /**
+         * The query results are cached on the client for the TTL, the same
+         * queries in the TTL are served from the cache, and the concurrent
+         * ones share one rpc. Disabled if <= 0, the cache size can be
+         * adjusted by {@link QueryOptions}.
+         *
+         * @param queryCacheTtlMs the TTL of the cached results
+         * @return this builder
+         */
+        public Builder queryCacheTtlMs(final long queryCacheTtlMs) {
+            this.queryCacheTtlMs = queryCacheTtlMs;
+            return this;
+        }
+
+        /**
+         * Whether the cached query results of a metric are invalidated by the
+         * writes to it through this client.
+         *
+         * @param queryCacheInvalidateOnWrite invalidate on write or not
+         * @return this builder
+         */
+        public Builder queryCacheInvalidateOnWrite(final boolean queryCacheInvalidateOnWrite) {
+            this.queryCacheInvalidateOnWrite = queryCacheInvalidateOnWrite;
+            return this;
+        }
+
         /**
          * Specifies the maximum number of routing table caches. When the number reaches
          * the limit, the ones that have not been used for a long time are cleared first.
@@ -432,6 +527,45 @@ public class CeresDBOptions implements Copiable<CeresDBOptions> {
             return this;
         }
 
+        /**
+         * Prefetches the routes of these metrics and opens the connections to
+         * their endpoints when the client starts, so the first writes don't
+         * pay for them.
+         *
+         * @param warmupMetrics the metrics to warm up
+         * @return this builder
+         */
+        public Builder warmupMetrics(final Collection<String> warmupMetrics) {
+            this.warmupMetrics = warmupMetrics;
+            return this;
+        }
+
+        /**
+         * Like {@link #warmupMetrics(Collection)}, the metrics are read from the
+         * file, one per line.  The metrics of the cached routes are saved to the
+         * file when the client shuts down, so the next instance can warm up with
+         * them.
+         *
+         * @param warmupSnapshotFile the snapshot file
+         * @return this builder
+         */
+        public Builder warmupSnapshotFile(final String warmupSnapshotFile) {
+            this.warmupSnapshotFile = warmupSnapshotFile;
+            return this;
+        }
+
+        /**
+         * How long the client init waits for the warmup, 0 means the warmup runs
+         * in background.  The default is 5 seconds.
+         *
+         * @param warmupWaitTimeoutMs the wait timeout in milliseconds
+         * @return this builder
+         */
+        public Builder warmupWaitTimeoutMs(final long warmupWaitTimeoutMs) {
+            this.warmupWaitTimeoutMs = warmupWaitTimeoutMs;
+            return this;
+        }
+
         /**
          * A good start, happy coding.
          *
@@ -454,16 +588,30 @@ public class CeresDBOptions implements Copiable<CeresDBOptions> {
             opts.writeOptions.setMaxRetries(this.writeMaxRetries);
             opts.writeOptions.setMaxInFlightWriteRows(this.maxInFlightWriteRows);
             opts.writeOptions.setLimitedPolicy(this.writeLimitedPolicy);
+            opts.writeOptions.setSpoolDir(this.writeSpoolDir);
             opts.queryOptions = new QueryOptions();
             opts.queryOptions.setMaxRetries(this.readMaxRetries);
             opts.queryOptions.setMaxInFlightQueryRequests(this.maxInFlightQueryRequests);
             opts.queryOptions.setLimitedPolicy(this.queryLimitedPolicy);
+            opts.queryOptions.setSpillThresholdBytes(this.querySpillThresholdBytes);
+            opts.queryOptions.setSpillDir(this.querySpillDir);
+            opts.queryOptions.setCacheTtlMs(this.queryCacheTtlMs);
+            opts.queryOptions.setCacheInvalidateOnWrite(this.queryCacheInvalidateOnWrite);
             if (this.managementAddress != null) {
                 final ManagementOptions mOpts = new ManagementOptions();
                 mOpts.setManagementAddress(this.managementAddress);
                 mOpts.setTenant(this.tenant);
                 opts.managementOptions = mOpts;
             }
+            if (this.warmupMetrics != null || this.warmupSnapshotFile != null) {
+                final WarmupOptions wOpts = new WarmupOptions();
+                if (this.warmupMetrics != null) {
+                    wOpts.setMetrics(new ArrayList<>(this.warmupMetrics));
+                }
+                wOpts.setSnapshotFile(this.warmupSnapshotFile);
+                wOpts.setWaitTimeoutMs(this.warmupWaitTimeoutMs);
+                opts.warmupOptions = wOpts;
+            }
             return CeresDBOptions.check(opts);
         }
     }
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.options;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.ceresdb.Downsampler;
+import io.ceresdb.common.Copiable;
+
+/**
+ * Options of {@link Downsampler}.
+ *
+ * @author jiachun.fjc
+ */
+public class DownsampleOptions implements Copiable<DownsampleOptions> {
+
+    // The width of the time windows, the rows are rolled up to one per window
+    private long windowMs = 10_000;
+    // A window is flushed after it ends for this long, the later rows of it are dropped
+    private long allowedLatenessMs = 1000;
+    // The aggregator of the fields that are not in `fieldAggregators`
+    private Downsampler.Aggregator defaultAggregator = Downsampler.Aggregator.Last;
+    // The aggregators by field name
+    private Map<String, Downsampler.Aggregator> fieldAggregators = new HashMap<>();
+    // All the windows are flushed early if the number of series in the open windows exceeds it
+    private int maxSeries = 100_000;
+
+    public static DownsampleOptions newDefault() {
+        return new DownsampleOptions();
+    }
+
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    public void setWindowMs(long windowMs) {
+        this.windowMs = windowMs;
+    }
+
+    public long getAllowedLatenessMs() {
+        return allowedLatenessMs;
+    }
+
+    public void setAllowedLatenessMs(long allowedLatenessMs) {
+        this.allowedLatenessMs = allowedLatenessMs;
+    }
+
+    public Downsampler.Aggregator getDefaultAggregator() {
+        return defaultAggregator;
+    }
+
+    public void setDefaultAggregator(Downsampler.Aggregator defaultAggregator) {
+        this.defaultAggregator = defaultAggregator;
+    }
+
+    public Map<String, Downsampler.Aggregator> getFieldAggregators() {
+        return fieldAggregators;
+    }
+
+    public void setFieldAggregators(Map<String, Downsampler.Aggregator> fieldAggregators) {
+        this.fieldAggregators = fieldAggregators;
+    }
+
+    public DownsampleOptions fieldAggregator(final String field, final Downsampler.Aggregator aggregator) {
+        this.fieldAggregators.put(field, aggregator);
+        return this;
+    }
+
+    public int getMaxSeries() {
+        return maxSeries;
+    }
+
+    public void setMaxSeries(int maxSeries) {
+        this.maxSeries = maxSeries;
+    }
+
+    @Override
+    public DownsampleOptions copy() {
+        final DownsampleOptions opts = new DownsampleOptions();
+        opts.windowMs = this.windowMs;
+        opts.allowedLatenessMs = this.allowedLatenessMs;
+        opts.defaultAggregator = this.defaultAggregator;
+        opts.fieldAggregators = new HashMap<>(this.fieldAggregators);
+        opts.maxSeries = this.maxSeries;
+        return opts;
+    }
+
+    @Override
+    public String toString() {
+        return "DownsampleOptions{" + //
+               "windowMs=" + windowMs + //
+               ", allowedLatenessMs=" + allowedLatenessMs + //
+               ", defaultAggregator=" + defaultAggregator + //
+               ", fieldAggregators=" + fieldAggregators + //
+               ", maxSeries=" + maxSeries + //
+               '}';
+    }
+}
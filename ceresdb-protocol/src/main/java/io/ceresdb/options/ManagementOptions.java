@@ -31,6 +31,12 @@ public class ManagementOptions implements Copiable<ManagementOptions> {
     private RouterClient routerClient;
     private Tenant       tenant;
     private boolean      checkSql = true;
+    // The max number of statements of a batch executed concurrently
+    private int maxBatchParallelism = 8;
+    // The TTL of the client side cache of the tables known to exist, a value
+    // <= 0 disables the cache.  The tables may be dropped by other clients,
+    // the TTL bounds how long we can be stale.
+    private long tableExistsCacheTtlMs = 0;
 
     public Endpoint getManagementAddress() {
         return managementAddress;
@@ -64,6 +70,22 @@ public class ManagementOptions implements Copiable<ManagementOptions> {
         this.checkSql = checkSql;
     }
 
+    public int getMaxBatchParallelism() {
+        return maxBatchParallelism;
+    }
+
+    public void setMaxBatchParallelism(int maxBatchParallelism) {
+        this.maxBatchParallelism = maxBatchParallelism;
+    }
+
+    public long getTableExistsCacheTtlMs() {
+        return tableExistsCacheTtlMs;
+    }
+
+    public void setTableExistsCacheTtlMs(long tableExistsCacheTtlMs) {
+        this.tableExistsCacheTtlMs = tableExistsCacheTtlMs;
+    }
+
     @Override
     public ManagementOptions copy() {
         final ManagementOptions opts = new ManagementOptions();
@@ -73,6 +95,8 @@ public class ManagementOptions implements Copiable<ManagementOptions> {
             opts.tenant = this.tenant.copy();
         }
         opts.checkSql = this.checkSql;
+        opts.maxBatchParallelism = this.maxBatchParallelism;
+        opts.tableExistsCacheTtlMs = this.tableExistsCacheTtlMs;
         return opts;
     }
 
@@ -80,9 +104,11 @@ public class ManagementOptions implements Copiable<ManagementOptions> {
     public String toString() {
         return "ManagementOptions{" + //
                "managementAddress=" + managementAddress + //
-               "routerClient=" + routerClient + //
+               ", routerClient=" + routerClient + //
                ", tenant=" + tenant + //
                ", checkSql=" + checkSql + //
+               ", maxBatchParallelism=" + maxBatchParallelism + //
+               ", tableExistsCacheTtlMs=" + tableExistsCacheTtlMs + //
                '}';
     }
 }
@@ -37,6 +37,18 @@ public class QueryOptions implements Copiable<QueryOptions> {
     // Query flow limit: maximum number of query requests in-flight.
     private int           maxInFlightQueryRequests = 8;
     private LimitedPolicy limitedPolicy            = LimitedPolicy.defaultQueryLimitedPolicy();
+    // The rows of a result larger than it are spilled to memory-mapped temp files, disabled if <= 0.
+    private long spillThresholdBytes = 0;
+    // The directory of the spill files, the default temp directory if not set.
+    private String spillDir;
+    // The size of each spill file, a row larger than it takes a file of its own.
+    private int spillSegmentSize = 64 * 1024 * 1024;
+    // The results are cached for this long, keyed by the normalized QL and the metrics, disabled if <= 0.
+    private long cacheTtlMs = 0;
+    // Maximum bytes of the cached results, the least recently used ones are evicted if exceeded.
+    private long cacheMaxBytes = 64 * 1024 * 1024;
+    // Whether the cached results of a metric are invalidated by the writes to it through the same client.
+    private boolean cacheInvalidateOnWrite = false;
 
     public RouterClient getRouterClient() {
         return routerClient;
@@ -78,6 +90,54 @@ public class QueryOptions implements Copiable<QueryOptions> {
         this.limitedPolicy = limitedPolicy;
     }
 
+    public long getSpillThresholdBytes() {
+        return spillThresholdBytes;
+    }
+
+    public void setSpillThresholdBytes(long spillThresholdBytes) {
+        this.spillThresholdBytes = spillThresholdBytes;
+    }
+
+    public String getSpillDir() {
+        return spillDir;
+    }
+
+    public void setSpillDir(String spillDir) {
+        this.spillDir = spillDir;
+    }
+
+    public int getSpillSegmentSize() {
+        return spillSegmentSize;
+    }
+
+    public void setSpillSegmentSize(int spillSegmentSize) {
+        this.spillSegmentSize = spillSegmentSize;
+    }
+
+    public long getCacheTtlMs() {
+        return cacheTtlMs;
+    }
+
+    public void setCacheTtlMs(long cacheTtlMs) {
+        this.cacheTtlMs = cacheTtlMs;
+    }
+
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    public void setCacheMaxBytes(long cacheMaxBytes) {
+        this.cacheMaxBytes = cacheMaxBytes;
+    }
+
+    public boolean isCacheInvalidateOnWrite() {
+        return cacheInvalidateOnWrite;
+    }
+
+    public void setCacheInvalidateOnWrite(boolean cacheInvalidateOnWrite) {
+        this.cacheInvalidateOnWrite = cacheInvalidateOnWrite;
+    }
+
     @Override
     public QueryOptions copy() {
         final QueryOptions opts = new QueryOptions();
@@ -86,6 +146,12 @@ public class QueryOptions implements Copiable<QueryOptions> {
         opts.maxRetries = this.maxRetries;
         opts.maxInFlightQueryRequests = this.maxInFlightQueryRequests;
         opts.limitedPolicy = this.limitedPolicy;
+        opts.spillThresholdBytes = this.spillThresholdBytes;
+        opts.spillDir = this.spillDir;
+        opts.spillSegmentSize = this.spillSegmentSize;
+        opts.cacheTtlMs = this.cacheTtlMs;
+        opts.cacheMaxBytes = this.cacheMaxBytes;
+        opts.cacheInvalidateOnWrite = this.cacheInvalidateOnWrite;
         return opts;
     }
 
@@ -97,6 +163,12 @@ public class QueryOptions implements Copiable<QueryOptions> {
                "maxRetries=" + maxRetries + //
                "maxInFlightQueryRequests=" + maxInFlightQueryRequests + //
                "limitedPolicy=" + limitedPolicy + //
+               "spillThresholdBytes=" + spillThresholdBytes + //
+               "spillDir=" + spillDir + //
+               "spillSegmentSize=" + spillSegmentSize + //
+               "cacheTtlMs=" + cacheTtlMs + //
+               "cacheMaxBytes=" + cacheMaxBytes + //
+               "cacheInvalidateOnWrite=" + cacheInvalidateOnWrite + //
                '}';
     }
 }
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.options;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.ceresdb.common.Copiable;
+
+/**
+ * Warmup options, the routes of the metrics are prefetched and the
+ * connections to their endpoints are opened when the client starts.
+ *
+ * @author jiachun.fjc
+ */
+public class WarmupOptions implements Copiable<WarmupOptions> {
+
+    // The metrics to prefetch the routes for
+    private List<String> metrics = new ArrayList<>();
+    // A file of the metrics, one per line, to prefetch the routes for. The cached metrics
+    // are saved to it on shutdown, so the next instance can warm up with them
+    private String snapshotFile;
+    // How long the client init waits for the warmup, 0 means the warmup runs in background
+    private long waitTimeoutMs = 5000;
+
+    public List<String> getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(List<String> metrics) {
+        this.metrics = metrics;
+    }
+
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public long getWaitTimeoutMs() {
+        return waitTimeoutMs;
+    }
+
+    public void setWaitTimeoutMs(long waitTimeoutMs) {
+        this.waitTimeoutMs = waitTimeoutMs;
+    }
+
+    @Override
+    public WarmupOptions copy() {
+        final WarmupOptions opts = new WarmupOptions();
+        if (this.metrics != null) {
+            opts.metrics = new ArrayList<>(this.metrics);
+        }
+        opts.snapshotFile = this.snapshotFile;
+        opts.waitTimeoutMs = this.waitTimeoutMs;
+        return opts;
+    }
+
+    @Override
+    public String toString() {
+        return "WarmupOptions{" + //
+               "metrics.size=" + (metrics == null ? 0 : metrics.size()) + //
+               ", snapshotFile=" + snapshotFile + //
+               ", waitTimeoutMs=" + waitTimeoutMs + //
+               '}';
+    }
+}
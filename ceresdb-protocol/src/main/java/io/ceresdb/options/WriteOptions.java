@@ -20,6 +20,7 @@ import java.util.concurrent.Executor;
 
 import io.ceresdb.LimitedPolicy;
 import io.ceresdb.RouterClient;
+import io.ceresdb.WriteSpool;
 import io.ceresdb.common.Copiable;
 
 /**
@@ -36,9 +37,39 @@ public class WriteOptions implements Copiable<WriteOptions> {
     private int maxRetries = 1;
     // In the case of routing table failure or some other retry able error, a retry of the write is attempted.
     private int maxWriteSize = 512;
+    // Maximum estimated bytes per write request, a write is also split by it, disabled by default (<= 0),
+    // a write is split by `maxWriteSize` rows only then.
+    private long maxWriteBytes = 0;
+    // The target bytes per write request to an endpoint is adjusted between `minWriteBytes` and `maxWriteBytes`,
+    // halved if a request failed or exceeded the latency target, and grows by `minWriteBytes` otherwise.
+    private long minWriteBytes = 64 * 1024;
+    // The latency target of the write requests, the target bytes is fixed at `maxWriteBytes` if <= 0 (the default).
+    private long writeLatencyTargetMs = 0;
+    // The parts of a write with at least this many rows are encoded in parallel, disabled if <= 0 (the default).
+    private int parallelEncodeThreshold = 0;
     // Write flow limit: maximum number of data rows in-flight.
     private int           maxInFlightWriteRows = 8192;
     private LimitedPolicy limitedPolicy        = LimitedPolicy.defaultWriteLimitedPolicy();
+    // The directory of local spool for the writes failed with a retriable error, the spool is disabled
+    // if not set. The spooled rows are reported as `WriteOk#getSpooled()` instead of a failure, and are
+    // replayed in background. The writes rejected by the local flow limiter are never spooled.
+    private String spoolDir;
+    // The size of each spool segment file.
+    private int spoolSegmentSize = 64 * 1024 * 1024;
+    // Maximum bytes of the pending data in spool, new data will be rejected if exceeded.
+    private long                   spoolMaxSize     = 1024L * 1024 * 1024;
+    private WriteSpool.FsyncPolicy spoolFsyncPolicy = WriteSpool.FsyncPolicy.Periodic;
+    // Replay rate limit: maximum number of data rows replayed per second, no limit if <= 0.
+    private int spoolReplayRowsPerSecond = 10_000;
+    // Stream write flow control: maximum bytes of the flushed data waiting for the stream to be ready,
+    // a flush over it blocks until the stream drained below it, no limit if <= 0.
+    private long streamWriteMaxOutboundBytes = 64L * 1024 * 1024;
+    // Stream write buffer is flushed automatically if the buffered rows reached it, disabled if <= 0.
+    private int streamWriteFlushRows = 0;
+    // Stream write buffer is flushed automatically if the estimated bytes reached it, disabled if <= 0.
+    private long streamWriteFlushBytes = 0;
+    // The number of recently written points remembered to drop the duplicate points, disabled if <= 0.
+    private int dedupMaxPoints = 0;
 
     public RouterClient getRoutedClient() {
         return routerClient;
@@ -72,6 +103,38 @@ public class WriteOptions implements Copiable<WriteOptions> {
         this.maxWriteSize = maxWriteSize;
     }
 
+    public long getMaxWriteBytes() {
+        return maxWriteBytes;
+    }
+
+    public void setMaxWriteBytes(long maxWriteBytes) {
+        this.maxWriteBytes = maxWriteBytes;
+    }
+
+    public long getMinWriteBytes() {
+        return minWriteBytes;
+    }
+
+    public void setMinWriteBytes(long minWriteBytes) {
+        this.minWriteBytes = minWriteBytes;
+    }
+
+    public long getWriteLatencyTargetMs() {
+        return writeLatencyTargetMs;
+    }
+
+    public void setWriteLatencyTargetMs(long writeLatencyTargetMs) {
+        this.writeLatencyTargetMs = writeLatencyTargetMs;
+    }
+
+    public int getParallelEncodeThreshold() {
+        return parallelEncodeThreshold;
+    }
+
+    public void setParallelEncodeThreshold(int parallelEncodeThreshold) {
+        this.parallelEncodeThreshold = parallelEncodeThreshold;
+    }
+
     public int getMaxInFlightWriteRows() {
         return maxInFlightWriteRows;
     }
@@ -88,6 +151,78 @@ public class WriteOptions implements Copiable<WriteOptions> {
         this.limitedPolicy = limitedPolicy;
     }
 
+    public String getSpoolDir() {
+        return spoolDir;
+    }
+
+    public void setSpoolDir(String spoolDir) {
+        this.spoolDir = spoolDir;
+    }
+
+    public int getSpoolSegmentSize() {
+        return spoolSegmentSize;
+    }
+
+    public void setSpoolSegmentSize(int spoolSegmentSize) {
+        this.spoolSegmentSize = spoolSegmentSize;
+    }
+
+    public long getSpoolMaxSize() {
+        return spoolMaxSize;
+    }
+
+    public void setSpoolMaxSize(long spoolMaxSize) {
+        this.spoolMaxSize = spoolMaxSize;
+    }
+
+    public WriteSpool.FsyncPolicy getSpoolFsyncPolicy() {
+        return spoolFsyncPolicy;
+    }
+
+    public void setSpoolFsyncPolicy(WriteSpool.FsyncPolicy spoolFsyncPolicy) {
+        this.spoolFsyncPolicy = spoolFsyncPolicy;
+    }
+
+    public int getSpoolReplayRowsPerSecond() {
+        return spoolReplayRowsPerSecond;
+    }
+
+    public void setSpoolReplayRowsPerSecond(int spoolReplayRowsPerSecond) {
+        this.spoolReplayRowsPerSecond = spoolReplayRowsPerSecond;
+    }
+
+    public long getStreamWriteMaxOutboundBytes() {
+        return streamWriteMaxOutboundBytes;
+    }
+
+    public void setStreamWriteMaxOutboundBytes(long streamWriteMaxOutboundBytes) {
+        this.streamWriteMaxOutboundBytes = streamWriteMaxOutboundBytes;
+    }
+
+    public int getStreamWriteFlushRows() {
+        return streamWriteFlushRows;
+    }
+
+    public void setStreamWriteFlushRows(int streamWriteFlushRows) {
+        this.streamWriteFlushRows = streamWriteFlushRows;
+    }
+
+    public long getStreamWriteFlushBytes() {
+        return streamWriteFlushBytes;
+    }
+
+    public void setStreamWriteFlushBytes(long streamWriteFlushBytes) {
+        this.streamWriteFlushBytes = streamWriteFlushBytes;
+    }
+
+    public int getDedupMaxPoints() {
+        return dedupMaxPoints;
+    }
+
+    public void setDedupMaxPoints(int dedupMaxPoints) {
+        this.dedupMaxPoints = dedupMaxPoints;
+    }
+
     @Override
     public WriteOptions copy() {
         final WriteOptions opts = new WriteOptions();
@@ -95,8 +230,21 @@ public class WriteOptions implements Copiable<WriteOptions> {
         opts.asyncPool = this.asyncPool;
         opts.maxRetries = this.maxRetries;
         opts.maxWriteSize = this.maxWriteSize;
+        opts.maxWriteBytes = this.maxWriteBytes;
+        opts.minWriteBytes = this.minWriteBytes;
+        opts.writeLatencyTargetMs = this.writeLatencyTargetMs;
+        opts.parallelEncodeThreshold = this.parallelEncodeThreshold;
         opts.maxInFlightWriteRows = this.maxInFlightWriteRows;
         opts.limitedPolicy = this.limitedPolicy;
+        opts.spoolDir = this.spoolDir;
+        opts.spoolSegmentSize = this.spoolSegmentSize;
+        opts.spoolMaxSize = this.spoolMaxSize;
+        opts.spoolFsyncPolicy = this.spoolFsyncPolicy;
+        opts.spoolReplayRowsPerSecond = this.spoolReplayRowsPerSecond;
+        opts.streamWriteMaxOutboundBytes = this.streamWriteMaxOutboundBytes;
+        opts.streamWriteFlushRows = this.streamWriteFlushRows;
+        opts.streamWriteFlushBytes = this.streamWriteFlushBytes;
+        opts.dedupMaxPoints = this.dedupMaxPoints;
         return opts;
     }
 
@@ -107,8 +255,21 @@ public class WriteOptions implements Copiable<WriteOptions> {
                ", globalAsyncPool=" + asyncPool + //
                ", maxRetries=" + maxRetries + //
                ", maxWriteSize=" + maxWriteSize + //
+               ", maxWriteBytes=" + maxWriteBytes + //
+               ", minWriteBytes=" + minWriteBytes + //
+               ", writeLatencyTargetMs=" + writeLatencyTargetMs + //
+               ", parallelEncodeThreshold=" + parallelEncodeThreshold + //
                ", maxInFlightWriteRows=" + maxInFlightWriteRows + //
                ", limitedPolicy=" + limitedPolicy + //
+               ", spoolDir=" + spoolDir + //
+               ", spoolSegmentSize=" + spoolSegmentSize + //
+               ", spoolMaxSize=" + spoolMaxSize + //
+               ", spoolFsyncPolicy=" + spoolFsyncPolicy + //
+               ", spoolReplayRowsPerSecond=" + spoolReplayRowsPerSecond + //
+               ", streamWriteMaxOutboundBytes=" + streamWriteMaxOutboundBytes + //
+               ", streamWriteFlushRows=" + streamWriteFlushRows + //
+               ", streamWriteFlushBytes=" + streamWriteFlushBytes + //
+               ", dedupMaxPoints=" + dedupMaxPoints + //
                '}';
     }
 }
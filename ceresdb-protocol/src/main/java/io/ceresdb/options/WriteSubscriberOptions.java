@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.options;
+
+import io.ceresdb.common.Copiable;
+
+/**
+ * Options of {@link io.ceresdb.WriteSubscriber}.
+ *
+ * @author jiachun.fjc
+ */
+public class WriteSubscriberOptions implements Copiable<WriteSubscriberOptions> {
+
+    // A batch is written once it has this many rows
+    private int maxBatchRows = 512;
+    // A batch with less rows is written after it's been buffered for this long
+    private long lingerMs = 100;
+    // Maximum number of the batches in-flight, the upstream demand is bounded by it
+    private int maxInFlightBatches = 8;
+
+    public static WriteSubscriberOptions newDefault() {
+        return new WriteSubscriberOptions();
+    }
+
+    public int getMaxBatchRows() {
+        return maxBatchRows;
+    }
+
+    public void setMaxBatchRows(int maxBatchRows) {
+        this.maxBatchRows = maxBatchRows;
+    }
+
+    public long getLingerMs() {
+        return lingerMs;
+    }
+
+    public void setLingerMs(long lingerMs) {
+        this.lingerMs = lingerMs;
+    }
+
+    public int getMaxInFlightBatches() {
+        return maxInFlightBatches;
+    }
+
+    public void setMaxInFlightBatches(int maxInFlightBatches) {
+        this.maxInFlightBatches = maxInFlightBatches;
+    }
+
+    @Override
+    public WriteSubscriberOptions copy() {
+        final WriteSubscriberOptions opts = new WriteSubscriberOptions();
+        opts.maxBatchRows = this.maxBatchRows;
+        opts.lingerMs = this.lingerMs;
+        opts.maxInFlightBatches = this.maxInFlightBatches;
+        return opts;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteSubscriberOptions{" + //
+               "maxBatchRows=" + maxBatchRows + //
+               ", lingerMs=" + lingerMs + //
+               ", maxInFlightBatches=" + maxInFlightBatches + //
+               '}';
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.signal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.ceresdb.common.SPI;
+import io.ceresdb.common.signal.FileOutputHelper;
+import io.ceresdb.common.signal.FileSignals;
+import io.ceresdb.common.signal.SignalHandler;
+import io.ceresdb.common.util.Files;
+import io.ceresdb.rpc.trace.Span;
+import io.ceresdb.rpc.trace.Tracer;
+
+/**
+ * A signal handler that can write the recent trace spans into a file.
+ *
+ * @author jiachun.fjc
+ */
+@SPI(priority = 93)
+public class TraceSignalHandler implements SignalHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TraceSignalHandler.class);
+
+    private static final String BASE_NAME = "CeresDB_client_traces.log";
+
+    @Override
+    public void handle(final String signalName) {
+        if (FileSignals.ignoreFileOutputSignal()) {
+            return;
+        }
+
+        final List<Span> spans = Tracer.recentSpans().snapshot();
+        if (spans.isEmpty()) {
+            return;
+        }
+
+        try {
+            final File file = FileOutputHelper.getOutputFile(BASE_NAME);
+
+            LOG.info("Printing {} recent trace spans triggered by signal: {} to file: {}.", spans.size(), signalName,
+                    file.getAbsoluteFile());
+
+            try (PrintWriter out = new PrintWriter(
+                    new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8))) {
+                out.println("-- CeresDB recent trace spans, sample rate: " + Tracer.getSampleRate());
+                spans.forEach(out::println);
+                out.flush();
+            }
+            Files.fsync(file);
+        } catch (final IOException e) {
+            LOG.error("Fail to print the trace spans.", e);
+        }
+    }
+}
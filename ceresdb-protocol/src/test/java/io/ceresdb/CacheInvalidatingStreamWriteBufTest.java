@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import io.ceresdb.models.Rows;
+import io.ceresdb.models.WriteOk;
+import io.ceresdb.util.TestUtil;
+
+/**
+ * @author jiachun.fjc
+ */
+public class CacheInvalidatingStreamWriteBufTest {
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void invalidateOnFlushAndCompletedTest() {
+        final QueryClient queryClient = Mockito.mock(QueryClient.class);
+        final List<Collection<String>> invalidated = new CopyOnWriteArrayList<>();
+        Mockito.doAnswer(inv -> {
+            invalidated.add(new HashSet<>((Collection<String>) inv.getArguments()[0]));
+            return null;
+        }).when(queryClient).invalidateCache(Mockito.anyCollection());
+
+        final List<Rows> flushed = new CopyOnWriteArrayList<>();
+        final CompletableFuture<WriteOk> done = new CompletableFuture<>();
+        final StreamWriteBuf<Rows, WriteOk> buf = new CacheInvalidatingStreamWriteBuf(
+                new StreamWriteBuf<Rows, WriteOk>() {
+
+                    @Override
+                    public StreamWriteBuf<Rows, WriteOk> write(final Rows val) {
+                        flushed.add(val);
+                        return this;
+                    }
+
+                    @Override
+                    public StreamWriteBuf<Rows, WriteOk> flush() {
+                        return this;
+                    }
+
+                    @Override
+                    public CompletableFuture<WriteOk> completed() {
+                        return done;
+                    }
+                }, queryClient);
+
+        buf.write(TestUtil.newRow("stream_metric1")).flush();
+        Assert.assertEquals(Collections.singletonList(TestUtil.asSet("stream_metric1")), invalidated);
+
+        buf.writeAndFlush(TestUtil.newListOfRows("stream_metric2"));
+        Assert.assertEquals(2, invalidated.size());
+        Assert.assertEquals(TestUtil.asSet("stream_metric1", "stream_metric2"), invalidated.get(1));
+        Assert.assertEquals(2, flushed.size());
+
+        final CompletableFuture<WriteOk> f = buf.completed();
+        Assert.assertEquals(2, invalidated.size());
+        done.complete(WriteOk.emptyOk());
+        Assert.assertTrue(f.isDone());
+        Assert.assertEquals(3, invalidated.size());
+        Assert.assertEquals(TestUtil.asSet("stream_metric1", "stream_metric2"), invalidated.get(2));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author jiachun.fjc
+ */
+public class CachingMetricParserFactoryTest {
+
+    @Test
+    public void simpleSelectMetricTest() {
+        Assert.assertEquals("t", QlScanner.simpleSelectMetric("select * from t"));
+        Assert.assertEquals("t", QlScanner.simpleSelectMetric("SELECT a, b FROM t;"));
+        Assert.assertEquals("t_1", QlScanner.simpleSelectMetric(
+                "SELECT count(a) FROM t_1 WHERE ts > 1 AND name = 'from x' GROUP BY b ORDER BY b LIMIT 10"));
+        Assert.assertEquals("t", QlScanner.simpleSelectMetric("SELECT extract(year from ts) FROM t"));
+        Assert.assertEquals("t", QlScanner.simpleSelectMetric("SELECT \"from\" FROM t WHERE a = 'it''s'"));
+    }
+
+    @Test
+    public void notSimpleSelectTest() {
+        Assert.assertNull(QlScanner.simpleSelectMetric("SELECT 1"));
+        Assert.assertNull(QlScanner.simpleSelectMetric("SELECT * FROM t1, t2"));
+        Assert.assertNull(QlScanner.simpleSelectMetric("SELECT * FROM t1 JOIN t2 ON t1.a = t2.a"));
+        Assert.assertNull(QlScanner.simpleSelectMetric("SELECT * FROM t1 a"));
+        Assert.assertNull(QlScanner.simpleSelectMetric("SELECT * FROM db.t1"));
+        Assert.assertNull(QlScanner.simpleSelectMetric("SELECT * FROM `t1`"));
+        Assert.assertNull(QlScanner.simpleSelectMetric("SELECT * FROM (SELECT * FROM t1)"));
+        Assert.assertNull(QlScanner.simpleSelectMetric("SELECT * FROM t1 WHERE a IN (SELECT a FROM t2)"));
+        Assert.assertNull(QlScanner.simpleSelectMetric("SELECT * FROM t1 UNION SELECT * FROM t2"));
+        Assert.assertNull(QlScanner.simpleSelectMetric("SELECT * FROM t1 -- comment"));
+        Assert.assertNull(QlScanner.simpleSelectMetric("SELECT * FROM t1 WHERE a = 'unterminated"));
+        Assert.assertNull(QlScanner.simpleSelectMetric("DESCRIBE t1"));
+    }
+
+    @Test
+    public void normalizeTest() {
+        Assert.assertEquals(QlScanner.normalize("SELECT * FROM t1 WHERE a = 'x' AND b > 10"),
+                QlScanner.normalize("SELECT *  FROM t1\nWHERE a = 'yy' AND b > 2.5"));
+        Assert.assertNotEquals(QlScanner.normalize("SELECT * FROM t1 WHERE a = 1"),
+                QlScanner.normalize("SELECT * FROM t2 WHERE a = 1"));
+        Assert.assertNotEquals(QlScanner.normalize("SELECT \"a\" FROM t1"),
+                QlScanner.normalize("SELECT \"b\" FROM t1"));
+        Assert.assertNotEquals(QlScanner.normalize("SELECT * FROM 表1"), QlScanner.normalize("SELECT * FROM 表2"));
+        Assert.assertNotEquals(QlScanner.normalize("SELECT * FROM $t1"), QlScanner.normalize("SELECT * FROM $t2"));
+        Assert.assertEquals("SELECT * FROM 表1 WHERE a = ? AND b > ?",
+                QlScanner.normalize("SELECT * FROM 表1 WHERE a = 10 AND b > 1.5"));
+    }
+
+    @Test
+    public void cacheNonAsciiTest() {
+        final CachingMetricParserFactory factory = new CachingMetricParserFactory(
+                ql -> new TestParser(Collections.singletonList(ql.substring(ql.lastIndexOf(' ') + 1))), 16);
+        Assert.assertEquals(Collections.singletonList("表1"), factory.getParser("SELECT * FROM 表1").metricNames());
+        Assert.assertEquals(Collections.singletonList("表2"), factory.getParser("SELECT * FROM 表2").metricNames());
+        Assert.assertEquals(Collections.singletonList("$t2"), factory.getParser("SELECT * FROM $t2").metricNames());
+        Assert.assertEquals(3, factory.size());
+    }
+
+    @Test
+    public void cacheTest() {
+        final AtomicInteger parsed = new AtomicInteger();
+        final CachingMetricParserFactory factory = new CachingMetricParserFactory(ql -> {
+            parsed.incrementAndGet();
+            return new TestParser(Collections.singletonList("t1"));
+        }, 16);
+
+        // fast path
+        Assert.assertEquals(Collections.singletonList("t"), factory.getParser("SELECT * FROM t").metricNames());
+        Assert.assertEquals(0, parsed.get());
+
+        MetricParser parser = factory.getParser("SELECT * FROM t1 a WHERE a.x = 1");
+        Assert.assertEquals(MetricParser.StatementType.Select, parser.statementType());
+        Assert.assertEquals(Collections.singletonList("t1"), parser.metricNames());
+        Assert.assertEquals(1, parsed.get());
+
+        parser = factory.getParser("SELECT * FROM t1 a WHERE a.x = 2");
+        Assert.assertEquals(Collections.singletonList("t1"), parser.metricNames());
+        Assert.assertEquals(1, parsed.get());
+        Assert.assertEquals(1, factory.size());
+    }
+
+    @Test
+    public void evictTest() {
+        final CachingMetricParserFactory factory = new CachingMetricParserFactory(
+                ql -> new TestParser(Collections.singletonList("t1")), 10);
+        for (int i = 0; i < 20; i++) {
+            factory.getParser("SELECT * FROM t1 a_" + i).metricNames();
+        }
+        Assert.assertTrue(factory.size() <= 10);
+    }
+
+    @Test
+    public void notCacheFailureTest() {
+        final AtomicInteger parsed = new AtomicInteger();
+        final CachingMetricParserFactory factory = new CachingMetricParserFactory(ql -> {
+            parsed.incrementAndGet();
+            return new TestParser(null);
+        }, 16);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                factory.getParser("SHOW CREATE TABLE t1").metricNames();
+                Assert.fail();
+            } catch (final IllegalStateException ignored) {
+                // expected
+            }
+        }
+        Assert.assertEquals(2, parsed.get());
+        Assert.assertEquals(0, factory.size());
+    }
+
+    static class TestParser implements MetricParser {
+
+        private final List<String> metricNames;
+
+        TestParser(List<String> metricNames) {
+            this.metricNames = metricNames;
+        }
+
+        @Override
+        public StatementType statementType() {
+            return StatementType.Select;
+        }
+
+        @Override
+        public List<String> metricNames() {
+            if (this.metricNames == null) {
+                throw new IllegalStateException("test");
+            }
+            return this.metricNames;
+        }
+
+        @Override
+        public List<Column> createColumns() {
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import io.ceresdb.errors.LimitedException;
+import io.ceresdb.errors.SyncCallException;
+import io.ceresdb.models.Err;
+import io.ceresdb.models.QueryOk;
+import io.ceresdb.models.QueryRequest;
+import io.ceresdb.models.Result;
+import io.ceresdb.models.Rows;
+import io.ceresdb.models.WriteOk;
+import io.ceresdb.rpc.Context;
+import io.ceresdb.util.TestUtil;
+
+/**
+ * @author jiachun.fjc
+ */
+public class CeresDBSyncClientTest {
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void writeTest() {
+        final CeresDBClient client = Mockito.mock(CeresDBClient.class);
+        final Rows rs = TestUtil.newRow("sync_client_test_metric");
+        Mockito.when(client.write(Mockito.anyCollection(), Mockito.any(Context.class))) //
+                .thenReturn(Utils.completedCf(WriteOk.ok(2, 0, null).mapToResult()));
+
+        final CeresDBSyncClient sync = new CeresDBSyncClient(client, 1000);
+        final Result<WriteOk, Err> ret = sync.write(rs);
+
+        Assert.assertTrue(ret.isOk());
+        Assert.assertEquals(new Integer(2), ret.mapOr(0, WriteOk::getSuccess));
+    }
+
+    @Test
+    public void timeoutTest() {
+        final CeresDBClient client = Mockito.mock(CeresDBClient.class);
+        Mockito.when(client.query(Mockito.any(QueryRequest.class), Mockito.any(Context.class))) //
+                .thenReturn(new CompletableFuture<>());
+
+        final CeresDBSyncClient sync = new CeresDBSyncClient(client, 100);
+        try {
+            sync.query(QueryRequest.newBuilder().ql("select * from t").build());
+            Assert.fail();
+        } catch (final SyncCallException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Timeout"));
+        }
+    }
+
+    @Test(expected = LimitedException.class)
+    public void rethrowCauseTest() {
+        final CeresDBClient client = Mockito.mock(CeresDBClient.class);
+        final CompletableFuture<Result<QueryOk, Err>> f = new CompletableFuture<>();
+        f.completeExceptionally(new LimitedException("limited"));
+        Mockito.when(client.query(Mockito.any(QueryRequest.class), Mockito.any(Context.class))).thenReturn(f);
+
+        new CeresDBSyncClient(client, 1000).query(QueryRequest.newBuilder().ql("select * from t").build());
+    }
+
+    @Test
+    public void interruptedTest() {
+        final CeresDBClient client = Mockito.mock(CeresDBClient.class);
+        Mockito.when(client.query(Mockito.any(QueryRequest.class), Mockito.any(Context.class))) //
+                .thenReturn(new CompletableFuture<>());
+
+        Thread.currentThread().interrupt();
+        try {
+            new CeresDBSyncClient(client, 1000).query(QueryRequest.newBuilder().ql("select * from t").build());
+            Assert.fail();
+        } catch (final SyncCallException e) {
+            Assert.assertTrue(Thread.interrupted());
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import io.ceresdb.models.Err;
+import io.ceresdb.models.FieldValue;
+import io.ceresdb.models.Result;
+import io.ceresdb.models.Rows;
+import io.ceresdb.models.Series;
+import io.ceresdb.models.WriteOk;
+import io.ceresdb.options.DownsampleOptions;
+import io.ceresdb.rpc.Context;
+
+/**
+ * @author jiachun.fjc
+ */
+public class DownsamplerTest {
+
+    private static final long WINDOW_MS = 10_000;
+
+    private Write             write;
+    private List<Rows>        written;
+    private List<Downsampler> downsamplers;
+    // in the future, so the periodic flushing never closes the windows
+    private long base;
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void before() {
+        this.write = Mockito.mock(Write.class);
+        this.written = new CopyOnWriteArrayList<>();
+        this.downsamplers = new ArrayList<>();
+        Mockito.when(this.write.write(Mockito.anyCollection(), Mockito.any(Context.class))).thenAnswer(inv -> {
+            final Collection<Rows> data = (Collection<Rows>) inv.getArguments()[0];
+            this.written.addAll(data);
+            return Utils.completedCf(WriteOk.ok(data.size(), 0, null).mapToResult());
+        });
+        final long future = System.currentTimeMillis() + 3_600_000;
+        this.base = future - future % WINDOW_MS;
+    }
+
+    @After
+    public void after() {
+        this.downsamplers.forEach(Downsampler::close);
+    }
+
+    @Test
+    public void aggregatorsTest() throws Exception {
+        final Downsampler ds = newDownsampler(DownsampleOptions.newDefault() //
+                .fieldAggregator("sum", Downsampler.Aggregator.Sum) //
+                .fieldAggregator("min", Downsampler.Aggregator.Min) //
+                .fieldAggregator("max", Downsampler.Aggregator.Max) //
+                .fieldAggregator("cnt", Downsampler.Aggregator.Count) //
+                .fieldAggregator("str", Downsampler.Aggregator.Sum));
+
+        ds.add(newRows("h1", this.base + 2000, 3, "b"));
+        ds.add(newRows("h1", this.base + 1000, 5, "a"));
+        ds.add(newRows("h1", this.base + 3000, -2, "c"));
+        Assert.assertEquals(1, ds.getWindowCount());
+
+        final Result<WriteOk, Err> r = ds.flush(true).get();
+        Assert.assertTrue(r.isOk());
+        Assert.assertEquals(1, this.written.size());
+        final Rows rs = this.written.get(0);
+        Assert.assertEquals(1, rs.getRowCount());
+        final Map<String, FieldValue> row = rs.getFields().get(this.base);
+        Assert.assertEquals(6L, row.get("sum").getInt64());
+        Assert.assertEquals(-2L, row.get("min").getInt64());
+        Assert.assertEquals(5L, row.get("max").getInt64());
+        Assert.assertEquals(3L, row.get("cnt").getInt64());
+        // the last by timestamp, not by arrival
+        Assert.assertEquals(-2L, row.get("last").getInt64());
+        // the null values are skipped
+        Assert.assertNull(row.get("avg"));
+        // non-numeric fields always take the last value
+        Assert.assertEquals("c", row.get("str").getString());
+        Assert.assertEquals(0, ds.getWindowCount());
+    }
+
+    @Test
+    public void keepTypeTest() throws Exception {
+        final Downsampler ds = newDownsampler(DownsampleOptions.newDefault() //
+                .fieldAggregator("f32", Downsampler.Aggregator.Sum) //
+                .fieldAggregator("u32", Downsampler.Aggregator.Max) //
+                .fieldAggregator("u64", Downsampler.Aggregator.Max));
+
+        for (int i = 0; i < 2; i++) {
+            ds.add(Rows.newBuilder(series("h1")) //
+                    .field(this.base + i, "f32", FieldValue.withFloat32(1.5f)) //
+                    .field(this.base + i, "u32", FieldValue.withUInt32(i == 0 ? -1 : 1)) //
+                    .field(this.base + i, "u64", FieldValue.withUInt64(i == 0 ? -1L : 1L)) //
+                    .build());
+        }
+        ds.flush(true).get();
+
+        final Map<String, FieldValue> row = this.written.get(0).getFields().get(this.base);
+        Assert.assertEquals(FieldValue.withFloat32(3.0f), row.get("f32"));
+        // compared as unsigned
+        Assert.assertEquals(FieldValue.withUInt32(-1), row.get("u32"));
+        Assert.assertEquals(FieldValue.withUInt64(-1L), row.get("u64"));
+    }
+
+    @Test
+    public void windowsAndSeriesTest() throws Exception {
+        final Downsampler ds = newDownsampler(DownsampleOptions.newDefault());
+
+        ds.add(newRows("h1", this.base + 1, 1, "a"));
+        ds.add(newRows("h2", this.base + 2, 2, "a"));
+        ds.add(newRows("h1", this.base + WINDOW_MS + 1, 3, "a"));
+        Assert.assertEquals(2, ds.getWindowCount());
+        Assert.assertEquals(2, ds.getSeriesCount());
+
+        ds.flush(true).get();
+        Assert.assertEquals(3, this.written.size());
+        final List<Long> timestamps = new ArrayList<>();
+        this.written.forEach(rs -> timestamps.addAll(rs.getFields().keySet()));
+        Assert.assertEquals(3, timestamps.stream().filter(ts -> ts % WINDOW_MS == 0).count());
+        Assert.assertTrue(timestamps.contains(this.base + WINDOW_MS));
+    }
+
+    @Test
+    public void lateRowsDroppedTest() throws Exception {
+        final Downsampler ds = newDownsampler(DownsampleOptions.newDefault());
+        final long past = this.base - 7_200_000;
+
+        ds.add(newRows("h1", past, 1, "a"));
+        ds.add(newRows("h1", this.base, 1, "a"));
+        ds.flush(false).get();
+        // only the closed window is written
+        Assert.assertEquals(1, this.written.size());
+        Assert.assertEquals(past, (long) this.written.get(0).getFields().firstKey());
+        Assert.assertEquals(1, ds.getWindowCount());
+
+        final long dropped = Downsampler.InnerMetrics.lateDropped().getCount();
+        ds.add(newRows("h1", past + 1, 1, "a"));
+        Assert.assertEquals(dropped + 1, Downsampler.InnerMetrics.lateDropped().getCount());
+        Assert.assertEquals(1, ds.getWindowCount());
+    }
+
+    @Test
+    public void maxSeriesTest() {
+        final DownsampleOptions opts = DownsampleOptions.newDefault();
+        opts.setMaxSeries(2);
+        final Downsampler ds = newDownsampler(opts);
+
+        ds.add(newRows("h1", this.base, 1, "a"));
+        ds.add(newRows("h2", this.base, 1, "a"));
+        Assert.assertTrue(this.written.isEmpty());
+        ds.add(newRows("h3", this.base, 1, "a"));
+        // flushed early
+        Assert.assertEquals(3, this.written.size());
+        Assert.assertEquals(0, ds.getWindowCount());
+        Assert.assertEquals(0, ds.getSeriesCount());
+
+        // the flushed window is closed, or the partial aggregates would be overwritten
+        final long dropped = Downsampler.InnerMetrics.lateDropped().getCount();
+        ds.add(newRows("h1", this.base + 1, 1, "a"));
+        Assert.assertEquals(dropped + 1, Downsampler.InnerMetrics.lateDropped().getCount());
+        Assert.assertEquals(0, ds.getWindowCount());
+        ds.add(newRows("h1", this.base + WINDOW_MS, 1, "a"));
+        Assert.assertEquals(1, ds.getWindowCount());
+        ds.close().join();
+        Assert.assertEquals(4, this.written.size());
+        Assert.assertEquals(this.base + WINDOW_MS, (long) this.written.get(3).getFields().firstKey());
+    }
+
+    @Test
+    public void seriesOfOpenWindowsTest() throws Exception {
+        final DownsampleOptions opts = DownsampleOptions.newDefault();
+        opts.setMaxSeries(2);
+        final Downsampler ds = newDownsampler(opts);
+
+        ds.add(newRows("h1", this.base, 1, "a"));
+        ds.add(newRows("h2", this.base, 1, "a"));
+        ds.flush(true).get();
+        Assert.assertEquals(2, this.written.size());
+        // no open window refers to them
+        Assert.assertEquals(0, ds.getSeriesCount());
+
+        // the late rows do not register their series
+        for (int i = 3; i < 10; i++) {
+            ds.add(newRows("h" + i, this.base, 1, "a"));
+        }
+        Assert.assertEquals(0, ds.getSeriesCount());
+
+        // the released ids are reused by the new series, not flushed early
+        ds.add(newRows("h3", this.base + WINDOW_MS, 1, "a"));
+        ds.add(newRows("h4", this.base + WINDOW_MS, 2, "a"));
+        ds.add(newRows("h4", this.base + WINDOW_MS + 1, 3, "a"));
+        Assert.assertEquals(2, ds.getSeriesCount());
+        Assert.assertEquals(2, this.written.size());
+        ds.flush(true).get();
+        Assert.assertEquals(4, this.written.size());
+        Assert.assertEquals("h3", this.written.get(2).getSeries().getTags().get("host").getString());
+        Assert.assertEquals("h4", this.written.get(3).getSeries().getTags().get("host").getString());
+        Assert.assertEquals(3L, this.written.get(3).getFields().get(this.base + WINDOW_MS).get("last").getInt64());
+    }
+
+    @Test
+    public void manySlotsTest() throws Exception {
+        final Downsampler ds = newDownsampler(DownsampleOptions.newDefault() //
+                .fieldAggregator("v", Downsampler.Aggregator.Sum));
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 1000; i++) {
+                ds.add(newRows("h" + i, this.base + round, i, "a"));
+            }
+        }
+        ds.flush(true).get();
+        Assert.assertEquals(1000, this.written.size());
+        for (final Rows rs : this.written) {
+            final int i = Integer.parseInt(rs.getSeries().getTags().get("host").getString().substring(1));
+            Assert.assertEquals(3L * i, rs.getFields().get(this.base).get("v").getInt64());
+        }
+    }
+
+    private Downsampler newDownsampler(final DownsampleOptions opts) {
+        opts.setWindowMs(WINDOW_MS);
+        final Downsampler ds = new Downsampler(this.write, opts, Context.newDefault(), null);
+        this.downsamplers.add(ds);
+        return ds;
+    }
+
+    private static Series series(final String host) {
+        return Series.newBuilder("downsampler_test_metric") //
+                .tag("host", host) //
+                .build();
+    }
+
+    private static Rows newRows(final String host, final long ts, final long v, final String str) {
+        return Rows.newBuilder(series(host)) //
+                .field(ts, "v", FieldValue.withInt64(v)) //
+                .field(ts, "sum", FieldValue.withInt64(v)) //
+                .field(ts, "min", FieldValue.withInt64(v)) //
+                .field(ts, "max", FieldValue.withInt64(v)) //
+                .field(ts, "cnt", FieldValue.withInt64(v)) //
+                .field(ts, "last", FieldValue.withInt64(v)) //
+                .field(ts, "avg", FieldValue.withFloat64OrNull(null)) //
+                .field(ts, "str", FieldValue.withString(str)) //
+                .build();
+    }
+}
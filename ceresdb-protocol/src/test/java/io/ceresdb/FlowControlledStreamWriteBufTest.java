@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ceresdb.errors.StreamException;
+import io.ceresdb.models.Rows;
+import io.ceresdb.models.WriteOk;
+import io.ceresdb.options.WriteOptions;
+import io.ceresdb.proto.Storage;
+import io.ceresdb.rpc.FlowControlledObserver;
+import io.ceresdb.util.TestUtil;
+
+/**
+ * @author jiachun.fjc
+ */
+public class FlowControlledStreamWriteBufTest {
+
+    private static final String METRIC = "flow_controlled_stream_test";
+
+    private WriteClient  writeClient;
+    private TestObserver observer;
+
+    @Before
+    public void before() {
+        final WriteOptions writeOpts = new WriteOptions();
+        writeOpts.setAsyncPool(ForkJoinPool.commonPool());
+        this.writeClient = new WriteClient();
+        this.writeClient.init(writeOpts);
+        this.observer = new TestObserver();
+    }
+
+    @After
+    public void after() {
+        this.writeClient.shutdownGracefully();
+    }
+
+    @Test
+    public void pendingUntilReadyTest() throws InterruptedException {
+        final CompletableFuture<WriteOk> respFuture = new CompletableFuture<>();
+        final StreamWriteBuf<Rows, WriteOk> buf = newBuf(respFuture, 1, 0, 0);
+        this.observer.ready = false;
+
+        buf.writeAndFlush(TestUtil.newListOfRows(METRIC));
+        Assert.assertTrue(this.observer.sent.isEmpty());
+        Assert.assertFalse(buf.isReady());
+
+        final CompletableFuture<Void> ready = buf.whenReady();
+        Assert.assertFalse(ready.isDone());
+        // the flush over the limit blocks until the stream is ready
+        final CompletableFuture<Void> blocked = CompletableFuture
+                .runAsync(() -> buf.writeAndFlush(TestUtil.newListOfRows(METRIC)), newThreadExecutor());
+        TimeUnit.MILLISECONDS.sleep(200);
+        Assert.assertFalse(blocked.isDone());
+
+        this.observer.becomeReady();
+        Assert.assertTrue(ready.isDone());
+        blocked.join();
+        Assert.assertTrue(buf.isReady());
+        buf.completed();
+        Assert.assertEquals(2, this.observer.sent.size());
+        Assert.assertTrue(this.observer.completed);
+    }
+
+    @Test
+    public void completeAfterDrainedTest() {
+        final StreamWriteBuf<Rows, WriteOk> buf = newBuf(new CompletableFuture<>(), 1024 * 1024, 0, 0);
+        this.observer.ready = false;
+
+        buf.writeAndFlush(TestUtil.newListOfRows(METRIC, METRIC));
+        buf.completed();
+        Assert.assertFalse(this.observer.completed);
+
+        this.observer.becomeReady();
+        Assert.assertEquals(1, this.observer.sent.size());
+        Assert.assertTrue(this.observer.completed);
+    }
+
+    @Test
+    public void defaultsTest() {
+        final WriteOptions defaults = new WriteOptions();
+        Assert.assertTrue(defaults.getStreamWriteMaxOutboundBytes() > 0);
+        final StreamWriteBuf<Rows, WriteOk> buf = newBuf(new CompletableFuture<>(),
+                defaults.getStreamWriteMaxOutboundBytes(), defaults.getStreamWriteFlushRows(),
+                defaults.getStreamWriteFlushBytes());
+        this.observer.ready = false;
+
+        // never flushed automatically
+        for (int i = 0; i < 100; i++) {
+            buf.write(TestUtil.newRow(METRIC));
+        }
+        Assert.assertTrue(this.observer.sent.isEmpty());
+        // far below the outbound bytes limit, never blocked
+        for (int i = 0; i < 3; i++) {
+            buf.writeAndFlush(TestUtil.newListOfRows(METRIC));
+        }
+        Assert.assertTrue(buf.isReady());
+        Assert.assertTrue(buf.whenReady().isDone());
+        Assert.assertTrue(this.observer.sent.isEmpty());
+
+        this.observer.becomeReady();
+        Assert.assertEquals(3, this.observer.sent.size());
+    }
+
+    @Test
+    public void sendOutOfLockTest() {
+        final StreamWriteBuf<Rows, WriteOk> buf = newBuf(new CompletableFuture<>(), 1024 * 1024, 0, 0);
+        this.observer.lock = buf;
+        this.observer.ready = false;
+        buf.writeAndFlush(TestUtil.newListOfRows(METRIC));
+        buf.whenReady();
+        this.observer.becomeReady();
+        buf.writeAndFlush(TestUtil.newListOfRows(METRIC));
+        buf.completed();
+        Assert.assertEquals(2, this.observer.sent.size());
+        Assert.assertTrue(this.observer.completed);
+        Assert.assertFalse(this.observer.sentInLock);
+    }
+
+    @Test
+    public void autoFlushByRowsTest() {
+        final StreamWriteBuf<Rows, WriteOk> buf = newBuf(new CompletableFuture<>(), 1024 * 1024, 4, 0);
+        // each rows has 2 data points
+        buf.write(TestUtil.newRow(METRIC));
+        Assert.assertTrue(this.observer.sent.isEmpty());
+        buf.write(TestUtil.newRow(METRIC));
+        Assert.assertEquals(1, this.observer.sent.size());
+    }
+
+    @Test
+    public void autoFlushByBytesTest() {
+        final StreamWriteBuf<Rows, WriteOk> buf = newBuf(new CompletableFuture<>(), 1024 * 1024, 0, 1);
+        buf.write(TestUtil.newRow(METRIC));
+        Assert.assertEquals(1, this.observer.sent.size());
+    }
+
+    @Test
+    public void readyOnStreamFailedTest() throws InterruptedException {
+        final CompletableFuture<WriteOk> respFuture = new CompletableFuture<>();
+        final StreamWriteBuf<Rows, WriteOk> buf = newBuf(respFuture, 1, 0, 0);
+        this.observer.ready = false;
+
+        buf.writeAndFlush(TestUtil.newListOfRows(METRIC));
+        final CompletableFuture<Void> ready = buf.whenReady();
+        final CompletableFuture<Void> blocked = CompletableFuture
+                .runAsync(() -> buf.writeAndFlush(TestUtil.newListOfRows(METRIC)), newThreadExecutor());
+        TimeUnit.MILLISECONDS.sleep(200);
+        Assert.assertFalse(blocked.isDone());
+
+        respFuture.completeExceptionally(new StreamException("test"));
+        Assert.assertTrue(ready.isCompletedExceptionally());
+        try {
+            blocked.join();
+            Assert.fail();
+        } catch (final CompletionException e) {
+            // the blocked flush is woken up with the stream error
+            Assert.assertTrue(e.getCause() instanceof StreamException);
+        }
+    }
+
+    @Test(expected = StreamException.class)
+    public void invalidMetricTest() {
+        newBuf(new CompletableFuture<>(), 1024, 0, 0).write(TestUtil.newRow("another_metric"));
+    }
+
+    private static Executor newThreadExecutor() {
+        return r -> new Thread(r, "blocked-flush").start();
+    }
+
+    private FlowControlledStreamWriteBuf newBuf(final CompletableFuture<WriteOk> respFuture,
+                                                final long maxOutboundBytes, final int flushRows,
+                                                final long flushBytes) {
+        return new FlowControlledStreamWriteBuf(METRIC, this.writeClient, this.observer, respFuture, maxOutboundBytes,
+                flushRows, flushBytes);
+    }
+
+    static class TestObserver implements FlowControlledObserver<Storage.WriteRequest> {
+
+        final List<Storage.WriteRequest> sent  = new ArrayList<>();
+        volatile boolean                 ready = true;
+        volatile boolean                 completed;
+        Runnable                         onReadyHandler;
+        // the lock that should not be held while sending
+        volatile Object  lock;
+        volatile boolean sentInLock;
+
+        void becomeReady() {
+            this.ready = true;
+            this.onReadyHandler.run();
+        }
+
+        @Override
+        public boolean isReady() {
+            return this.ready;
+        }
+
+        @Override
+        public void setOnReadyHandler(final Runnable onReadyHandler) {
+            this.onReadyHandler = onReadyHandler;
+        }
+
+        @Override
+        public void onNext(final Storage.WriteRequest value) {
+            final Object lock = this.lock;
+            if (lock != null && Thread.holdsLock(lock)) {
+                this.sentInLock = true;
+            }
+            this.sent.add(value);
+        }
+
+        @Override
+        public void onError(final Throwable err) {
+            // ignored
+        }
+
+        @Override
+        public void onCompleted() {
+            this.completed = true;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.ceresdb.models.QueryRequest;
+
+/**
+ * @author jiachun.fjc
+ */
+public class PreparedQueryTest {
+
+    @Test
+    public void bindTest() {
+        final PreparedQuery pq = PreparedQuery.prepare("SELECT * FROM t WHERE a = ? AND b > ? AND c = ?", "t");
+        Assert.assertEquals(3, pq.getParameterCount());
+        Assert.assertEquals(Collections.singletonList("t"), pq.getMetrics());
+
+        final QueryRequest req = pq.bind("it's", 10L, true);
+        Assert.assertEquals("SELECT * FROM t WHERE a = 'it''s' AND b > 10 AND c = true", req.getQl());
+        Assert.assertSame(pq.getMetrics(), req.getMetrics());
+
+        Assert.assertEquals("SELECT * FROM t WHERE a = NULL AND b > 0.5 AND c = false",
+                pq.bind(null, 0.5d, false).getQl());
+    }
+
+    @Test
+    public void hostileStringTest() {
+        final PreparedQuery pq = PreparedQuery.prepare("SELECT * FROM t WHERE a = ? AND b = 1", "t");
+        Assert.assertEquals("SELECT * FROM t WHERE a = 'x\\\\'' OR 1=1 --' AND b = 1",
+                pq.bind("x\\' OR 1=1 --").getQl());
+        Assert.assertEquals("SELECT * FROM t WHERE a = '\\\\' AND b = 1", pq.bind("\\").getQl());
+        Assert.assertEquals("SELECT * FROM t WHERE a = '''; DROP TABLE t; --' AND b = 1",
+                pq.bind("'; DROP TABLE t; --").getQl());
+
+        // the literal is still a single one to the scanner
+        final String ql = pq.bind("x\\' OR b = ? --").getQl();
+        Assert.assertEquals(1, QlScanner.splitByPlaceholders(ql).size());
+        Assert.assertEquals("SELECT * FROM t WHERE a = ? AND b = ?", QlScanner.normalize(ql));
+    }
+
+    @Test
+    public void placeholderInQuotesTest() {
+        final PreparedQuery pq = PreparedQuery
+                .prepare("SELECT `a?` FROM t WHERE b = '?' AND c = ? -- d = ?\n AND e = ? /* f = ? */", "t");
+        Assert.assertEquals(2, pq.getParameterCount());
+        Assert.assertEquals("SELECT `a?` FROM t WHERE b = '?' AND c = 1 -- d = ?\n AND e = 2 /* f = ? */",
+                pq.bind(1, 2).getQl());
+    }
+
+    @Test
+    public void noParameterTest() {
+        final PreparedQuery pq = PreparedQuery.prepare("SELECT * FROM t", "t");
+        Assert.assertEquals(0, pq.getParameterCount());
+        Assert.assertEquals("SELECT * FROM t", pq.bind().getQl());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parameterCountMismatchTest() {
+        PreparedQuery.prepare("SELECT * FROM t WHERE a = ? AND b = ?", "t").bind(1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedParameterTest() {
+        PreparedQuery.prepare("SELECT * FROM t WHERE a = ?", "t").bind(Arrays.asList(1, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidDoubleParameterTest() {
+        PreparedQuery.prepare("SELECT * FROM t WHERE a = ?", "t").bind(Double.NaN);
+    }
+}
@@ -17,11 +17,14 @@
 package io.ceresdb;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
@@ -46,6 +49,7 @@ import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import io.ceresdb.common.Endpoint;
+import io.ceresdb.common.util.MetricsUtil;
 import io.ceresdb.common.util.internal.ThrowUtil;
 import io.ceresdb.errors.IteratorException;
 import io.ceresdb.errors.StreamException;
@@ -261,6 +265,58 @@ public class QueryClientTest {
         });
     }
 
+    @Test
+    public void querySpilledTest() throws ExecutionException, InterruptedException, IOException {
+        final File dir = Files.createTempDirectory("query_spill_test").toFile();
+        // re-init
+        this.queryClient.shutdownGracefully();
+        final QueryOptions queryOpts = new QueryOptions();
+        queryOpts.setAsyncPool(ForkJoinPool.commonPool());
+        queryOpts.setRouterClient(this.routerClient);
+        queryOpts.setSpillThresholdBytes(1);
+        queryOpts.setSpillDir(dir.getPath());
+        this.queryClient = new QueryClient();
+        this.queryClient.init(queryOpts);
+
+        final long spilled = MetricsUtil.meter("query_spilled_rows").getCount();
+        final Result<QueryOk, Err> r = queryByAvro();
+        Assert.assertTrue(r.isOk());
+        Assert.assertEquals(1, r.getOk().getRowCount());
+        Assert.assertEquals(spilled + 1, MetricsUtil.meter("query_spilled_rows").getCount());
+        r.getOk().mapToRecord().forEach(this::checkRecord);
+        // the spill files are deleted once mapped
+        Assert.assertEquals(0, Objects.requireNonNull(dir.list()).length);
+        Assert.assertTrue(dir.delete());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void collectStreamQueryTest() throws ExecutionException, InterruptedException, IOException {
+        final Storage.QueryResponse resp = mockQueryResponse();
+        final Endpoint ep = Endpoint.of("127.0.0.1", 8081);
+
+        Mockito.when(this.routerClient.routeFor(Mockito.any())) //
+                .thenReturn(Utils.completedCf(new HashMap<>()));
+        Mockito.when(this.routerClient.clusterRoute()) //
+                .thenReturn(Route.of(ep));
+        Mockito.doAnswer(inv -> {
+            final Observer<Storage.QueryResponse> observer = (Observer<Storage.QueryResponse>) inv.getArguments()[3];
+            for (int i = 0; i < 3; i++) {
+                observer.onNext(resp);
+            }
+            observer.onCompleted();
+            return null;
+        }).when(this.routerClient).invokeServerStreaming(Mockito.eq(ep), Mockito.any(), Mockito.any(), Mockito.any());
+
+        final QueryRequest req = QueryRequest.newBuilder().forMetrics("query_test_table") //
+                .ql("select number from query_test_table") //
+                .build();
+        final Result<QueryOk, Err> r = this.queryClient.collectStreamQuery(req, Context.newDefault()).get();
+        Assert.assertTrue(r.isOk());
+        Assert.assertEquals(3, r.getOk().getRowCount());
+        Assert.assertEquals(3, r.getOk().mapToRecord().peek(this::checkRecord).count());
+    }
+
     private Result<QueryOk, Err> queryByAvro() throws IOException, ExecutionException, InterruptedException {
         final Storage.QueryResponse resp = mockQueryResponse();
         final Endpoint ep = Endpoint.of("127.0.0.1", 8081);
@@ -0,0 +1,258 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.models.Err;
+import io.ceresdb.models.QueryOk;
+import io.ceresdb.models.QueryRequest;
+import io.ceresdb.models.Result;
+
+/**
+ * @author jiachun.fjc
+ */
+public class QueryResultCacheTest {
+
+    @Test
+    public void hitTest() throws Exception {
+        final QueryResultCache cache = new QueryResultCache(60_000, 1024 * 1024);
+        final AtomicInteger calls = new AtomicInteger();
+        final Supplier<CompletableFuture<Result<QueryOk, Err>>> loader = () -> {
+            calls.incrementAndGet();
+            return Utils.completedCf(QueryOk.ok("ql", null, 3, newRows(3).stream()).mapToResult());
+        };
+
+        final long hits = MetricsUtil.meter("query_cache_hit").getCount();
+        for (int i = 0; i < 3; i++) {
+            final Result<QueryOk, Err> r = cache.query(newReq("select *  from t1;", "t1"), loader).get();
+            Assert.assertEquals(3, r.getOk().getRowCount());
+            Assert.assertEquals(3, r.getOk().map(row -> row[0]).distinct().count());
+        }
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(hits + 2, MetricsUtil.meter("query_cache_hit").getCount());
+        Assert.assertEquals(1, cache.size());
+        Assert.assertTrue(cache.bytes() > 0);
+
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.bytes());
+        cache.query(newReq("select * from t1", "t1"), loader).get();
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void expireTest() throws Exception {
+        final QueryResultCache cache = new QueryResultCache(1, 1024 * 1024);
+        final AtomicInteger calls = new AtomicInteger();
+        final Supplier<CompletableFuture<Result<QueryOk, Err>>> loader = () -> {
+            calls.incrementAndGet();
+            return Utils.completedCf(QueryOk.ok("ql", null, 1, newRows(1).stream()).mapToResult());
+        };
+        cache.query(newReq("select * from t1", "t1"), loader).get();
+        Thread.sleep(10);
+        cache.query(newReq("select * from t1", "t1"), loader).get();
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void singleFlightTest() throws Exception {
+        final QueryResultCache cache = new QueryResultCache(60_000, 1024 * 1024);
+        final AtomicInteger calls = new AtomicInteger();
+        final CompletableFuture<Result<QueryOk, Err>> pending = new CompletableFuture<>();
+        final Supplier<CompletableFuture<Result<QueryOk, Err>>> loader = () -> {
+            calls.incrementAndGet();
+            return pending;
+        };
+
+        final List<CompletableFuture<Result<QueryOk, Err>>> fs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            fs.add(cache.query(newReq("select * from t1", "t1"), loader));
+        }
+        Assert.assertEquals(1, calls.get());
+        Assert.assertFalse(fs.get(0).isDone());
+
+        pending.complete(QueryOk.ok("ql", null, 4, newRows(4).stream()).mapToResult());
+        for (final CompletableFuture<Result<QueryOk, Err>> f : fs) {
+            // every one of them can read the rows
+            Assert.assertEquals(4, f.get().getOk().map(row -> row[0]).count());
+        }
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void writeDuringSingleFlightTest() throws Exception {
+        final QueryResultCache cache = new QueryResultCache(60_000, 1024 * 1024);
+        final AtomicInteger calls = new AtomicInteger();
+        final CompletableFuture<Result<QueryOk, Err>> before = new CompletableFuture<>();
+        final CompletableFuture<Result<QueryOk, Err>> after = new CompletableFuture<>();
+        final Supplier<CompletableFuture<Result<QueryOk, Err>>> loader = () -> calls.incrementAndGet() == 1 ? before :
+                after;
+
+        final CompletableFuture<Result<QueryOk, Err>> f1 = cache.query(newReq("select * from t1", "t1"), loader);
+        // written after the first query started, it must not be shared
+        cache.invalidate(Collections.singletonList("t1"));
+        final CompletableFuture<Result<QueryOk, Err>> f2 = cache.query(newReq("select * from t1", "t1"), loader);
+        final CompletableFuture<Result<QueryOk, Err>> f3 = cache.query(newReq("select * from t1", "t1"), loader);
+        Assert.assertEquals(2, calls.get());
+
+        before.complete(QueryOk.ok("ql", null, 1, newRows(1).stream()).mapToResult());
+        Assert.assertEquals(1, f1.get().getOk().getRowCount());
+        Assert.assertFalse(f2.isDone());
+        after.complete(QueryOk.ok("ql", null, 2, newRows(2).stream()).mapToResult());
+        Assert.assertEquals(2, f2.get().getOk().getRowCount());
+        // the query started after the write is shared
+        Assert.assertEquals(2, f3.get().getOk().getRowCount());
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void errNotCachedTest() throws Exception {
+        final QueryResultCache cache = new QueryResultCache(60_000, 1024 * 1024);
+        final AtomicInteger calls = new AtomicInteger();
+        final CompletableFuture<Result<QueryOk, Err>> pending = new CompletableFuture<>();
+        final Supplier<CompletableFuture<Result<QueryOk, Err>>> loader = () -> calls.incrementAndGet() == 1 ? pending :
+                Utils.completedCf(QueryOk.emptyOk().mapToResult());
+
+        final CompletableFuture<Result<QueryOk, Err>> f1 = cache.query(newReq("select * from t1", "t1"), loader);
+        final CompletableFuture<Result<QueryOk, Err>> f2 = cache.query(newReq("select * from t1", "t1"), loader);
+        pending.complete(
+                Err.queryErr(500, "test", null, "select * from t1", Collections.singletonList("t1")).mapToResult());
+        Assert.assertFalse(f1.get().isOk());
+        // the waiters share the error too
+        Assert.assertFalse(f2.get().isOk());
+        Assert.assertEquals(0, cache.size());
+
+        Assert.assertTrue(cache.query(newReq("select * from t1", "t1"), loader).get().isOk());
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void invalidateTest() throws Exception {
+        final QueryResultCache cache = new QueryResultCache(60_000, 1024 * 1024);
+        final AtomicInteger calls = new AtomicInteger();
+        final Supplier<CompletableFuture<Result<QueryOk, Err>>> loader = () -> {
+            calls.incrementAndGet();
+            return Utils.completedCf(QueryOk.ok("ql", null, 1, newRows(1).stream()).mapToResult());
+        };
+
+        cache.query(newReq("select * from t1 join t2", "t1", "t2"), loader).get();
+        cache.query(newReq("select * from t3", "t3"), loader).get();
+        cache.invalidate(Collections.singletonList("t2"));
+        cache.query(newReq("select * from t3", "t3"), loader).get();
+        Assert.assertEquals(2, calls.get());
+        cache.query(newReq("select * from t1 join t2", "t1", "t2"), loader).get();
+        Assert.assertEquals(3, calls.get());
+
+        // invalidated while loading, the result is returned but not reused
+        final CompletableFuture<Result<QueryOk, Err>> pending = new CompletableFuture<>();
+        final CompletableFuture<Result<QueryOk, Err>> f = cache.query(newReq("select * from t4", "t4"), () -> {
+            calls.incrementAndGet();
+            return pending;
+        });
+        cache.invalidate(Collections.singletonList("t4"));
+        pending.complete(QueryOk.ok("ql", null, 1, newRows(1).stream()).mapToResult());
+        Assert.assertEquals(1, f.get().getOk().getRowCount());
+        cache.query(newReq("select * from t4", "t4"), loader).get();
+        Assert.assertEquals(5, calls.get());
+    }
+
+    @Test
+    public void evictTest() throws Exception {
+        final QueryResultCache cache = new QueryResultCache(60_000, 2048);
+        final Supplier<CompletableFuture<Result<QueryOk, Err>>> loader = () -> Utils
+                .completedCf(QueryOk.ok("ql", null, 1, newRows(1).stream()).mapToResult());
+        for (int i = 0; i < 100; i++) {
+            cache.query(newReq("select * from t" + i, "t" + i), loader).get();
+            Assert.assertTrue(cache.bytes() <= 2048);
+        }
+        Assert.assertTrue(cache.size() < 100);
+        // the most recently used ones are kept
+        final AtomicInteger calls = new AtomicInteger();
+        cache.query(newReq("select * from t99", "t99"), () -> {
+            calls.incrementAndGet();
+            return loader.get();
+        }).get();
+        Assert.assertEquals(0, calls.get());
+    }
+
+    @Test
+    public void tooLargeTest() throws Exception {
+        final QueryResultCache cache = new QueryResultCache(60_000, 1024);
+        final List<byte[]> rows = newRows(100);
+        final Supplier<CompletableFuture<Result<QueryOk, Err>>> loader = () -> Utils
+                .completedCf(QueryOk.ok("ql", null, 100, rows.stream()).mapToResult());
+
+        final CompletableFuture<Result<QueryOk, Err>> pending = new CompletableFuture<>();
+        final CompletableFuture<Result<QueryOk, Err>> f1 = cache.query(newReq("select * from t1", "t1"), () -> pending);
+        final CompletableFuture<Result<QueryOk, Err>> f2 = cache.query(newReq("select * from t1", "t1"), loader);
+        pending.complete(QueryOk.ok("ql", null, 100, rows.stream()).mapToResult());
+
+        for (final CompletableFuture<Result<QueryOk, Err>> f : Arrays.asList(f1, f2)) {
+            final List<byte[]> read = f.get().getOk().map(row -> row).collect(Collectors.toList());
+            Assert.assertEquals(100, read.size());
+            for (int i = 0; i < 100; i++) {
+                Assert.assertArrayEquals(rows.get(i), read.get(i));
+            }
+        }
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void keyTest() {
+        Assert.assertEquals("select * from t where a = 'x  y'",
+                QlScanner.compact("  select *\n from   t\twhere a = 'x  y' ; "));
+        // the escaped quote does not end the literal
+        Assert.assertNotEquals(QlScanner.compact("select * from t where a = 'x\\'  y'"),
+                QlScanner.compact("select * from t where a = 'x\\' y'"));
+        // the line comment ends at the line break
+        Assert.assertNotEquals(QlScanner.compact("select a -- c\nfrom t"), QlScanner.compact("select a -- c from t"));
+        Assert.assertEquals("select a from t", QlScanner.compact("select a -- c\nfrom t"));
+        Assert.assertEquals("select /* x  y */ a from t", QlScanner.compact("select /* x  y */ a\nfrom t"));
+        Assert.assertEquals(QueryResultCache.key(newReq("select * from t", "b", "a")),
+                QueryResultCache.key(newReq("select  * from t;", "a", "b")));
+        Assert.assertNotEquals(QueryResultCache.key(newReq("select * from t", "a")),
+                QueryResultCache.key(newReq("select * from t", "b")));
+        Assert.assertNotEquals(QueryResultCache.key(newReq("select * from t where a = 'x y'", "t")),
+                QueryResultCache.key(newReq("select * from t where a = 'x  y'", "t")));
+    }
+
+    private static QueryRequest newReq(final String ql, final String... metrics) {
+        return QueryRequest.newBuilder().forMetrics(metrics).ql(ql).build();
+    }
+
+    private static List<byte[]> newRows(final int n) {
+        final List<byte[]> rows = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            final byte[] row = new byte[i % 7 + 1];
+            row[0] = (byte) i;
+            rows.add(row);
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ceresdb.common.util.MetricsUtil;
+import io.ceresdb.models.Err;
+import io.ceresdb.models.QueryOk;
+import io.ceresdb.models.Result;
+
+/**
+ * @author jiachun.fjc
+ */
+public class QueryResultSpillTest {
+
+    private File dir;
+
+    @Before
+    public void before() throws Exception {
+        this.dir = Files.createTempDirectory("query_result_spill_test").toFile();
+    }
+
+    @After
+    public void after() {
+        final File[] files = this.dir.listFiles();
+        if (files != null) {
+            for (final File f : files) {
+                Assert.assertTrue(f.delete());
+            }
+        }
+        Assert.assertTrue(this.dir.delete());
+    }
+
+    @Test
+    public void appendAndReadTest() {
+        final QueryResultSpill spill = new QueryResultSpill(this.dir, 64);
+        final List<byte[]> rows = newRows(100);
+        rows.forEach(spill::append);
+        // a row larger than the segment size
+        final byte[] large = new byte[1000];
+        large[999] = 9;
+        spill.append(large);
+
+        Assert.assertEquals(101, spill.getRowCount());
+        Assert.assertTrue(spill.getSegmentCount() > 1);
+        // deleted once mapped
+        Assert.assertEquals(0, this.dir.list().length);
+
+        for (int n = 0; n < 2; n++) {
+            final List<byte[]> read = spill.rows().collect(Collectors.toList());
+            Assert.assertEquals(101, read.size());
+            for (int i = 0; i < 100; i++) {
+                Assert.assertArrayEquals(rows.get(i), read.get(i));
+            }
+            Assert.assertArrayEquals(large, read.get(100));
+        }
+    }
+
+    @Test
+    public void spillIfLargeTest() {
+        final QueryOk ok = QueryOk.ok("ql", null, 10, newRows(10).stream());
+        Assert.assertSame(ok, QueryResultSpill.spillIfLarge(ok, 100, 100, this.dir, 1024));
+        Assert.assertSame(ok, QueryResultSpill.spillIfLarge(ok, 100, 0, this.dir, 1024));
+
+        final QueryOk spilled = QueryResultSpill.spillIfLarge(ok, 101, 100, this.dir, 1024);
+        Assert.assertNotSame(ok, spilled);
+        Assert.assertEquals("ql", spilled.getQl());
+        Assert.assertEquals(10, spilled.getRowCount());
+        Assert.assertEquals(10, spilled.map(row -> row[0]).distinct().count());
+    }
+
+    @Test
+    public void collectorTest() throws Exception {
+        final long spilled = spilledRows();
+        final QueryResultSpill.Collector collector = new QueryResultSpill.Collector(20, this.dir, 1024);
+        collector.onNext(QueryOk.ok("ql", null, 4, newRows(4).stream()));
+        // still in heap
+        Assert.assertEquals(spilled, spilledRows());
+        collector.onNext(QueryOk.emptyOk());
+        collector.onNext(QueryOk.ok("ql", null, 10, newRows(10).stream()));
+        Assert.assertEquals(spilled + 14, spilledRows());
+        Assert.assertFalse(collector.future().isDone());
+        collector.onCompleted();
+
+        final Result<QueryOk, Err> r = collector.future().get();
+        Assert.assertTrue(r.isOk());
+        Assert.assertEquals("ql", r.getOk().getQl());
+        Assert.assertEquals(14, r.getOk().getRowCount());
+        Assert.assertEquals(14, r.getOk().map(row -> row.length).count());
+    }
+
+    @Test
+    public void collectorInHeapTest() throws Exception {
+        final QueryResultSpill.Collector collector = new QueryResultSpill.Collector(0, null, 0);
+        collector.onNext(QueryOk.ok("ql", null, 10, newRows(10).stream()));
+        collector.onCompleted();
+        Assert.assertEquals(10, collector.future().get().getOk().getRowCount());
+    }
+
+    @Test
+    public void collectorErrorTest() {
+        final QueryResultSpill.Collector collector = new QueryResultSpill.Collector(0, null, 0);
+        collector.onNext(QueryOk.ok("ql", null, 1, Stream.of(new byte[1])));
+        collector.onError(new IllegalStateException("test"));
+        collector.onCompleted();
+        Assert.assertTrue(collector.future().isCompletedExceptionally());
+    }
+
+    private static long spilledRows() {
+        return MetricsUtil.meter("query_spilled_rows").getCount();
+    }
+
+    private static List<byte[]> newRows(final int n) {
+        final List<byte[]> rows = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            final byte[] row = new byte[i % 7 + 1];
+            row[0] = (byte) i;
+            rows.add(row);
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import io.ceresdb.common.Endpoint;
+import io.ceresdb.errors.RouteTableException;
+import io.ceresdb.errors.StreamWriteException;
+import io.ceresdb.models.Err;
+import io.ceresdb.models.Result;
+import io.ceresdb.models.Rows;
+import io.ceresdb.models.WriteOk;
+import io.ceresdb.options.WriteOptions;
+import io.ceresdb.proto.Storage;
+import io.ceresdb.rpc.Context;
+import io.ceresdb.rpc.Observer;
+import io.ceresdb.util.TestUtil;
+
+/**
+ * @author jiachun.fjc
+ */
+public class RoutedStreamWriteBufTest {
+
+    private static final String METRIC1 = "routed_stream_test1";
+    private static final String METRIC2 = "routed_stream_test2";
+
+    private final Endpoint ep = Endpoint.of("127.0.0.1", 8081);
+
+    private WriteClient                                   writeClient;
+    private RouterClient                                  routerClient;
+    private FlowControlledStreamWriteBufTest.TestObserver observer;
+    private Observer<Storage.WriteResponse>               respObserver;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void before() {
+        final WriteOptions writeOpts = new WriteOptions();
+        writeOpts.setAsyncPool(ForkJoinPool.commonPool());
+        this.writeClient = new WriteClient();
+        this.writeClient.init(writeOpts);
+        this.observer = new FlowControlledStreamWriteBufTest.TestObserver();
+        this.routerClient = Mockito.mock(RouterClient.class);
+        final Map<String, Route> routes = new HashMap<>();
+        routes.put(METRIC1, Route.of(METRIC1, this.ep));
+        routes.put(METRIC2, Route.of(METRIC2, this.ep));
+        Mockito.when(this.routerClient.routeFor(Mockito.any())).thenReturn(Utils.completedCf(routes));
+        Mockito.when(this.routerClient.invokeClientStreaming(Mockito.any(), Mockito.any(Storage.WriteRequest.class),
+                Mockito.any(), Mockito.any())).thenAnswer(invocation -> {
+                    this.respObserver = (Observer<Storage.WriteResponse>) invocation.getArguments()[3];
+                    return this.observer;
+                });
+    }
+
+    @After
+    public void after() {
+        this.writeClient.shutdownGracefully();
+    }
+
+    @Test
+    public void sendWhenReadyTest() {
+        final StreamWriteBuf<Rows, WriteOk> buf = newBuf();
+        this.observer.ready = false;
+        buf.writeAndFlush(TestUtil.newListOfRows(METRIC1, METRIC2));
+        final CompletableFuture<WriteOk> f = buf.completed();
+        Assert.assertTrue(this.observer.sent.isEmpty());
+        Assert.assertFalse(this.observer.completed);
+
+        this.observer.becomeReady();
+        Assert.assertEquals(1, this.observer.sent.size());
+        Assert.assertTrue(this.observer.completed);
+        this.respObserver.onNext(TestUtil.newSuccessWriteResp(4));
+        this.respObserver.onCompleted();
+        Assert.assertEquals(4, f.join().getSuccess());
+    }
+
+    @Test
+    public void brokenStreamKeepsRowsTest() {
+        final StreamWriteBuf<Rows, WriteOk> buf = newBuf();
+        buf.writeAndFlush(TestUtil.newListOfRows(METRIC1, METRIC2));
+        buf.writeAndFlush(Collections.singletonList(TestUtil.newRow(METRIC1)));
+        Assert.assertEquals(2, this.observer.sent.size());
+
+        this.respObserver.onError(new IllegalStateException("test"));
+        Mockito.verify(this.routerClient).routeRefreshFor(Mockito.any());
+        try {
+            buf.completed().join();
+            Assert.fail();
+        } catch (final Exception e) {
+            Assert.assertTrue(e.getCause() instanceof StreamWriteException);
+            final Err err = ((StreamWriteException) e.getCause()).getErr();
+            Assert.assertEquals(Result.SHOULD_RETRY, err.getCode());
+            // all the rows written to the broken stream
+            Assert.assertEquals(6, rowCount(err.getFailedWrites()));
+        }
+    }
+
+    @Test
+    public void invalidRouteKeepsRowsTest() {
+        final StreamWriteBuf<Rows, WriteOk> buf = newBuf();
+        buf.writeAndFlush(TestUtil.newListOfRows(METRIC1, METRIC2));
+        final CompletableFuture<WriteOk> f = buf.completed();
+        this.respObserver.onNext(TestUtil.newFailedWriteResp(Result.INVALID_ROUTE, 4));
+        this.respObserver.onCompleted();
+        try {
+            f.join();
+            Assert.fail();
+        } catch (final Exception e) {
+            final Err err = ((StreamWriteException) e.getCause()).getErr();
+            Assert.assertEquals(Result.INVALID_ROUTE, err.getCode());
+            Assert.assertEquals(4, rowCount(err.getFailedWrites()));
+        }
+    }
+
+    @Test
+    public void flushFailedTest() {
+        final CompletableFuture<Map<String, Route>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new RouteTableException("test"));
+        final Map<String, Route> routes = Collections.singletonMap(METRIC1, Route.of(METRIC1, this.ep));
+        Mockito.when(this.routerClient.routeFor(Mockito.any())) //
+                .thenReturn(failed) //
+                .thenReturn(Utils.completedCf(routes));
+
+        final StreamWriteBuf<Rows, WriteOk> buf = newBuf();
+        buf.writeAndFlush(Collections.singletonList(TestUtil.newRow(METRIC1)));
+        buf.write(TestUtil.newRow(METRIC1));
+        try {
+            buf.flush();
+            Assert.fail();
+        } catch (final StreamWriteException e) {
+            Assert.assertEquals(2, rowCount(e.getErr().getFailedWrites()));
+        }
+        Assert.assertTrue(this.observer.sent.isEmpty());
+
+        // recovered, and the buffered rows are kept
+        buf.flush();
+        final CompletableFuture<WriteOk> f = buf.completed();
+        Assert.assertEquals(1, this.observer.sent.size());
+        this.respObserver.onNext(TestUtil.newSuccessWriteResp(2));
+        this.respObserver.onCompleted();
+        Assert.assertEquals(2, f.join().getSuccess());
+    }
+
+    private RoutedStreamWriteBuf newBuf() {
+        // runs the flushes in the caller thread
+        return new RoutedStreamWriteBuf(this.writeClient, this.routerClient, Context.newDefault(), Runnable::run);
+    }
+
+    private static int rowCount(final Collection<Rows> rows) {
+        return rows.stream().mapToInt(Rows::getRowCount).sum();
+    }
+}
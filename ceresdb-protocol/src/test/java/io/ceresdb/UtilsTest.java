@@ -111,4 +111,22 @@ public class UtilsTest {
         Assert.assertEquals(2, result.get(ep1).size());
         Assert.assertEquals(1, result.get(ep2).size());
     }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void toResultWithRowsTest() {
+        final List<Rows> data = TestUtil.newListOfRows("m1", "m2");
+        final Endpoint ep = Endpoint.of("127.0.0.1", 9001);
+
+        final Result<WriteOk, Err> ok = Utils.toResult(TestUtil.newSuccessWriteResp(4), ep, data);
+        Assert.assertTrue(ok.isOk());
+        Assert.assertEquals(4, ok.getOk().getSuccess());
+
+        final Result<WriteOk, Err> err = Utils.toResult(TestUtil.newFailedWriteResp(Result.SHOULD_RETRY, 4), ep, data);
+        Assert.assertFalse(err.isOk());
+        Assert.assertEquals(Result.SHOULD_RETRY, err.getErr().getCode());
+        Assert.assertEquals(ep, err.getErr().getErrTo());
+        Assert.assertSame(data, err.getErr().getFailedWrites());
+        Assert.assertNull(err.getErr().getFailedRequest());
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.ceresdb.common.Endpoint;
+import io.ceresdb.options.WarmupOptions;
+
+/**
+ * @author jiachun.fjc
+ */
+@RunWith(value = MockitoJUnitRunner.class)
+public class WarmupTest {
+
+    private final Endpoint cluster = Endpoint.of("127.0.0.1", 8081);
+    private final Endpoint ep1     = Endpoint.of("127.0.0.1", 8082);
+    private final Endpoint ep2     = Endpoint.of("127.0.0.1", 8083);
+
+    @Mock
+    private RouterClient routerClient;
+
+    @Test
+    public void warmupTest() throws Exception {
+        final Path snapshot = Files.createTempFile("warmup", ".snapshot");
+        try {
+            Files.write(snapshot, Arrays.asList("m2", "", " m3 ", "m1"), StandardCharsets.UTF_8);
+            final WarmupOptions opts = new WarmupOptions();
+            opts.setMetrics(Arrays.asList("m1", "m2"));
+            opts.setSnapshotFile(snapshot.toString());
+            Assert.assertEquals(Arrays.asList("m1", "m2", "m3"), Arrays.asList(Warmup.loadMetrics(opts).toArray()));
+
+            final Map<String, Route> routes = new HashMap<>();
+            routes.put("m1", Route.of("m1", this.ep1));
+            routes.put("m2", Route.of("m2", this.ep1));
+            routes.put("m3", Route.of("m3", this.ep2));
+            Mockito.when(this.routerClient.prefetch(Mockito.any())).thenReturn(Utils.completedCf(routes));
+            Mockito.when(this.routerClient.clusterRoute()).thenReturn(Route.of(this.cluster));
+            Mockito.when(this.routerClient.connect(Mockito.any())).thenReturn(Utils.completedCf(true));
+
+            Assert.assertTrue(Warmup.run(this.routerClient, opts).get());
+            Mockito.verify(this.routerClient).connect(this.cluster);
+            Mockito.verify(this.routerClient).connect(this.ep1);
+            Mockito.verify(this.routerClient).connect(this.ep2);
+
+            // not ready if a connection fails
+            Mockito.when(this.routerClient.connect(this.ep2)).thenReturn(Utils.errorCf(new RuntimeException("test")));
+            Assert.assertFalse(Warmup.run(this.routerClient, opts).get());
+
+            // not ready if a route is missing
+            Mockito.when(this.routerClient.connect(this.ep2)).thenReturn(Utils.completedCf(true));
+            routes.remove("m3");
+            Assert.assertFalse(Warmup.run(this.routerClient, opts).get());
+        } finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+}
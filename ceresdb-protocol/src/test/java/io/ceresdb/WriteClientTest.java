@@ -16,16 +16,26 @@
  */
 package io.ceresdb;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -40,6 +50,7 @@ import org.mockito.runners.MockitoJUnitRunner;
 
 import io.ceresdb.common.Endpoint;
 import io.ceresdb.common.util.Clock;
+import io.ceresdb.common.util.Cpus;
 import io.ceresdb.models.Err;
 import io.ceresdb.models.FieldValue;
 import io.ceresdb.models.Result;
@@ -51,6 +62,9 @@ import io.ceresdb.proto.Common;
 import io.ceresdb.proto.Storage;
 import io.ceresdb.rpc.Context;
 import io.ceresdb.rpc.Observer;
+import io.ceresdb.rpc.trace.Span;
+import io.ceresdb.rpc.trace.SpanSink;
+import io.ceresdb.rpc.trace.Tracer;
 import io.ceresdb.util.TestUtil;
 
 /**
@@ -121,6 +135,57 @@ public class WriteClientTest {
         Assert.assertEquals(new Integer(0), ret.mapOr(-1, WriteOk::getFailed));
     }
 
+    @Test
+    public void tracedWriteTest() throws ExecutionException, InterruptedException {
+        final List<Rows> data = TestUtil.newListOfRows("write_client_test_metric1", //
+                "write_client_test_metric2");
+
+        final Endpoint ep = Endpoint.of("127.0.0.1", 8081);
+        Mockito.when(this.routerClient.invoke(Mockito.eq(ep), Mockito.any(), Mockito.any())) //
+                .thenReturn(Utils.completedCf(TestUtil.newSuccessWriteResp(4)));
+        Mockito.when(this.routerClient.routeFor(Mockito.any())) //
+                .thenReturn(Utils.completedCf(new HashMap<String, Route>() {
+                    private static final long serialVersionUID = -6936293402451934582L;
+
+                    {
+                        put("write_client_test_metric1", Route.of("write_client_test_metric1", ep));
+                        put("write_client_test_metric2", Route.of("write_client_test_metric2", ep));
+                    }
+                }));
+
+        final List<Span> spans = new CopyOnWriteArrayList<>();
+        final SpanSink sink = spans::add;
+        Tracer.addSink(sink);
+        Tracer.setSampleRate(1);
+        try {
+            final Context ctx = Context.newDefault();
+            final Result<WriteOk, Err> ret = this.writeClient.write(data, ctx).get();
+            Assert.assertTrue(ret.isOk());
+            // the span is not attached to the caller's context
+            Assert.assertNull(ctx.getSpan());
+        } finally {
+            Tracer.setSampleRate(0);
+            Tracer.removeSink(sink);
+        }
+
+        Assert.assertEquals(1, spans.size());
+        final Span span = spans.get(0);
+        Assert.assertEquals("write", span.getName());
+        Assert.assertEquals(Span.OK, span.getStatus());
+        Assert.assertEquals(4, span.getRows());
+        Assert.assertEquals(1, span.getPhaseCount(Span.Phase.Route));
+        Assert.assertEquals(1, span.getPhaseCount(Span.Phase.Encode));
+        Assert.assertEquals(1, span.getPhaseCount(Span.Phase.Rpc));
+        Assert.assertEquals(1, span.getPhaseCount(Span.Phase.Queue));
+        Assert.assertEquals(1, span.getPhaseCount(Span.Phase.Decode));
+        Assert.assertTrue(span.getDurationNanos() >= span.getPhaseNanos(Span.Phase.Encode));
+        Assert.assertTrue(Tracer.recentSpans().snapshot().contains(span));
+
+        // disabled
+        Assert.assertTrue(this.writeClient.write(data, Context.newDefault()).get().isOk());
+        Assert.assertEquals(1, spans.size());
+    }
+
     @Test
     public void write3And1InvalidRoute() throws ExecutionException, InterruptedException {
         final List<Rows> data = TestUtil.newListOfRows("write_client_test_metric1", //
@@ -378,15 +443,132 @@ public class WriteClientTest {
         writeSplit(8, 8);
     }
 
+    @Test
+    public void writeSplitParallelEncodeTest() throws ExecutionException, InterruptedException {
+        writeSplit(1, 2, 1);
+        writeSplit(3, 2, 1);
+        writeSplit(4, 4, 1);
+        writeSplit(8, 8, 1);
+    }
+
+    @Test
+    public void writeSplitEncodedInParallelTest() throws ExecutionException, InterruptedException {
+        // each encoding waits for another one, so they never finish if encoded one by one
+        final int parallelism = Math.min(2, Cpus.cpus());
+        final CountDownLatch encoding = new CountDownLatch(parallelism);
+        final List<Boolean> met = new CopyOnWriteArrayList<>();
+        final Set<String> encoders = ConcurrentHashMap.newKeySet();
+        writeSplit(4, 4, 1, new WriteClient() {
+
+            @Override
+            public Storage.WriteRequest toWriteRequestObj(final Stream<Rows> data) {
+                encoders.add(Thread.currentThread().getName());
+                encoding.countDown();
+                try {
+                    met.add(encoding.await(5, TimeUnit.SECONDS));
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    met.add(false);
+                }
+                return super.toWriteRequestObj(data);
+            }
+        });
+        Assert.assertEquals(4, met.size());
+        Assert.assertFalse(met.contains(false));
+        // encoded by the encoder pool, not by the caller thread
+        Assert.assertTrue(encoders.size() >= parallelism);
+        Assert.assertTrue(encoders.stream().allMatch(name -> name.contains("write_request_encoder")));
+    }
+
+    @Test
+    public void writeSplitByBytesTest() throws ExecutionException, InterruptedException {
+        final List<Rows> data = TestUtil.newListOfRows("write_client_test_metric1", //
+                "write_client_test_metric2", //
+                "write_client_test_metric3", //
+                "write_client_test_metric4");
+        final long bytes = Utils.estimateBytes(data.get(0));
+        Assert.assertTrue(bytes > 0);
+
+        // re-init, 2 rows per request by bytes
+        this.writeClient.shutdownGracefully();
+        final WriteOptions writeOpts = new WriteOptions();
+        writeOpts.setAsyncPool(ForkJoinPool.commonPool());
+        writeOpts.setRoutedClient(this.routerClient);
+        writeOpts.setMaxWriteSize(1000);
+        writeOpts.setMaxWriteBytes(bytes * 2);
+        writeOpts.setMinWriteBytes(1);
+        this.writeClient = new WriteClient();
+        this.writeClient.init(writeOpts);
+
+        final Endpoint ep = Endpoint.of("127.0.0.1", 8081);
+        final Storage.WriteResponse resp = Storage.WriteResponse.newBuilder() //
+                .setHeader(Common.ResponseHeader.newBuilder().setCode(Result.SUCCESS)) //
+                .setSuccess(4) //
+                .build();
+        Mockito.when(this.routerClient.invoke(Mockito.eq(ep), Mockito.any(), Mockito.any())) //
+                .thenReturn(Utils.completedCf(resp));
+        final Map<String, Route> routes = new HashMap<>();
+        data.forEach(rs -> routes.put(rs.getMetric(), Route.of(rs.getMetric(), ep)));
+        Mockito.when(this.routerClient.routeFor(Mockito.any())).thenReturn(Utils.completedCf(routes));
+
+        final Result<WriteOk, Err> ret = this.writeClient.write(data, Context.newDefault()).get();
+        Assert.assertTrue(ret.isOk());
+        Assert.assertEquals(8, ret.getOk().getSuccess());
+        Mockito.verify(this.routerClient, Mockito.times(2)).invoke(Mockito.eq(ep), Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void noSplitByBytesByDefaultTest() throws ExecutionException, InterruptedException {
+        final WriteOptions defaultOpts = new WriteOptions();
+        Assert.assertTrue(defaultOpts.getMaxWriteBytes() <= 0);
+        Assert.assertTrue(defaultOpts.getWriteLatencyTargetMs() <= 0);
+
+        // more than 2 MiB in 400 rows, they are split by maxWriteSize only
+        final String large = String.join("", Collections.nCopies(8192, "x"));
+        final List<Rows> data = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final Rows.Builder builder = Rows.newBuilder(Series.newBuilder("write_client_test_metric" + i).build());
+            for (int t = 0; t < 100; t++) {
+                builder.field(t, "f", FieldValue.withString(large));
+            }
+            data.add(builder.build());
+        }
+        Assert.assertTrue(data.stream().mapToLong(Utils::estimateBytes).sum() > 2 * 1024 * 1024);
+
+        final Endpoint ep = Endpoint.of("127.0.0.1", 8081);
+        Mockito.when(this.routerClient.invoke(Mockito.eq(ep), Mockito.any(), Mockito.any())) //
+                .thenReturn(Utils.completedCf(TestUtil.newSuccessWriteResp(400)));
+        final Map<String, Route> routes = new HashMap<>();
+        data.forEach(rs -> routes.put(rs.getMetric(), Route.of(rs.getMetric(), ep)));
+        Mockito.when(this.routerClient.routeFor(Mockito.any())).thenReturn(Utils.completedCf(routes));
+
+        final Result<WriteOk, Err> ret = this.writeClient.write(data, Context.newDefault()).get();
+        Assert.assertTrue(ret.isOk());
+        Assert.assertEquals(400, ret.getOk().getSuccess());
+        Mockito.verify(this.routerClient, Mockito.times(1)).invoke(Mockito.eq(ep), Mockito.any(), Mockito.any());
+    }
+
     private void writeSplit(final int maxWriteSize, final int partOfSuccess)
             throws ExecutionException, InterruptedException {
+        writeSplit(maxWriteSize, partOfSuccess, 0);
+    }
+
+    private void writeSplit(final int maxWriteSize, final int partOfSuccess, final int parallelEncodeThreshold)
+            throws ExecutionException, InterruptedException {
+        writeSplit(maxWriteSize, partOfSuccess, parallelEncodeThreshold, new WriteClient());
+    }
+
+    private void writeSplit(final int maxWriteSize, final int partOfSuccess, final int parallelEncodeThreshold,
+                            final WriteClient client)
+            throws ExecutionException, InterruptedException {
         // re-init
         this.writeClient.shutdownGracefully();
         final WriteOptions writeOpts = new WriteOptions();
         writeOpts.setAsyncPool(ForkJoinPool.commonPool());
         writeOpts.setRoutedClient(this.routerClient);
         writeOpts.setMaxWriteSize(maxWriteSize);
-        this.writeClient = new WriteClient();
+        writeOpts.setParallelEncodeThreshold(parallelEncodeThreshold);
+        this.writeClient = client;
         this.writeClient.init(writeOpts);
 
         final List<Rows> data = TestUtil.newListOfRows("write_client_test_metric1", //
@@ -492,6 +674,63 @@ public class WriteClientTest {
         Assert.assertEquals(12, ret.join().getSuccess());
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void routedStreamWriteTest() {
+        final Endpoint ep1 = Endpoint.of("127.0.0.1", 8081);
+        final Endpoint ep2 = Endpoint.of("127.0.0.2", 8081);
+        Mockito.when(this.routerClient.routeFor(Mockito.any())) //
+                .thenReturn(Utils.completedCf(new HashMap<String, Route>() {
+
+                    private static final long serialVersionUID = -2527405498412469412L;
+
+                    {
+                        put("stream_metric_test1", Route.of("stream_metric_test1", ep1));
+                        put("stream_metric_test2", Route.of("stream_metric_test2", ep2));
+                    }
+                }));
+        final AtomicInteger opened = new AtomicInteger();
+        Mockito.when(this.routerClient.invokeClientStreaming(Mockito.any(), Mockito.any(Storage.WriteRequest.class),
+                Mockito.any(), Mockito.any())).thenAnswer(invocation -> {
+                    opened.incrementAndGet();
+                    final Observer<Storage.WriteResponse> respObserver = (Observer<Storage.WriteResponse>) invocation
+                            .getArguments()[3];
+                    final AtomicInteger dataCount = new AtomicInteger();
+                    return new Observer<Storage.WriteRequest>() {
+
+                        @Override
+                        public void onNext(final Storage.WriteRequest value) {
+                            dataCount.addAndGet(value.getMetricsList().stream() //
+                                    .flatMap(wmc -> wmc.getEntriesList().stream()) //
+                                    .map(Storage.WriteEntry::getFieldGroupsCount).reduce(0, Integer::sum));
+                        }
+
+                        @Override
+                        public void onError(final Throwable err) {
+                            // ignored
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                            respObserver.onNext(TestUtil.newSuccessWriteResp(dataCount.get()));
+                            respObserver.onCompleted();
+                        }
+                    };
+                });
+
+        final CompletableFuture<WriteOk> ret = this.writeClient.streamWrite(Context.newDefault()) //
+                .write(TestUtil.newRow("stream_metric_test1")) //
+                .write(TestUtil.newRow("stream_metric_test2")) //
+                .flush() //
+                .write(TestUtil.newRow("stream_metric_test1")) //
+                .flush() //
+                .writeAndFlush(TestUtil.newListOfRows("stream_metric_test1", "stream_metric_test2")) //
+                .completed();
+
+        Assert.assertEquals(10, ret.join().getSuccess());
+        Assert.assertEquals(2, opened.get());
+    }
+
     @Test
     public void rowsToWriteProtoTest() {
         final Rows rs1 = Series.newBuilder("metric1") //
@@ -613,4 +852,189 @@ public class WriteClientTest {
             }
         }
     }
+
+    @Test
+    public void retryResendEncodedRequestsTest() throws ExecutionException, InterruptedException {
+        final List<Rows> data = TestUtil.newListOfRows("write_client_test_metric1", //
+                "write_client_test_metric2", //
+                "write_client_test_metric3");
+
+        final Endpoint ep1 = Endpoint.of("127.0.0.1", 8081);
+        final Endpoint ep2 = Endpoint.of("127.0.0.2", 8081);
+        final Endpoint ep3 = Endpoint.of("127.0.0.3", 8081);
+
+        final List<Storage.WriteRequest> toEp1 = new CopyOnWriteArrayList<>();
+        final List<Storage.WriteRequest> toEp2 = new CopyOnWriteArrayList<>();
+        final List<Storage.WriteRequest> toEp3 = new CopyOnWriteArrayList<>();
+        Mockito.when(this.routerClient.invoke(Mockito.eq(ep1), Mockito.any(), Mockito.any())).thenAnswer(inv -> {
+            final Storage.WriteRequest req = (Storage.WriteRequest) inv.getArguments()[1];
+            toEp1.add(req);
+            final int rows = req.getMetricsList().stream().mapToInt(Utils::rowCount).sum();
+            // fails on the first time, since the routes of metric1 and metric2 are changed
+            return Utils.completedCf(toEp1.size() == 1 ? TestUtil.newFailedWriteResp(Result.INVALID_ROUTE, rows) :
+                    TestUtil.newSuccessWriteResp(rows));
+        });
+        Mockito.when(this.routerClient.invoke(Mockito.eq(ep2), Mockito.any(), Mockito.any())).thenAnswer(inv -> {
+            toEp2.add((Storage.WriteRequest) inv.getArguments()[1]);
+            return Utils.completedCf(TestUtil.newFailedWriteResp(Result.INVALID_ROUTE, 2));
+        });
+        Mockito.when(this.routerClient.invoke(Mockito.eq(ep3), Mockito.any(), Mockito.any())).thenAnswer(inv -> {
+            toEp3.add((Storage.WriteRequest) inv.getArguments()[1]);
+            return Utils.completedCf(TestUtil.newSuccessWriteResp(2));
+        });
+
+        final Map<String, Route> routes1 = new HashMap<>();
+        routes1.put("write_client_test_metric1", Route.of("write_client_test_metric1", ep1));
+        routes1.put("write_client_test_metric2", Route.of("write_client_test_metric2", ep1));
+        routes1.put("write_client_test_metric3", Route.of("write_client_test_metric3", ep2));
+        final Map<String, Route> routes2 = new HashMap<>();
+        routes2.put("write_client_test_metric1", Route.of("write_client_test_metric1", ep1));
+        routes2.put("write_client_test_metric2", Route.of("write_client_test_metric2", ep3));
+        routes2.put("write_client_test_metric3", Route.of("write_client_test_metric3", ep3));
+        Mockito.when(this.routerClient.routeFor(Mockito.any())) //
+                .thenReturn(Utils.completedCf(routes1)) //
+                .thenReturn(Utils.completedCf(routes2));
+        Mockito.when(this.routerClient.routeRefreshFor(Mockito.any())) //
+                .thenReturn(Utils.completedCf(routes2));
+
+        final Result<WriteOk, Err> ret = this.writeClient.write(data, Context.newDefault()).get();
+
+        Assert.assertTrue(ret.isOk());
+        Assert.assertEquals(new Integer(6), ret.mapOr(0, WriteOk::getSuccess));
+
+        Assert.assertEquals(2, toEp1.size());
+        Assert.assertEquals(1, toEp2.size());
+        Assert.assertEquals(2, toEp3.size());
+        // metric3 is moved to ep3 alone, the request is resent as it is
+        Assert.assertTrue(toEp3.stream().anyMatch(req -> req == toEp2.get(0)));
+        // metric1 and metric2 are moved apart, the encoded metrics are spliced into new requests
+        final Storage.WriteRequest first = toEp1.get(0);
+        Assert.assertEquals(Collections.singletonList(find(first, "write_client_test_metric1")),
+                toEp1.get(1).getMetricsList());
+        Assert.assertTrue(toEp3.stream().anyMatch(req -> req.getMetricsList()
+                .equals(Collections.singletonList(find(first, "write_client_test_metric2")))));
+    }
+
+    private static Storage.WriteMetric find(final Storage.WriteRequest req, final String metric) {
+        return req.getMetricsList().stream().filter(wm -> wm.getMetric().equals(metric)).findFirst().orElse(null);
+    }
+
+    @Test
+    public void encodedFailedWritesTest() {
+        final List<Rows> data = TestUtil.newListOfRows("write_client_test_metric1", //
+                "write_client_test_metric2", //
+                "write_client_test_metric1");
+        final Storage.WriteRequest req = this.writeClient.toWriteRequestObj(data.stream());
+        final Err err = Err.encodedWriteErr(Result.INVALID_ROUTE, "test_err", Endpoint.of("127.0.0.1", 8081), req);
+
+        Assert.assertSame(req, err.getFailedRequest());
+        Assert.assertEquals(TestUtil.asSet("write_client_test_metric1", "write_client_test_metric2"),
+                new HashSet<>(err.getFailedWriteMetrics()));
+        Assert.assertEquals(3, err.getFailedWrites().size());
+        Assert.assertEquals(new HashSet<>(data), new HashSet<>(err.getFailedWrites()));
+        // decoded once
+        Assert.assertSame(err.getFailedWrites(), err.getFailedWrites());
+    }
+
+    @Test
+    public void dedupInFlightFailedTest() throws ExecutionException, InterruptedException {
+        this.writeClient.shutdownGracefully();
+        final WriteOptions writeOpts = new WriteOptions();
+        writeOpts.setAsyncPool(ForkJoinPool.commonPool());
+        writeOpts.setRoutedClient(this.routerClient);
+        writeOpts.setMaxRetries(0);
+        writeOpts.setDedupMaxPoints(1024);
+        this.writeClient = new WriteClient();
+        this.writeClient.init(writeOpts);
+
+        final Endpoint ep = Endpoint.of("127.0.0.1", 8081);
+        final CompletableFuture<Object> inFlight = new CompletableFuture<>();
+        Mockito.when(this.routerClient.invoke(Mockito.eq(ep), Mockito.any(), Mockito.any())) //
+                .thenReturn(inFlight) //
+                .thenReturn(Utils.completedCf(TestUtil.newSuccessWriteResp(2)));
+        final Map<String, Route> routes = new HashMap<>();
+        routes.put("write_client_test_metric1", Route.of("write_client_test_metric1", ep));
+        Mockito.when(this.routerClient.routeFor(Mockito.any())).thenReturn(Utils.completedCf(routes));
+
+        final List<Rows> data = TestUtil.newListOfRows("write_client_test_metric1");
+        final CompletableFuture<Result<WriteOk, Err>> original = this.writeClient.write(data, Context.newDefault());
+        final CompletableFuture<Result<WriteOk, Err>> dup = this.writeClient.write(data, Context.newDefault());
+        // the duplicate waits for the original one
+        Thread.sleep(100);
+        Assert.assertFalse(dup.isDone());
+
+        inFlight.complete(TestUtil.newFailedWriteResp(Result.SHOULD_RETRY, 2));
+        Assert.assertFalse(original.get().isOk());
+        // the duplicate is written by itself, instead of reporting the failed one as ok
+        final Result<WriteOk, Err> ret = dup.get();
+        Assert.assertTrue(ret.isOk());
+        Assert.assertEquals(2, ret.getOk().getSuccess());
+        Mockito.verify(this.routerClient, Mockito.times(2)).invoke(Mockito.eq(ep), Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void spooledWriteReportedAsOkTest() throws Exception {
+        final Storage.WriteResponse errResp = TestUtil.newFailedWriteResp(Result.SHOULD_RETRY, 2);
+        final Result<WriteOk, Err> ret = writeWithSpool(errResp, spool -> Assert.assertEquals(2, spool.pendingRows()));
+
+        Assert.assertTrue(ret.isOk());
+        Assert.assertEquals(2, ret.getOk().getSuccess());
+        Assert.assertEquals(2, ret.getOk().getSpooled());
+        Assert.assertEquals(0, ret.getOk().getFailed());
+    }
+
+    @Test
+    public void flowControlNotSpooledTest() throws Exception {
+        final Storage.WriteResponse errResp = TestUtil.newFailedWriteResp(Result.FLOW_CONTROL, 2);
+        final Result<WriteOk, Err> ret = writeWithSpool(errResp, spool -> Assert.assertEquals(0, spool.pendingRows()));
+
+        Assert.assertFalse(ret.isOk());
+        Assert.assertEquals(Result.FLOW_CONTROL, ret.getErr().getCode());
+        Assert.assertEquals(1, ret.getErr().getFailedWrites().size());
+    }
+
+    private Result<WriteOk, Err> writeWithSpool(final Storage.WriteResponse errResp, final Consumer<WriteSpool> check)
+            throws Exception {
+        final File dir = Files.createTempDirectory("write_client_spool_test").toFile();
+        final WriteOptions writeOpts = new WriteOptions();
+        writeOpts.setAsyncPool(ForkJoinPool.commonPool());
+        writeOpts.setRoutedClient(this.routerClient);
+        writeOpts.setSpoolDir(dir.getAbsolutePath());
+        writeOpts.setSpoolSegmentSize(4096);
+        writeOpts.setSpoolMaxSize(4096 * 4);
+        final WriteClient client = new WriteClient();
+        client.init(writeOpts);
+
+        final Endpoint ep1 = Endpoint.of("127.0.0.1", 8081);
+        final Endpoint ep2 = Endpoint.of("127.0.0.2", 8081);
+        Mockito.when(this.routerClient.invoke(Mockito.eq(ep1), Mockito.any(), Mockito.any())) //
+                .thenReturn(Utils.completedCf(TestUtil.newSuccessWriteResp(2)));
+        Mockito.when(this.routerClient.invoke(Mockito.eq(ep2), Mockito.any(), Mockito.any())) //
+                .thenReturn(Utils.completedCf(errResp));
+        final Map<String, Route> routes = new HashMap<>();
+        routes.put("write_client_test_metric1", Route.of("write_client_test_metric1", ep1));
+        routes.put("write_client_test_metric2", Route.of("write_client_test_metric2", ep2));
+        Mockito.when(this.routerClient.routeFor(Mockito.any())).thenReturn(Utils.completedCf(routes));
+        Mockito.when(this.routerClient.routeRefreshFor(Mockito.any())).thenReturn(Utils.completedCf(routes));
+
+        try {
+            final Result<WriteOk, Err> ret = client
+                    .write(TestUtil.newListOfRows("write_client_test_metric1", "write_client_test_metric2"),
+                            Context.newDefault())
+                    .get();
+            check.accept(client.spool());
+            return ret;
+        } finally {
+            client.shutdownGracefully();
+            final File[] files = dir.listFiles();
+            if (files != null) {
+                for (final File f : files) {
+                    // noinspection ResultOfMethodCallIgnored
+                    f.delete();
+                }
+            }
+            // noinspection ResultOfMethodCallIgnored
+            dir.delete();
+        }
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.ceresdb.models.FieldValue;
+import io.ceresdb.models.Rows;
+import io.ceresdb.models.Series;
+
+/**
+ * @author jiachun.fjc
+ */
+public class WriteDedupTest {
+
+    @Test
+    public void mergeInWriteTest() {
+        final WriteDedup dedup = new WriteDedup(1024);
+        final Rows first = Rows.newBuilder(series("h1")) //
+                .field(1, "a", FieldValue.withInt64(1)) //
+                .field(1, "b", FieldValue.withInt64(1)) //
+                .field(2, "a", FieldValue.withInt64(2)) //
+                .build();
+        final Rows second = Rows.newBuilder(series("h1")) //
+                .field(1, "a", FieldValue.withInt64(10)) //
+                .build();
+        final Rows other = Rows.newBuilder(series("h2")) //
+                .field(1, "a", FieldValue.withInt64(1)) //
+                .build();
+
+        final WriteDedup.Deduped deduped = dedup.dedup(Arrays.asList(first, other, second));
+        Assert.assertEquals(0, deduped.getDropped());
+        final List<Rows> rows = new ArrayList<>(deduped.getRows());
+        Assert.assertEquals(2, rows.size());
+        Assert.assertEquals(series("h1"), rows.get(0).getSeries());
+        Assert.assertEquals(2, rows.get(0).getRowCount());
+        final Map<String, FieldValue> merged = rows.get(0).getFields().get(1L);
+        // the later one wins
+        Assert.assertEquals(10L, merged.get("a").getInt64());
+        Assert.assertEquals(1L, merged.get("b").getInt64());
+        // the given rows are not changed
+        Assert.assertEquals(1L, first.getFields().get(1L).get("a").getInt64());
+    }
+
+    @Test
+    public void distinctSeriesFastPathTest() {
+        final WriteDedup dedup = new WriteDedup(1024);
+        final List<Rows> data = Arrays.asList(newRows("h1", 1, 1), newRows("h2", 1, 1));
+        Assert.assertSame(data, dedup.dedup(data).getRows());
+    }
+
+    @Test
+    public void dropRecentPointsTest() {
+        final WriteDedup dedup = new WriteDedup(1024);
+        dedup.dedup(Collections.singletonList(newRows("h1", 1, 1)));
+
+        // the same point
+        WriteDedup.Deduped deduped = dedup.dedup(Arrays.asList(newRows("h1", 1, 1), newRows("h1", 2, 1)));
+        Assert.assertEquals(1, deduped.getDropped());
+        final Collection<Rows> rows = deduped.getRows();
+        Assert.assertEquals(1, rows.size());
+        Assert.assertEquals(2L, (long) rows.iterator().next().getFields().firstKey());
+
+        // another value of the same series and timestamp is written, and becomes the recent one
+        deduped = dedup.dedup(Collections.singletonList(newRows("h1", 1, 2)));
+        Assert.assertEquals(0, deduped.getDropped());
+        Assert.assertEquals(1, dedup.dedup(Collections.singletonList(newRows("h1", 1, 2))).getDropped());
+        Assert.assertEquals(0, dedup.dedup(Collections.singletonList(newRows("h1", 1, 1))).getDropped());
+    }
+
+    @Test
+    public void releaseFailedTest() {
+        final WriteDedup dedup = new WriteDedup(1024);
+        final WriteDedup.Deduped failed = dedup.dedup(Collections.singletonList(newRows("h1", 1, 1)));
+        dedup.release(failed);
+        // written again
+        Assert.assertEquals(0, dedup.dedup(Collections.singletonList(newRows("h1", 1, 1))).getDropped());
+        Assert.assertEquals(1, dedup.dedup(Collections.singletonList(newRows("h1", 1, 1))).getDropped());
+    }
+
+    @Test
+    public void waitInFlightTest() throws Exception {
+        final WriteDedup dedup = new WriteDedup(1024);
+        final WriteDedup.Deduped original = dedup.dedup(Collections.singletonList(newRows("h1", 1, 1)));
+        Assert.assertTrue(original.awaitOriginals().get());
+
+        // the original one is still in flight
+        final WriteDedup.Deduped dup = dedup.dedup(Arrays.asList(newRows("h1", 1, 1), newRows("h1", 2, 1)));
+        Assert.assertEquals(1, dup.getDropped());
+        Assert.assertEquals(1, dup.getWaitingRows().size());
+        Assert.assertEquals(1L, (long) dup.getWaitingRows().iterator().next().getFields().firstKey());
+        final CompletableFuture<Boolean> originals = dup.awaitOriginals();
+        Assert.assertFalse(originals.isDone());
+
+        dedup.release(original);
+        Assert.assertFalse(originals.get());
+
+        // the succeeded one is dropped without waiting
+        final WriteDedup.Deduped again = dedup.dedup(Collections.singletonList(newRows("h1", 3, 1)));
+        dedup.written(again);
+        final WriteDedup.Deduped dup2 = dedup.dedup(Collections.singletonList(newRows("h1", 3, 1)));
+        Assert.assertEquals(1, dup2.getDropped());
+        Assert.assertTrue(dup2.getWaitingRows().isEmpty());
+        Assert.assertTrue(dup2.awaitOriginals().get());
+    }
+
+    @Test
+    public void boundedTest() {
+        final WriteDedup dedup = new WriteDedup(64);
+        for (int i = 0; i < 10_000; i++) {
+            Assert.assertEquals(0, dedup.dedup(Collections.singletonList(newRows("h1", i, 1))).getDropped());
+        }
+        // the oldest points are evicted
+        Assert.assertEquals(0, dedup.dedup(Collections.singletonList(newRows("h1", 0, 1))).getDropped());
+        Assert.assertEquals(1, dedup.dedup(Collections.singletonList(newRows("h1", 9_999, 1))).getDropped());
+    }
+
+    @Test
+    public void fingerprintTest() {
+        final Rows r1 = Rows.newBuilder(series("h1"), true) //
+                .field(1, "a", FieldValue.withInt64(1)) //
+                .field(1, "b", FieldValue.withString("x")) //
+                .build();
+        final Rows r2 = Rows.newBuilder(series("h1"), true) //
+                .field(1, "b", FieldValue.withString("x")) //
+                .field(1, "a", FieldValue.withInt64(1)) //
+                .build();
+        final Rows r3 = Rows.newBuilder(series("h1"), true) //
+                .field(1, "a", FieldValue.withInt32(1)) //
+                .field(1, "b", FieldValue.withString("x")) //
+                .build();
+        Assert.assertEquals(WriteDedup.fingerprint(r1.getFields().get(1L)),
+                WriteDedup.fingerprint(r2.getFields().get(1L)));
+        Assert.assertNotEquals(WriteDedup.fingerprint(r1.getFields().get(1L)),
+                WriteDedup.fingerprint(r3.getFields().get(1L)));
+        Assert.assertNotEquals(WriteDedup.seriesHash(series("Aa")), WriteDedup.seriesHash(series("BB")));
+    }
+
+    private static Series series(final String host) {
+        return Series.newBuilder("write_dedup_test_metric") //
+                .tag("host", host) //
+                .build();
+    }
+
+    private static Rows newRows(final String host, final long ts, final long v) {
+        return Rows.newBuilder(series(host)) //
+                .field(ts, "v", FieldValue.withInt64(v)) //
+                .build();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.ceresdb.common.Endpoint;
+
+/**
+ * @author jiachun.fjc
+ */
+public class WriteSizeControllerTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Endpoint ep1 = Endpoint.of("127.0.0.1", 8831);
+    private final Endpoint ep2 = Endpoint.of("127.0.0.2", 8831);
+
+    @Test
+    public void aimdTest() {
+        final WriteSizeController sc = new WriteSizeController(1024, 64, 100);
+        Assert.assertEquals(1024, sc.targetBytes(this.ep1));
+
+        // too slow, decreased multiplicatively
+        sc.onResult(this.ep1, 1024, 200 * MS, false);
+        Assert.assertEquals(512, sc.targetBytes(this.ep1));
+        // failed
+        sc.onResult(this.ep1, 512, MS, true);
+        Assert.assertEquals(256, sc.targetBytes(this.ep1));
+        // per endpoint
+        Assert.assertEquals(1024, sc.targetBytes(this.ep2));
+
+        // fast, increased additively
+        sc.onResult(this.ep1, 200, MS, false);
+        Assert.assertEquals(320, sc.targetBytes(this.ep1));
+        // a small request does not grow it
+        sc.onResult(this.ep1, 10, MS, false);
+        Assert.assertEquals(320, sc.targetBytes(this.ep1));
+    }
+
+    @Test
+    public void boundsTest() {
+        final WriteSizeController sc = new WriteSizeController(1024, 64, 100);
+        for (int i = 0; i < 100; i++) {
+            sc.onResult(this.ep1, 1024, MS, true);
+        }
+        Assert.assertEquals(64, sc.targetBytes(this.ep1));
+        for (int i = 0; i < 100; i++) {
+            sc.onResult(this.ep1, 1024, MS, false);
+        }
+        Assert.assertEquals(1024, sc.targetBytes(this.ep1));
+    }
+
+    @Test
+    public void notAdaptiveTest() {
+        final WriteSizeController sc = new WriteSizeController(1024, 64, 0);
+        Assert.assertFalse(sc.isAdaptive());
+        sc.onResult(this.ep1, 1024, 200 * MS, true);
+        Assert.assertEquals(1024, sc.targetBytes(this.ep1));
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ceresdb.options.WriteOptions;
+import io.ceresdb.proto.Storage;
+import io.ceresdb.util.TestUtil;
+
+/**
+ * @author jiachun.fjc
+ */
+public class WriteSpoolTest {
+
+    private File         dir;
+    private WriteOptions opts;
+
+    @Before
+    public void before() throws IOException {
+        this.dir = Files.createTempDirectory("write_spool_test").toFile();
+        this.opts = new WriteOptions();
+        this.opts.setSpoolDir(this.dir.getAbsolutePath());
+        this.opts.setSpoolSegmentSize(4096);
+        this.opts.setSpoolMaxSize(4096 * 4);
+        this.opts.setSpoolFsyncPolicy(WriteSpool.FsyncPolicy.EveryAppend);
+    }
+
+    @After
+    public void after() {
+        final File[] files = this.dir.listFiles();
+        if (files != null) {
+            for (final File f : files) {
+                // noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+        // noinspection ResultOfMethodCallIgnored
+        this.dir.delete();
+    }
+
+    @Test
+    public void appendAndReplayTest() throws InterruptedException {
+        final AtomicBoolean recovered = new AtomicBoolean(false);
+        final AtomicInteger replayed = new AtomicInteger();
+        final WriteSpool spool = new WriteSpool(req -> {
+            if (!recovered.get()) {
+                return Utils.completedCf(req);
+            }
+            replayed.incrementAndGet();
+            return Utils.completedCf(null);
+        });
+        Assert.assertTrue(spool.init(this.opts));
+
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(spool.append(newRequest("write_spool_test_" + i)));
+        }
+        Assert.assertEquals(40, spool.pendingRows());
+        Thread.sleep(300);
+        Assert.assertEquals(40, spool.pendingRows());
+
+        recovered.set(true);
+        for (int i = 0; i < 50 && spool.pendingRows() > 0; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(0, spool.pendingRows());
+        Assert.assertEquals(0, spool.pendingBytes());
+        Assert.assertEquals(20, replayed.get());
+        spool.shutdownGracefully();
+    }
+
+    @Test
+    public void recoverTest() {
+        final WriteSpool spool = new WriteSpool(Utils::completedCf);
+        Assert.assertTrue(spool.init(this.opts));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(spool.append(newRequest("write_spool_test_" + i)));
+        }
+        final long pendingBytes = spool.pendingBytes();
+        spool.shutdownGracefully();
+
+        final WriteSpool reopened = new WriteSpool(Utils::completedCf);
+        Assert.assertTrue(reopened.init(this.opts));
+        Assert.assertEquals(20, reopened.pendingRows());
+        Assert.assertEquals(pendingBytes, reopened.pendingBytes());
+        reopened.shutdownGracefully();
+    }
+
+    @Test
+    public void rejectWhenFullTest() {
+        final WriteSpool spool = new WriteSpool(Utils::completedCf);
+        Assert.assertTrue(spool.init(this.opts));
+        int appended = 0;
+        while (spool.append(newRequest("write_spool_test"))) {
+            appended++;
+        }
+        Assert.assertTrue(appended > 0);
+        Assert.assertTrue(spool.pendingBytes() <= this.opts.getSpoolMaxSize());
+        spool.shutdownGracefully();
+    }
+
+    @Test
+    public void partialReplayTest() throws InterruptedException {
+        final AtomicInteger calls = new AtomicInteger();
+        final WriteSpool spool = new WriteSpool(req -> {
+            if (calls.incrementAndGet() == 1) {
+                // only the first metric was written
+                return Utils.completedCf(Storage.WriteRequest.newBuilder()
+                        .addMetrics(req.getMetrics(req.getMetricsCount() - 1)).build());
+            }
+            return Utils.completedCf(null);
+        });
+        Assert.assertTrue(spool.init(this.opts));
+        Assert.assertTrue(spool.append(new WriteClient()
+                .toWriteRequestObj(TestUtil.newListOfRows("write_spool_test_1", "write_spool_test_2").stream())));
+        Assert.assertEquals(4, spool.pendingRows());
+
+        for (int i = 0; i < 50 && spool.pendingRows() > 0; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(0, spool.pendingRows());
+        Assert.assertEquals(2, calls.get());
+        spool.shutdownGracefully();
+    }
+
+    @Test
+    public void partialReplayWhenFullTest() throws InterruptedException {
+        final AtomicBoolean recovered = new AtomicBoolean(false);
+        final AtomicInteger partialCalls = new AtomicInteger();
+        final WriteSpool spool = new WriteSpool(req -> {
+            if (!recovered.get()) {
+                return Utils.completedCf(req);
+            }
+            if (req.getMetricsCount() > 1) {
+                // only the first metric was written
+                partialCalls.incrementAndGet();
+                return Utils.completedCf(Storage.WriteRequest.newBuilder()
+                        .addMetrics(req.getMetrics(req.getMetricsCount() - 1)).build());
+            }
+            return Utils.completedCf(req);
+        });
+        Assert.assertTrue(spool.init(this.opts));
+        Assert.assertTrue(spool.append(new WriteClient()
+                .toWriteRequestObj(TestUtil.newListOfRows("write_spool_test_1", "write_spool_test_2").stream())));
+        while (spool.append(newRequest("write_spool_test_3"))) {
+            // fills up the spool
+        }
+        final long pendingRows = spool.pendingRows();
+        final long pendingBytes = spool.pendingBytes();
+
+        // the rest part of the first record can not be spooled, it is kept
+        recovered.set(true);
+        for (int i = 0; i < 50 && partialCalls.get() < 2; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertTrue(partialCalls.get() >= 2);
+        Assert.assertEquals(pendingRows, spool.pendingRows());
+        Assert.assertEquals(pendingBytes, spool.pendingBytes());
+        spool.shutdownGracefully();
+    }
+
+    @Test
+    public void appendAllOrNothingTest() {
+        final WriteSpool spool = new WriteSpool(Utils::completedCf);
+        Assert.assertTrue(spool.init(this.opts));
+        while (spool.append(newRequest("write_spool_test"))) {
+            // fills up the spool
+        }
+        final long pendingRows = spool.pendingRows();
+        Assert.assertTrue(spool.pendingBytes() <= this.opts.getSpoolMaxSize());
+        Assert.assertTrue(spool.pendingRows() > 0);
+
+        // the space for one small request is left at most, none of the two is appended
+        Assert.assertFalse(
+                spool.append(Arrays.asList(newRequest("write_spool_test_1"), newRequest("write_spool_test_2"))));
+        Assert.assertEquals(pendingRows, spool.pendingRows());
+        spool.shutdownGracefully();
+    }
+
+    @Test
+    public void appendAcrossSegmentsTest() {
+        final WriteSpool spool = new WriteSpool(Utils::completedCf);
+        Assert.assertTrue(spool.init(this.opts));
+        final List<Storage.WriteRequest> reqs = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            reqs.add(newRequest("write_spool_test_" + i));
+        }
+        Assert.assertTrue(spool.append(reqs));
+        Assert.assertEquals(60, spool.pendingRows());
+        spool.shutdownGracefully();
+        // rejects after shutdown, the segments have been unmapped
+        Assert.assertFalse(spool.append(newRequest("write_spool_test")));
+
+        final WriteSpool reopened = new WriteSpool(Utils::completedCf);
+        Assert.assertTrue(reopened.init(this.opts));
+        Assert.assertEquals(60, reopened.pendingRows());
+        reopened.shutdownGracefully();
+    }
+
+    private static Storage.WriteRequest newRequest(final String metric) {
+        return new WriteClient().toWriteRequestObj(Stream.of(TestUtil.newRow(metric)));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import io.ceresdb.models.Err;
+import io.ceresdb.models.FieldValue;
+import io.ceresdb.models.Result;
+import io.ceresdb.models.Rows;
+import io.ceresdb.models.Series;
+import io.ceresdb.models.WriteOk;
+import io.ceresdb.options.WriteSubscriberOptions;
+import io.ceresdb.rpc.Context;
+import io.ceresdb.rpc.Observer;
+
+/**
+ * @author jiachun.fjc
+ */
+public class WriteSubscriberTest {
+
+    private Write                                         write;
+    private List<Collection<Rows>>                        batches;
+    private List<CompletableFuture<Result<WriteOk, Err>>> futures;
+    private List<Result<WriteOk, Err>>                    results;
+    private AtomicBoolean                                 completed;
+    private AtomicLong                                    requested;
+    private Observer<Result<WriteOk, Err>>                observer;
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void before() {
+        this.write = Mockito.mock(Write.class);
+        this.batches = new CopyOnWriteArrayList<>();
+        this.futures = new CopyOnWriteArrayList<>();
+        this.results = new CopyOnWriteArrayList<>();
+        this.completed = new AtomicBoolean();
+        this.requested = new AtomicLong();
+        Mockito.when(this.write.write(Mockito.anyCollection(), Mockito.any(Context.class))).thenAnswer(inv -> {
+            this.batches.add((Collection<Rows>) inv.getArguments()[0]);
+            final CompletableFuture<Result<WriteOk, Err>> f = new CompletableFuture<>();
+            this.futures.add(f);
+            return f;
+        });
+        this.observer = new Observer<Result<WriteOk, Err>>() {
+
+            @Override
+            public void onNext(final Result<WriteOk, Err> value) {
+                results.add(value);
+            }
+
+            @Override
+            public void onError(final Throwable err) {
+                Assert.fail(err.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+                completed.set(true);
+            }
+        };
+    }
+
+    @Test
+    public void demandAndBatchTest() {
+        final WriteSubscriber ws = newSubscriber(4, 60_000, 2, 1000);
+        ws.onSubscribe(this.requested::addAndGet, () -> {
+        });
+        Assert.assertEquals(8, this.requested.get());
+
+        for (int i = 0; i < 4; i++) {
+            ws.onNext(newRows(i));
+        }
+        Assert.assertEquals(1, this.batches.size());
+        Assert.assertEquals(4, this.batches.get(0).size());
+        // the in-flight batch still takes a part of the demand
+        Assert.assertEquals(8, this.requested.get());
+
+        this.futures.get(0).complete(WriteOk.ok(4, 0, null).mapToResult());
+        Assert.assertEquals(12, this.requested.get());
+        Assert.assertEquals(1, this.results.size());
+        Assert.assertEquals(0, ws.getInFlightBatches());
+    }
+
+    @Test
+    public void limitedByPermitsTest() {
+        final WriteSubscriber ws = newSubscriber(4, 60_000, 2, 3);
+        ws.onSubscribe(this.requested::addAndGet, () -> {
+        });
+        Assert.assertEquals(3, this.requested.get());
+    }
+
+    @Test
+    public void neverStallTest() {
+        final WriteSubscriber ws = newSubscriber(4, 60_000, 2, 0);
+        ws.onSubscribe(this.requested::addAndGet, () -> {
+        });
+        Assert.assertEquals(1, this.requested.get());
+    }
+
+    @Test
+    public void lingerTest() throws InterruptedException {
+        final WriteSubscriber ws = newSubscriber(4, 50, 2, 1000);
+        ws.onSubscribe(this.requested::addAndGet, () -> {
+        });
+        ws.onNext(newRows(0));
+        Assert.assertTrue(this.batches.isEmpty());
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (this.batches.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, this.batches.size());
+        Assert.assertEquals(1, this.batches.get(0).size());
+    }
+
+    @Test
+    public void completeTest() {
+        final WriteSubscriber ws = newSubscriber(4, 60_000, 2, 1000);
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        ws.onSubscribe(this.requested::addAndGet, () -> cancelled.set(true));
+        ws.onNext(newRows(0));
+        ws.onNext(newRows(1));
+        ws.onComplete();
+
+        Assert.assertEquals(1, this.batches.size());
+        Assert.assertEquals(2, this.batches.get(0).size());
+        Assert.assertFalse(this.completed.get());
+
+        this.futures.get(0).completeExceptionally(new IllegalStateException("test"));
+        Assert.assertTrue(this.completed.get());
+        Assert.assertFalse(this.results.get(0).isOk());
+        Assert.assertEquals(2, this.results.get(0).getErr().getFailedWrites().size());
+        Assert.assertFalse(cancelled.get());
+    }
+
+    @Test
+    public void cancelTest() {
+        final WriteSubscriber ws = newSubscriber(4, 60_000, 2, 1000);
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        ws.onSubscribe(this.requested::addAndGet, () -> cancelled.set(true));
+        ws.onNext(newRows(0));
+        ws.cancel();
+        ws.onNext(newRows(1));
+
+        Assert.assertTrue(cancelled.get());
+        Assert.assertTrue(this.batches.isEmpty());
+        Assert.assertTrue(this.completed.get());
+    }
+
+    private WriteSubscriber newSubscriber(final int maxBatchRows, final long lingerMs, final int maxInFlightBatches,
+                                          final int permits) {
+        final WriteSubscriberOptions opts = WriteSubscriberOptions.newDefault();
+        opts.setMaxBatchRows(maxBatchRows);
+        opts.setLingerMs(lingerMs);
+        opts.setMaxInFlightBatches(maxInFlightBatches);
+        return new WriteSubscriber(this.write, () -> permits, opts, Context.newDefault(), this.observer);
+    }
+
+    private static Rows newRows(final int i) {
+        return Series.newBuilder("write_subscriber_test_metric") //
+                .tag("tag", "v" + i) //
+                .toRowsBuilder() //
+                .field(System.currentTimeMillis(), "field", FieldValue.withInt64(i)) //
+                .build();
+    }
+}
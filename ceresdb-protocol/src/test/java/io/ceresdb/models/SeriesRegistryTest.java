@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.models;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.ceresdb.WriteClient;
+import io.ceresdb.common.util.Clock;
+import io.ceresdb.proto.Storage;
+
+/**
+ * @author jiachun.fjc
+ */
+public class SeriesRegistryTest {
+
+    @Test
+    public void internTest() {
+        final SeriesRegistry registry = new SeriesRegistry(16);
+        final Map<String, TagValue> tags = new HashMap<>();
+        tags.put("tag2", TagValue.withString("v2"));
+        tags.put("tag1", TagValue.withString("v1"));
+
+        final Series s1 = registry.intern("test_metric", tags);
+        final Series s2 = registry.intern("test_metric", tags);
+        Assert.assertSame(s1, s2);
+        Assert.assertNotNull(s1.getEncodedTags());
+        Assert.assertEquals(2, s1.getEncodedTags().size());
+        Assert.assertEquals("tag1", s1.getEncodedTags().nameAt(0));
+        Assert.assertEquals("tag2", s1.getEncodedTags().nameAt(1));
+
+        final Series built = Series.newBuilder("test_metric") //
+                .tag("tag1", "v1") //
+                .tag("tag2", "v2") //
+                .build();
+        Assert.assertEquals(built, s1);
+        Assert.assertSame(s1, registry.intern(built));
+        Assert.assertEquals(1, registry.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void internKeywordTest() {
+        final Map<String, TagValue> tags = new HashMap<>();
+        tags.put("timestamp", TagValue.withString("v"));
+        new SeriesRegistry(16).intern("test_metric", tags);
+    }
+
+    @Test
+    public void evictTest() {
+        final SeriesRegistry registry = new SeriesRegistry(10);
+        for (int i = 0; i < 100; i++) {
+            final Map<String, TagValue> tags = new HashMap<>();
+            tags.put("tag1", TagValue.withInt(i));
+            registry.intern("test_metric", tags);
+        }
+        Assert.assertTrue(registry.size() <= 10);
+    }
+
+    @Test
+    public void encodeInternedTest() {
+        final Map<String, TagValue> tags = new HashMap<>();
+        tags.put("tag1", TagValue.withString("v1"));
+        tags.put("tag2", TagValue.withStringOrNull(null));
+        tags.put("tag3", TagValue.withInt64(3));
+        final Series interned = new SeriesRegistry(16).intern("test_metric", tags);
+        final Series.Builder builder = Series.newBuilder("test_metric");
+        tags.forEach(builder::tag);
+        final Series plain = builder.build();
+
+        final long ts = Clock.defaultClock().getTick();
+        final Rows rs1 = Rows.newBuilder(interned).field(ts, "f1", FieldValue.withDouble(0.1)).build();
+        final Rows rs2 = Rows.newBuilder(plain).field(ts, "f1", FieldValue.withDouble(0.1)).build();
+
+        final WriteClient writeClient = new WriteClient();
+        final Storage.WriteRequest req1 = writeClient.toWriteRequestObj(Stream.of(rs1));
+        final Storage.WriteRequest req2 = writeClient.toWriteRequestObj(Stream.of(rs2));
+        Assert.assertEquals(req2, req1);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.rpc;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author jiachun.fjc
+ */
+public class ContextTest {
+
+    @Test
+    public void withAndRemoveTest() {
+        final Context ctx = Context.of("k1", "v1").with("k2", 2).with("k3", null);
+
+        Assert.assertEquals("v1", ctx.get("k1"));
+        Assert.assertEquals(new Integer(2), ctx.get("k2"));
+        Assert.assertNull(ctx.getOrDefault("k3", "default"));
+        Assert.assertEquals("default", ctx.getOrDefault("k4", "default"));
+
+        ctx.with("k1", "v11");
+        Assert.assertEquals("v11", ctx.get("k1"));
+        Assert.assertEquals(new Integer(2), ctx.remove("k2"));
+        Assert.assertNull(ctx.remove("k2"));
+        Assert.assertEquals("{k1=v11, k3=null}", ctx.toString());
+
+        ctx.clear();
+        Assert.assertTrue(ctx.entrySet().isEmpty());
+    }
+
+    @Test
+    public void copyTest() {
+        final Context ctx = Context.of("k1", "v1");
+        final Context copy = ctx.copy();
+        copy.with("k2", "v2");
+        ctx.with("k1", "v11");
+
+        Assert.assertEquals("v1", copy.get("k1"));
+        Assert.assertEquals("v2", copy.get("k2"));
+        Assert.assertEquals("v11", ctx.get("k1"));
+        Assert.assertNull(ctx.get("k2"));
+    }
+
+    @Test
+    public void forEachHeaderTest() {
+        final Context ctx = Context.of(Context.KEY_CLIENT_ID, 1).with(Context.KEY_RETRIES, 0);
+        final Map<String, String> headers = new HashMap<>();
+        ctx.copy().forEachHeader(headers::put);
+        Assert.assertEquals("1", headers.get(Context.KEY_CLIENT_ID));
+        Assert.assertEquals("0", headers.get(Context.KEY_RETRIES));
+
+        ctx.with(Context.KEY_RETRIES, 1).forEachHeader(headers::put);
+        Assert.assertEquals("1", headers.get(Context.KEY_RETRIES));
+    }
+
+    @Test
+    public void concurrentWithTest() throws InterruptedException {
+        final Context ctx = Context.newDefault();
+        final int threads = 4;
+        final int keys = 200;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            new Thread(() -> {
+                for (int i = 0; i < keys; i++) {
+                    ctx.with(id + "_" + i, i);
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+
+        Assert.assertEquals(threads * keys, ctx.entrySet().size());
+    }
+}
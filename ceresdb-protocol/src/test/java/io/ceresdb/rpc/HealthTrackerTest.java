@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.rpc;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.ceresdb.common.Endpoint;
+
+/**
+ * @author jiachun.fjc
+ */
+public class HealthTrackerTest {
+
+    private final Endpoint ep1 = Endpoint.of("127.0.0.1", 8081);
+    private final Endpoint ep2 = Endpoint.of("127.0.0.1", 8082);
+    private final Endpoint ep3 = Endpoint.of("127.0.0.1", 8083);
+
+    @Test
+    public void selectByLatencyAndLoadTest() {
+        final HealthTracker tracker = new HealthTracker(0.5, 1000, 60000);
+        call(tracker, this.ep1, 50, false, 10);
+        call(tracker, this.ep2, 5, false, 10);
+        Assert.assertEquals(this.ep2, tracker.select(Arrays.asList(this.ep1, this.ep2)));
+
+        // an unknown endpoint is preferred to get its samples
+        Assert.assertEquals(this.ep3, tracker.select(Arrays.asList(this.ep1, this.ep2, this.ep3)));
+
+        // too many calls in flight
+        for (int i = 0; i < 20; i++) {
+            tracker.get(this.ep2).onStart();
+        }
+        Assert.assertEquals(this.ep1, tracker.select(Arrays.asList(this.ep1, this.ep2)));
+        Assert.assertEquals(Arrays.asList(this.ep1, this.ep2), tracker.sort(Arrays.asList(this.ep2, this.ep1)));
+    }
+
+    @Test
+    public void ejectAndProbeTest() throws InterruptedException {
+        final HealthTracker tracker = new HealthTracker(0.5, 100, 10000);
+        call(tracker, this.ep1, 1, false, 10);
+        call(tracker, this.ep2, 10, false, 10);
+        call(tracker, this.ep1, 1, true, 10);
+
+        final EndpointHealth h1 = tracker.get(this.ep1);
+        Assert.assertTrue(h1.isEjected());
+        Assert.assertEquals(1, h1.getEjections());
+        Assert.assertEquals(this.ep2, tracker.select(Arrays.asList(this.ep1, this.ep2)));
+        final List<Endpoint> sorted = tracker.sort(Arrays.asList(this.ep1, this.ep2));
+        Assert.assertEquals(this.ep1, sorted.get(1));
+
+        // the probe fails, ejected for twice as long
+        Thread.sleep(150);
+        Assert.assertEquals(this.ep1, tracker.select(Arrays.asList(this.ep1, this.ep2)));
+        // only one probe at a time
+        Assert.assertEquals(this.ep2, tracker.select(Arrays.asList(this.ep1, this.ep2)));
+        call(tracker, this.ep1, 1, true, 1);
+        Assert.assertEquals(2, h1.getEjections());
+        Thread.sleep(150);
+        Assert.assertTrue(h1.isEjected());
+
+        // the probe succeeds, recovered
+        Thread.sleep(150);
+        Assert.assertEquals(this.ep1, tracker.select(Arrays.asList(this.ep1, this.ep2)));
+        call(tracker, this.ep1, 1, false, 1);
+        Assert.assertFalse(h1.isSick());
+        Assert.assertEquals(0, h1.getEjections());
+        Assert.assertEquals(this.ep1, tracker.select(Arrays.asList(this.ep1, this.ep2)));
+    }
+
+    @Test
+    public void allEjectedTest() {
+        final HealthTracker tracker = new HealthTracker(0.5, 60000, 60000);
+        call(tracker, this.ep1, 10, true, 10);
+        call(tracker, this.ep2, 1, true, 10);
+        Assert.assertTrue(tracker.get(this.ep1).isEjected());
+        Assert.assertTrue(tracker.get(this.ep2).isEjected());
+        Assert.assertEquals(this.ep2, tracker.select(Arrays.asList(this.ep1, this.ep2)));
+    }
+
+    private static void call(final HealthTracker tracker, final Endpoint ep, final long latencyMs, final boolean error,
+                             final int times) {
+        final EndpointHealth h = tracker.get(ep);
+        for (int i = 0; i < times; i++) {
+            h.onStart();
+            h.onComplete(latencyMs, error);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.rpc.trace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author jiachun.fjc
+ */
+public class FlightRecorderTest {
+
+    @Test
+    public void keepSlowestAndFailedTest() throws InterruptedException {
+        final List<Span> spans = new ArrayList<>();
+        // started in the reverse order, so the later ended, the slower
+        for (int i = 0; i < 6; i++) {
+            spans.add(0, new Span("test", false));
+        }
+        for (int i = 0; i < spans.size(); i++) {
+            Thread.sleep(2);
+            spans.get(i).end(i == 1 ? "failed" : Span.OK);
+        }
+
+        final FlightRecorder recorder = new FlightRecorder(3, TimeUnit.MINUTES.toNanos(1));
+        spans.forEach(recorder::offer);
+
+        // the failed one first, then the slowest ones
+        Assert.assertEquals(Arrays.asList(spans.get(1), spans.get(5), spans.get(4)), recorder.snapshot());
+
+        // faster than all the kept ones
+        recorder.offer(spans.get(0));
+        Assert.assertEquals(3, recorder.snapshot().size());
+        Assert.assertFalse(recorder.snapshot().contains(spans.get(0)));
+    }
+
+    @Test
+    public void windowTest() throws InterruptedException {
+        final FlightRecorder recorder = new FlightRecorder(2, TimeUnit.MILLISECONDS.toNanos(20));
+        final Span s1 = new Span("test", false);
+        s1.end(Span.OK);
+        recorder.offer(s1);
+        Thread.sleep(30);
+        final Span s2 = new Span("test", false);
+        s2.end(Span.OK);
+        recorder.offer(s2);
+        // the previous window is kept
+        Assert.assertEquals(2, recorder.snapshot().size());
+        Thread.sleep(30);
+        final Span s3 = new Span("test", false);
+        s3.end(Span.OK);
+        recorder.offer(s3);
+        final List<Span> kept = recorder.snapshot();
+        Assert.assertEquals(2, kept.size());
+        Assert.assertTrue(kept.contains(s2));
+        Assert.assertTrue(kept.contains(s3));
+    }
+
+    @Test
+    public void disabledByDefaultTest() {
+        Assert.assertNull(Tracer.flightRecorder());
+        Assert.assertEquals(0, Tracer.getSampleRate(), 0);
+        // nothing is allocated for the requests not sampled
+        Assert.assertNull(Tracer.startSpan("test"));
+    }
+}
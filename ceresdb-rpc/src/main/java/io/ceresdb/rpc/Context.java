@@ -16,21 +16,44 @@
  */
 package io.ceresdb.rpc;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
 
 import io.ceresdb.common.Copiable;
+import io.ceresdb.rpc.trace.Span;
 
 /**
  * Invoke context.
  *
+ * The entries are kept in an immutable array-backed map which is replaced
+ * on each update, so the reads are lock-free and {@link #copy()} only
+ * shares the map, the copies don't see the updates of each other.  The
+ * string values of the entries are cached in the map for the headers, a
+ * map is shared by all the copies of a request.
+ *
  * @author jiachun.fjc
  */
 @SuppressWarnings("unchecked")
 public class Context implements Copiable<Context> {
 
-    private final Map<String, Object> ctx = new HashMap<>();
+    // well-known keys
+    public static final String KEY_CLIENT_ID      = "client.id";
+    public static final String KEY_CLIENT_VERSION = "client.version";
+    public static final String KEY_RETRIES        = "retries";
+
+    private static final AtomicReferenceFieldUpdater<Context, Entries> ENTRIES_UPDATER = AtomicReferenceFieldUpdater
+            .newUpdater(Context.class, Entries.class, "entries");
+
+    private volatile Entries entries = Entries.EMPTY;
+
+    // not a part of the entries, the entries are sent to the server
+    private volatile Span span;
 
     public static Context newDefault() {
         return new Context();
@@ -41,55 +64,163 @@ public class Context implements Copiable<Context> {
     }
 
     public Context with(final String key, final Object value) {
-        synchronized (this) {
-            this.ctx.put(key, value);
+        for (;;) {
+            final Entries prev = this.entries;
+            if (ENTRIES_UPDATER.compareAndSet(this, prev, prev.with(key, value))) {
+                return this;
+            }
         }
+    }
+
+    /**
+     * Attach the trace span of the request, the copies share the same span.
+     */
+    public Context withSpan(final Span span) {
+        this.span = span;
         return this;
     }
 
+    /**
+     * Returns the trace span of the request, null if it is not traced.
+     */
+    public Span getSpan() {
+        return this.span;
+    }
+
     public <T> T get(final String key) {
-        synchronized (this) {
-            return (T) this.ctx.get(key);
-        }
+        final Entries e = this.entries;
+        final int i = e.indexOf(key);
+        return i < 0 ? null : (T) e.values[i];
     }
 
     public <T> T remove(final String key) {
-        synchronized (this) {
-            return (T) this.ctx.remove(key);
+        for (;;) {
+            final Entries prev = this.entries;
+            final int i = prev.indexOf(key);
+            if (i < 0) {
+                return null;
+            }
+            if (ENTRIES_UPDATER.compareAndSet(this, prev, prev.without(i))) {
+                return (T) prev.values[i];
+            }
         }
     }
 
     public <T> T getOrDefault(final String key, final T defaultValue) {
-        synchronized (this) {
-            return (T) this.ctx.getOrDefault(key, defaultValue);
-        }
+        final Entries e = this.entries;
+        final int i = e.indexOf(key);
+        return i < 0 ? defaultValue : (T) e.values[i];
     }
 
     public void clear() {
-        synchronized (this) {
-            this.ctx.clear();
-        }
+        this.entries = Entries.EMPTY;
     }
 
+    /**
+     * Returns a snapshot of the entries.
+     */
     public Set<Map.Entry<String, Object>> entrySet() {
-        synchronized (this) {
-            return this.ctx.entrySet();
+        return Collections.unmodifiableMap(this.entries.toMap()).entrySet();
+    }
+
+    /**
+     * Passes each entry with the string value to `action`, the string
+     * values are cached.
+     */
+    public void forEachHeader(final BiConsumer<String, String> action) {
+        final Entries e = this.entries;
+        for (int i = 0; i < e.keys.length; i++) {
+            action.accept(e.keys[i], e.header(i));
         }
     }
 
     @Override
     public String toString() {
-        synchronized (this) {
-            return this.ctx.toString();
-        }
+        return this.entries.toMap().toString();
     }
 
     @Override
     public Context copy() {
-        synchronized (this) {
-            final Context copy = new Context();
-            copy.ctx.putAll(this.ctx);
-            return copy;
+        final Context copy = new Context();
+        copy.entries = this.entries;
+        copy.span = this.span;
+        return copy;
+    }
+
+    private static final class Entries {
+
+        static final Entries EMPTY = new Entries(new String[0], new Object[0], new String[0]);
+
+        final String[] keys;
+        final Object[] values;
+        // the string values, computed lazily, it's fine to compute one twice
+        final String[] headers;
+
+        Entries(String[] keys, Object[] values, String[] headers) {
+            this.keys = keys;
+            this.values = values;
+            this.headers = headers;
+        }
+
+        int indexOf(final String key) {
+            for (int i = 0; i < this.keys.length; i++) {
+                if (Objects.equals(this.keys[i], key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Entries with(final String key, final Object value) {
+            final int i = indexOf(key);
+            if (i >= 0) {
+                if (this.values[i] == value) {
+                    return this;
+                }
+                final Object[] newValues = this.values.clone();
+                final String[] newHeaders = this.headers.clone();
+                newValues[i] = value;
+                newHeaders[i] = null;
+                return new Entries(this.keys, newValues, newHeaders);
+            }
+            final int n = this.keys.length;
+            final String[] newKeys = Arrays.copyOf(this.keys, n + 1);
+            final Object[] newValues = Arrays.copyOf(this.values, n + 1);
+            newKeys[n] = key;
+            newValues[n] = value;
+            return new Entries(newKeys, newValues, Arrays.copyOf(this.headers, n + 1));
+        }
+
+        Entries without(final int i) {
+            final int n = this.keys.length;
+            if (n == 1) {
+                return EMPTY;
+            }
+            return new Entries(removeAt(this.keys, i, new String[n - 1]), removeAt(this.values, i, new Object[n - 1]),
+                    removeAt(this.headers, i, new String[n - 1]));
+        }
+
+        String header(final int i) {
+            String h = this.headers[i];
+            if (h == null) {
+                h = String.valueOf(this.values[i]);
+                this.headers[i] = h;
+            }
+            return h;
+        }
+
+        Map<String, Object> toMap() {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            for (int i = 0; i < this.keys.length; i++) {
+                map.put(this.keys[i], this.values[i]);
+            }
+            return map;
+        }
+
+        private static <T> T[] removeAt(final T[] src, final int i, final T[] dst) {
+            System.arraycopy(src, 0, dst, 0, i);
+            System.arraycopy(src, i + 1, dst, i, src.length - i - 1);
+            return dst;
         }
     }
 }
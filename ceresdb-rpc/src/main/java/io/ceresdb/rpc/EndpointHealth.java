@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.rpc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.ceresdb.common.Endpoint;
+
+/**
+ * The health of an endpoint, made of the EWMA of the latency and the error
+ * rate of the rpc calls, and the number of the calls in flight.
+ *
+ * An endpoint is ejected when its error rate exceeds the threshold, and
+ * after the ejection time one call is let through as a probe: the endpoint
+ * is recovered if the probe succeeds, otherwise it is ejected again for
+ * twice as long, up to the max ejection time.
+ *
+ * @author jiachun.fjc
+ */
+public final class EndpointHealth {
+
+    // the weight of the latest sample
+    private static final double ALPHA = 0.2;
+    // an endpoint is not ejected before it has enough samples
+    private static final int MIN_SAMPLES = 5;
+
+    private final Endpoint      endpoint;
+    private final HealthTracker tracker;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // guarded by this
+    private double  latencyMs = -1;
+    private double  errorRate;
+    private long    samples;
+    private int     ejections;
+    private long    ejectNanos;
+    private long    ejectedUntil;
+    private long    probeDeadline;
+    private boolean probing;
+
+    EndpointHealth(Endpoint endpoint, HealthTracker tracker) {
+        this.endpoint = endpoint;
+        this.tracker = tracker;
+    }
+
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Called before a call is sent to the endpoint.
+     */
+    public void onStart() {
+        this.inFlight.incrementAndGet();
+    }
+
+    /**
+     * Called after the response or the error of a call is received.
+     *
+     * @param latencyMs the latency of the call, negative if unknown
+     * @param error     whether the call failed
+     */
+    public void onComplete(final long latencyMs, final boolean error) {
+        this.inFlight.decrementAndGet();
+        onSample(latencyMs, error);
+    }
+
+    synchronized void onSample(final long latencyMs, final boolean error) {
+        if (latencyMs >= 0) {
+            this.latencyMs = this.latencyMs < 0 ? latencyMs : this.latencyMs + ALPHA * (latencyMs - this.latencyMs);
+        }
+        this.errorRate += ALPHA * ((error ? 1 : 0) - this.errorRate);
+        this.samples++;
+
+        final long now = System.nanoTime();
+        if (this.probing) {
+            this.probing = false;
+            if (error) {
+                eject(now);
+            } else {
+                recover();
+            }
+            return;
+        }
+
+        if (error && this.ejectedUntil == 0 && this.samples >= MIN_SAMPLES
+            && this.errorRate >= this.tracker.getEjectErrorRate()) {
+            eject(now);
+        }
+    }
+
+    private void eject(final long now) {
+        final long base = this.tracker.getEjectBaseMs();
+        final long ejectMs = Math.min(this.tracker.getEjectMaxMs(), base << Math.min(this.ejections, 20));
+        this.ejections++;
+        this.ejectNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, ejectMs));
+        this.ejectedUntil = now + this.ejectNanos;
+        this.tracker.onEjected(this, ejectMs);
+    }
+
+    private void recover() {
+        this.ejections = 0;
+        this.ejectedUntil = 0;
+        this.errorRate = 0;
+        this.samples = 0;
+        this.tracker.onRecovered(this);
+    }
+
+    /**
+     * Whether the endpoint is ejected and is not ready to be probed.
+     */
+    public synchronized boolean isEjected() {
+        if (this.ejectedUntil == 0) {
+            return false;
+        }
+        return !isProbeable(System.nanoTime());
+    }
+
+    /**
+     * Whether the endpoint is ejected, or is being probed.
+     */
+    public synchronized boolean isSick() {
+        return this.ejectedUntil != 0;
+    }
+
+    /**
+     * Takes the chance to probe the ejected endpoint, only one call is let
+     * through at a time.  The probe is given up if no response is received
+     * within the last ejection time, then another one can be taken.
+     *
+     * @return true if the caller should send the next call as the probe
+     */
+    synchronized boolean tryProbe() {
+        if (this.ejectedUntil == 0) {
+            return false;
+        }
+        final long now = System.nanoTime();
+        if (!isProbeable(now)) {
+            return false;
+        }
+        this.probing = true;
+        this.probeDeadline = now + this.ejectNanos;
+        return true;
+    }
+
+    /**
+     * Whether the ejection has expired, and no probe is in flight.
+     */
+    private boolean isProbeable(final long now) {
+        final boolean ejecting = now - this.ejectedUntil < 0;
+        final boolean probing = this.probing && now - this.probeDeadline < 0;
+        return !ejecting && !probing;
+    }
+
+    /**
+     * Returns the score of the endpoint, the lower the better.  The latency is
+     * weighted by the load and the error rate, like the peak EWMA of the
+     * load balancers.
+     */
+    public synchronized double score() {
+        final double latency = Math.max(1, this.latencyMs);
+        return latency * (this.inFlight.get() + 1) / Math.max(0.01, 1 - this.errorRate);
+    }
+
+    public synchronized double getLatencyMs() {
+        return Math.max(0, this.latencyMs);
+    }
+
+    public synchronized double getErrorRate() {
+        return errorRate;
+    }
+
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+
+    public synchronized int getEjections() {
+        return ejections;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "EndpointHealth{" + //
+               "endpoint=" + endpoint + //
+               ", latencyMs=" + String.format("%.2f", getLatencyMs()) + //
+               ", errorRate=" + String.format("%.3f", errorRate) + //
+               ", inFlight=" + inFlight + //
+               ", ejections=" + ejections + //
+               ", probing=" + probing + //
+               '}';
+    }
+}
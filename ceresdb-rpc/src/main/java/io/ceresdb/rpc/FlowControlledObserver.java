@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.rpc;
+
+/**
+ * An {@link Observer} of the request stream that exposes the transport
+ * flow control, the caller should stop sending messages while it is not
+ * ready, otherwise the messages will be queued in the transport buffer.
+ *
+ * @author jiachun.fjc
+ */
+public interface FlowControlledObserver<V> extends Observer<V> {
+
+    /**
+     * If {@code true}, indicates that the observer is capable of sending
+     * additional messages without requiring excessive buffering internally.
+     *
+     * @return true if ready to send more messages
+     */
+    boolean isReady();
+
+    /**
+     * Set a {@link Runnable} that will be executed every time the stream
+     * {@link #isReady()} state changes from {@code false} to {@code true}.
+     *
+     * @param onReadyHandler to call when peer is ready to receive more messages
+     */
+    void setOnReadyHandler(final Runnable onReadyHandler);
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.rpc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.ceresdb.common.Endpoint;
+import io.ceresdb.common.util.MetricName;
+import io.ceresdb.common.util.MetricsUtil;
+
+/**
+ * Tracks the {@link EndpointHealth} of the endpoints, and selects the
+ * healthiest one for the calls that can go to any of several endpoints.
+ *
+ * @author jiachun.fjc
+ */
+public final class HealthTracker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HealthTracker.class);
+
+    private final ConcurrentMap<Endpoint, EndpointHealth> healths = new ConcurrentHashMap<>();
+    private final double                                  ejectErrorRate;
+    private final long                                    ejectBaseMs;
+    private final long                                    ejectMaxMs;
+
+    public HealthTracker(double ejectErrorRate, long ejectBaseMs, long ejectMaxMs) {
+        this.ejectErrorRate = ejectErrorRate;
+        this.ejectBaseMs = ejectBaseMs;
+        this.ejectMaxMs = ejectMaxMs;
+    }
+
+    public double getEjectErrorRate() {
+        return ejectErrorRate;
+    }
+
+    public long getEjectBaseMs() {
+        return ejectBaseMs;
+    }
+
+    public long getEjectMaxMs() {
+        return ejectMaxMs;
+    }
+
+    public EndpointHealth get(final Endpoint endpoint) {
+        return this.healths.computeIfAbsent(endpoint, ep -> new EndpointHealth(ep, this));
+    }
+
+    /**
+     * Returns the health of the endpoint, null if there is no call to it yet.
+     */
+    public EndpointHealth find(final Endpoint endpoint) {
+        return this.healths.get(endpoint);
+    }
+
+    public void remove(final Endpoint endpoint) {
+        this.healths.remove(endpoint);
+    }
+
+    /**
+     * Selects an endpoint for the next call.
+     *
+     * An ejected endpoint that is ready to be probed is selected first, so the
+     * sick endpoints can be recovered, otherwise the healthy endpoint with the
+     * lowest score is selected.  If all the endpoints are ejected, the one
+     * with the lowest score is selected anyway.
+     *
+     * @param endpoints the candidates
+     * @return the selected endpoint, null if there is no candidate
+     */
+    public Endpoint select(final Collection<Endpoint> endpoints) {
+        if (endpoints == null || endpoints.isEmpty()) {
+            return null;
+        }
+
+        Endpoint best = null;
+        double bestScore = Double.MAX_VALUE;
+        Endpoint fallback = null;
+        double fallbackScore = Double.MAX_VALUE;
+        for (final Endpoint ep : endpoints) {
+            final EndpointHealth h = find(ep);
+            if (h == null) {
+                // never called, the score of an idle endpoint is the lowest
+                if (best == null || bestScore > 1) {
+                    best = ep;
+                    bestScore = 1;
+                }
+                continue;
+            }
+            if (h.tryProbe()) {
+                LOG.info("Probing the ejected endpoint: {}.", h);
+                return ep;
+            }
+            final double score = h.score();
+            if (h.isEjected()) {
+                if (score < fallbackScore) {
+                    fallback = ep;
+                    fallbackScore = score;
+                }
+            } else if (score < bestScore) {
+                best = ep;
+                bestScore = score;
+            }
+        }
+        return best != null ? best : fallback;
+    }
+
+    /**
+     * Sorts the endpoints from the healthiest to the sickest, the ejected ones
+     * are at the end.
+     *
+     * @param endpoints the endpoints
+     * @return the sorted endpoints
+     */
+    public List<Endpoint> sort(final Collection<Endpoint> endpoints) {
+        final List<EndpointHealth> list = new ArrayList<>(endpoints.size());
+        endpoints.forEach(ep -> list.add(get(ep)));
+        // take the snapshots, the scores change during sorting
+        final double[] scores = new double[list.size()];
+        for (int i = 0; i < scores.length; i++) {
+            final EndpointHealth h = list.get(i);
+            scores[i] = h.isEjected() ? Double.MAX_VALUE : h.score();
+        }
+        final List<Integer> indexes = new ArrayList<>(list.size());
+        for (int i = 0; i < scores.length; i++) {
+            indexes.add(i);
+        }
+        indexes.sort(Comparator.comparingDouble(i -> scores[i]));
+        final List<Endpoint> sorted = new ArrayList<>(list.size());
+        indexes.forEach(i -> sorted.add(list.get(i).getEndpoint()));
+        return sorted;
+    }
+
+    void onEjected(final EndpointHealth health, final long ejectMs) {
+        MetricsUtil.meter(MetricName.of("endpoint_ejected", "address", health.getEndpoint().toString())).mark();
+        LOG.warn("Endpoint ejected for {} ms: {}.", ejectMs, health);
+    }
+
+    void onRecovered(final EndpointHealth health) {
+        LOG.info("Endpoint recovered: {}.", health.getEndpoint());
+    }
+
+    @Override
+    public String toString() {
+        return "HealthTracker{" + //
+               "healths=" + healths.values() + //
+               ", ejectErrorRate=" + ejectErrorRate + //
+               ", ejectBaseMs=" + ejectBaseMs + //
+               ", ejectMaxMs=" + ejectMaxMs + //
+               '}';
+    }
+}
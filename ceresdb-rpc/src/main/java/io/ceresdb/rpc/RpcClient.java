@@ -16,6 +16,8 @@
  */
 package io.ceresdb.rpc;
 
+import java.util.concurrent.CompletableFuture;
+
 import io.ceresdb.common.Display;
 import io.ceresdb.common.Endpoint;
 import io.ceresdb.common.Lifecycle;
@@ -51,6 +53,24 @@ public interface RpcClient extends Lifecycle<RpcOptions>, Display {
      */
     void closeConnection(final Endpoint endpoint);
 
+    /**
+     * Creates the connection to the endpoint if absent, and starts connecting
+     * right away instead of on the first call.
+     *
+     * @param endpoint server address
+     * @return a future completed with true once the connection is ready, or
+     *         with false if the connection fails
+     */
+    CompletableFuture<Boolean> connect(final Endpoint endpoint);
+
+    /**
+     * Returns the health of the endpoints, which is fed by the responses
+     * of the unary calls.
+     *
+     * @return the health tracker
+     */
+    HealthTracker getHealthTracker();
+
     /**
      * Register a connection state observer.
      *
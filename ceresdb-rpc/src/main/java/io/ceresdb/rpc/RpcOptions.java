@@ -106,6 +106,16 @@ public class RpcOptions implements Copiable<RpcOptions> {
 
     private boolean logOnLimitChange = true;
 
+    /**
+     * An endpoint is ejected when the EWMA of its error rate exceeds this
+     * value, and is recovered by the probes after an ejection time which
+     * starts at `healthEjectBaseMs` and doubles on every failed probe, up
+     * to `healthEjectMaxMs`.
+     */
+    private double healthEjectErrorRate = 0.5;
+    private long   healthEjectBaseMs    = 1000;
+    private long   healthEjectMaxMs     = 60000;
+
     private Tenant tenant;
 
     public int getDefaultRpcTimeout() {
@@ -236,6 +246,30 @@ public class RpcOptions implements Copiable<RpcOptions> {
         this.logOnLimitChange = logOnLimitChange;
     }
 
+    public double getHealthEjectErrorRate() {
+        return healthEjectErrorRate;
+    }
+
+    public void setHealthEjectErrorRate(double healthEjectErrorRate) {
+        this.healthEjectErrorRate = healthEjectErrorRate;
+    }
+
+    public long getHealthEjectBaseMs() {
+        return healthEjectBaseMs;
+    }
+
+    public void setHealthEjectBaseMs(long healthEjectBaseMs) {
+        this.healthEjectBaseMs = healthEjectBaseMs;
+    }
+
+    public long getHealthEjectMaxMs() {
+        return healthEjectMaxMs;
+    }
+
+    public void setHealthEjectMaxMs(long healthEjectMaxMs) {
+        this.healthEjectMaxMs = healthEjectMaxMs;
+    }
+
     public Tenant getTenant() {
         return tenant;
     }
@@ -263,6 +297,9 @@ public class RpcOptions implements Copiable<RpcOptions> {
         opts.smoothing = this.smoothing;
         opts.blockOnLimit = this.blockOnLimit;
         opts.logOnLimitChange = this.logOnLimitChange;
+        opts.healthEjectErrorRate = this.healthEjectErrorRate;
+        opts.healthEjectBaseMs = this.healthEjectBaseMs;
+        opts.healthEjectMaxMs = this.healthEjectMaxMs;
         if (this.tenant != null) {
             opts.tenant = this.tenant.copy();
         }
@@ -288,6 +325,9 @@ public class RpcOptions implements Copiable<RpcOptions> {
                ", smoothing=" + smoothing + //
                ", blockOnLimit=" + blockOnLimit + //
                ", logOnLimitChange=" + logOnLimitChange + //
+               ", healthEjectErrorRate=" + healthEjectErrorRate + //
+               ", healthEjectBaseMs=" + healthEjectBaseMs + //
+               ", healthEjectMaxMs=" + healthEjectMaxMs + //
                ", tenant=" + tenant + //
                '}';
     }
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.rpc.trace;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import io.ceresdb.common.util.Requires;
+
+/**
+ * Keeps the slowest or failed requests of each time window, the failed
+ * ones first, then the slower ones.  The current window and the previous
+ * one are kept, so there is always a full window to look at.
+ *
+ * It is lock-free, a request that is faster than all the kept ones of a
+ * full window is rejected by comparing with a cached threshold, without
+ * scanning the slots.
+ *
+ * @author jiachun.fjc
+ */
+public final class FlightRecorder {
+
+    // the failed requests are ranked before the successful ones
+    private static final long FAILED_BONUS = 1L << 62;
+
+    private final int                     capacity;
+    private final long                    windowNanos;
+    private final AtomicReference<Window> current = new AtomicReference<>();
+    private volatile Window               previous;
+
+    public FlightRecorder(int capacity, long windowNanos) {
+        Requires.requireTrue(capacity > 0, "capacity must > 0");
+        Requires.requireTrue(windowNanos > 0, "windowNanos must > 0");
+        this.capacity = capacity;
+        this.windowNanos = windowNanos;
+        this.current.set(new Window(System.nanoTime(), capacity));
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Offers an ended span, it is kept if it is one of the slowest or failed
+     * requests of the current window.
+     */
+    public void offer(final Span span) {
+        final Window w = currentWindow();
+        final long score = score(span);
+        if (score <= w.threshold) {
+            return; // fast path
+        }
+
+        for (;;) {
+            int victimIdx = -1;
+            Span victim = null;
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < w.slots.length(); i++) {
+                final Span s = w.slots.get(i);
+                if (s == null) {
+                    if (w.slots.compareAndSet(i, null, span)) {
+                        return;
+                    }
+                    victimIdx = -1;
+                    break; // lost the race, rescan
+                }
+                final long sc = score(s);
+                if (sc < min) {
+                    min = sc;
+                    victim = s;
+                    victimIdx = i;
+                }
+            }
+            if (victimIdx < 0) {
+                continue;
+            }
+            if (score <= min) {
+                // all kept ones are slower, raise the threshold
+                raiseThreshold(w, min);
+                return;
+            }
+            if (w.slots.compareAndSet(victimIdx, victim, span)) {
+                // the scores of the slots never decrease, so `min` is still a lower bound
+                raiseThreshold(w, min);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the kept spans of the previous and the current window, the
+     * failed and slower ones first.
+     */
+    public List<Span> snapshot() {
+        final List<Span> spans = new ArrayList<>(this.capacity << 1);
+        final Window prev = this.previous;
+        if (prev != null) {
+            prev.collect(spans);
+        }
+        this.current.get().collect(spans);
+        spans.sort(Comparator.comparingLong(FlightRecorder::score).reversed());
+        return spans;
+    }
+
+    private Window currentWindow() {
+        final Window w = this.current.get();
+        final long now = System.nanoTime();
+        if (now - w.startNanos < this.windowNanos) {
+            return w;
+        }
+        final Window next = new Window(now, this.capacity);
+        if (this.current.compareAndSet(w, next)) {
+            this.previous = w;
+            return next;
+        }
+        return this.current.get();
+    }
+
+    private static void raiseThreshold(final Window w, final long threshold) {
+        // it's only a hint, a lost update just makes the next offer scan the slots
+        if (threshold > w.threshold) {
+            w.threshold = threshold;
+        }
+    }
+
+    private static long score(final Span span) {
+        final long duration = Math.max(0, span.getDurationNanos());
+        return span.isFailed() ? FAILED_BONUS + duration : duration;
+    }
+
+    private static final class Window {
+        final long                       startNanos;
+        final AtomicReferenceArray<Span> slots;
+        volatile long                    threshold = -1;
+
+        Window(long startNanos, int capacity) {
+            this.startNanos = startNanos;
+            this.slots = new AtomicReferenceArray<>(capacity);
+        }
+
+        void collect(final List<Span> out) {
+            for (int i = 0; i < this.slots.length(); i++) {
+                final Span s = this.slots.get(i);
+                if (s != null) {
+                    out.add(s);
+                }
+            }
+        }
+    }
+}
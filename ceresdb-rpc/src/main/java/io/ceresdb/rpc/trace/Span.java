@@ -0,0 +1,303 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.rpc.trace;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Function;
+
+import io.ceresdb.common.Endpoint;
+
+/**
+ * The trace of a request, records the time spent in each {@link Phase}.
+ *
+ * A request may be split into parts that are executed concurrently or
+ * retried, so the time of a phase is the sum of all the parts, and the
+ * count of a phase is the number of times it was executed.
+ *
+ * The spans are created by {@link Tracer#startSpan(String)}, which returns
+ * null if the request is neither sampled nor recorded by the
+ * {@link FlightRecorder}, so all the static helpers accept a null span and
+ * do nothing with it.
+ *
+ * @author jiachun.fjc
+ */
+public final class Span {
+
+    public enum Phase {
+        Limit, // waiting for the in-flight limiter
+        Route, // getting the routes
+        Encode, // building the request
+        Rpc, // from sending the request to receiving the response
+        Queue, // waiting for the async pool
+        Decode, // converting the response to the result
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private static final AtomicReferenceFieldUpdater<Span, String> STATUS_UPDATER = AtomicReferenceFieldUpdater
+            .newUpdater(Span.class, String.class, "status");
+
+    private static final String RUNNING = "RUNNING";
+    public static final String  OK      = "OK";
+
+    private final String             name;
+    private final boolean            sampled;
+    private final long               startEpochNanos;
+    private final long               startNanos;
+    private final AtomicLongArray    phaseNanos  = new AtomicLongArray(PHASES.length);
+    private final AtomicIntegerArray phaseCounts = new AtomicIntegerArray(PHASES.length);
+    private final AtomicLong         bytes       = new AtomicLong();
+
+    private volatile Endpoint endpoint;
+    private volatile int      metrics;
+    private volatile int      rows;
+    private volatile int      retries;
+    private volatile long     durationNanos;
+    private volatile String   status = RUNNING;
+
+    Span(String name, boolean sampled) {
+        this.name = name;
+        this.sampled = sampled;
+        this.startEpochNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns the current tick if the span is not null.
+     */
+    public static long tick(final Span span) {
+        return span == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Records the time from `startTick` to now to the phase if the span is not null.
+     *
+     * @return the current tick
+     */
+    public static long record(final Span span, final Phase phase, final long startTick) {
+        return span == null ? 0 : span.record(phase, startTick);
+    }
+
+    /**
+     * Records the time to the phase after the future completes successfully.
+     */
+    public static <T> CompletableFuture<T> traced(final Span span, final Phase phase,
+                                                  final CompletableFuture<T> future) {
+        if (span == null) {
+            return future;
+        }
+        final long startTick = System.nanoTime();
+        return future.thenApply(v -> {
+            span.record(phase, startTick);
+            return v;
+        });
+    }
+
+    /**
+     * Like {@code future.thenApplyAsync(fn, executor)}, and records the time
+     * until the future completes to `phase`, the time waiting for the executor
+     * to {@link Phase#Queue}, and the time of `fn` to `fnPhase`.
+     */
+    public static <T, R> CompletableFuture<R> tracedApplyAsync(final Span span, final Phase phase,
+                                                               final CompletableFuture<T> future, final Phase fnPhase,
+                                                               final Function<T, R> fn, final Executor executor) {
+        if (span == null) {
+            return future.thenApplyAsync(fn, executor);
+        }
+        final long startTick = System.nanoTime();
+        final long[] completedTick = new long[1]; // happens-before the async stage
+        return future.thenApply(v -> {
+            completedTick[0] = span.record(phase, startTick);
+            return v;
+        }).thenApplyAsync(v -> {
+            final long fnStartTick = span.record(Phase.Queue, completedTick[0]);
+            final R r = fn.apply(v);
+            span.record(fnPhase, fnStartTick);
+            return r;
+        }, executor);
+    }
+
+    public long record(final Phase phase, final long startTick) {
+        final long now = System.nanoTime();
+        this.phaseNanos.addAndGet(phase.ordinal(), now - startTick);
+        this.phaseCounts.incrementAndGet(phase.ordinal());
+        return now;
+    }
+
+    /**
+     * Records the endpoint and the request bytes of an rpc.
+     */
+    public void rpc(final Endpoint endpoint, final long bytes) {
+        this.endpoint = endpoint;
+        this.bytes.addAndGet(bytes);
+    }
+
+    public void setMetrics(final int metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setRows(final int rows) {
+        this.rows = rows;
+    }
+
+    public void retried(final int retries) {
+        if (retries > this.retries) {
+            this.retries = retries;
+        }
+    }
+
+    /**
+     * Ends the span and passes it to the sinks of {@link Tracer}, only the
+     * first call takes effect.
+     *
+     * @param status {@link #OK} or the error
+     */
+    public void end(final String status) {
+        final long duration = System.nanoTime() - this.startNanos;
+        if (STATUS_UPDATER.compareAndSet(this, RUNNING, status == null ? OK : status)) {
+            this.durationNanos = duration;
+            Tracer.onEnd(this);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Whether the span is sampled by the sample rate, the sinks only receive
+     * the sampled spans.
+     */
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    public long getStartEpochNanos() {
+        return startEpochNanos;
+    }
+
+    public long getEndEpochNanos() {
+        return this.startEpochNanos + this.durationNanos;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public boolean isEnded() {
+        return this.status != RUNNING;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public boolean isFailed() {
+        return isEnded() && !OK.equals(this.status);
+    }
+
+    /**
+     * Returns the endpoint of the last rpc.
+     */
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    public int getMetrics() {
+        return metrics;
+    }
+
+    public long getBytes() {
+        return this.bytes.get();
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public long getPhaseNanos(final Phase phase) {
+        return this.phaseNanos.get(phase.ordinal());
+    }
+
+    public int getPhaseCount(final Phase phase) {
+        return this.phaseCounts.get(phase.ordinal());
+    }
+
+    /**
+     * Returns the attributes in OpenTelemetry style, the phases are named
+     * `ceresdb.phase.${phase}.nanos` and `ceresdb.phase.${phase}.count`.
+     */
+    public Map<String, Object> getAttributes() {
+        final Map<String, Object> attrs = new LinkedHashMap<>();
+        if (this.endpoint != null) {
+            attrs.put("ceresdb.endpoint", this.endpoint.toString());
+        }
+        attrs.put("ceresdb.metrics", this.metrics);
+        attrs.put("ceresdb.rows", this.rows);
+        attrs.put("ceresdb.bytes", getBytes());
+        attrs.put("ceresdb.retries", this.retries);
+        for (final Phase phase : PHASES) {
+            final int count = getPhaseCount(phase);
+            if (count > 0) {
+                final String key = "ceresdb.phase." + phase.name().toLowerCase();
+                attrs.put(key + ".nanos", getPhaseNanos(phase));
+                attrs.put(key + ".count", count);
+            }
+        }
+        return attrs;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder("Span{") //
+                .append("name=").append(this.name) //
+                .append(", startEpochNanos=").append(this.startEpochNanos) //
+                .append(", durationNanos=").append(this.durationNanos) //
+                .append(", status=").append(this.status) //
+                .append(", endpoint=").append(this.endpoint) //
+                .append(", metrics=").append(this.metrics) //
+                .append(", rows=").append(this.rows) //
+                .append(", bytes=").append(getBytes()) //
+                .append(", retries=").append(this.retries) //
+                .append(", phases={");
+        boolean first = true;
+        for (final Phase phase : PHASES) {
+            final int count = getPhaseCount(phase);
+            if (count == 0) {
+                continue;
+            }
+            if (!first) {
+                buf.append(", ");
+            }
+            first = false;
+            buf.append(phase).append('=').append(getPhaseNanos(phase)).append("ns/").append(count);
+        }
+        return buf.append("}}").toString();
+    }
+}
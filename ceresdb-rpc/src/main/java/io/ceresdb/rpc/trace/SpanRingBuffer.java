@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.rpc.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import io.ceresdb.common.util.Requires;
+
+/**
+ * A sink that keeps the most recent spans in a fixed size ring buffer, the
+ * older spans are overwritten.
+ *
+ * @author jiachun.fjc
+ */
+public final class SpanRingBuffer implements SpanSink {
+
+    private final AtomicReferenceArray<Span> slots;
+    private final int                        mask;
+    private final AtomicLong                 sequence = new AtomicLong();
+
+    public SpanRingBuffer(int capacity) {
+        Requires.requireTrue(capacity > 0, "capacity must > 0");
+        final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    @Override
+    public void onEnd(final Span span) {
+        final long seq = this.sequence.getAndIncrement();
+        this.slots.lazySet((int) (seq & this.mask), span);
+    }
+
+    public int capacity() {
+        return this.slots.length();
+    }
+
+    /**
+     * Returns the spans in the buffer, the oldest first.
+     */
+    public List<Span> snapshot() {
+        final long end = this.sequence.get();
+        final long start = Math.max(0, end - this.slots.length());
+        final List<Span> spans = new ArrayList<>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            final Span span = this.slots.get((int) (seq & this.mask));
+            if (span != null) {
+                spans.add(span);
+            }
+        }
+        return spans;
+    }
+}
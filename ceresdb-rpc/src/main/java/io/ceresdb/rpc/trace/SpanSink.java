@@ -0,0 +1,33 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.rpc.trace;
+
+/**
+ * Receives the ended spans, see {@link Tracer#addSink(SpanSink)}.
+ *
+ * It is called on the thread that ends the request, so it should be fast
+ * and never block.  The shape is the same as the `onEnd` of an OpenTelemetry
+ * `SpanProcessor`, a sink can be bridged to OpenTelemetry by creating a span
+ * with the start and end timestamps and the attributes of the given span.
+ *
+ * @author jiachun.fjc
+ */
+@FunctionalInterface
+public interface SpanSink {
+
+    void onEnd(final Span span);
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.ceresdb.rpc.trace;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.ceresdb.common.OptKeys;
+import io.ceresdb.common.util.Requires;
+import io.ceresdb.common.util.SystemPropertyUtil;
+
+/**
+ * Creates the sampled {@link Span}s and passes the ended ones to the sinks.
+ *
+ * Tracing is disabled by default, it can be enabled by the system property
+ * {@link OptKeys#TRACE_SAMPLE_RATE} or {@link #setSampleRate(double)}. When
+ * it is disabled, {@link #startSpan(String)} returns null and nothing else
+ * is done.
+ *
+ * The most recent sampled spans are kept in a {@link SpanRingBuffer}, and
+ * can be dumped by a signal.
+ *
+ * The {@link FlightRecorder} is disabled by default, it can be enabled by
+ * the system property {@link OptKeys#FLIGHT_RECORDER_SIZE}.  It needs a span
+ * for every request, so once enabled, the requests that are not sampled are
+ * still traced, but they are only offered to the recorder.
+ *
+ * @author jiachun.fjc
+ */
+public final class Tracer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Tracer.class);
+
+    private static final SpanRingBuffer RECENT_SPANS;
+    private static final FlightRecorder RECORDER;
+    private static final List<SpanSink> SINKS = new CopyOnWriteArrayList<>();
+
+    private static volatile double sampleRate;
+
+    static {
+        RECENT_SPANS = new SpanRingBuffer(SystemPropertyUtil.getInt(OptKeys.TRACE_BUFFER_SIZE, 1024));
+        final int recorderSize = SystemPropertyUtil.getInt(OptKeys.FLIGHT_RECORDER_SIZE, 0);
+        RECORDER = recorderSize > 0 ?
+                new FlightRecorder(recorderSize,
+                        TimeUnit.SECONDS.toNanos(SystemPropertyUtil.getInt(OptKeys.FLIGHT_RECORDER_WINDOW, 60))) :
+                null;
+        setSampleRate(Double.parseDouble(SystemPropertyUtil.get(OptKeys.TRACE_SAMPLE_RATE, "0")));
+    }
+
+    /**
+     * Starts a span if the request is sampled.
+     *
+     * @param name the name of the span, such as `write`
+     * @return the span, or null if the request is neither sampled nor recorded
+     */
+    public static Span startSpan(final String name) {
+        final double rate = sampleRate;
+        final boolean sampled = rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+        if (!sampled && RECORDER == null) {
+            return null;
+        }
+        return new Span(name, sampled);
+    }
+
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Sets the fraction of the requests to trace, 0 disables tracing.
+     *
+     * @param rate the sample rate in [0, 1]
+     */
+    public static void setSampleRate(final double rate) {
+        Requires.requireTrue(rate >= 0 && rate <= 1, "sample rate must be in [0, 1]: %s", rate);
+        sampleRate = rate;
+    }
+
+    public static void addSink(final SpanSink sink) {
+        SINKS.add(Requires.requireNonNull(sink, "Null.sink"));
+    }
+
+    public static boolean removeSink(final SpanSink sink) {
+        return SINKS.remove(sink);
+    }
+
+    public static SpanRingBuffer recentSpans() {
+        return RECENT_SPANS;
+    }
+
+    /**
+     * Returns the flight recorder, null if it is disabled.
+     */
+    public static FlightRecorder flightRecorder() {
+        return RECORDER;
+    }
+
+    static void onEnd(final Span span) {
+        if (RECORDER != null) {
+            RECORDER.offer(span);
+        }
+        if (!span.isSampled()) {
+            return;
+        }
+        RECENT_SPANS.onEnd(span);
+        for (final SpanSink sink : SINKS) {
+            try {
+                sink.onEnd(span);
+            } catch (final Throwable t) {
+                LOG.warn("Span sink {} failed.", sink, t);
+            }
+        }
+    }
+
+    private Tracer() {
+    }
+}
@@ -26,6 +26,7 @@ import org.junit.Test;
 import io.ceresdb.MetricParser;
 import io.ceresdb.MetricParserFactory;
 import io.ceresdb.MetricParserFactoryProvider;
+import io.ceresdb.PreparedQuery;
 import io.ceresdb.common.util.ServiceLoader;
 
 /**
@@ -40,6 +41,34 @@ public class MetricParserTest {
         Assert.assertTrue(factory instanceof CeresDBMetricParserFactory);
     }
 
+    @Test
+    public void sameAsFullParserTest() {
+        final List<String> qls = Arrays.asList("select * from t1", //
+                "SELECT a, b FROM t1 WHERE ts > 1 AND name = 'x' GROUP BY a ORDER BY a LIMIT 10;", //
+                "select count(*) from t1 where a in (select a from t2)", //
+                "select * from t1 a, t2 b where a.x = b.x", //
+                "DESCRIBE t1");
+        for (final String ql : qls) {
+            for (int i = 0; i < 2; i++) { // the second one will hit the cache
+                final MetricParser parser = getParser(ql);
+                final MetricParser full = new CeresDBMetricParser(ql);
+                Assert.assertEquals(full.statementType(), parser.statementType());
+                Assert.assertEquals(full.metricNames(), parser.metricNames());
+            }
+        }
+    }
+
+    @Test
+    public void preparedQueryTest() {
+        final PreparedQuery pq = PreparedQuery.prepare("SELECT * FROM t1 WHERE host = ? AND ts > ? LIMIT 10");
+        Assert.assertEquals(Collections.singletonList("t1"), pq.getMetrics());
+        Assert.assertEquals("SELECT * FROM t1 WHERE host = 'h1' AND ts > 100 LIMIT 10", pq.bind("h1", 100).getQl());
+
+        // not a simple select, parsed by the full parser
+        final PreparedQuery pq2 = PreparedQuery.prepare("SELECT * FROM t1, t2 WHERE t1.host = ? AND t2.ts > ?");
+        Assert.assertEquals(Arrays.asList("t1", "t2"), pq2.getMetrics());
+    }
+
     @Test
     public void alterTableTest() {
         final MetricParser parser = getParser("ALTER TABLE test_table_1635254941778 ADD COLUMN c20 UINT64");